@@ -0,0 +1,351 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A single selector thread that reads requests from its connections, runs the request handler
+ * and writes the responses back without blocking on any socket.
+ * One loop can additionally accept new connections and hand them to the other loops.
+ * If a worker executor is given, handlers run there and their responses are handed back to the loop.
+ * Connections are kept alive between requests until they are idle for longer than the keep-alive
+ * timeout or served the maximum number of requests.
+ * Bodies of streamed responses are written on the worker executor, since writing them blocks while
+ * the client does not keep up; the loop only writes the chunks they produce. A full executor answers
+ * 503 for them like for handlers. Without workers, each body gets a virtual thread of its own.
+ */
+class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Function<HttpRequest, HttpResponse> handler;
+    private final Executor workers;
+    private final Executor bodyWriters;
+    private final long keepAliveTimeoutMillis;
+    private final int maxKeepAliveRequests;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Consumer<SocketChannel> acceptHandler;
+    private volatile boolean running = false;
+    private Thread thread;
+    private long lastIdleCheck = System.nanoTime();
+
+    /**
+     * @param workers executor for request handlers, or null to run them on the loop thread
+     * @param keepAliveTimeoutMillis time after which idle connections are closed
+     * @param maxKeepAliveRequests requests served per connection before it is closed
+     */
+    EventLoop(String name, Function<HttpRequest, HttpResponse> handler, Executor workers,
+              long keepAliveTimeoutMillis, int maxKeepAliveRequests) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.workers = workers;
+        this.bodyWriters = workers != null ? workers : task -> Thread.ofVirtual().name(name + "-body").start(task);
+        this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Lets this loop accept connections on the given server channel. Must be called before {@link #start()}.
+     */
+    void listen(ServerSocketChannel serverChannel, Consumer<SocketChannel> acceptHandler) throws ClosedChannelException {
+        this.acceptHandler = acceptHandler;
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands an accepted connection to this loop. Safe to call from any thread.
+     */
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread. Safe to call from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long idleCheckInterval = Math.max(1, Math.min(1000, keepAliveTimeoutMillis / 2));
+        try {
+            while (running) {
+                selector.select(idleCheckInterval);
+                registerNewChannels();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else if (key.isReadable()) {
+                        onReadable((HttpConnection) key.attachment());
+                    } else if (key.isWritable()) {
+                        onWritable((HttpConnection) key.attachment());
+                    }
+                }
+
+                closeIdleConnections(idleCheckInterval);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("Event loop {} failed", name, e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                acceptHandler.accept(channel);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("Failed to accept connection", e);
+            }
+        }
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new HttpConnection(channel, key));
+            } catch (ClosedChannelException e) {
+                // Client went away before the connection was registered
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void onReadable(HttpConnection connection) {
+        try {
+            if (!connection.read()) {
+                connection.close();
+                return;
+            }
+            processRequests(connection);
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void onWritable(HttpConnection connection) {
+        try {
+            if (connection.flush()) {
+                processRequests(connection);
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Handles the requests buffered on the connection one after another, which may already have
+     * been pipelined by the client, and waits for more bytes once no complete request is left.
+     * Stops as soon as a request is handed to a worker or its response could not be written completely.
+     */
+    private void processRequests(HttpConnection connection) throws IOException {
+        while (connection.isReadyForRequest()) {
+            HttpRequest request;
+            try {
+                request = connection.nextRequest();
+            } catch (IllegalArgumentException e) {
+                connection.send(errorResponse(400, "Bad Request", e.getMessage()), true);
+                return;
+            }
+
+            if (request == null) {
+                if (connection.isRequestTooLarge()) {
+                    connection.send(errorResponse(413, "Payload Too Large", "Request exceeds the maximum size."), true);
+                } else {
+                    connection.awaitRequest();
+                }
+                return;
+            }
+
+            int served = connection.beginRequest();
+            boolean keepAlive = running && request.isKeepAlive() && served < maxKeepAliveRequests;
+            int remainingRequests = maxKeepAliveRequests - served;
+
+            if (workers == null) {
+                sendResponse(connection, request, handler.apply(request), keepAlive, remainingRequests);
+            } else {
+                dispatchToWorker(connection, request, keepAlive, remainingRequests);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the handler on a worker and hands the response back to this loop
+     */
+    private void dispatchToWorker(HttpConnection connection, HttpRequest request, boolean keepAlive,
+                                  int remainingRequests) throws IOException {
+        try {
+            workers.execute(() -> {
+                HttpResponse response = handler.apply(request);
+                execute(() -> completeRequest(connection, request, response, keepAlive, remainingRequests));
+            });
+        } catch (RejectedExecutionException e) {
+            // Backpressure: the worker queue is full, so shed load instead of queueing more
+            connection.send(busyResponse(), true);
+        }
+    }
+
+    /**
+     * Writes the response produced by a worker and continues with the next pipelined request
+     */
+    private void completeRequest(HttpConnection connection, HttpRequest request, HttpResponse response,
+                                 boolean keepAlive, int remainingRequests) {
+        if (!connection.isOpen()) return;
+        try {
+            sendResponse(connection, request, response, keepAlive, remainingRequests);
+            processRequests(connection);
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void sendResponse(HttpConnection connection, HttpRequest request, HttpResponse response,
+                              boolean keepAlive, int remainingRequests) throws IOException {
+        response.setKeepAlive(keepAlive, TimeUnit.MILLISECONDS.toSeconds(keepAliveTimeoutMillis), remainingRequests);
+        boolean includeBody = !"HEAD".equalsIgnoreCase(request.getMethod());
+        if (includeBody && response.isStreamed()) {
+            // The request stays in flight until the body writer completes the response
+            ResponseBodyStream body = new ResponseBodyStream(this, connection, response, keepAlive);
+            try {
+                bodyWriters.execute(body::run);
+            } catch (RejectedExecutionException e) {
+                // Nothing of the response is sent yet, so it can still be refused like a handler
+                connection.send(busyResponse(), true);
+            }
+            return;
+        }
+        connection.send(response.toBytes(includeBody), !keepAlive);
+    }
+
+    /**
+     * Writes the last part of a streamed response and continues with the next pipelined request.
+     * Must run on the loop thread.
+     */
+    void completeStreamedResponse(HttpConnection connection, byte[] last, boolean close) {
+        if (!connection.isOpen()) return;
+        try {
+            if (connection.send(last, close)) {
+                processRequests(connection);
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes connections that waited longer than the keep-alive timeout for their next request
+     */
+    private void closeIdleConnections(long idleCheckInterval) {
+        long now = System.nanoTime();
+        if (now - lastIdleCheck < TimeUnit.MILLISECONDS.toNanos(idleCheckInterval)) return;
+        lastIdleCheck = now;
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveTimeoutMillis);
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof HttpConnection && ((HttpConnection) attachment).isIdle(now, timeoutNanos)) {
+                ((HttpConnection) attachment).close();
+            }
+        }
+    }
+
+    private static byte[] busyResponse() {
+        return new HttpResponse.Builder()
+                .status(503, "Service Unavailable")
+                .header("Content-Type", "text/plain")
+                .header("Retry-After", "1")
+                .body("Server is busy, please retry.")
+                .build()
+                .toBytes(true);
+    }
+
+    private static byte[] errorResponse(int code, String text, String message) {
+        return new HttpResponse.Builder()
+                .status(code, text)
+                .header("Content-Type", "text/plain")
+                .body(message)
+                .build()
+                .toBytes(true);
+    }
+
+    private void closeAll() {
+        SocketChannel pending;
+        while ((pending = newChannels.poll()) != null) {
+            try {
+                pending.close();
+            } catch (IOException e) {
+                // Ignore, the loop is shutting down
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Ignore, the loop is shutting down
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Failed to close selector", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.example;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines where {@link HttpServer} runs request handlers once an event loop has parsed a request.
+ * Selected with the HTTP_EXECUTION_MODE environment variable:
+ * <ul>
+ *   <li>{@code event-loop}: directly on the I/O thread, only suitable for non-blocking storages</li>
+ *   <li>{@code virtual} (default): one virtual thread per request, so blocking gRPC and 2PC calls are cheap</li>
+ *   <li>{@code pool}: a bounded platform thread pool (HTTP_WORKER_THREADS, HTTP_WORKER_QUEUE)
+ *       that answers 503 when its queue is full</li>
+ * </ul>
+ */
+public enum ExecutionMode {
+    EVENT_LOOP,
+    VIRTUAL_THREADS,
+    BOUNDED_POOL;
+
+    private static final int DEFAULT_WORKER_QUEUE = 1000;
+
+    public static ExecutionMode fromEnvironment() {
+        String configured = System.getenv("HTTP_EXECUTION_MODE");
+        if (configured == null || configured.isBlank()) {
+            return VIRTUAL_THREADS;
+        }
+        switch (configured.trim().toLowerCase(Locale.ROOT)) {
+            case "event-loop":
+                return EVENT_LOOP;
+            case "virtual":
+                return VIRTUAL_THREADS;
+            case "pool":
+                return BOUNDED_POOL;
+            default:
+                Log.warn("⚠️ Unknown HTTP_EXECUTION_MODE {}, using virtual threads", configured);
+                return VIRTUAL_THREADS;
+        }
+    }
+
+    /**
+     * Creates the executor for request handlers, or null if handlers run on the event loop
+     */
+    ExecutorService createExecutor() {
+        switch (this) {
+            case VIRTUAL_THREADS:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-handler-", 0).factory());
+            case BOUNDED_POOL:
+                int threads = intFromEnvironment("HTTP_WORKER_THREADS", 4 * Runtime.getRuntime().availableProcessors());
+                int queueSize = intFromEnvironment("HTTP_WORKER_QUEUE", DEFAULT_WORKER_QUEUE);
+                AtomicInteger counter = new AtomicInteger();
+                return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueSize),
+                        r -> new Thread(r, "http-worker-" + counter.getAndIncrement()),
+                        new ThreadPoolExecutor.AbortPolicy());
+            default:
+                return null;
+        }
+    }
+
+    private static int intFromEnvironment(String name, int defaultValue) {
+        String configured = System.getenv(name);
+        if (configured == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(configured.trim()));
+        } catch (NumberFormatException e) {
+            Log.warn("⚠️ Invalid {} value: {}", name, configured);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * State of a single persistent client connection served by an {@link EventLoop}.
+ * Instances are only ever touched by the event loop thread that owns the selection key.
+ * At most one request per connection is handled at a time; pipelined requests stay in the
+ * read buffer until the previous response has been written, which keeps responses in order.
+ */
+class HttpConnection {
+    static final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Deque<PendingWrite> writeQueue = new ArrayDeque<>();
+    private final HttpRequestParser parser = new HttpRequestParser(MAX_REQUEST_SIZE);
+    private boolean closeAfterWrite = false;
+    private boolean requestInFlight = false;
+    private int requestCount = 0;
+    private long lastActivity = System.nanoTime();
+
+    /**
+     * Output waiting for the socket, with an optional callback once it is written
+     */
+    private static final class PendingWrite {
+        final ByteBuffer data;
+        final Runnable written;
+
+        PendingWrite(ByteBuffer data, Runnable written) {
+            this.data = data;
+            this.written = written;
+        }
+    }
+
+    HttpConnection(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Reads all currently available bytes into the read buffer
+     * @return false if the peer closed the connection
+     */
+    boolean read() throws IOException {
+        if (parser.isFull()) {
+            return true;
+        }
+        lastActivity = System.nanoTime();
+        return channel.read(parser.buffer()) >= 0;
+    }
+
+    /**
+     * Returns the next complete request from the read buffer, or null if more bytes are needed
+     * @throws IllegalArgumentException if the buffered request is malformed
+     */
+    HttpRequest nextRequest() {
+        return parser.parse();
+    }
+
+    /**
+     * Whether the read buffer reached its maximum size without holding a complete request
+     */
+    boolean isRequestTooLarge() {
+        return parser.isFull();
+    }
+
+    /**
+     * Whether the next buffered request may be handled: nothing in flight, no pending output, not closing
+     */
+    boolean isReadyForRequest() {
+        return !requestInFlight && writeQueue.isEmpty() && !closeAfterWrite && channel.isOpen();
+    }
+
+    /**
+     * Marks a request as being handled and stops selecting for reads until its response is queued
+     * @return the number of requests served on this connection, including this one
+     */
+    int beginRequest() {
+        requestInFlight = true;
+        key.interestOps(0);
+        return ++requestCount;
+    }
+
+    /**
+     * Queues the response bytes of the request in flight and tries to write them immediately.
+     * @return true if everything was written, false if the rest is written once the socket becomes writable
+     */
+    boolean send(byte[] response, boolean close) throws IOException {
+        requestInFlight = false;
+        writeQueue.add(new PendingWrite(ByteBuffer.wrap(response), null));
+        closeAfterWrite |= close;
+        return flush();
+    }
+
+    /**
+     * Queues part of a streamed response and tries to write it immediately. The request stays in
+     * flight until the last part is queued with {@link #send(byte[], boolean)}.
+     * @param written runs on the event loop once the part is completely written
+     */
+    void sendPart(byte[] part, Runnable written) throws IOException {
+        writeQueue.add(new PendingWrite(ByteBuffer.wrap(part), written));
+        flush();
+    }
+
+    /**
+     * Writes as much of the pending output as the socket accepts and closes the connection
+     * once everything is written if requested.
+     * @return true if no output is pending anymore
+     */
+    boolean flush() throws IOException {
+        lastActivity = System.nanoTime();
+        while (!writeQueue.isEmpty()) {
+            PendingWrite head = writeQueue.peek();
+            channel.write(head.data);
+            if (head.data.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            writeQueue.poll();
+            if (head.written != null) {
+                head.written.run();
+            }
+        }
+
+        if (closeAfterWrite) {
+            close();
+        } else if (requestInFlight) {
+            // A streamed response is still being produced, wait for its next part
+            key.interestOps(0);
+        }
+        return true;
+    }
+
+    /**
+     * Selects for reads again, used when the read buffer holds no complete request
+     */
+    void awaitRequest() {
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Whether the connection has neither a request in flight nor pending output
+     * and saw no traffic for longer than the timeout
+     */
+    boolean isIdle(long now, long timeoutNanos) {
+        return !requestInFlight && writeQueue.isEmpty() && now - lastActivity > timeoutNanos;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do for a connection that failed to close
+        }
+    }
+}
@@ -1,47 +1,203 @@
 package org.example;
 
-import java.io.BufferedReader;
-import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * Represents an HTTP request with its method, headers, and body.
+ * The query string is split off the request target, so {@link #getPath()} never contains it.
+ * Requests parsed by {@link HttpRequestParser} keep the raw header bytes and decode
+ * header values and the body only when they are accessed.
  */
 public class HttpRequest {
+    private static final Map<String, Pattern> PATH_PATTERNS = new ConcurrentHashMap<>();
+
     private final String method;
     private final String path;
-    private final Map<String, String> headers;
-    private final String body;
-    
-    public HttpRequest(String method, String path, Map<String, String> headers, String body) {
+    private final String query;
+    private final String version;
+    private final byte[] head;
+    private final int[] headerOffsets;
+    private final byte[] bodyBytes;
+    private Map<String, String> headers;
+    private Map<String, String> queryParameters;
+    private String body;
+
+    public HttpRequest(String method, String target, Map<String, String> headers, String body) {
+        this(method, target, "HTTP/1.1", headers, body);
+    }
+
+    public HttpRequest(String method, String target, String version, Map<String, String> headers, String body) {
         this.method = method;
-        this.path = path;
+        this.path = pathOf(target);
+        this.query = queryOf(target);
+        this.version = version;
+        this.head = null;
+        this.headerOffsets = null;
+        this.bodyBytes = null;
         this.headers = headers;
         this.body = body;
     }
-    
+
+    /**
+     * Creates a request backed by the raw bytes of its header section
+     * @param headerOffsets name start, name end, value start and value end of every header line within head
+     * @param bodyBytes the body, or null if the request has none
+     */
+    HttpRequest(String method, String target, String version, byte[] head, int[] headerOffsets, byte[] bodyBytes) {
+        this.method = method;
+        this.path = pathOf(target);
+        this.query = queryOf(target);
+        this.version = version;
+        this.head = head;
+        this.headerOffsets = headerOffsets;
+        this.bodyBytes = bodyBytes;
+    }
+
     public String getMethod() {
         return method;
     }
-    
+
     public String getPath() {
         return path;
     }
-    
+
+    /**
+     * Returns the raw query string without the leading '?', or null if the target has none
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the decoded value of the query parameter with the given name, or null.
+     * The query string is parsed on first access; for repeated parameters the first value wins.
+     */
+    public String getQueryParameter(String name) {
+        if (query == null) {
+            return null;
+        }
+        if (queryParameters == null) {
+            Map<String, String> decoded = new HashMap<>();
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) continue;
+                int separator = pair.indexOf('=');
+                String key = separator < 0 ? pair : pair.substring(0, separator);
+                String value = separator < 0 ? "" : pair.substring(separator + 1);
+                decoded.putIfAbsent(decode(key), decode(value));
+            }
+            queryParameters = decoded;
+        }
+        return queryParameters.get(name);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns all headers with lower-cased names
+     */
     public Map<String, String> getHeaders() {
+        if (headers == null) {
+            Map<String, String> decoded = new HashMap<>();
+            for (int slot = 0; slot < headerOffsets.length; slot += 4) {
+                String name = new String(head, headerOffsets[slot], headerOffsets[slot + 1] - headerOffsets[slot],
+                        StandardCharsets.ISO_8859_1).toLowerCase();
+                decoded.put(name, headerValue(slot));
+            }
+            headers = decoded;
+        }
         return headers;
     }
-    
+
+    /**
+     * Returns the value of the header with the given name (case-insensitive), or null.
+     * Only the requested value is decoded.
+     */
+    public String getHeader(String name) {
+        if (head == null || headers != null) {
+            return getHeaders().get(name.toLowerCase());
+        }
+        for (int slot = 0; slot < headerOffsets.length; slot += 4) {
+            if (nameEqualsIgnoreCase(slot, name)) {
+                return headerValue(slot);
+            }
+        }
+        return null;
+    }
+
     public String getBody() {
+        if (body == null && bodyBytes != null) {
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
         return body;
     }
-    
+
+    private static String pathOf(String target) {
+        int separator = target.indexOf('?');
+        return separator < 0 ? target : target.substring(0, separator);
+    }
+
+    private static String queryOf(String target) {
+        int separator = target.indexOf('?');
+        return separator < 0 ? null : target.substring(separator + 1);
+    }
+
+    private static String decode(String component) {
+        try {
+            return URLDecoder.decode(component, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // Malformed percent escapes are kept as they are
+            return component;
+        }
+    }
+
+    private String headerValue(int slot) {
+        return new String(head, headerOffsets[slot + 2], headerOffsets[slot + 3] - headerOffsets[slot + 2],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean nameEqualsIgnoreCase(int slot, String name) {
+        int start = headerOffsets[slot];
+        if (headerOffsets[slot + 1] - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            if (HttpRequestParser.toLowerCase(head[start + i]) != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
-     * Checks if the path matches a given regex pattern
+     * Whether the client wants to keep the connection open after this request.
+     * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+     * HTTP/1.0 connections only if the client sends "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Checks if the path matches a given regex pattern. Patterns are compiled once and cached.
+     * Routing should use {@link Router}, which matches without regular expressions.
      */
     public boolean matchesPath(String pattern) {
-        return path.matches(pattern);
+        return PATH_PATTERNS.computeIfAbsent(pattern, Pattern::compile).matcher(path).matches();
     }
       /**
      * Extracts a path parameter from the URL path
@@ -70,53 +226,4 @@ public class HttpRequest {
         }
         return null;
     }
-    
-    /**
-     * Parses an HTTP request from the input reader
-     */
-    public static HttpRequest parse(BufferedReader in) throws IOException {
-        String requestLine = in.readLine();
-        if (requestLine == null || requestLine.isEmpty()) return null;
-
-        String[] requestParts = requestLine.split(" ", 3);
-        if (requestParts.length < 3) return null;
-        
-        String method = requestParts[0];
-        String path = requestParts[1];
-        Map<String, String> headers = readHeaders(in);
-        String body = null;
-        
-        if (method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT")) {
-            int contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
-            body = readBody(in, contentLength);
-        }
-        
-        return new HttpRequest(method, path, headers, body);
-    }
-    
-    /**
-     * Reads HTTP headers from the input
-     */
-    private static Map<String, String> readHeaders(BufferedReader in) throws IOException {
-        Map<String, String> headers = new HashMap<>();
-        String line;
-        while (!(line = in.readLine()).isEmpty()) {
-            String[] headerParts = line.split(":", 2);
-            if (headerParts.length == 2) {
-                headers.put(headerParts[0].trim().toLowerCase(), headerParts[1].trim());
-            }
-        }
-        return headers;
-    }
-    
-    /**
-     * Reads the request body of specified length
-     */
-    private static String readBody(BufferedReader in, int contentLength) throws IOException {
-        char[] bodyChars = new char[contentLength];
-        in.read(bodyChars);
-        String body = new String(bodyChars);
-        System.out.println("Received JSON: " + body);
-        return body;
-    }
-}
\ No newline at end of file
+}
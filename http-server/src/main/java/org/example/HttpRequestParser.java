@@ -0,0 +1,296 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x request parser that works directly on a reusable {@link ByteBuffer}.
+ *
+ * Bytes are read into {@link #buffer()} and {@link #parse()} is called after every read.
+ * The parser remembers how far it scanned, so a partial read resumes where the previous call
+ * stopped instead of rescanning the request. Header lines are not decoded; only their offsets are
+ * recorded and {@link HttpRequest#getHeader(String)} decodes a value on demand. The body is framed by
+ * Content-Length as a byte count. After a request is complete, pipelined bytes that follow it are
+ * moved to the start of the buffer and parsing continues with them on the next call.
+ */
+public class HttpRequestParser {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEADERS = 64;
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+
+    private final int maxRequestSize;
+    private ByteBuffer buffer;
+
+    // Parser state of the request at the start of the buffer
+    private int state = REQUEST_LINE;
+    private int scanPosition = 0;
+    private int lineStart = 0;
+    private String method;
+    private String path;
+    private String version;
+    private int[] headerOffsets = new int[8 * 4];
+    private int headerCount = 0;
+    private int headerEnd = 0;
+    private int contentLength = 0;
+
+    public HttpRequestParser() {
+        this(HttpConnection.MAX_REQUEST_SIZE);
+    }
+
+    public HttpRequestParser(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+        this.buffer = ByteBuffer.allocate(Math.min(INITIAL_BUFFER_SIZE, maxRequestSize));
+    }
+
+    /**
+     * Returns the buffer to read into (write mode). It grows while a request is incomplete,
+     * up to the maximum request size.
+     */
+    public ByteBuffer buffer() {
+        if (!buffer.hasRemaining() && buffer.capacity() < maxRequestSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxRequestSize));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    /**
+     * Whether the buffer reached the maximum request size without holding a complete request
+     */
+    public boolean isFull() {
+        return !buffer.hasRemaining() && buffer.capacity() >= maxRequestSize;
+    }
+
+    /**
+     * Continues parsing with the bytes read so far
+     * @return the next complete request, or null if more bytes are needed
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public HttpRequest parse() {
+        int limit = buffer.position();
+        while (true) {
+            if (state == BODY) {
+                if (limit - headerEnd < contentLength) {
+                    return null;
+                }
+                return completeRequest();
+            }
+
+            int lineEnd = indexOfLineFeed(scanPosition, limit);
+            if (lineEnd < 0) {
+                scanPosition = limit;
+                return null;
+            }
+            int contentEnd = lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+
+            if (state == REQUEST_LINE) {
+                // Empty lines before the request line are ignored (RFC 9112, section 2.2)
+                if (contentEnd > lineStart) {
+                    parseRequestLine(lineStart, contentEnd);
+                    state = HEADERS;
+                }
+            } else if (contentEnd == lineStart) {
+                headerEnd = lineEnd + 1;
+                state = BODY;
+            } else {
+                parseHeaderLine(lineStart, contentEnd);
+            }
+            lineStart = lineEnd + 1;
+            scanPosition = lineStart;
+        }
+    }
+
+    private int indexOfLineFeed(int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void parseRequestLine(int start, int end) {
+        int firstSpace = indexOf((byte) ' ', start, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, end);
+        if (firstSpace <= start || secondSpace < 0 || secondSpace == firstSpace + 1 || secondSpace + 1 >= end) {
+            throw new IllegalArgumentException("Malformed request line");
+        }
+        method = knownMethod(start, firstSpace);
+        path = ascii(firstSpace + 1, secondSpace);
+        version = knownVersion(secondSpace + 1, end);
+    }
+
+    private void parseHeaderLine(int start, int end) {
+        int colon = indexOf((byte) ':', start, end);
+        if (colon < 0) {
+            // Lines without a colon are ignored like before
+            return;
+        }
+        if (headerCount == MAX_HEADERS) {
+            throw new IllegalArgumentException("Too many headers");
+        }
+
+        int nameStart = skipWhitespace(start, colon);
+        int nameEnd = trimWhitespace(nameStart, colon);
+        int valueStart = skipWhitespace(colon + 1, end);
+        int valueEnd = trimWhitespace(valueStart, end);
+
+        if (headerOffsets.length < (headerCount + 1) * 4) {
+            int[] larger = new int[headerOffsets.length * 2];
+            System.arraycopy(headerOffsets, 0, larger, 0, headerOffsets.length);
+            headerOffsets = larger;
+        }
+        int slot = headerCount * 4;
+        headerOffsets[slot] = nameStart;
+        headerOffsets[slot + 1] = nameEnd;
+        headerOffsets[slot + 2] = valueStart;
+        headerOffsets[slot + 3] = valueEnd;
+        headerCount++;
+
+        if (equalsIgnoreCase(nameStart, nameEnd, "content-length")) {
+            contentLength = parseContentLength(valueStart, valueEnd);
+        }
+    }
+
+    private int parseContentLength(int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException("Invalid Content-Length header");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("Invalid Content-Length header");
+            }
+            value = value * 10 + (b - '0');
+            if (value > maxRequestSize) {
+                throw new IllegalArgumentException("Content-Length exceeds the maximum request size");
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Builds the request, moves any pipelined bytes to the start of the buffer and resets the state
+     */
+    private HttpRequest completeRequest() {
+        byte[] head = new byte[headerEnd];
+        buffer.get(0, head);
+
+        byte[] body = null;
+        if (contentLength > 0 || "POST".equals(method) || "PUT".equals(method)) {
+            body = new byte[contentLength];
+            buffer.get(headerEnd, body);
+        }
+
+        int[] offsets = new int[headerCount * 4];
+        System.arraycopy(headerOffsets, 0, offsets, 0, offsets.length);
+        HttpRequest request = new HttpRequest(method, path, version, head, offsets, body);
+
+        int consumed = headerEnd + contentLength;
+        buffer.flip();
+        buffer.position(consumed);
+        buffer.compact();
+
+        state = REQUEST_LINE;
+        scanPosition = 0;
+        lineStart = 0;
+        headerCount = 0;
+        headerEnd = 0;
+        contentLength = 0;
+        method = null;
+        path = null;
+        version = null;
+        return request;
+    }
+
+    private String knownMethod(int start, int end) {
+        switch (end - start) {
+            case 3:
+                if (matches(start, "GET")) return "GET";
+                if (matches(start, "PUT")) return "PUT";
+                break;
+            case 4:
+                if (matches(start, "POST")) return "POST";
+                if (matches(start, "HEAD")) return "HEAD";
+                break;
+            case 6:
+                if (matches(start, "DELETE")) return "DELETE";
+                break;
+            default:
+                break;
+        }
+        return ascii(start, end);
+    }
+
+    private String knownVersion(int start, int end) {
+        if (end - start == 8) {
+            if (matches(start, "HTTP/1.1")) return "HTTP/1.1";
+            if (matches(start, "HTTP/1.0")) return "HTTP/1.0";
+        }
+        return ascii(start, end);
+    }
+
+    private boolean matches(int start, String expected) {
+        for (int i = 0; i < expected.length(); i++) {
+            if (buffer.get(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String lowerCaseName) {
+        if (end - start != lowerCaseName.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseName.length(); i++) {
+            if (toLowerCase(buffer.get(start + i)) != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && isWhitespace(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimWhitespace(int from, int to) {
+        while (to > from && isWhitespace(buffer.get(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private String ascii(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
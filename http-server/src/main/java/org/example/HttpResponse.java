@@ -1,43 +1,280 @@
 package org.example;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+/**
+ * An HTTP response that is serialized straight into bytes.
+ * Status lines of common codes and the standard headers are pre-encoded, the Date header is
+ * formatted at most once per second and the body is encoded once when the response is built.
+ * Large bodies can instead be written by a {@link BodyWriter} while the response is sent; they are
+ * sent with chunked transfer encoding unless they turn out to fit into a single chunk.
+ */
 public class HttpResponse {
-    private final String statusLine;
+
+    /**
+     * Writes the body of a streamed response
+     */
+    @FunctionalInterface
+    public interface BodyWriter {
+        /**
+         * Writes the body to the stream. The stream blocks while the client does not keep up.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] SERVER = ascii("Server: JavaHttpServer/1.0\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] KEEP_ALIVE_TIMEOUT = ascii("Keep-Alive: timeout=");
+    private static final byte[] KEEP_ALIVE_MAX = ascii(", max=");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+    private static final String[] REASON_PHRASES = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    static {
+        reasonPhrase(200, "OK");
+        reasonPhrase(201, "Created");
+        reasonPhrase(204, "No Content");
+        reasonPhrase(400, "Bad Request");
+        reasonPhrase(404, "Not Found");
+        reasonPhrase(405, "Method Not Allowed");
+        reasonPhrase(413, "Payload Too Large");
+        reasonPhrase(500, "Internal Server Error");
+        reasonPhrase(503, "Service Unavailable");
+    }
+
+    private final byte[] statusLine;
     private final Map<String, String> headers;
-    private final String body;
+    private final byte[] bodyBytes;
+    private final BodyWriter bodyWriter;
+    private boolean keepAlive = false;
+    private long keepAliveTimeoutSeconds;
+    private int remainingRequests;
 
-    private HttpResponse(String statusLine, Map<String, String> headers, String body) {
+    private HttpResponse(byte[] statusLine, Map<String, String> headers, String body, BodyWriter bodyWriter) {
         this.statusLine = statusLine;
         this.headers = headers;
-        this.body = body;
+        this.bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        this.bodyWriter = bodyWriter;
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(statusLine).append("\r\n");
+        return toString(true);
+    }
+
+    public String toString(boolean includeBody) {
+        return new String(toBytes(includeBody), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serializes the response into a new array of exactly the required size
+     */
+    public byte[] toBytes(boolean includeBody) {
+        byte[] bytes = new byte[size(includeBody)];
+        writeTo(ByteBuffer.wrap(bytes), includeBody);
+        return bytes;
+    }
+
+    /**
+     * Writes the response into the buffer. Responses to HEAD requests carry the headers of the
+     * corresponding GET response but no body, so that persistent connections stay in sync.
+     * Streamed responses only write their headers here.
+     * @throws java.nio.BufferOverflowException if the buffer has less than {@link #size(boolean)} bytes remaining
+     */
+    public void writeTo(ByteBuffer target, boolean includeBody) {
+        writeHead(target, isStreamed() ? -1 : bodyBytes.length);
+        if (includeBody && !isStreamed()) {
+            target.put(bodyBytes);
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(ByteBuffer, boolean)} writes
+     */
+    public int size(boolean includeBody) {
+        if (isStreamed()) {
+            return headSize(-1);
+        }
+        int size = headSize(bodyBytes.length);
+        return includeBody ? size + bodyBytes.length : size;
+    }
+
+    /**
+     * Whether the body is written by a {@link BodyWriter} while the response is sent
+     */
+    public boolean isStreamed() {
+        return bodyWriter != null;
+    }
+
+    BodyWriter bodyWriter() {
+        return bodyWriter;
+    }
+
+    /**
+     * Serializes the status line and headers of a streamed response
+     * @param contentLength length of the body, or -1 for chunked transfer encoding
+     */
+    byte[] head(int contentLength) {
+        byte[] bytes = new byte[headSize(contentLength)];
+        writeHead(ByteBuffer.wrap(bytes), contentLength);
+        return bytes;
+    }
+
+    private void writeHead(ByteBuffer target, int contentLength) {
+        target.put(statusLine).put(CRLF);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (isManagedHeader(entry.getKey())) continue;
+            putAscii(target, entry.getKey());
+            target.put(HEADER_SEPARATOR);
+            putAscii(target, entry.getValue());
+            target.put(CRLF);
+        }
 
         // Automatische Standard-Header
-        headers.putIfAbsent("Date", getServerTime());
-        headers.putIfAbsent("Server", "JavaHttpServer/1.0");
-        headers.putIfAbsent("Connection", "close");
-        headers.put("Content-Length", String.valueOf(body.getBytes().length));
+        if (!headers.containsKey("Date")) {
+            target.put(DateHeader.current());
+        }
+        if (!headers.containsKey("Server")) {
+            target.put(SERVER);
+        }
+        if (keepAlive) {
+            target.put(CONNECTION_KEEP_ALIVE).put(KEEP_ALIVE_TIMEOUT);
+            putNumber(target, keepAliveTimeoutSeconds);
+            target.put(KEEP_ALIVE_MAX);
+            putNumber(target, remainingRequests);
+            target.put(CRLF);
+        } else {
+            target.put(CONNECTION_CLOSE);
+        }
+        if (contentLength < 0) {
+            target.put(TRANSFER_ENCODING_CHUNKED);
+        } else {
+            target.put(CONTENT_LENGTH);
+            putNumber(target, contentLength);
+            target.put(CRLF);
+        }
+        target.put(CRLF);
+    }
 
+    private int headSize(int contentLength) {
+        int size = statusLine.length + CRLF.length;
         for (Map.Entry<String, String> entry : headers.entrySet()) {
-            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            if (isManagedHeader(entry.getKey())) continue;
+            size += entry.getKey().length() + HEADER_SEPARATOR.length + entry.getValue().length() + CRLF.length;
+        }
+        if (!headers.containsKey("Date")) {
+            size += DateHeader.LENGTH;
+        }
+        if (!headers.containsKey("Server")) {
+            size += SERVER.length;
+        }
+        if (keepAlive) {
+            size += CONNECTION_KEEP_ALIVE.length + KEEP_ALIVE_TIMEOUT.length + digits(keepAliveTimeoutSeconds)
+                    + KEEP_ALIVE_MAX.length + digits(remainingRequests) + CRLF.length;
+        } else {
+            size += CONNECTION_CLOSE.length;
+        }
+        size += contentLength < 0
+                ? TRANSFER_ENCODING_CHUNKED.length
+                : CONTENT_LENGTH.length + digits(contentLength) + CRLF.length;
+        return size + CRLF.length;
+    }
+
+    /**
+     * Sets the Connection and Keep-Alive headers for the decision made by the server
+     * @param timeoutSeconds idle timeout announced to the client
+     * @param remainingRequests requests the client may still send on this connection
+     */
+    public void setKeepAlive(boolean keepAlive, long timeoutSeconds, int remainingRequests) {
+        this.keepAlive = keepAlive;
+        this.keepAliveTimeoutSeconds = timeoutSeconds;
+        this.remainingRequests = remainingRequests;
+    }
+
+    /**
+     * Headers the response always writes itself
+     */
+    private static boolean isManagedHeader(String name) {
+        return name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Connection")
+                || name.equalsIgnoreCase("Keep-Alive") || name.equalsIgnoreCase("Transfer-Encoding");
+    }
+
+    private static void putAscii(ByteBuffer target, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            target.put((byte) value.charAt(i));
+        }
+    }
+
+    private static void putNumber(ByteBuffer target, long value) {
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            target.put((byte) ('0' + (value / divisor) % 10));
         }
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
 
-        sb.append("\r\n").append(body);
-        return sb.toString();
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
     }
 
-    private String getServerTime() {
-        return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US).format(new Date());
+    private static void reasonPhrase(int code, String text) {
+        REASON_PHRASES[code] = text;
+        STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + text);
+    }
+
+    /**
+     * Pre-encoded "Date: ...\r\n" header line in IMF-fixdate format (RFC 9110, section 5.6.7),
+     * refreshed when the second changes
+     */
+    private static final class DateHeader {
+        private static final DateTimeFormatter FORMAT =
+                DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+        static final int LENGTH = "Date: Thu, 01 Jan 1970 00:00:00 GMT\r\n".length();
+
+        private static volatile DateHeader cached = new DateHeader(0);
+
+        private final long second;
+        private final byte[] line;
+
+        private DateHeader(long second) {
+            this.second = second;
+            this.line = ascii("Date: " + FORMAT.format(Instant.ofEpochSecond(second)) + "\r\n");
+        }
+
+        static byte[] current() {
+            long now = System.currentTimeMillis() / 1000;
+            DateHeader header = cached;
+            if (header.second != now) {
+                header = new DateHeader(now);
+                cached = header;
+            }
+            return header.line;
+        }
     }
 
     public static class Builder {
@@ -45,6 +282,7 @@ public class HttpResponse {
         private String statusText;
         private final Map<String, String> headers = new LinkedHashMap<>();
         private String body = "";
+        private BodyWriter bodyWriter;
 
         public Builder status(int code, String text) {
             this.statusCode = code;
@@ -59,12 +297,25 @@ public class HttpResponse {
 
         public Builder body(String body) {
             this.body = body;
+            this.bodyWriter = null;
+            return this;
+        }
+
+        /**
+         * Streams the body instead of building it up front
+         */
+        public Builder body(BodyWriter bodyWriter) {
+            this.body = "";
+            this.bodyWriter = bodyWriter;
             return this;
         }
 
         public HttpResponse build() {
-            String statusLine = "HTTP/1.1 " + statusCode + " " + statusText;
-            return new HttpResponse(statusLine, headers, body);
+            byte[] statusLine = statusCode >= 0 && statusCode < STATUS_LINES.length
+                    && statusText != null && statusText.equals(REASON_PHRASES[statusCode])
+                    ? STATUS_LINES[statusCode]
+                    : ascii("HTTP/1.1 " + statusCode + " " + statusText);
+            return new HttpResponse(statusLine, headers, body, bodyWriter);
         }
     }
 }
@@ -2,17 +2,31 @@ package org.example;
 
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.Gson;
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.NearCacheConfig;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.example.db.DataStorage;
+import org.example.db.ScanPage;
+import org.example.db.ScanQuery;
+import org.example.db.SensorStats;
 import org.example.db.TwoPCDataStorage;
 import org.example.db.TwoPCCoordinator;
 import org.example.db.InMemoryDataStorage;
 import org.example.db.GrpcDataStorage;
+import org.example.db.GrpcDatabaseClient;
 import org.example.db.HazelcastDataStorage;
+import org.example.db.HazelcastValueFormat;
 import org.example.SensorData;
 
 import java.util.Arrays;
@@ -22,89 +36,179 @@ import java.util.List;
 /**
  * A simple HTTP server that handles GET and POST requests for sensor data.
  * The server stores sensor data in memory and can return it when requested.
+ * Connections are served by a fixed number of non-blocking selector threads ({@link EventLoop}),
+ * configurable with the HTTP_IO_THREADS environment variable (defaults to the number of cores).
+ * Where request handlers run is defined by the {@link ExecutionMode}.
+ * Connections are persistent (HTTP/1.1 keep-alive) and closed after HTTP_KEEP_ALIVE_TIMEOUT_MS
+ * without traffic or after HTTP_KEEP_ALIVE_MAX_REQUESTS requests.
  */
 public class HttpServer {
     private static final int DEFAULT_PORT = 8080;
+    private static final long DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 1000;
     
     private final int port;
     private final DataStorage dataStorage;
-    private ServerSocket serverSocket;
+    private final int ioThreads;
+    private final ExecutionMode executionMode;
+    private ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
     private boolean running = false;
-    private Thread serverThread;
     private final Gson gson = new Gson();
+    private final Router router = createRouter();
 
     public HttpServer() {
         String rpcHost = System.getenv().getOrDefault("RPC_DATABASE_HOST", "localhost");
         this.port = DEFAULT_PORT;
+        this.ioThreads = defaultIoThreads();
+        this.executionMode = ExecutionMode.fromEnvironment();
         
         // Create 2PC participants
-        TwoPCDataStorage grpcStorage = new GrpcDataStorage(rpcHost, 50051);
+        TwoPCDataStorage grpcStorage = new GrpcDataStorage(rpcHost, 50051,
+                (int) longFromEnvironment("GRPC_CHANNELS", GrpcDatabaseClient.DEFAULT_CHANNELS),
+                longFromEnvironment("GRPC_DEADLINE_MS", GrpcDatabaseClient.DEFAULT_DEADLINE_MS));
         
         // Check if Hazelcast should be skipped
         String skipHazelcast = System.getenv("SKIP_HAZELCAST");
         List<TwoPCDataStorage> participants = new ArrayList<>();
         participants.add(grpcStorage);
         
+        // Without a log directory, prepared transactions and commit decisions are kept in memory only
+        String logDirectory = System.getenv("TWO_PC_LOG_DIR");
+        Path logs = logDirectory == null || logDirectory.trim().isEmpty() ? null : Paths.get(logDirectory.trim());
+        
         if (!"true".equals(skipHazelcast)) {
             try {
-                TwoPCDataStorage hazelcastStorage = new HazelcastDataStorage();
+                TwoPCDataStorage hazelcastStorage = new HazelcastDataStorage(logs == null ? null : logs.resolve("hazelcast-prepared.log"),
+                        longFromEnvironment("TWO_PC_PREPARE_TIMEOUT_MS", HazelcastDataStorage.DEFAULT_PREPARE_TIMEOUT_MS),
+                        nearCacheFromEnvironment(),
+                        HazelcastValueFormat.fromEnvironment());
                 participants.add(hazelcastStorage);
-                System.out.println("✅ Hazelcast storage added to 2PC participants");
+                Log.info("✅ Hazelcast storage added to 2PC participants");
             } catch (Exception e) {
-                System.err.println("⚠️ Failed to initialize Hazelcast storage: " + e.getMessage());
-                System.out.println("📝 Continuing with RPC database only");
+                Log.warn("⚠️ Failed to initialize Hazelcast storage: {}", e.getMessage());
+                Log.info("📝 Continuing with RPC database only");
             }
         } else {
-            System.out.println("📝 Hazelcast skipped (SKIP_HAZELCAST=true)");
+            Log.info("📝 Hazelcast skipped (SKIP_HAZELCAST=true)");
         }
         
         // Create 2PC coordinator with available participants
-        this.dataStorage = new TwoPCCoordinator(participants);
-        System.out.println("✅ 2PC Coordinator initialized with " + participants.size() + " participant(s)");
+        this.dataStorage = new TwoPCCoordinator(participants,
+                (int) longFromEnvironment("TWO_PC_GROUP_SIZE", TwoPCCoordinator.DEFAULT_MAX_GROUP_SIZE),
+                longFromEnvironment("TWO_PC_GROUP_WAIT_MICROS", TwoPCCoordinator.DEFAULT_MAX_GROUP_WAIT_MICROS),
+                longFromEnvironment("TWO_PC_PARTICIPANT_TIMEOUT_MS", TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS),
+                (int) longFromEnvironment("TWO_PC_LANES", TwoPCCoordinator.DEFAULT_LANES),
+                logs == null ? null : logs.resolve("coordinator-decisions.log"));
+        Log.info("✅ 2PC Coordinator initialized with {} participant(s)", participants.size());
     }
     
     public HttpServer(int port, DataStorage dataStorage) {
+        this(port, dataStorage, defaultIoThreads());
+    }
+    
+    public HttpServer(int port, DataStorage dataStorage, int ioThreads) {
+        this(port, dataStorage, ioThreads, ExecutionMode.fromEnvironment());
+    }
+    
+    public HttpServer(int port, DataStorage dataStorage, int ioThreads, ExecutionMode executionMode) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
         this.port = port;
         this.dataStorage = dataStorage;
+        this.ioThreads = ioThreads;
+        this.executionMode = Objects.requireNonNull(executionMode);
+    }
+    
+    private static int defaultIoThreads() {
+        return (int) longFromEnvironment("HTTP_IO_THREADS", Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * The near cache of the Hazelcast storage, null if HAZELCAST_NEAR_CACHE is false
+     */
+    private static NearCacheConfig nearCacheFromEnvironment() {
+        if ("false".equals(System.getenv("HAZELCAST_NEAR_CACHE"))) {
+            return null;
+        }
+        EvictionPolicy eviction = EvictionPolicy.LRU;
+        String configured = System.getenv("HAZELCAST_NEAR_CACHE_EVICTION");
+        if (configured != null && !configured.isBlank()) {
+            try {
+                eviction = EvictionPolicy.valueOf(configured.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Log.warn("⚠️ Unknown HAZELCAST_NEAR_CACHE_EVICTION {}, using LRU", configured);
+            }
+        }
+        return HazelcastDataStorage.nearCacheConfig(
+                (int) longFromEnvironment("HAZELCAST_NEAR_CACHE_SIZE", HazelcastDataStorage.DEFAULT_NEAR_CACHE_SIZE),
+                (int) longFromEnvironment("HAZELCAST_NEAR_CACHE_TTL_SECONDS", HazelcastDataStorage.DEFAULT_NEAR_CACHE_TTL_SECONDS),
+                eviction);
+    }
+    
+    private static long longFromEnvironment(String name, long defaultValue) {
+        String configured = System.getenv(name);
+        if (configured != null) {
+            try {
+                return Math.max(1, Long.parseLong(configured.trim()));
+            } catch (NumberFormatException e) {
+                Log.warn("⚠️ Invalid {} value: {}", name, configured);
+            }
+        }
+        return defaultValue;
     }
     
     public void start() throws IOException {
         if (running) return;
         
-        serverSocket = new ServerSocket(port);
-        running = true;
-        System.out.println("Server runs on port " + port);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
         
-        serverThread = new Thread(() -> {
-            while (running) {
-                try {
-                    Socket client = serverSocket.accept();
-                    new Thread(() -> handleClient(client)).start();
-                } catch (IOException e) {
-                    if (running) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        });
+        workers = executionMode.createExecutor();
+        eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop("http-io-" + i, this::handleRequest, workers,
+                    longFromEnvironment("HTTP_KEEP_ALIVE_TIMEOUT_MS", DEFAULT_KEEP_ALIVE_TIMEOUT_MS),
+                    (int) longFromEnvironment("HTTP_KEEP_ALIVE_MAX_REQUESTS", DEFAULT_MAX_KEEP_ALIVE_REQUESTS));
+        }
+        // The first loop accepts connections and spreads them round-robin over all loops
+        eventLoops[0].listen(serverChannel, this::dispatch);
         
-        serverThread.start();
+        running = true;
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+        Log.info("Server runs on port {} with {} I/O thread(s), execution mode {}", port, ioThreads, executionMode);
     }
     
     public void stop() {
         running = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to close the server channel", e);
+        }
+        
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.stop();
+            }
         }
         
-        if (serverThread != null) {
+        if (workers != null) {
+            workers.shutdown();
             try {
-                serverThread.join(5000);
+                if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                    workers.shutdownNow();
+                }
             } catch (InterruptedException e) {
+                workers.shutdownNow();
                 Thread.currentThread().interrupt();
             }
         }
@@ -115,6 +219,10 @@ public class HttpServer {
         }
     }
     
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+    
     public int getPort() {
         return port;
     }
@@ -124,93 +232,65 @@ public class HttpServer {
     }
     
     /**
-     * Handles a client connection by processing the HTTP request and sending a response
+     * Assigns an accepted connection to the next event loop
      */
-    private void handleClient(Socket client) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()))) {
-
-            // Parse the request
-            HttpRequest request = HttpRequest.parse(in);
-            if (request == null) return;
-            
-            // Process the request and get a response
-            HttpResponse response = processRequest(request);
-            
-            // Send the response
-            out.write(response.toString());
-            out.flush();
-
-        } catch (IOException e) {
-            sendErrorResponse(client, e);
-            e.printStackTrace();
-        }
-    }    /**
-     * Processes the parsed request and returns an appropriate response
+    private void dispatch(SocketChannel channel) {
+        int index = Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length);
+        eventLoops[index].register(channel);
+    }
+    
+    /**
+     * Handles a parsed request on an event loop or worker thread, turning unexpected failures into a 500 response
      */
-    private HttpResponse processRequest(HttpRequest request) {
-        String method = request.getMethod().toUpperCase();
-        String path = request.getPath();
-        
-        switch (method) {
-            case "POST":
-                System.out.println("POST request received.");
-                // POST requests should go to root path /
-                if ("/".equals(path)) {
-                    return handlePostRequest(request.getBody());
-                } else {
-                    return new HttpResponse.Builder()
-                            .status(400, "Bad Request")
-                            .header("Content-Type", "text/plain")
-                            .body("Invalid POST request path. Expected format: /")
-                            .build();
-                }
-            case "GET":
-                System.out.println("GET request received.");
-                // GET requests can be to root path / or to /{id}
-                if ("/".equals(path)) {
-                    return handleGetRequest();
-                } else if (path.matches("^/[^/]+$")) { // Pattern: /{id}
-                    String uuid = path.substring(1); // Remove leading slash
-                    return handleGetSingleRequest(uuid);
-                } else {
-                    return new HttpResponse.Builder()
-                            .status(400, "Bad Request")
-                            .header("Content-Type", "text/plain")
-                            .body("Invalid GET request path. Expected format: / or /{id}")
-                            .build();
-                }
-            case "PUT":
-                System.out.println("PUT request received.");
-                // PUT requests should go to /{id}
-                if (path.matches("^/[^/]+$")) { // Pattern: /{id}
-                    String uuid = path.substring(1); // Remove leading slash
-                    return handlePutRequest(request.getBody(), uuid);
-                } else {
-                    return new HttpResponse.Builder()
-                            .status(400, "Bad Request")
-                            .header("Content-Type", "text/plain")
-                            .body("Invalid PUT request path. Expected format: /{id}")
-                            .build();
-                }
-            case "DELETE":
-                System.out.println("DELETE request received.");
-                // DELETE requests should go to /{id}
-                if (path.matches("^/[^/]+$")) { // Pattern: /{id}
-                    String uuid = path.substring(1); // Remove leading slash
-                    return handleDeleteRequest(uuid);
-                } else {
-                    return new HttpResponse.Builder()
-                            .status(400, "Bad Request")
-                            .header("Content-Type", "text/plain")
-                            .body("Invalid DELETE request path. Expected format: /{id}")
-                            .build();
-                }
-            default:
-                return handleUnsupportedMethod();
+    private HttpResponse handleRequest(HttpRequest request) {
+        try {
+            return router.handle(request);
+        } catch (RuntimeException e) {
+            Log.error("Request handler failed", e);
+            return createErrorResponse(e);
         }
     }
     
+    /**
+     * Builds the routing table once; new endpoints are added here
+     */
+    private Router createRouter() {
+        return new Router()
+                .route("POST", "/", (request, params) -> handlePostRequest(request.getBody()))
+                .route("POST", "/batch", (request, params) -> handleBatchRequest(request.getBody()))
+                .route("GET", "/", (request, params) -> handleGetRequest(request))
+                .route("GET", "/metrics", (request, params) -> handleMetricsRequest())
+                .route("GET", "/stats", (request, params) -> handleStatsRequest(null))
+                .route("GET", "/stats/{sensorId}", (request, params) -> handleStatsRequest(params[0]))
+                .route("GET", "/{id}", (request, params) -> handleGetSingleRequest(params[0]))
+                .route("PUT", "/{id}", (request, params) -> handlePutRequest(request.getBody(), params[0]))
+                .route("DELETE", "/{id}", (request, params) -> handleDeleteRequest(params[0]))
+                .fallback("POST", (request, params) -> invalidPath("Invalid POST request path. Expected format: / or /batch"))
+                .fallback("GET", (request, params) -> invalidPath("Invalid GET request path. Expected format: /, /{id}, /stats or /stats/{sensorId}"))
+                .fallback("PUT", (request, params) -> invalidPath("Invalid PUT request path. Expected format: /{id}"))
+                .fallback("DELETE", (request, params) -> invalidPath("Invalid DELETE request path. Expected format: /{id}"))
+                .methodNotAllowed((request, params) -> handleUnsupportedMethod());
+    }
+    
+    /**
+     * Handles GET /metrics by listing the recorded latency histograms as plain text
+     */
+    private HttpResponse handleMetricsRequest() {
+        return new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "text/plain")
+                .body(Metrics.render())
+                .build();
+    }
+    
+    private HttpResponse invalidPath(String message) {
+        return new HttpResponse.Builder()
+                .status(400, "Bad Request")
+                .header("Content-Type", "text/plain")
+                .body(message)
+                .build();
+    }
+    
     /**
      * Handles POST requests by processing the JSON body
      */
@@ -241,19 +321,111 @@ public class HttpServer {
     }
     
     /**
-     * Handles GET requests by returning all data as JSON
+     * Handles POST /batch with a JSON array or newline-delimited JSON objects (NDJSON).
+     * All readings are handed to the storage in one createAll call.
      */
-    private HttpResponse handleGetRequest() {
-        String responseBody = dataStorage.readAll();
+    private HttpResponse handleBatchRequest(String body) {
+        List<SensorData> batch = new ArrayList<>();
+        String trimmed = body == null ? "" : body.trim();
+        try {
+            if (trimmed.startsWith("[")) {
+                SensorData[] array = gson.fromJson(trimmed, SensorData[].class);
+                for (SensorData data : array) {
+                    if (data != null) batch.add(data);
+                }
+            } else {
+                int lineNumber = 0;
+                for (String line : trimmed.split("\r?\n")) {
+                    lineNumber++;
+                    if (line.isBlank()) continue;
+                    try {
+                        SensorData data = gson.fromJson(line, SensorData.class);
+                        if (data != null) batch.add(data);
+                    } catch (JsonSyntaxException e) {
+                        throw new JsonSyntaxException("line " + lineNumber + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        } catch (JsonSyntaxException e) {
+            return new HttpResponse.Builder()
+                    .status(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body("Invalid JSON: " + e.getMessage())
+                    .build();
+        }
+        if (batch.isEmpty()) {
+            return new HttpResponse.Builder()
+                    .status(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body("The batch contains no readings.")
+                    .build();
+        }
+
+        if (dataStorage.createAll(batch)) {
+            return new HttpResponse.Builder()
+                    .status(200, "OK")
+                    .header("Content-Type", "text/plain")
+                    .body("Received " + batch.size() + " readings.")
+                    .build();
+        }
+        return new HttpResponse.Builder()
+                .status(500, "Internal Server Error")
+                .header("Content-Type", "text/plain")
+                .body("Failed to create data.")
+                .build();
+    }
+    
+    /**
+     * Handles GET requests by returning all data as JSON.
+     * The array is streamed to the client while the storage produces it. With any of the query
+     * parameters sensorId, since, limit or cursor, only one page of matching entries is returned;
+     * the X-Next-Cursor header carries the cursor of the next page if there is one.
+     */
+    private HttpResponse handleGetRequest(HttpRequest request) {
+        if (request.getQuery() != null && !request.getQuery().isEmpty()) {
+            return handleScanRequest(request);
+        }
         return new HttpResponse.Builder()
                 .status(200, "OK")
                 .header("Content-Type", "application/json")
                 .header("Access-Control-Allow-Origin", "*")
                 .header("Access-Control-Allow-Methods", "GET")
-                .body(responseBody)
+                .body(dataStorage::writeAll)
                 .build();
     }
     
+    private HttpResponse handleScanRequest(HttpRequest request) {
+        ScanPage page;
+        try {
+            String sensorId = request.getQueryParameter("sensorId");
+            String since = request.getQueryParameter("since");
+            String limit = request.getQueryParameter("limit");
+            ScanQuery query = new ScanQuery(
+                    sensorId != null ? Integer.valueOf(sensorId) : null,
+                    since != null ? Long.valueOf(since) : null,
+                    limit != null ? Integer.parseInt(limit) : ScanQuery.DEFAULT_LIMIT,
+                    request.getQueryParameter("cursor"));
+            page = dataStorage.scan(query);
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            return new HttpResponse.Builder()
+                    .status(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body("Invalid query: " + e.getMessage())
+                    .build();
+        }
+        HttpResponse.Builder response = new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "application/json")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Methods", "GET");
+        if (page.getNextCursor() != null) {
+            response.header("X-Next-Cursor", page.getNextCursor())
+                    .header("Access-Control-Expose-Headers", "X-Next-Cursor");
+        }
+        return response.body(gson.toJson(page.getEntries())).build();
+    }
+    
     /**
      * Handles GET requests for a single item by ID
      */
@@ -276,6 +448,36 @@ public class HttpServer {
         }
     }
     
+    /**
+     * Handles GET /stats with a JSON array of the count, min, max and avg temperature of every sensor, and
+     * GET /stats/{sensorId} with the object of one sensor. The storage computes them.
+     */
+    private HttpResponse handleStatsRequest(String sensorId) {
+        Integer sensor = null;
+        if (sensorId != null) {
+            try {
+                sensor = Integer.valueOf(sensorId);
+            } catch (NumberFormatException e) {
+                return invalidPath("Invalid sensor id: " + sensorId);
+            }
+        }
+        List<SensorStats> stats = dataStorage.stats(sensor);
+        if (sensor != null && stats.isEmpty()) {
+            return new HttpResponse.Builder()
+                    .status(404, "Not Found")
+                    .header("Content-Type", "text/plain")
+                    .body("No readings of sensor " + sensor + ".")
+                    .build();
+        }
+        return new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "application/json")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Methods", "GET")
+                .body(gson.toJson(sensor != null ? stats.get(0) : stats))
+                .build();
+    }
+    
     /**
      * Handles PUT requests for updating existing data
      */
@@ -361,17 +563,4 @@ public class HttpServer {
                 .body("An internal server error occurred.\n")
                 .build();
     }
-    
-    /**
-     * Sends an error response when an exception occurs
-     */
-    private void sendErrorResponse(Socket client, Exception e) {
-        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()))) {
-            HttpResponse errorResponse = createErrorResponse(e);
-            out.write(errorResponse.toString());
-            out.flush();
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-    }
 }
@@ -0,0 +1,69 @@
+package org.example;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the named latency histograms, counters and gauges of the server, rendered as plain text by
+ * GET /metrics. Names are dot-separated, e.g. "2pc.prepare" or "2pc.prepare.GrpcDataStorage".
+ */
+public final class Metrics {
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the histogram with the given name, created on first use
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the counter with the given name, created on first use
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a value that is read when the metrics are rendered, replacing a gauge of the same name
+     */
+    public static void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * One line per histogram in name order, with count and latencies in milliseconds, then one line per
+     * counter and one per gauge
+     */
+    public static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            text.append(entry.getKey())
+                    .append(" count=").append(histogram.count())
+                    .append(String.format(Locale.ROOT, " mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n",
+                            histogram.meanNanos() / 1e6,
+                            histogram.percentileNanos(50) / 1e6,
+                            histogram.percentileNanos(90) / 1e6,
+                            histogram.percentileNanos(99) / 1e6,
+                            histogram.maxNanos() / 1e6));
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            text.append(entry.getKey()).append(" count=").append(entry.getValue().sum()).append(System.lineSeparator());
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            text.append(entry.getKey())
+                    .append(String.format(Locale.ROOT, " value=%.3f%n", entry.getValue().getAsDouble()));
+        }
+        return text.toString();
+    }
+}
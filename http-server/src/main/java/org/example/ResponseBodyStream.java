@@ -0,0 +1,175 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Body of a streamed {@link HttpResponse}, written by its {@link HttpResponse.BodyWriter} on a worker of
+ * the event loop.
+ *
+ * Bytes are collected into chunks that are handed to the event loop of the connection. If the whole
+ * body fits into the first chunk, the response is sent with a Content-Length header like any other
+ * response; otherwise the headers go out with the first chunk and the body uses chunked transfer
+ * encoding. At most {@value #MAX_PENDING_CHUNKS} chunks wait for the socket at a time, so a slow client
+ * blocks the writer instead of the body piling up in memory. If the client stops reading for longer
+ * than {@value #STALL_TIMEOUT_MILLIS} ms or the connection closes, writes fail with an IOException.
+ */
+class ResponseBodyStream extends OutputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 8;
+    private static final long STALL_TIMEOUT_MILLIS = 30_000;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final EventLoop loop;
+    private final HttpConnection connection;
+    private final HttpResponse response;
+    private final boolean keepAlive;
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int count = 0;
+    private boolean chunked = false;
+    private boolean closed = false;
+
+    ResponseBodyStream(EventLoop loop, HttpConnection connection, HttpResponse response, boolean keepAlive) {
+        this.loop = loop;
+        this.connection = connection;
+        this.response = response;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Runs the body writer of the response and completes the response
+     */
+    void run() {
+        try {
+            response.bodyWriter().writeTo(this);
+            close();
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Streaming response failed: {}", e.getMessage());
+            closed = true;
+            if (chunked) {
+                // The status line is already sent, the client sees the body end without the last chunk
+                loop.execute(connection::close);
+            } else {
+                byte[] error = new HttpResponse.Builder()
+                        .status(500, "Internal Server Error")
+                        .header("Content-Type", "text/plain")
+                        .body("An internal server error occurred.\n")
+                        .build()
+                        .toBytes(true);
+                loop.execute(() -> loop.completeStreamedResponse(connection, error, true));
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            sendChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (count == buffer.length) {
+                sendChunk();
+            }
+            int copied = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    /**
+     * Sends the buffered bytes as a chunk once the response is chunked. Before that, flushing does
+     * nothing, so that small bodies can still be sent with a Content-Length.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (chunked && count > 0) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        if (!chunked) {
+            // Everything fits into one chunk, send a plain response
+            byte[] head = response.head(count);
+            byte[] whole = new byte[head.length + count];
+            System.arraycopy(head, 0, whole, 0, head.length);
+            System.arraycopy(buffer, 0, whole, head.length, count);
+            closed = true;
+            loop.execute(() -> loop.completeStreamedResponse(connection, whole, !keepAlive));
+            return;
+        }
+        if (count > 0) {
+            sendChunk();
+        }
+        closed = true;
+        awaitCapacity();
+        loop.execute(() -> loop.completeStreamedResponse(connection, LAST_CHUNK, !keepAlive));
+    }
+
+    private void sendChunk() throws IOException {
+        byte[] head = chunked ? new byte[0] : response.head(-1);
+        chunked = true;
+        byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] chunk = new byte[head.length + size.length + count + CRLF.length];
+        System.arraycopy(head, 0, chunk, 0, head.length);
+        System.arraycopy(size, 0, chunk, head.length, size.length);
+        System.arraycopy(buffer, 0, chunk, head.length + size.length, count);
+        System.arraycopy(CRLF, 0, chunk, chunk.length - CRLF.length, CRLF.length);
+        count = 0;
+
+        awaitCapacity();
+        loop.execute(() -> {
+            if (!connection.isOpen()) return;
+            try {
+                connection.sendPart(chunk, pendingChunks::release);
+            } catch (IOException e) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Waits until fewer than {@value #MAX_PENDING_CHUNKS} chunks wait for the socket
+     */
+    private void awaitCapacity() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLIS);
+        try {
+            while (!pendingChunks.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (!connection.isOpen()) {
+                    throw new IOException("Connection closed by the client");
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    loop.execute(connection::close);
+                    throw new IOException("Client stopped reading the response");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming the response");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
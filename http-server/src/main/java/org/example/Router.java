@@ -0,0 +1,174 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps request methods and path templates to handlers.
+ *
+ * Templates consist of literal segments and parameters in braces, e.g. "/", "/{id}" or "/sensors/{id}/values".
+ * They are split into segments once when a route is added; matching walks the request path with
+ * indexOf and regionMatches, so routing a request allocates nothing but the extracted parameter strings.
+ * Routes of a method are tried in the order they were added.
+ */
+public class Router {
+
+    /**
+     * Handles a routed request
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param pathParameters values of the template parameters in the order they appear in the template
+         */
+        HttpResponse handle(HttpRequest request, String[] pathParameters);
+    }
+
+    private static final String[] NO_PARAMETERS = new String[0];
+
+    private final Map<String, List<Route>> routes = new HashMap<>();
+    private final Map<String, Handler> fallbacks = new HashMap<>();
+    private Handler methodNotAllowed = (request, parameters) -> new HttpResponse.Builder()
+            .status(405, "Method Not Allowed")
+            .body("Method not supported.")
+            .build();
+
+    /**
+     * Adds a route for the method and path template
+     */
+    public Router route(String method, String template, Handler handler) {
+        routes.computeIfAbsent(method, m -> new ArrayList<>()).add(new Route(template, handler));
+        return this;
+    }
+
+    /**
+     * Sets the handler for requests with a known method whose path matches none of its routes
+     */
+    public Router fallback(String method, Handler handler) {
+        fallbacks.put(method, handler);
+        return this;
+    }
+
+    /**
+     * Sets the handler for requests with a method that has no routes
+     */
+    public Router methodNotAllowed(Handler handler) {
+        this.methodNotAllowed = handler;
+        return this;
+    }
+
+    /**
+     * Finds the handler for the request and runs it
+     */
+    public HttpResponse handle(HttpRequest request) {
+        String method = request.getMethod();
+        List<Route> candidates = routes.get(method);
+        if (candidates == null) {
+            // Methods are case-sensitive, but clients sending lower case were accepted before
+            method = method.toUpperCase();
+            candidates = routes.get(method);
+            if (candidates == null) {
+                return methodNotAllowed.handle(request, NO_PARAMETERS);
+            }
+        }
+
+        String path = request.getPath();
+        for (int i = 0; i < candidates.size(); i++) {
+            Route route = candidates.get(i);
+            String[] parameters = route.match(path);
+            if (parameters != null) {
+                return route.handler.handle(request, parameters);
+            }
+        }
+
+        Handler fallback = fallbacks.get(method);
+        return fallback != null ? fallback.handle(request, NO_PARAMETERS) : methodNotAllowed.handle(request, NO_PARAMETERS);
+    }
+
+    private static final class Route {
+        private final String[] segments;
+        private final boolean[] parameter;
+        private final int parameterCount;
+        private final Handler handler;
+
+        Route(String template, Handler handler) {
+            if (!template.startsWith("/")) {
+                throw new IllegalArgumentException("Path template must start with '/': " + template);
+            }
+            List<String> parts = new ArrayList<>();
+            if (template.length() > 1) {
+                int start = 1;
+                while (start <= template.length()) {
+                    int end = template.indexOf('/', start);
+                    if (end < 0) end = template.length();
+                    parts.add(template.substring(start, end));
+                    start = end + 1;
+                }
+            }
+
+            this.segments = parts.toArray(new String[0]);
+            this.parameter = new boolean[segments.length];
+            int count = 0;
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.isEmpty()) {
+                    throw new IllegalArgumentException("Empty segment in path template: " + template);
+                }
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    parameter[i] = true;
+                    count++;
+                }
+            }
+            this.parameterCount = count;
+            this.handler = handler;
+        }
+
+        /**
+         * @return the parameter values if the path matches this route, otherwise null
+         */
+        String[] match(String path) {
+            if (path.isEmpty() || path.charAt(0) != '/') {
+                return null;
+            }
+            if (segments.length == 0) {
+                return path.length() == 1 ? NO_PARAMETERS : null;
+            }
+
+            // First pass checks the structure without allocating, the second extracts the parameters
+            int start = 1;
+            for (int i = 0; i < segments.length; i++) {
+                int end = path.indexOf('/', start);
+                boolean last = i == segments.length - 1;
+                if (last ? end >= 0 : end < 0) {
+                    return null;
+                }
+                if (last) end = path.length();
+                if (end == start) {
+                    return null;
+                }
+                if (!parameter[i] && (end - start != segments[i].length()
+                        || !path.regionMatches(start, segments[i], 0, end - start))) {
+                    return null;
+                }
+                start = end + 1;
+            }
+
+            if (parameterCount == 0) {
+                return NO_PARAMETERS;
+            }
+            String[] values = new String[parameterCount];
+            int value = 0;
+            start = 1;
+            for (int i = 0; i < segments.length; i++) {
+                int end = i == segments.length - 1 ? path.length() : path.indexOf('/', start);
+                if (parameter[i]) {
+                    values[value++] = path.substring(start, end);
+                }
+                start = end + 1;
+            }
+            return values;
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package org.example;
 
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
 /**
  * Represents sensor data with ID and temperature reading for HTTP and InMemory storage.
+ * The timestamp is the time of the last write in milliseconds since the epoch, set by the storage;
+ * it is null (and left out of the JSON) for storages that do not record it.
  */
 public class SensorData {
     private String id;
     private int sensorId;
     private double temperature;
+    private Long timestamp;
 
     // Private constructor to enforce the use of the Builder
     private SensorData() {}
@@ -18,10 +26,12 @@ public class SensorData {
     }
     public int getSensorId() { return sensorId; }
     public double getTemperature() { return temperature; }
+    public Long getTimestamp() { return timestamp; }
 
     // Setters (might be used by Gson for deserialization)
     public void setSensorId(int sensorId) { this.sensorId = sensorId; }
     public void setTemperature(double temperature) { this.temperature = temperature; }
+    public void setTimestamp(Long timestamp) { this.timestamp = timestamp; }
 
     @Override
     public String toString() {
@@ -29,33 +39,63 @@ public class SensorData {
     }
 
     /**
-     * Creates a SensorData instance from a gRPC SensorDataStored object
+     * Creates a SensorData instance from a gRPC SensorDataStored object. Reads the compact fields of
+     * schema version 2 and falls back to the text fields of version 1.
      */
     public static SensorData fromGrpcStored(SensorDataStored grpcData) {
-        if (grpcData == null || grpcData.getId().isEmpty()) {
+        if (grpcData == null || (grpcData.getId().isEmpty() && grpcData.getUuid().isEmpty())) {
             return null;
         }
         
         try {
             return SensorData.builder()
-                    .id(grpcData.getId())
+                    .id(idOf(grpcData))
                     .sensorId(grpcData.getSensorId())
-                    .temperature(Double.parseDouble(grpcData.getTemperature()))
+                    .temperature(temperature(grpcData))
+                    .timestamp(grpcData.getTimestamp() != 0 ? grpcData.getTimestamp() : null)
                     .build();
         } catch (NumberFormatException e) {
-            System.err.println("Error parsing temperature from gRPC data: " + e.getMessage());
+            Log.warn("Error parsing temperature from gRPC data: {}", e.getMessage());
             return null;
         }
     }
 
+    private static double temperature(SensorDataStored grpcData) {
+        switch (grpcData.getCompactTemperatureCase()) {
+            case TEMPERATURE_CENTI:
+                return grpcData.getTemperatureCenti() / 100.0;
+            case TEMPERATURE_VALUE:
+                return grpcData.getTemperatureValue();
+            default:
+                return Double.parseDouble(grpcData.getTemperature());
+        }
+    }
+
     /**
-     * Converts this SensorData to a gRPC SensorDataRequest object
+     * The id of a stored entry, sent as text or, in schema version 2, as UUID bytes
+     */
+    public static String idOf(SensorDataStored grpcData) {
+        return grpcData.getUuid().isEmpty() ? grpcData.getId() : uuid(grpcData.getUuid());
+    }
+
+    private static String uuid(ByteString bytes) {
+        ByteBuffer buffer = bytes.asReadOnlyByteBuffer();
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+
+    /**
+     * Converts this SensorData to a gRPC SensorDataRequest object with the compact temperature of
+     * schema version 2: hundredths of a degree if that is exact, the double otherwise
      */
     public SensorDataRequest toGrpcRequest() {
-        return SensorDataRequest.newBuilder()
-                .setSensorId(this.sensorId)
-                .setTemperature(String.valueOf(this.temperature))
-                .build();
+        SensorDataRequest.Builder request = SensorDataRequest.newBuilder().setSensorId(this.sensorId);
+        long centi = Math.round(temperature * 100);
+        if (centi >= Integer.MIN_VALUE && centi <= Integer.MAX_VALUE && Double.compare(centi / 100.0, temperature) == 0) {
+            request.setTemperatureCenti((int) centi);
+        } else {
+            request.setTemperatureValue(temperature);
+        }
+        return request.build();
     }
 
     // Builder Klasse
@@ -63,6 +103,7 @@ public class SensorData {
         private String id;
         private int sensorId;
         private double temperature;
+        private Long timestamp;
 
         public Builder id(String id) {
             this.id = id;
@@ -79,11 +120,17 @@ public class SensorData {
             return this;
         }
 
+        public Builder timestamp(Long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
         public SensorData build() {
             SensorData data = new SensorData();
             data.id = this.id;
             data.sensorId = this.sensorId;
             data.temperature = this.temperature;
+            data.timestamp = this.timestamp;
             return data;
         }
     }
@@ -6,16 +6,15 @@ public class ServerApplication {
         try {
             // Using the default constructor which already sets up 2PC coordinator
             HttpServer server = new HttpServer();
-            System.out.println("Starting HTTP server with 2PC coordination...");
+            Log.info("Starting HTTP server with 2PC coordination...");
             server.start();
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 server.stop();
-                System.out.println("Server stopped.");
+                Log.info("Server stopped.");
             }));
         } catch (Exception e) {
-            System.err.println("Fehler beim Starten des Servers: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Fehler beim Starten des Servers: {}", e.getMessage(), e);
             System.exit(1);
         }
     }
@@ -0,0 +1,373 @@
+package org.example.db;
+
+import org.example.SensorData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory storage for millions of readings that keeps every field in primitive columns instead of
+ * one {@link SensorData} object per reading.
+ *
+ * A reading occupies one slot: its UUID as two longs, the sensor id, the temperature, the time it was
+ * written and a live flag. That is 37 bytes plus 27 to 53 bytes in the id index, where an object based
+ * store needs well over 100 bytes (see DataStorageFootprintBenchmark). Columns grow in fixed-size
+ * segments, so growing never copies existing readings. An open addressing hash table maps ids to slots.
+ * Slots are appended in insertion order, which is the order of {@link #readAll()}; deleted slots are
+ * only marked dead and not reused.
+ *
+ * Ids are generated UUIDs; ids that are not UUIDs are never found. Readers share a read-write lock,
+ * writers hold it exclusively. {@link #scan(ScanQuery)} filters on the sensor id and timestamp columns
+ * and only materializes the entries of the page.
+ */
+public class ColumnarDataStorage implements DataStorage {
+    private static final int SEGMENT_SHIFT = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Segment[] segments = new Segment[16];
+    private int slotCount = 0;
+    private int liveCount = 0;
+    private final SlotIndex index = new SlotIndex();
+
+    /**
+     * One fixed-size block of every column
+     */
+    private static final class Segment {
+        final long[] idHigh = new long[SEGMENT_SIZE];
+        final long[] idLow = new long[SEGMENT_SIZE];
+        final int[] sensorId = new int[SEGMENT_SIZE];
+        final double[] temperature = new double[SEGMENT_SIZE];
+        final long[] timestamp = new long[SEGMENT_SIZE];
+        final boolean[] live = new boolean[SEGMENT_SIZE];
+    }
+
+    @Override
+    public boolean create(SensorData data) {
+        // Create a new entry with a generated UUID
+        UUID id = UUID.randomUUID();
+        lock.writeLock().lock();
+        try {
+            append(id, data, System.currentTimeMillis());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the whole batch under one acquisition of the write lock
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        UUID[] ids = new UUID[data.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+        }
+        long timestamp = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                append(ids[i], data.get(i), timestamp);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a reading in a new slot; the caller holds the write lock
+     */
+    private void append(UUID id, SensorData data, long timestamp) {
+        int slot = slotCount++;
+        int segmentIndex = slot >>> SEGMENT_SHIFT;
+        if (segmentIndex == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        if (segments[segmentIndex] == null) {
+            segments[segmentIndex] = new Segment();
+        }
+        Segment segment = segments[segmentIndex];
+        int offset = slot & SEGMENT_MASK;
+        segment.idHigh[offset] = id.getMostSignificantBits();
+        segment.idLow[offset] = id.getLeastSignificantBits();
+        segment.sensorId[offset] = data.getSensorId();
+        segment.temperature[offset] = data.getTemperature();
+        segment.timestamp[offset] = timestamp;
+        segment.live[offset] = true;
+        index.put(id.getMostSignificantBits(), id.getLeastSignificantBits(), slot);
+        liveCount++;
+    }
+
+    @Override
+    public String read(String id) {
+        UUID uuid = parseId(id);
+        if (uuid == null) return null;
+        lock.readLock().lock();
+        try {
+            int slot = index.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (slot < 0) return null;
+            StringBuilder json = new StringBuilder(80);
+            appendJson(json, slot);
+            return json.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean update(SensorData data) {
+        UUID uuid = parseId(data.getId());
+        if (uuid == null) return false;
+        lock.writeLock().lock();
+        try {
+            int slot = index.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (slot < 0) return false;
+            Segment segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = slot & SEGMENT_MASK;
+            segment.sensorId[offset] = data.getSensorId();
+            segment.temperature[offset] = data.getTemperature();
+            segment.timestamp[offset] = System.currentTimeMillis();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String id) {
+        UUID uuid = parseId(id);
+        if (uuid == null) return false;
+        lock.writeLock().lock();
+        try {
+            int slot = index.remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (slot < 0) return false;
+            segments[slot >>> SEGMENT_SHIFT].live[slot & SEGMENT_MASK] = false;
+            liveCount--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String readAll() {
+        lock.readLock().lock();
+        try {
+            StringBuilder json = new StringBuilder(2 + liveCount * 80);
+            json.append('[');
+            boolean first = true;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (!segments[slot >>> SEGMENT_SHIFT].live[slot & SEGMENT_MASK]) continue;
+                if (!first) json.append(',');
+                appendJson(json, slot);
+                first = false;
+            }
+            return json.append(']').toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The cursor is the slot after the last one looked at
+     */
+    @Override
+    public ScanPage scan(ScanQuery query) {
+        long start = query.numericCursor();
+        Integer sensorId = query.getSensorId();
+        long since = query.getSince() != null ? query.getSince() : Long.MIN_VALUE;
+        lock.readLock().lock();
+        try {
+            List<SensorData> page = new ArrayList<>();
+            int slot = (int) Math.min(start, slotCount);
+            for (; slot < slotCount && page.size() < query.getLimit(); slot++) {
+                Segment segment = segments[slot >>> SEGMENT_SHIFT];
+                int offset = slot & SEGMENT_MASK;
+                if (!segment.live[offset]
+                        || (sensorId != null && segment.sensorId[offset] != sensorId)
+                        || segment.timestamp[offset] < since) {
+                    continue;
+                }
+                page.add(SensorData.builder()
+                        .id(new UUID(segment.idHigh[offset], segment.idLow[offset]).toString())
+                        .sensorId(segment.sensorId[offset])
+                        .temperature(segment.temperature[offset])
+                        .timestamp(segment.timestamp[offset])
+                        .build());
+            }
+            return new ScanPage(page, slot < slotCount ? Integer.toString(slot) : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads only the sensor id and temperature columns
+     */
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        SensorStats.Accumulator stats = new SensorStats.Accumulator(sensorId);
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                Segment segment = segments[slot >>> SEGMENT_SHIFT];
+                int offset = slot & SEGMENT_MASK;
+                if (segment.live[offset]) {
+                    stats.add(segment.sensorId[offset], segment.temperature[offset]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return stats.result();
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            segments = new Segment[16];
+            slotCount = 0;
+            liveCount = 0;
+            index.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of readings currently stored
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the reading in the same format Gson uses for {@link SensorData}
+     */
+    private void appendJson(StringBuilder json, int slot) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int offset = slot & SEGMENT_MASK;
+        json.append("{\"id\":\"")
+                .append(new UUID(segment.idHigh[offset], segment.idLow[offset]))
+                .append("\",\"sensorId\":").append(segment.sensorId[offset])
+                .append(",\"temperature\":").append(segment.temperature[offset])
+                .append(",\"timestamp\":").append(segment.timestamp[offset])
+                .append('}');
+    }
+
+    private static UUID parseId(String id) {
+        if (id == null || id.length() != 36) return null;
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Open addressing hash table from a 128-bit id to a slot, with linear probing and tombstones
+     */
+    private static final class SlotIndex {
+        private static final int EMPTY = -1;
+        private static final int DELETED = -2;
+
+        private long[] high = new long[1024];
+        private long[] low = new long[1024];
+        private int[] slots = filled(1024);
+        private int used = 0; // live entries and tombstones
+
+        void put(long idHigh, long idLow, int slot) {
+            if ((used + 1) * 4 > slots.length * 3) {
+                rehash();
+            }
+            int mask = slots.length - 1;
+            int i = hash(idHigh, idLow) & mask;
+            while (slots[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == EMPTY) {
+                used++;
+            }
+            high[i] = idHigh;
+            low[i] = idLow;
+            slots[i] = slot;
+        }
+
+        int get(long idHigh, long idLow) {
+            int i = find(idHigh, idLow);
+            return i < 0 ? -1 : slots[i];
+        }
+
+        int remove(long idHigh, long idLow) {
+            int i = find(idHigh, idLow);
+            if (i < 0) return -1;
+            int slot = slots[i];
+            slots[i] = DELETED;
+            return slot;
+        }
+
+        void clear() {
+            high = new long[1024];
+            low = new long[1024];
+            slots = filled(1024);
+            used = 0;
+        }
+
+        private int find(long idHigh, long idLow) {
+            int mask = slots.length - 1;
+            int i = hash(idHigh, idLow) & mask;
+            while (slots[i] != EMPTY) {
+                if (slots[i] >= 0 && high[i] == idHigh && low[i] == idLow) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void rehash() {
+            long[] oldHigh = high;
+            long[] oldLow = low;
+            int[] oldSlots = slots;
+            int live = 0;
+            for (int slot : oldSlots) {
+                if (slot >= 0) live++;
+            }
+            // Grow only if the table is really filling up, otherwise just drop the tombstones
+            int capacity = (live + 1) * 2 > oldSlots.length ? oldSlots.length * 2 : oldSlots.length;
+            high = new long[capacity];
+            low = new long[capacity];
+            slots = filled(capacity);
+            used = 0;
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] >= 0) {
+                    put(oldHigh[i], oldLow[i], oldSlots[i]);
+                }
+            }
+        }
+
+        private static int hash(long idHigh, long idLow) {
+            long h = idHigh * 0x9E3779B97F4A7C15L ^ idLow;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private static int[] filled(int capacity) {
+            int[] slots = new int[capacity];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+    }
+}
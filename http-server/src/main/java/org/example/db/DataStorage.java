@@ -1,6 +1,12 @@
 package org.example.db;
 
+import com.google.gson.Gson;
 import org.example.SensorData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 public interface DataStorage {
@@ -10,4 +16,50 @@ public interface DataStorage {
     boolean delete(String id);
     String readAll();
     void clear();
-}
\ No newline at end of file
+
+    /**
+     * Creates all entries. This default creates them one by one; storages override it to write the
+     * whole batch at once.
+     * @return true if every entry was created
+     */
+    default boolean createAll(List<SensorData> data) {
+        boolean created = true;
+        for (SensorData entry : data) {
+            created &= create(entry);
+        }
+        return created;
+    }
+
+    /**
+     * Writes the JSON array returned by {@link #readAll()} to the stream. Storages that can produce
+     * it piece by piece override this, so that the whole result is never held in memory.
+     */
+    default void writeAll(OutputStream out) throws IOException {
+        out.write(readAll().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the entries matching the query in insertion order, at most {@link ScanQuery#getLimit()}.
+     * This default filters the full result of {@link #readAll()}; storages override it to read only
+     * the requested page from their indexes.
+     * @throws IllegalArgumentException if the cursor was not produced by this storage
+     */
+    default ScanPage scan(ScanQuery query) {
+        SensorData[] all = new Gson().fromJson(readAll(), SensorData[].class);
+        return ScanPage.of(Arrays.asList(all), query);
+    }
+
+    /**
+     * Returns the temperature statistics per sensor in sensor id order, only for sensors with readings.
+     * This default aggregates the full result of {@link #readAll()}; storages override it to aggregate
+     * where the entries are kept.
+     * @param sensorId the only sensor to aggregate, or null for all
+     */
+    default List<SensorStats> stats(Integer sensorId) {
+        SensorStats.Accumulator stats = new SensorStats.Accumulator(sensorId);
+        for (SensorData data : new Gson().fromJson(readAll(), SensorData[].class)) {
+            stats.add(data.getSensorId(), data.getTemperature());
+        }
+        return stats.result();
+    }
+}
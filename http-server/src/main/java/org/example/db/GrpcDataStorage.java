@@ -1,17 +1,39 @@
 package org.example.db;
 
 import com.google.gson.Gson;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import org.example.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 
 public class GrpcDataStorage implements TwoPCDataStorage {
+    private static final int PAGE_SIZE = 500;
+    static final int MAX_DELETES_IN_FLIGHT = 64;
+
     private final GrpcDatabaseClient grpcClient;
     private final Gson gson = new Gson();
 
     public GrpcDataStorage(String host, int port) {
-        this.grpcClient = new GrpcDatabaseClient(host, port);
+        this(host, port, GrpcDatabaseClient.DEFAULT_CHANNELS, GrpcDatabaseClient.DEFAULT_DEADLINE_MS);
+    }
+
+    /**
+     * @param channels number of connections to the database
+     * @param deadlineMillis time a call may take before it fails
+     */
+    public GrpcDataStorage(String host, int port, int channels, long deadlineMillis) {
+        this.grpcClient = new GrpcDatabaseClient(host, port, channels, deadlineMillis);
     }
 
     @Override
@@ -21,6 +43,27 @@ public class GrpcDataStorage implements TwoPCDataStorage {
         return response.getSuccess();
     }
 
+    /**
+     * Sends the whole batch in one BatchCreate call
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        if (data.isEmpty()) return true;
+        BatchResponse response = grpcClient.batchCreate(toBatchRequest(data));
+        if (!response.getSuccess()) {
+            Log.warn("Batch create failed: {}", response.getMessage());
+        }
+        return response.getSuccess();
+    }
+
+    private static BatchCreateRequest toBatchRequest(List<SensorData> data) {
+        BatchCreateRequest.Builder request = BatchCreateRequest.newBuilder();
+        for (SensorData entry : data) {
+            request.addEntries(entry.toGrpcRequest());
+        }
+        return request.build();
+    }
+
     @Override
     public String read(String id) {
         SensorDataStored dataStored = grpcClient.read(id);
@@ -31,7 +74,7 @@ public class GrpcDataStorage implements TwoPCDataStorage {
     @Override
     public boolean update(SensorData data) {
          if (data.getId() == null || data.getId().isEmpty()) {
-             System.err.println("Update failed: SensorData object is missing ID.");
+             Log.warn("Update failed: SensorData object is missing ID.");
              return false;
          }
 
@@ -48,66 +91,216 @@ public class GrpcDataStorage implements TwoPCDataStorage {
 
     @Override
     public String readAll() {
-        SensorDataStoredList response = grpcClient.readAll();
-        List<SensorDataStored> entries = response.getEntriesList();
-        
-        List<SensorData> sensorDataList = entries.stream()
-                .map(SensorData::fromGrpcStored)
-                .filter(data -> data != null)
-                .collect(Collectors.toList());
-        
-        return gson.toJson(sensorDataList);
+        // Streamed page by page, so large tables do not hit the gRPC message size limit
+        StringBuilder json = new StringBuilder();
+        try {
+            appendAll(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
+    }
+
+    @Override
+    public void writeAll(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        appendAll(writer);
+        writer.flush();
+    }
+
+    /**
+     * Appends all entries as a JSON array while they are streamed from the database
+     */
+    private void appendAll(Appendable json) throws IOException {
+        json.append('[');
+        boolean[] first = {true};
+        grpcClient.streamAll(ScanRequest.newBuilder().setPageSize(PAGE_SIZE).build(), page -> {
+            for (SensorDataStored entry : page.getEntriesList()) {
+                SensorData data = SensorData.fromGrpcStored(entry);
+                if (data == null) continue;
+                if (!first[0]) json.append(',');
+                gson.toJson(data, json);
+                first[0] = false;
+            }
+        });
+        json.append(']');
+    }
+
+    /**
+     * Reads one page with StreamAll; the cursor is the one of the database
+     */
+    @Override
+    public ScanPage scan(ScanQuery query) {
+        ScanRequest.Builder request = ScanRequest.newBuilder()
+                .setPageSize(query.getLimit())
+                .setLimit(query.getLimit());
+        if (query.getCursor() != null) request.setCursor(query.getCursor());
+        if (query.getSensorId() != null) request.setSensorId(query.getSensorId());
+        if (query.getSince() != null) request.setSince(query.getSince());
+
+        List<SensorData> entries = new ArrayList<>();
+        String[] nextCursor = {null};
+        int[] received = {0};
+        try {
+            grpcClient.streamAll(request.build(), page -> {
+                for (SensorDataStored entry : page.getEntriesList()) {
+                    SensorData data = SensorData.fromGrpcStored(entry);
+                    if (data != null) entries.add(data);
+                }
+                received[0] += page.getEntriesCount();
+                nextCursor[0] = page.getNextCursor();
+            });
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() == Status.Code.INVALID_ARGUMENT) {
+                throw new IllegalArgumentException(e.getStatus().getDescription(), e);
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // A page that is not full was the last one
+        return new ScanPage(entries, received[0] == query.getLimit() ? nextCursor[0] : null);
+    }
+
+    /**
+     * The database aggregates, only the statistics are sent
+     */
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        StatsRequest.Builder request = StatsRequest.newBuilder();
+        if (sensorId != null) request.setSensorId(sensorId);
+        List<SensorStats> stats = new ArrayList<>();
+        for (TemperatureStats sensor : grpcClient.stats(request.build()).getSensorsList()) {
+            stats.add(new SensorStats(sensor.getSensorId(), sensor.getCount(), sensor.getMin(), sensor.getMax(), sensor.getSum()));
+        }
+        return stats;
     }
 
     @Override
     public void clear() {
-        // Get all entries first
-        SensorDataStoredList response = grpcClient.readAll();
-        List<SensorDataStored> entries = response.getEntriesList();
-        
-        // Delete each entry individually
-        for (SensorDataStored entry : entries) {
-            grpcClient.delete(entry.getId());
+        // Collect the ids first, deleting while streaming would change the result being streamed
+        List<String> ids = new ArrayList<>();
+        try {
+            grpcClient.streamAll(ScanRequest.newBuilder().setPageSize(PAGE_SIZE).build(), page -> {
+                for (SensorDataStored entry : page.getEntriesList()) {
+                    ids.add(SensorData.idOf(entry));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+
+        // Delete each entry individually, a bounded number of calls at a time so that queued calls do not
+        // run into their deadline
+        Semaphore inFlight = new Semaphore(MAX_DELETES_IN_FLIGHT);
+        List<CompletableFuture<Response>> deletes = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            inFlight.acquireUninterruptibly();
+            CompletableFuture<Response> delete = grpcClient.deleteAsync(id);
+            delete.whenComplete((response, error) -> inFlight.release());
+            deletes.add(delete);
+        }
+        CompletableFuture.allOf(deletes.toArray(new CompletableFuture[0])).join();
     }
     
     // 2PC Protocol Implementation
     @Override
     public boolean prepare(String transactionId, String operation, SensorData data) {
         try {
-            TransactionRequest.Builder requestBuilder = TransactionRequest.newBuilder()
-                    .setTransactionId(transactionId)
-                    .setOperation(operation);
-            
-            switch (operation) {
-                case "CREATE":
-                    requestBuilder.setCreateData(data.toGrpcRequest());
-                    break;
-                case "UPDATE":
-                    UpdateRequest updateReq = UpdateRequest.newBuilder()
-                            .setId(data.getId())
-                            .setUpdatedData(data.toGrpcRequest())
-                            .build();
-                    requestBuilder.setUpdateData(updateReq);
-                    break;
-                case "DELETE":
-                    DeleteRequest deleteReq = DeleteRequest.newBuilder()
-                            .setId(data.getId())
-                            .build();
-                    requestBuilder.setDeleteData(deleteReq);
-                    break;
-                default:
-                    return false;
+            TransactionRequest request = toTransactionRequest(operation, data);
+            if (request == null) {
+                return false;
             }
-            
-            PrepareResponse response = grpcClient.prepare(requestBuilder.build());
+            PrepareResponse response = grpcClient.prepare(request.toBuilder().setTransactionId(transactionId).build());
             return response.getPrepared();
         } catch (Exception e) {
-            System.err.println("Error in prepare phase: " + e.getMessage());
+            Log.warn("Error in prepare phase: {}", e.getMessage());
             return false;
         }
     }
     
+    /**
+     * Builds the request for an operation without transaction id
+     * @return the request, or null for an unknown operation
+     */
+    private static TransactionRequest toTransactionRequest(String operation, SensorData data) {
+        TransactionRequest.Builder requestBuilder = TransactionRequest.newBuilder()
+                .setOperation(operation);
+        
+        switch (operation) {
+            case "CREATE":
+                requestBuilder.setCreateData(data.toGrpcRequest());
+                break;
+            case "UPDATE":
+                UpdateRequest updateReq = UpdateRequest.newBuilder()
+                        .setId(data.getId())
+                        .setUpdatedData(data.toGrpcRequest())
+                        .build();
+                requestBuilder.setUpdateData(updateReq);
+                break;
+            case "DELETE":
+                DeleteRequest deleteReq = DeleteRequest.newBuilder()
+                        .setId(data.getId())
+                        .build();
+                requestBuilder.setDeleteData(deleteReq);
+                break;
+            default:
+                return null;
+        }
+        return requestBuilder.build();
+    }
+    
+    @Override
+    public boolean prepareAll(String transactionId, List<SensorData> data) {
+        try {
+            TransactionRequest request = TransactionRequest.newBuilder()
+                    .setTransactionId(transactionId)
+                    .setOperation(TwoPCCoordinator.BATCH_CREATE)
+                    .setBatchCreateData(toBatchRequest(data))
+                    .build();
+            return grpcClient.prepare(request).getPrepared();
+        } catch (Exception e) {
+            Log.warn("Error in prepare phase: {}", e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Sends the whole group in one Prepare call
+     */
+    @Override
+    public boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+        boolean[] prepared = new boolean[operations.size()];
+        try {
+            TransactionGroup.Builder group = TransactionGroup.newBuilder();
+            for (TwoPCCoordinator.TransactionRequest operation : operations) {
+                TransactionRequest request = TwoPCCoordinator.BATCH_CREATE.equals(operation.getOperation())
+                        ? TransactionRequest.newBuilder()
+                                .setOperation(operation.getOperation())
+                                .setBatchCreateData(toBatchRequest(operation.getBatch()))
+                                .build()
+                        : toTransactionRequest(operation.getOperation(), operation.getData());
+                // Unknown operations are sent without data, the database rejects them
+                group.addOperations(request != null ? request
+                        : TransactionRequest.newBuilder().setOperation(operation.getOperation()).build());
+            }
+            PrepareResponse response = grpcClient.prepare(TransactionRequest.newBuilder()
+                    .setTransactionId(transactionId)
+                    .setOperation("GROUP")
+                    .setGroupData(group)
+                    .build());
+            if (!response.getPrepared() || response.getOperationPreparedCount() != prepared.length) {
+                return prepared;
+            }
+            for (int i = 0; i < prepared.length; i++) {
+                prepared[i] = response.getOperationPrepared(i);
+            }
+        } catch (Exception e) {
+            Log.warn("Error in prepare phase: {}", e.getMessage());
+        }
+        return prepared;
+    }
+    
     @Override
     public boolean commit(String transactionId) {
         try {
@@ -117,11 +310,37 @@ public class GrpcDataStorage implements TwoPCDataStorage {
             Response response = grpcClient.commit(txId);
             return response.getSuccess();
         } catch (Exception e) {
-            System.err.println("Error in commit phase: " + e.getMessage());
+            Log.warn("Error in commit phase: {}", e.getMessage());
             return false;
         }
     }
     
+    /**
+     * Reads whether each operation was written from the commit response. A database that does not report
+     * them commits a group only if it wrote all of its operations.
+     */
+    @Override
+    public boolean[] commitGroup(String transactionId, int operations) {
+        try {
+            Response response = grpcClient.commit(TransactionId.newBuilder()
+                    .setTransactionId(transactionId)
+                    .build());
+            if (!response.getSuccess()) return null;
+            boolean[] committed = new boolean[operations];
+            if (response.getOperationCommittedCount() != operations) {
+                Arrays.fill(committed, true);
+                return committed;
+            }
+            for (int i = 0; i < operations; i++) {
+                committed[i] = response.getOperationCommitted(i);
+            }
+            return committed;
+        } catch (Exception e) {
+            Log.warn("Error in commit phase: {}", e.getMessage());
+            return null;
+        }
+    }
+
     @Override
     public boolean abort(String transactionId) {
         try {
@@ -131,8 +350,29 @@ public class GrpcDataStorage implements TwoPCDataStorage {
             Response response = grpcClient.abort(txId);
             return response.getSuccess();
         } catch (Exception e) {
-            System.err.println("Error in abort phase: " + e.getMessage());
+            Log.warn("Error in abort phase: {}", e.getMessage());
             return false;
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Asks the database; a failed call is thrown, the coordinator must not take it for "none"
+     */
+    @Override
+    public List<String> inDoubtTransactions() {
+        return grpcClient.inDoubt().getTransactionIdsList();
+    }
+    
+    @Override
+    public List<String> expiredTransactions() {
+        return grpcClient.inDoubt().getExpiredTransactionIdsList();
+    }
+    
+    /**
+     * Waits for the running calls and closes the connections to the database
+     */
+    @Override
+    public void shutdown() {
+        grpcClient.close();
+    }
+}
@@ -1,61 +1,303 @@
 package org.example.db;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.MetadataUtils;
 import org.example.*;
 
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class GrpcDatabaseClient {
-    private final DatabaseServiceGrpc.DatabaseServiceBlockingStub stub;
+/**
+ * Client of the gRPC database. Unary calls go through future stubs and return a CompletableFuture;
+ * the blocking methods wait for it. Every unary call has a deadline, so a slow database fails the
+ * call instead of holding the calling thread.
+ *
+ * Calls are spread round-robin over a pool of channels, each with its own HTTP/2 connection, so that
+ * many concurrent calls are not limited by the stream limit of one connection. Keepalive pings detect
+ * a dead connection while a call waits for it. Idempotent calls (reads, InDoubt, Abort) are retried on
+ * UNAVAILABLE according to the service config of the channels.
+ */
+public class GrpcDatabaseClient implements AutoCloseable {
+    public static final int DEFAULT_CHANNELS = 2;
+    public static final long DEFAULT_DEADLINE_MS = 5000;
+    static final long KEEP_ALIVE_SECONDS = 30;
+    static final long KEEP_ALIVE_TIMEOUT_SECONDS = 10;
+    private static final long SHUTDOWN_SECONDS = 5;
+
+    /**
+     * Tells the database to answer with the compact fields of database.proto
+     */
+    static final Metadata.Key<String> SCHEMA_VERSION_HEADER = Metadata.Key.of("schema-version", Metadata.ASCII_STRING_MARSHALLER);
+    static final String SCHEMA_VERSION = "2";
+
+    /**
+     * Receives the pages of {@link #streamAll(ScanRequest, PageConsumer)}
+     */
+    @FunctionalInterface
+    public interface PageConsumer {
+        void accept(SensorDataPage page) throws IOException;
+    }
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<DatabaseServiceGrpc.DatabaseServiceFutureStub> futureStubs = new ArrayList<>();
+    private final List<DatabaseServiceGrpc.DatabaseServiceBlockingStub> blockingStubs = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final long deadlineMillis;
 
     public GrpcDatabaseClient(String host, int port) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
-                .usePlaintext()
-                .build();
-        stub = DatabaseServiceGrpc.newBlockingStub(channel);
+        this(host, port, DEFAULT_CHANNELS, DEFAULT_DEADLINE_MS);
     }
 
-    public Response create(SensorDataRequest data) {
-        return stub.create(data);
+    /**
+     * @param channels number of connections to the database
+     * @param deadlineMillis time a unary call may take before it fails with DEADLINE_EXCEEDED
+     */
+    public GrpcDatabaseClient(String host, int port, int channels, long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+        Metadata headers = new Metadata();
+        headers.put(SCHEMA_VERSION_HEADER, SCHEMA_VERSION);
+        for (int i = 0; i < channels; i++) {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
+                    .usePlaintext()
+                    .keepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)
+                    .keepAliveTimeout(KEEP_ALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .defaultServiceConfig(serviceConfig())
+                    .enableRetry()
+                    .intercept(MetadataUtils.newAttachHeadersInterceptor(headers))
+                    .build();
+            this.channels.add(channel);
+            futureStubs.add(DatabaseServiceGrpc.newFutureStub(channel));
+            blockingStubs.add(DatabaseServiceGrpc.newBlockingStub(channel));
+        }
     }
 
-    public SensorDataStored read(String id) {
+    /**
+     * Retries idempotent calls up to three times with exponential backoff while the database is unavailable
+     */
+    private static Map<String, Object> serviceConfig() {
+        List<Map<String, Object>> names = new ArrayList<>();
+        for (String method : List.of("Read", "ReadAll", "StreamAll", "Stats", "InDoubt", "Abort")) {
+            names.add(Map.of("service", DatabaseServiceGrpc.SERVICE_NAME, "method", method));
+        }
+        Map<String, Object> retryPolicy = Map.of(
+                "maxAttempts", 3.0,
+                "initialBackoff", "0.1s",
+                "maxBackoff", "1s",
+                "backoffMultiplier", 2.0,
+                "retryableStatusCodes", List.of("UNAVAILABLE"));
+        return Map.of("methodConfig", List.of(Map.of("name", names, "retryPolicy", retryPolicy)));
+    }
+
+    private int nextChannel() {
+        return Math.floorMod(next.getAndIncrement(), channels.size());
+    }
+
+    private DatabaseServiceGrpc.DatabaseServiceFutureStub stub() {
+        return futureStubs.get(nextChannel()).withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Response> createAsync(SensorDataRequest data) {
+        return toCompletable(stub().create(data));
+    }
+
+    public CompletableFuture<BatchResponse> batchCreateAsync(BatchCreateRequest request) {
+        return toCompletable(stub().batchCreate(request));
+    }
+
+    public CompletableFuture<SensorDataStored> readAsync(String id) {
         Key key = Key.newBuilder().setId(id).build();
-        return stub.read(key);
+        return toCompletable(stub().read(key));
     }
 
-    public Response update(String id, SensorDataRequest updatedData) {
+    public CompletableFuture<Response> updateAsync(String id, SensorDataRequest updatedData) {
         UpdateRequest request = UpdateRequest.newBuilder()
                 .setId(id)
                 .setUpdatedData(updatedData)
                 .build();
-        return stub.update(request);
+        return toCompletable(stub().update(request));
     }
 
-    public Response delete(String id) {
+    public CompletableFuture<Response> deleteAsync(String id) {
         DeleteRequest request = DeleteRequest.newBuilder()
                 .setId(id)
                 .build();
-        return stub.delete(request);
+        return toCompletable(stub().delete(request));
     }
 
-    public SensorDataStoredList readAll() {
-        Empty request = Empty.newBuilder().build();
-        return stub.readAll(request);
+    public CompletableFuture<SensorDataStoredList> readAllAsync() {
+        return toCompletable(stub().readAll(Empty.newBuilder().build()));
     }
-    
+
+    public CompletableFuture<TemperatureStatsList> statsAsync(StatsRequest request) {
+        return toCompletable(stub().stats(request));
+    }
+
     // 2PC Protocol methods
+    public CompletableFuture<PrepareResponse> prepareAsync(TransactionRequest request) {
+        return toCompletable(stub().prepare(request));
+    }
+
+    public CompletableFuture<Response> commitAsync(TransactionId transactionId) {
+        return toCompletable(stub().commit(transactionId));
+    }
+
+    public CompletableFuture<Response> abortAsync(TransactionId transactionId) {
+        return toCompletable(stub().abort(transactionId));
+    }
+
+    public CompletableFuture<TransactionIds> inDoubtAsync() {
+        return toCompletable(stub().inDoubt(Empty.newBuilder().build()));
+    }
+
+    public Response create(SensorDataRequest data) {
+        return await(createAsync(data));
+    }
+
+    public BatchResponse batchCreate(BatchCreateRequest request) {
+        return await(batchCreateAsync(request));
+    }
+
+    public SensorDataStored read(String id) {
+        return await(readAsync(id));
+    }
+
+    public Response update(String id, SensorDataRequest updatedData) {
+        return await(updateAsync(id, updatedData));
+    }
+
+    public Response delete(String id) {
+        return await(deleteAsync(id));
+    }
+
+    public SensorDataStoredList readAll() {
+        return await(readAllAsync());
+    }
+
+    public TemperatureStatsList stats(StatsRequest request) {
+        return await(statsAsync(request));
+    }
+
     public PrepareResponse prepare(TransactionRequest request) {
-        return stub.prepare(request);
+        return await(prepareAsync(request));
     }
-    
+
     public Response commit(TransactionId transactionId) {
-        return stub.commit(transactionId);
+        return await(commitAsync(transactionId));
     }
-    
+
     public Response abort(TransactionId transactionId) {
-        return stub.abort(transactionId);
+        return await(abortAsync(transactionId));
+    }
+
+    public TransactionIds inDoubt() {
+        return await(inDoubtAsync());
+    }
+
+    /**
+     * Streams the entries page by page. The next page is only requested once the consumer returned,
+     * so a slow consumer slows down the server instead of buffering the result. A stream has no
+     * deadline, as its length depends on the table; keepalive ends it if the connection dies.
+     */
+    public void streamAll(ScanRequest request, PageConsumer consumer) throws IOException {
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub stub = blockingStubs.get(nextChannel());
+        // Leaving the iterator early has to cancel the call, otherwise the server keeps the stream open
+        Context.CancellableContext context = Context.current().withCancellation();
+        try {
+            context.call(() -> {
+                Iterator<SensorDataPage> pages = stub.streamAll(request);
+                while (pages.hasNext()) {
+                    consumer.accept(pages.next());
+                }
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    /**
+     * Completes with the result of the call; cancelling it cancels the call
+     */
+    private static <T> CompletableFuture<T> toCompletable(ListenableFuture<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                call.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        Futures.addCallback(call, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Waits for a call. It ends at the latest with its deadline.
+     * @throws io.grpc.StatusRuntimeException if the call failed, like the blocking stub does
+     */
+    private static <T> T await(CompletableFuture<T> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Interrupted while waiting for the database").asRuntimeException();
+        }
+    }
+
+    /**
+     * Stops accepting calls and waits up to five seconds for the running ones, then cancels them
+     */
+    @Override
+    public void close() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_SECONDS);
+        try {
+            for (ManagedChannel channel : channels) {
+                if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    channel.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
     }
-}
\ No newline at end of file
+}
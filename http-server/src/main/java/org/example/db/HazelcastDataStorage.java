@@ -3,46 +3,215 @@ package org.example.db;
 import com.google.gson.Gson;
 import com.hazelcast.client.HazelcastClient;
 import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.config.EvictionConfig;
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MaxSizePolicy;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.HazelcastJsonValue;
+import com.hazelcast.core.Pipelining;
 import com.hazelcast.map.IMap;
+import com.hazelcast.nearcache.NearCacheStats;
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+import com.hazelcast.projection.Projections;
+import com.hazelcast.query.Predicate;
+import com.hazelcast.query.Predicates;
+import org.example.LatencyHistogram;
+import org.example.Log;
+import org.example.Metrics;
 import org.example.SensorData;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 
 public class HazelcastDataStorage implements TwoPCDataStorage {
-    private HazelcastInstance client;
-    private final IMap<String, HazelcastJsonValue> map;
+    public static final long DEFAULT_PREPARE_TIMEOUT_MS = 60_000;
+    public static final int DEFAULT_NEAR_CACHE_SIZE = 10_000;
+    public static final int DEFAULT_NEAR_CACHE_TTL_SECONDS = 300;
+    private static final String MAP_NAME = "sensorData";
+    static final long LOCK_WAIT_MS = 100;
+    static final int EXPIRED_IDS_KEPT = 10_000;
+    // Requests a prepare or commit keeps in flight at once
+    private static final int PIPELINE_DEPTH = 64;
+
+    private final HazelcastInstance client;
+    private final IMap<String, Object> map;
+    private final HazelcastValueFormat format;
+    private final boolean nearCached;
     private final Gson gson = new Gson();
     private final ConcurrentHashMap<String, TransactionData> preparedTransactions = new ConcurrentHashMap<>();
+    private TransactionLog prepareLog; // null without a prepare log
+    private final KeyLockTable locks = new KeyLockTable();
+    private final long prepareTimeoutNanos;
+    private final ScheduledExecutorService reaper;
+    private final LatencyHistogram lockWait = Metrics.histogram("hazelcast.lock.wait");
+    private final LongAdder lockTimeouts = Metrics.counter("hazelcast.lock.timeouts");
+    private volatile boolean aggregatorMissing; // the members cannot load SensorStatsAggregator
+    private final LongAdder expiredCount = Metrics.counter("hazelcast.prepare.expired");
+    // The latest expired transactions, reported so that the coordinator does not end a commit it logged for them
+    private final Set<String> expiredIds = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > EXPIRED_IDS_KEPT;
+                }
+            }));
     
     private static class TransactionData {
         final String operation;
         final SensorData data;
-        final HazelcastJsonValue originalValue; // For rollback
+        final Object originalValue; // For rollback
+        final Map<String, Object> batch; // Entries of a BATCH_CREATE
+        final List<TransactionData> group; // Operations of a GROUP
+        final long preparedAt = System.nanoTime(); // Restart time for transactions replayed from the log
+        final AtomicBoolean finished = new AtomicBoolean(); // Claimed by the commit, abort or expiry that ends it
+        
+        TransactionData(String operation, SensorData data, Object originalValue) {
+            this(operation, data, originalValue, null, null);
+        }
         
-        TransactionData(String operation, SensorData data, HazelcastJsonValue originalValue) {
+        TransactionData(String operation, SensorData data, Object originalValue,
+                        Map<String, Object> batch, List<TransactionData> group) {
             this.operation = operation;
             this.data = data;
             this.originalValue = originalValue;
+            this.batch = batch;
+            this.group = group;
         }
     }
 
     public HazelcastDataStorage() {
+        this(null);
+    }
+
+    public HazelcastDataStorage(Path prepareLog) {
+        this(prepareLog, DEFAULT_PREPARE_TIMEOUT_MS);
+    }
+
+    /**
+     * Uses a near cache of {@link #DEFAULT_NEAR_CACHE_SIZE} entries
+     */
+    public HazelcastDataStorage(Path prepareLog, long prepareTimeoutMillis) {
+        this(prepareLog, prepareTimeoutMillis,
+                nearCacheConfig(DEFAULT_NEAR_CACHE_SIZE, DEFAULT_NEAR_CACHE_TTL_SECONDS, EvictionPolicy.LRU));
+    }
+
+    /**
+     * Stores readings as JSON
+     */
+    public HazelcastDataStorage(Path prepareLog, long prepareTimeoutMillis, NearCacheConfig nearCache) {
+        this(prepareLog, prepareTimeoutMillis, nearCache, HazelcastValueFormat.JSON);
+    }
+
+    /**
+     * @param prepareLog file that keeps prepared transactions across restarts, null to keep them in memory only
+     * @param prepareTimeoutMillis time after which a prepared transaction that was neither committed nor
+     *                             aborted is aborted and its entries are unlocked
+     * @param nearCache near cache of the sensorData map, see {@link #nearCacheConfig}; null reads every
+     *                  entry from the cluster
+     * @param format how readings are stored in the map
+     * @throws UncheckedIOException if the prepare log cannot be opened
+     */
+    public HazelcastDataStorage(Path prepareLog, long prepareTimeoutMillis, NearCacheConfig nearCache,
+                                HazelcastValueFormat format) {
+        this(connect(clientConfig(nearCache, format)), nearCache != null, prepareLog, prepareTimeoutMillis, format);
+    }
+
+    /**
+     * Uses a connected client, e.g. of a cluster in the same JVM for benchmarks
+     * @param client client configured for the format, see {@link HazelcastValueFormat#configure}
+     * @param nearCached whether the client has a near cache for the sensorData map
+     */
+    HazelcastDataStorage(HazelcastInstance client, boolean nearCached, Path prepareLog, long prepareTimeoutMillis,
+                         HazelcastValueFormat format) {
+        this.prepareTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(prepareTimeoutMillis);
+        this.client = client;
+        this.nearCached = nearCached;
+        this.format = format;
+        this.map = client.getMap(MAP_NAME);
+        Log.info("Initialisierte Map 'sensorData' mit Größe: {}", map.size());
+        if (nearCached) {
+            registerNearCacheMetrics();
+        }
+
+        if (prepareLog != null) {
+            try {
+                this.prepareLog = new TransactionLog(prepareLog, this::openPrepares);
+                replay(this.prepareLog.recoveredEntries());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the Hazelcast prepare log " + prepareLog, e);
+            }
+        }
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hazelcast-prepare-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, Math.min(prepareTimeoutMillis / 2, 1000));
+        reaper.scheduleWithFixedDelay(this::expirePrepared, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static ClientConfig clientConfig(NearCacheConfig nearCache, HazelcastValueFormat format) {
         ClientConfig config = new ClientConfig();
         config.setClusterName("dev");
         config.setInstanceName("my-java-client");
         config.getNetworkConfig().addAddress("hazelcast-node:5701");
+        format.configure(config);
+        // Only members that enable user code deployment accept clients that deploy
+        if ("true".equals(System.getenv("HAZELCAST_DEPLOY_AGGREGATOR"))) {
+            deployAggregator(config);
+        }
+        if (nearCache != null) {
+            config.addNearCacheConfig(new NearCacheConfig(nearCache).setName(MAP_NAME));
+        }
+        return config;
+    }
 
+    /**
+     * Sends {@link SensorStatsAggregator} to the members when the client connects. The members have to
+     * enable user code deployment, otherwise the client cannot connect; without it they need the class on
+     * their classpath, or {@link #stats} aggregates on the client.
+     */
+    @SuppressWarnings("deprecation")
+    private static void deployAggregator(ClientConfig config) {
+        config.getUserCodeDeploymentConfig().setEnabled(true).addClass(SensorStatsAggregator.class);
+    }
+
+    private static HazelcastInstance connect(ClientConfig config) {
         int retryCount = 0;
-        while (retryCount < 10) {
+        while (true) {
             try {
-                client = HazelcastClient.newHazelcastClient(config);
-                System.out.println("✅ Verbunden mit Hazelcast-Cluster: " + client.getCluster().getMembers());
-                break;
+                HazelcastInstance client = HazelcastClient.newHazelcastClient(config);
+                Log.info("✅ Verbunden mit Hazelcast-Cluster: {}", client.getCluster().getMembers());
+                return client;
             } catch (Exception e) {
-                System.out.println("❌ Verbindung fehlgeschlagen, versuche erneut...");
+                Log.warn("❌ Verbindung fehlgeschlagen, versuche erneut...");
                 retryCount++;
                 if (retryCount >= 10) {
                     throw new RuntimeException("Konnte keine Verbindung zum Hazelcast-Cluster herstellen.");
@@ -54,39 +223,106 @@ public class HazelcastDataStorage implements TwoPCDataStorage {
                 }
             }
         }
+    }
 
-        if (client != null) {
-            this.map = client.getMap("sensorData");
-            System.out.println("Initialisierte Map 'sensorData' mit Größe: " + map.size());
-        } else {
-            throw new RuntimeException("Hazelcast-Client konnte nicht initialisiert werden.");
-        }
+    /**
+     * Near cache that keeps up to size entries in this client, each for at most ttlSeconds. Writes of this
+     * client invalidate its entries at once, writes of other clients through invalidation events of the
+     * cluster. Entries are kept as objects, so a hit is neither copied nor deserialized.
+     * @param eviction entries removed once the near cache is full
+     */
+    public static NearCacheConfig nearCacheConfig(int size, int ttlSeconds, EvictionPolicy eviction) {
+        return new NearCacheConfig(MAP_NAME)
+                .setInMemoryFormat(InMemoryFormat.OBJECT)
+                .setInvalidateOnChange(true)
+                .setTimeToLiveSeconds(ttlSeconds)
+                .setEvictionConfig(new EvictionConfig()
+                        .setSize(size)
+                        .setMaxSizePolicy(MaxSizePolicy.ENTRY_COUNT)
+                        .setEvictionPolicy(eviction));
+    }
+
+    private void registerNearCacheMetrics() {
+        nearCacheGauge("hits", NearCacheStats::getHits);
+        nearCacheGauge("misses", NearCacheStats::getMisses);
+        nearCacheGauge("entries", NearCacheStats::getOwnedEntryCount);
+        nearCacheGauge("evictions", NearCacheStats::getEvictions);
+        nearCacheGauge("expirations", NearCacheStats::getExpirations);
+        nearCacheGauge("invalidations", NearCacheStats::getInvalidations);
+        // NearCacheStats.getRatio() is hits per miss, the hit ratio is hits per read
+        Metrics.gauge("hazelcast.nearcache.hit.ratio", () -> {
+            NearCacheStats stats = map.getLocalMapStats().getNearCacheStats();
+            long reads = stats.getHits() + stats.getMisses();
+            return reads == 0 ? 0 : (double) stats.getHits() / reads;
+        });
+    }
+
+    private void nearCacheGauge(String name, ToLongFunction<NearCacheStats> value) {
+        Metrics.gauge("hazelcast.nearcache." + name,
+                () -> value.applyAsLong(map.getLocalMapStats().getNearCacheStats()));
     }
 
     @Override
     public boolean create(SensorData data) {
-        String jsonStr = gson.toJson(data);
         String key = data.getId();
         if (key == null || key.isEmpty()) {
             key = "sensor-" + data.getSensorId() + "-" + System.currentTimeMillis();
         }
-        map.put(key, new HazelcastJsonValue(jsonStr));
-        System.out.println("Daten geschrieben unter Key: " + key + ", aktuelle Map-Größe: " + map.size());
+        // set does not send the previous value back like put does
+        map.set(key, format.toValue(data));
+        if (Log.isDebugEnabled()) {
+            // map.size() is a cluster-wide operation, only pay for it when it is logged
+            Log.debug("Daten geschrieben unter Key: {}, aktuelle Map-Größe: {}", key, map.size());
+        }
         return true;
     }
 
+    /**
+     * Writes the whole batch with one setAll, which sends one operation per partition owner and, unlike
+     * putAll, no previous values back
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        map.setAll(toEntries(data));
+        Log.debug("Batch von {} Einträgen geschrieben", data.size());
+        return true;
+    }
+
+    /**
+     * Keys the entries of a batch. Entries without id get a UUID, the key used by create would repeat
+     * within a batch.
+     */
+    private Map<String, Object> toEntries(List<SensorData> data) {
+        Map<String, Object> entries = new LinkedHashMap<>();
+        for (SensorData entry : data) {
+            String key = entry.getId();
+            if (key == null || key.isEmpty()) {
+                key = UUID.randomUUID().toString();
+                entry = SensorData.builder()
+                        .id(key)
+                        .sensorId(entry.getSensorId())
+                        .temperature(entry.getTemperature())
+                        .build();
+            }
+            entries.put(key, format.toValue(entry));
+        }
+        return entries;
+    }
+
     @Override
     public String read(String id) {
-        HazelcastJsonValue json = map.get(id);
-        return json != null ? json.toString() : null;
+        Object value = map.get(id);
+        return value != null ? HazelcastValueFormat.toJson(value) : null;
     }
 
+    /**
+     * One conditional replace instead of a containsKey and a put
+     */
     @Override
     public boolean update(SensorData data) {
         String key = data.getId();
-        if (key == null || !map.containsKey(key)) return false;
-        map.put(key, new HazelcastJsonValue(gson.toJson(data)));
-        return true;
+        if (key == null) return false;
+        return map.replace(key, format.toValue(data)) != null;
     }
 
     @Override
@@ -94,13 +330,66 @@ public class HazelcastDataStorage implements TwoPCDataStorage {
         return map.remove(id) != null;
     }
 
+    /**
+     * Joins the JSON documents of the stored values into an array; JSON values are copied without parsing
+     */
     @Override
     public String readAll() {
-        return gson.toJson(
-                map.values().stream()
-                        .map(val -> gson.fromJson(val.toString(), Object.class))
-                        .collect(Collectors.toList())
-        );
+        StringBuilder json = new StringBuilder("[");
+        for (Object value : values()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(HazelcastValueFormat.toJson(value));
+        }
+        return json.append(']').toString();
+    }
+
+    @Override
+    public void writeAll(OutputStream out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Object value : values()) {
+            if (!first) {
+                out.write(',');
+            }
+            out.write(HazelcastValueFormat.toJson(value).getBytes(StandardCharsets.UTF_8));
+            first = false;
+        }
+        out.write(']');
+    }
+
+    /**
+     * All stored values. With the near cache only the keys come from the cluster, the values of cached
+     * entries are read locally and the others fetched with one getAll.
+     */
+    private Collection<Object> values() {
+        return nearCached ? map.getAll(map.keySet()).values() : map.values();
+    }
+
+    /**
+     * Aggregates on the members in one pass with {@link SensorStatsAggregator}, so only one result per
+     * sensor is sent; one sensor is selected by a predicate in the same pass. Members that do not have
+     * the aggregator project each entry to its sensor id and temperature, which are aggregated here.
+     */
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        Predicate<String, Object> sensor = sensorId == null ? Predicates.alwaysTrue() : Predicates.equal("sensorId", sensorId);
+        if (!aggregatorMissing) {
+            try {
+                return SensorStats.of(map.aggregate(new SensorStatsAggregator(), sensor));
+            } catch (HazelcastSerializationException e) {
+                aggregatorMissing = true;
+                Log.warn("The Hazelcast members cannot load SensorStatsAggregator, stats are aggregated by the client: {}",
+                        e.getMessage());
+            }
+        }
+        SensorStats.Accumulator stats = new SensorStats.Accumulator(sensorId);
+        for (Object[] entry : map.project(Projections.<Map.Entry<String, Object>>multiAttribute("sensorId", "temperature"), sensor)) {
+            if (entry[0] == null || entry[1] == null) continue;
+            stats.add(((Number) entry[0]).intValue(), ((Number) entry[1]).doubleValue());
+        }
+        return stats.result();
     }
 
     @Override
@@ -115,104 +404,525 @@ public class HazelcastDataStorage implements TwoPCDataStorage {
     // 2PC Protocol Implementation
     @Override
     public boolean prepare(String transactionId, String operation, SensorData data) {
+        List<String> locked = new ArrayList<>();
+        Set<String> held = Collections.emptySet();
         try {
-            HazelcastJsonValue originalValue = null;
-            String key = data.getId();
-            
-            // Validate the operation can be performed
-            switch (operation) {
-                case "CREATE":
-                    if (key == null || key.isEmpty()) {
-                        key = "sensor-" + data.getSensorId() + "-" + System.currentTimeMillis();
-                        data = SensorData.builder()
-                                .id(key)
-                                .sensorId(data.getSensorId())
-                                .temperature(data.getTemperature())
-                                .build();
-                    }
-                    if (map.containsKey(key)) {
-                        return false; // Key already exists
-                    }
-                    break;
-                    
-                case "UPDATE":
-                    if (key == null || !map.containsKey(key)) {
-                        return false; // Key doesn't exist
-                    }
-                    originalValue = map.get(key);
-                    break;
-                    
-                case "DELETE":
-                    if (key == null || !map.containsKey(key)) {
-                        return false; // Key doesn't exist
-                    }
-                    originalValue = map.get(key);
-                    break;
-                    
-                default:
-                    return false; // Unknown operation
+            TransactionData txData = prepareLocked(transactionId, operation, data, lockDeadline(), locked);
+            if (txData == null) {
+                return false;
             }
             
             // Store transaction data for commit/abort
-            preparedTransactions.put(transactionId, new TransactionData(operation, data, originalValue));
-            System.out.println("Hazelcast prepared transaction: " + transactionId + " for operation: " + operation);
+            if (!hold(transactionId, txData)) {
+                return false;
+            }
+            held = lockedKeys(txData);
+            Log.debug("Hazelcast prepared transaction: {} for operation: {}", transactionId, operation);
             return true;
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception e) {
-            System.err.println("Error preparing Hazelcast transaction: " + e.getMessage());
+            Log.warn("Error preparing Hazelcast transaction: {}", e.getMessage());
             return false;
+        } finally {
+            unlockRejected(transactionId, locked, held);
+        }
+    }
+    
+    private static long lockDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_MS);
+    }
+    
+    /**
+     * Locks the entry an update or delete changes, so that no other transaction changes it until the
+     * outcome, then validates the operation
+     * @param locked collects the keys locked for the transaction
+     * @return the data to apply on commit, or null if the operation cannot be performed
+     */
+    private TransactionData prepareLocked(String transactionId, String operation, SensorData data,
+                                          long lockDeadline, List<String> locked) throws InterruptedException {
+        if (!lockEntry(transactionId, operation, data, lockDeadline, locked)) {
+            return null;
+        }
+        return prepareOperation(operation, data);
+    }
+    
+    /**
+     * Locks the entry of an update or delete; other operations need no lock
+     * @return false if the entry stayed locked by another transaction until the deadline
+     */
+    private boolean lockEntry(String transactionId, String operation, SensorData data,
+                              long lockDeadline, List<String> locked) throws InterruptedException {
+        String key = "UPDATE".equals(operation) || "DELETE".equals(operation) ? data.getId() : null;
+        if (key == null) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean acquired = locks.lock(key, transactionId, lockDeadline - start, TimeUnit.NANOSECONDS);
+        lockWait.record(System.nanoTime() - start);
+        if (!acquired) {
+            lockTimeouts.increment();
+            Log.debug("Hazelcast entry {} is locked by another transaction", key);
+            return false;
+        }
+        locked.add(key);
+        return true;
+    }
+    
+    /**
+     * Releases the locks of operations that were not prepared, the others are released with the outcome
+     */
+    private void unlockRejected(String transactionId, List<String> locked, Set<String> held) {
+        for (String key : locked) {
+            if (!held.contains(key)) {
+                locks.unlock(key, transactionId);
+            }
+        }
+    }
+    
+    /**
+     * The entries a prepared transaction keeps locked until its outcome
+     */
+    private static Set<String> lockedKeys(TransactionData txData) {
+        Set<String> keys = new HashSet<>();
+        addLockedKeys(txData, keys);
+        return keys;
+    }
+    
+    private static void addLockedKeys(TransactionData txData, Set<String> keys) {
+        switch (txData.operation) {
+            case "UPDATE":
+            case "DELETE":
+                keys.add(txData.data.getId());
+                break;
+            case "GROUP":
+                for (TransactionData operation : txData.group) {
+                    addLockedKeys(operation, keys);
+                }
+                break;
+            default:
+                break;
         }
     }
     
+    /**
+     * Validates that the operation can be performed, with one read of its entry
+     * @return the data to apply on commit, or null if the operation cannot be performed
+     */
+    private TransactionData prepareOperation(String operation, SensorData data) {
+        String key = keyToCheck(data);
+        return validate(operation, data, key == null ? null : map.get(key));
+    }
+    
+    /**
+     * The entry a prepare has to read, or null if the operation needs none
+     */
+    private static String keyToCheck(SensorData data) {
+        String key = data.getId();
+        return key == null || key.isEmpty() ? null : key;
+    }
+    
+    /**
+     * Validates the operation against the current value of its entry
+     * @param current value of the entry, null if there is none
+     * @return the data to apply on commit, or null if the operation cannot be performed
+     */
+    private static TransactionData validate(String operation, SensorData data, Object current) {
+        String key = data.getId();
+        
+        switch (operation) {
+            case "CREATE":
+                if (key == null || key.isEmpty()) {
+                    // A time based key would repeat when a group creates several readings of a sensor at once;
+                    // a new UUID needs no check
+                    key = UUID.randomUUID().toString();
+                    data = SensorData.builder()
+                            .id(key)
+                            .sensorId(data.getSensorId())
+                            .temperature(data.getTemperature())
+                            .build();
+                } else if (current != null) {
+                    return null; // Key already exists
+                }
+                return new TransactionData(operation, data, null);
+                
+            case "UPDATE":
+            case "DELETE":
+                if (key == null || current == null) {
+                    return null; // Key doesn't exist
+                }
+                return new TransactionData(operation, data, current);
+                
+            default:
+                return null; // Unknown operation
+        }
+    }
+    
+    /**
+     * Reads the entries with getAsync, up to {@link #PIPELINE_DEPTH} at a time, instead of waiting for
+     * each one before sending the next
+     * @param keys keys to read, null entries are skipped
+     * @return the values in the order of the keys, null where there is no entry
+     */
+    private List<Object> readPipelined(List<String> keys) throws Exception {
+        Pipelining<Object> pipelining = new Pipelining<>(PIPELINE_DEPTH);
+        for (String key : keys) {
+            pipelining.add(key == null ? CompletableFuture.completedFuture(null) : map.getAsync(key));
+        }
+        return pipelining.results();
+    }
+    
+    @Override
+    public boolean prepareAll(String transactionId, List<SensorData> data) {
+        try {
+            TransactionData txData = prepareBatch(data);
+            if (txData == null) {
+                return false;
+            }
+            if (!hold(transactionId, txData)) {
+                return false;
+            }
+            Log.debug("Hazelcast prepared transaction: {} for {} entries", transactionId, data.size());
+            return true;
+        } catch (Exception e) {
+            Log.warn("Error preparing Hazelcast transaction: {}", e.getMessage());
+            return false;
+        }
+    }
+    
+    private TransactionData prepareBatch(List<SensorData> data) throws Exception {
+        List<String> keys = new ArrayList<>(data.size());
+        for (SensorData entry : data) {
+            keys.add(keyToCheck(entry));
+        }
+        for (Object current : readPipelined(keys)) {
+            if (current != null) {
+                return null; // Key already exists
+            }
+        }
+        return new TransactionData(TwoPCCoordinator.BATCH_CREATE, null, null, toEntries(data), null);
+    }
+    
+    @Override
+    public boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+        boolean[] prepared = new boolean[operations.size()];
+        List<TransactionData> group = new ArrayList<>(operations.size());
+        List<String> locked = new ArrayList<>();
+        Set<String> held = Collections.emptySet();
+        long lockDeadline = lockDeadline();
+        try {
+            // Lock first, then read the entries of all operations at once rather than one after another
+            boolean[] lockedOperation = new boolean[prepared.length];
+            List<String> keys = new ArrayList<>(prepared.length);
+            for (int i = 0; i < prepared.length; i++) {
+                TwoPCCoordinator.TransactionRequest operation = operations.get(i);
+                boolean batch = TwoPCCoordinator.BATCH_CREATE.equals(operation.getOperation());
+                lockedOperation[i] = batch
+                        || lockEntry(transactionId, operation.getOperation(), operation.getData(), lockDeadline, locked);
+                keys.add(batch || !lockedOperation[i] ? null : keyToCheck(operation.getData()));
+            }
+            List<Object> current = readPipelined(keys);
+            for (int i = 0; i < prepared.length; i++) {
+                if (!lockedOperation[i]) continue;
+                TwoPCCoordinator.TransactionRequest operation = operations.get(i);
+                TransactionData txData = TwoPCCoordinator.BATCH_CREATE.equals(operation.getOperation())
+                        ? prepareBatch(operation.getBatch())
+                        : validate(operation.getOperation(), operation.getData(), current.get(i));
+                if (txData != null) {
+                    group.add(txData);
+                    prepared[i] = true;
+                }
+            }
+            TransactionData txData = new TransactionData("GROUP", null, null, null, group);
+            if (!hold(transactionId, txData)) {
+                return new boolean[operations.size()];
+            }
+            held = lockedKeys(txData);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new boolean[operations.size()];
+        } catch (Exception e) {
+            Log.warn("Error preparing Hazelcast transaction: {}", e.getMessage());
+            return new boolean[operations.size()];
+        } finally {
+            unlockRejected(transactionId, locked, held);
+        }
+        Log.debug("Hazelcast prepared transaction: {} for {} operations", transactionId, group.size());
+        return prepared;
+    }
+    
     @Override
     public boolean commit(String transactionId) {
-        TransactionData txData = preparedTransactions.remove(transactionId);
-        if (txData == null) {
-            System.err.println("No prepared transaction found for ID: " + transactionId);
+        TransactionData txData = preparedTransactions.get(transactionId);
+        if (txData == null && expiredIds.contains(transactionId)) {
+            Log.error("Commit of Hazelcast transaction {} arrived after it expired, it was aborted here", transactionId);
+            return false;
+        }
+        if (txData == null || !txData.finished.compareAndSet(false, true)) {
+            Log.warn("No prepared transaction found for ID: {}", transactionId);
             return false;
         }
         
+        boolean committed;
         try {
-            String key = txData.data.getId();
-            
+            committed = "GROUP".equals(txData.operation) ? commitGroup(txData.group) : apply(txData);
+        } catch (Exception e) {
+            // Stays prepared and locked, the coordinator sends the commit again on its recovery
+            txData.finished.set(false);
+            Log.warn("Error committing Hazelcast transaction {}: {}", transactionId, e.getMessage());
+            return false;
+        }
+        // Released only after the writes, a crash before leaves it prepared for the recovery
+        preparedTransactions.remove(transactionId);
+        release(transactionId, txData, TransactionLog.COMMIT);
+        return committed;
+    }
+    
+    /**
+     * Writes all creates and updates of a group with one setAll and sends the deletes alongside, so that
+     * the commit waits for the requests together instead of one after another; the operations of a group
+     * touch different keys, so their order does not matter
+     */
+    private boolean commitGroup(List<TransactionData> group) throws Exception {
+        Map<String, Object> puts = new HashMap<>();
+        Pipelining<Void> pipelining = new Pipelining<>(PIPELINE_DEPTH);
+        for (TransactionData txData : group) {
             switch (txData.operation) {
                 case "CREATE":
-                    map.put(key, new HazelcastJsonValue(gson.toJson(txData.data)));
-                    System.out.println("Hazelcast committed CREATE for key: " + key);
-                    break;
-                    
                 case "UPDATE":
-                    map.put(key, new HazelcastJsonValue(gson.toJson(txData.data)));
-                    System.out.println("Hazelcast committed UPDATE for key: " + key);
+                    puts.put(txData.data.getId(), format.toValue(txData.data));
+                    break;
+                case TwoPCCoordinator.BATCH_CREATE:
+                    puts.putAll(txData.batch);
                     break;
-                    
                 case "DELETE":
-                    map.remove(key);
-                    System.out.println("Hazelcast committed DELETE for key: " + key);
+                    pipelining.add(map.deleteAsync(txData.data.getId()).thenApply(deleted -> null));
                     break;
-                    
                 default:
-                    return false;
+                    break;
             }
-            
+        }
+        if (!puts.isEmpty()) {
+            pipelining.add(map.setAllAsync(puts));
+        }
+        pipelining.results();
+        Log.debug("Hazelcast committed group of {} operations", group.size());
+        return true;
+    }
+    
+    private boolean apply(TransactionData txData) {
+        if (TwoPCCoordinator.BATCH_CREATE.equals(txData.operation)) {
+            map.setAll(txData.batch);
+            Log.debug("Hazelcast committed BATCH_CREATE of {} entries", txData.batch.size());
             return true;
-            
-        } catch (Exception e) {
-            System.err.println("Error committing Hazelcast transaction: " + e.getMessage());
-            return false;
         }
+        String key = txData.data.getId();
+        
+        switch (txData.operation) {
+            case "CREATE":
+                map.set(key, format.toValue(txData.data));
+                Log.debug("Hazelcast committed CREATE for key: {}", key);
+                break;
+                
+            case "UPDATE":
+                map.set(key, format.toValue(txData.data));
+                Log.debug("Hazelcast committed UPDATE for key: {}", key);
+                break;
+                
+            case "DELETE":
+                map.delete(key);
+                Log.debug("Hazelcast committed DELETE for key: {}", key);
+                break;
+                
+            default:
+                return false;
+        }
+        
+        return true;
     }
     
     @Override
     public boolean abort(String transactionId) {
-        TransactionData txData = preparedTransactions.remove(transactionId);
-        if (txData == null) {
-            System.err.println("No prepared transaction found for ID: " + transactionId);
+        TransactionData txData = preparedTransactions.get(transactionId);
+        if (txData == null || !txData.finished.compareAndSet(false, true)) {
+            Log.warn("No prepared transaction found for ID: {}", transactionId);
             return false;
         }
         
-        System.out.println("Hazelcast aborted transaction: " + transactionId);
+        preparedTransactions.remove(transactionId);
+        release(transactionId, txData, TransactionLog.ABORT);
+        Log.debug("Hazelcast aborted transaction: {}", transactionId);
         // No actual rollback needed since we didn't change anything yet
         return true;
     }
+    
+    @Override
+    public List<String> inDoubtTransactions() {
+        return new ArrayList<>(preparedTransactions.keySet());
+    }
+    
+    @Override
+    public List<String> expiredTransactions() {
+        return new ArrayList<>(expiredIds);
+    }
+    
+    /**
+     * Keeps the prepared transaction until commit or abort. With a prepare log it is on disk before
+     * the prepare is acknowledged.
+     * @return false if it could not be logged, then it is not prepared
+     */
+    private boolean hold(String transactionId, TransactionData txData) {
+        // Added first, so that a compaction of the log running meanwhile keeps the record
+        preparedTransactions.put(transactionId, txData);
+        if (prepareLog == null) return true;
+        try {
+            prepareLog.append(TransactionLog.PREPARE, transactionId, serialize(txData));
+            return true;
+        } catch (IOException e) {
+            preparedTransactions.remove(transactionId);
+            Log.warn("Could not log the prepare of transaction {}: {}", transactionId, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Unlocks the entries of an ended transaction and logs its outcome
+     */
+    private void release(String transactionId, TransactionData txData, byte outcome) {
+        locks.unlockAll(lockedKeys(txData), transactionId);
+        if (prepareLog == null) return;
+        try {
+            prepareLog.appendLazily(outcome, transactionId, new byte[0]);
+        } catch (IOException e) {
+            Log.warn("Could not log the outcome of transaction {}: {}", transactionId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Aborts the prepared transactions whose coordinator did not send an outcome in time, so that their
+     * entries do not stay locked. Runs on the reaper thread. The id is remembered before the transaction
+     * is removed, so a recovery that lists the in-doubt transactions first sees it in one of both lists.
+     */
+    private void expirePrepared() {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            TransactionData txData = prepared.getValue();
+            if (now - txData.preparedAt < prepareTimeoutNanos || !txData.finished.compareAndSet(false, true)) {
+                continue;
+            }
+            expiredIds.add(prepared.getKey());
+            preparedTransactions.remove(prepared.getKey());
+            release(prepared.getKey(), txData, TransactionLog.ABORT);
+            expiredCount.increment();
+            expired++;
+        }
+        if (expired > 0) {
+            Log.warn("Hazelcast aborted {} prepared transaction(s) without outcome after the prepare timeout", expired);
+        }
+    }
+    
+    /**
+     * Restores the transactions that were prepared but had no outcome when the log was last written,
+     * with their entries locked again
+     */
+    private void replay(List<TransactionLog.Entry> entries) throws IOException {
+        for (TransactionLog.Entry entry : entries) {
+            if (entry.getType() == TransactionLog.PREPARE) {
+                preparedTransactions.put(entry.getTransactionId(), deserialize(entry.getPayload()));
+            } else {
+                preparedTransactions.remove(entry.getTransactionId());
+            }
+        }
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            for (String key : lockedKeys(prepared.getValue())) {
+                try {
+                    locks.lock(key, prepared.getKey(), 0, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Cannot happen, free locks are taken without waiting
+                }
+            }
+        }
+        if (!preparedTransactions.isEmpty()) {
+            Log.info("Hazelcast holds {} prepared transaction(s) from before the restart", preparedTransactions.size());
+        }
+    }
+    
+    private Collection<TransactionLog.Entry> openPrepares() {
+        List<TransactionLog.Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            entries.add(new TransactionLog.Entry(TransactionLog.PREPARE, prepared.getKey(), serialize(prepared.getValue())));
+        }
+        return entries;
+    }
+    
+    private byte[] serialize(TransactionData txData) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(new DataOutputStream(bytes), txData);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Writes to memory do not fail
+        }
+    }
+    
+    private void write(DataOutputStream out, TransactionData txData) throws IOException {
+        out.writeUTF(txData.operation);
+        writeNullable(out, txData.data == null ? null : gson.toJson(txData.data));
+        writeNullable(out, txData.originalValue == null ? null : HazelcastValueFormat.toJson(txData.originalValue));
+        out.writeInt(txData.batch == null ? -1 : txData.batch.size());
+        if (txData.batch != null) {
+            for (Map.Entry<String, Object> entry : txData.batch.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(HazelcastValueFormat.toJson(entry.getValue()));
+            }
+        }
+        out.writeInt(txData.group == null ? -1 : txData.group.size());
+        if (txData.group != null) {
+            for (TransactionData operation : txData.group) {
+                write(out, operation);
+            }
+        }
+    }
+    
+    private TransactionData deserialize(byte[] payload) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+    
+    private TransactionData read(DataInputStream in) throws IOException {
+        String operation = in.readUTF();
+        String data = readNullable(in);
+        String originalValue = readNullable(in);
+        Map<String, Object> batch = null;
+        int batchSize = in.readInt();
+        if (batchSize >= 0) {
+            batch = new LinkedHashMap<>();
+            for (int i = 0; i < batchSize; i++) {
+                batch.put(in.readUTF(), format.fromJson(in.readUTF()));
+            }
+        }
+        List<TransactionData> group = null;
+        int groupSize = in.readInt();
+        if (groupSize >= 0) {
+            group = new ArrayList<>(groupSize);
+            for (int i = 0; i < groupSize; i++) {
+                group.add(read(in));
+            }
+        }
+        return new TransactionData(operation,
+                data == null ? null : gson.fromJson(data, SensorData.class),
+                originalValue == null ? null : format.fromJson(originalValue),
+                batch, group);
+    }
+    
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+    
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
 }
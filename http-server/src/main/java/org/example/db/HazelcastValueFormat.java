@@ -0,0 +1,122 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.core.HazelcastJsonValue;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+import org.example.Log;
+import org.example.SensorData;
+
+import java.util.Locale;
+
+/**
+ * Defines how {@link HazelcastDataStorage} stores a reading in the sensorData map. JSON keeps the
+ * document Gson writes, which the cluster can query but which is the largest format; COMPACT uses
+ * Hazelcast Compact serialization, which stores the fields in binary with the field names in a schema
+ * shared by all entries.
+ *
+ * Values of either format are read back, so the format can be changed without clearing the map.
+ */
+public enum HazelcastValueFormat {
+    JSON {
+        @Override
+        Object toValue(SensorData data) {
+            return new HazelcastJsonValue(gson.toJson(data));
+        }
+
+        @Override
+        Object fromJson(String json) {
+            return new HazelcastJsonValue(json);
+        }
+    },
+    COMPACT {
+        @Override
+        Object toValue(SensorData data) {
+            return data;
+        }
+
+        @Override
+        Object fromJson(String json) {
+            return gson.fromJson(json, SensorData.class);
+        }
+    };
+
+    private static final Gson gson = new Gson();
+
+    public static HazelcastValueFormat fromEnvironment() {
+        String configured = System.getenv("HAZELCAST_VALUE_FORMAT");
+        if (configured == null || configured.isBlank()) {
+            return JSON;
+        }
+        switch (configured.trim().toLowerCase(Locale.ROOT)) {
+            case "json":
+                return JSON;
+            case "compact":
+                return COMPACT;
+            default:
+                Log.warn("⚠️ Unknown HAZELCAST_VALUE_FORMAT {}, using json", configured);
+                return JSON;
+        }
+    }
+
+    /**
+     * The value stored for the reading
+     */
+    abstract Object toValue(SensorData data);
+
+    /**
+     * The value stored for a reading given as the JSON of {@link #toJson(Object)}
+     */
+    abstract Object fromJson(String json);
+
+    /**
+     * Registers what the client needs to serialize the values. Every format registers the Compact
+     * serializer: without it, a client reads Compact values as generic records, not as readings.
+     */
+    void configure(ClientConfig config) {
+        config.getSerializationConfig().getCompactSerializationConfig().addSerializer(new SensorDataSerializer());
+    }
+
+    /**
+     * The JSON document of a stored value of any format
+     */
+    static String toJson(Object value) {
+        return value instanceof HazelcastJsonValue ? value.toString() : gson.toJson(value);
+    }
+
+    /**
+     * Writes SensorData with Compact serialization. Explicit, so that the schema does not depend on
+     * reflection over the fields of the class.
+     */
+    static final class SensorDataSerializer implements CompactSerializer<SensorData> {
+        @Override
+        public SensorData read(CompactReader reader) {
+            return SensorData.builder()
+                    .id(reader.readString("id"))
+                    .sensorId(reader.readInt32("sensorId"))
+                    .temperature(reader.readFloat64("temperature"))
+                    .timestamp(reader.readNullableInt64("timestamp"))
+                    .build();
+        }
+
+        @Override
+        public void write(CompactWriter writer, SensorData data) {
+            writer.writeString("id", data.getId());
+            writer.writeInt32("sensorId", data.getSensorId());
+            writer.writeFloat64("temperature", data.getTemperature());
+            writer.writeNullableInt64("timestamp", data.getTimestamp());
+        }
+
+        @Override
+        public String getTypeName() {
+            return "SensorData";
+        }
+
+        @Override
+        public Class<SensorData> getCompactClass() {
+            return SensorData.class;
+        }
+    }
+}
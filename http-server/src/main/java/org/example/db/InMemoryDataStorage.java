@@ -15,11 +15,26 @@ public class InMemoryDataStorage implements DataStorage {
                 .id(UUID.randomUUID().toString())
                 .sensorId(data.getSensorId())
                 .temperature(data.getTemperature())
+                .timestamp(System.currentTimeMillis())
                 .build();
         entries.add(newData);
         return true;
     }
 
+    @Override
+    public synchronized boolean createAll(List<SensorData> data) {
+        long timestamp = System.currentTimeMillis();
+        for (SensorData entry : data) {
+            entries.add(SensorData.builder()
+                    .id(UUID.randomUUID().toString())
+                    .sensorId(entry.getSensorId())
+                    .temperature(entry.getTemperature())
+                    .timestamp(timestamp)
+                    .build());
+        }
+        return true;
+    }
+
     @Override
     public synchronized String read(String id) {
         for (SensorData data : entries) {
@@ -38,7 +53,12 @@ public class InMemoryDataStorage implements DataStorage {
 
         for (int i = 0; i < entries.size(); i++) {
             if (entries.get(i).getId().equals(data.getId())) {
-                entries.set(i, data);
+                entries.set(i, SensorData.builder()
+                        .id(data.getId())
+                        .sensorId(data.getSensorId())
+                        .temperature(data.getTemperature())
+                        .timestamp(System.currentTimeMillis())
+                        .build());
                 return true;
             }
         }
@@ -53,6 +73,20 @@ public class InMemoryDataStorage implements DataStorage {
         return gson.toJson(entries);
     }
 
+    @Override
+    public synchronized ScanPage scan(ScanQuery query) {
+        return ScanPage.of(entries, query);
+    }
+
+    @Override
+    public synchronized List<SensorStats> stats(Integer sensorId) {
+        SensorStats.Accumulator stats = new SensorStats.Accumulator(sensorId);
+        for (SensorData data : entries) {
+            stats.add(data.getSensorId(), data.getTemperature());
+        }
+        return stats.result();
+    }
+
     @Override
     public synchronized void clear() {
         entries.clear();
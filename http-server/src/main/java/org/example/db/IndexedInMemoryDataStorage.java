@@ -0,0 +1,184 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import org.example.SensorData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory storage with O(1) access by id and no global lock.
+ *
+ * Entries are indexed by id in a {@link ConcurrentHashMap}. A second map ordered by an insertion
+ * sequence number keeps the order of {@link #readAll()}; updates keep the position of an entry like
+ * {@link InMemoryDataStorage} does. Both maps are changed inside the compute call of the id index, so
+ * writers of the same id are serialized by its hash bin while writers of different ids and all readers
+ * run concurrently. {@link #readAll()} is weakly consistent and does not block writers.
+ * A third index per sensor serves {@link #scan(ScanQuery)} for one sensor without visiting the others.
+ */
+public class IndexedInMemoryDataStorage implements DataStorage {
+    private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, SensorData> insertionOrder = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<Integer, ConcurrentSkipListMap<Long, SensorData>> bySensor = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Gson gson = new Gson();
+
+    private static final class Entry {
+        final long sequence;
+        final SensorData data;
+
+        Entry(long sequence, SensorData data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    @Override
+    public boolean create(SensorData data) {
+        // Create a new entry with a generated UUID
+        SensorData newData = SensorData.builder()
+                .id(UUID.randomUUID().toString())
+                .sensorId(data.getSensorId())
+                .temperature(data.getTemperature())
+                .timestamp(System.currentTimeMillis())
+                .build();
+        index.compute(newData.getId(), (id, existing) -> {
+            long position = sequence.incrementAndGet();
+            insertionOrder.put(position, newData);
+            sensorIndex(newData.getSensorId()).put(position, newData);
+            return new Entry(position, newData);
+        });
+        return true;
+    }
+
+    /**
+     * Reserves the sequence numbers of the whole batch at once, so its entries stay together in the
+     * insertion order
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        long timestamp = System.currentTimeMillis();
+        long position = sequence.getAndAdd(data.size());
+        for (SensorData entry : data) {
+            long entryPosition = ++position;
+            SensorData newData = SensorData.builder()
+                    .id(UUID.randomUUID().toString())
+                    .sensorId(entry.getSensorId())
+                    .temperature(entry.getTemperature())
+                    .timestamp(timestamp)
+                    .build();
+            index.compute(newData.getId(), (id, existing) -> {
+                insertionOrder.put(entryPosition, newData);
+                sensorIndex(newData.getSensorId()).put(entryPosition, newData);
+                return new Entry(entryPosition, newData);
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public String read(String id) {
+        Entry entry = id == null ? null : index.get(id);
+        return entry != null ? gson.toJson(entry.data) : null;
+    }
+
+    @Override
+    public boolean update(SensorData data) {
+        if (data.getId() == null || data.getId().isEmpty()) {
+            return false;
+        }
+
+        SensorData newData = SensorData.builder()
+                .id(data.getId())
+                .sensorId(data.getSensorId())
+                .temperature(data.getTemperature())
+                .timestamp(System.currentTimeMillis())
+                .build();
+        Entry updated = index.computeIfPresent(data.getId(), (id, existing) -> {
+            insertionOrder.put(existing.sequence, newData);
+            if (existing.data.getSensorId() != newData.getSensorId()) {
+                sensorIndex(existing.data.getSensorId()).remove(existing.sequence);
+            }
+            sensorIndex(newData.getSensorId()).put(existing.sequence, newData);
+            return new Entry(existing.sequence, newData);
+        });
+        return updated != null;
+    }
+
+    @Override
+    public boolean delete(String id) {
+        if (id == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        index.computeIfPresent(id, (key, existing) -> {
+            insertionOrder.remove(existing.sequence);
+            sensorIndex(existing.data.getSensorId()).remove(existing.sequence);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public String readAll() {
+        return gson.toJson(insertionOrder.values());
+    }
+
+    /**
+     * Walks the insertion order, or the index of the queried sensor; the cursor is the insertion
+     * sequence number of the last entry returned
+     */
+    @Override
+    public ScanPage scan(ScanQuery query) {
+        long after = query.numericCursor();
+        NavigableMap<Long, SensorData> source = query.getSensorId() == null
+                ? insertionOrder
+                : bySensor.getOrDefault(query.getSensorId(), new ConcurrentSkipListMap<>());
+        List<SensorData> page = new ArrayList<>();
+        for (Map.Entry<Long, SensorData> entry : source.tailMap(after, false).entrySet()) {
+            if (page.size() == query.getLimit()) {
+                return new ScanPage(page, Long.toString(after));
+            }
+            if (query.matches(entry.getValue())) {
+                page.add(entry.getValue());
+            }
+            after = entry.getKey();
+        }
+        return new ScanPage(page, null);
+    }
+
+    /**
+     * Visits only the index of the queried sensor
+     */
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        Iterable<SensorData> source = sensorId == null
+                ? insertionOrder.values()
+                : bySensor.getOrDefault(sensorId, new ConcurrentSkipListMap<>()).values();
+        SensorStats.Accumulator stats = new SensorStats.Accumulator(sensorId);
+        for (SensorData data : source) {
+            stats.add(data.getSensorId(), data.getTemperature());
+        }
+        return stats.result();
+    }
+
+    @Override
+    public void clear() {
+        // Removing entry by entry keeps both maps consistent with concurrent writers
+        for (String id : index.keySet()) {
+            delete(id);
+        }
+    }
+
+    private ConcurrentSkipListMap<Long, SensorData> sensorIndex(int sensorId) {
+        return bySensor.computeIfAbsent(sensorId, id -> new ConcurrentSkipListMap<>());
+    }
+}
@@ -6,9 +6,12 @@ import com.hazelcast.core.HazelcastJsonValue;
 import com.hazelcast.transaction.TransactionContext;
 import com.hazelcast.transaction.TransactionOptions;
 import com.hazelcast.transaction.TransactionalMap;
+import org.example.Log;
 import org.example.SensorData;
 
+import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
 
 public class RedundantDataStorage implements DataStorage {
 
@@ -47,7 +50,44 @@ public class RedundantDataStorage implements DataStorage {
             return true;
         } catch (Exception e) {
             context.rollbackTransaction();
-            System.err.println("❌ Fehler beim 2PC-Speichern: " + e.getMessage());
+            Log.warn("❌ Fehler beim 2PC-Speichern: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the batch to the primary storage and to Hazelcast in one transaction
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        TransactionOptions options = new TransactionOptions()
+                .setTransactionType(TransactionOptions.TransactionType.TWO_PHASE);
+
+        TransactionContext context = hazelcast.newTransactionContext(options);
+        context.beginTransaction();
+
+        try {
+            boolean primarySuccess = primary.createAll(data);
+            if (!primarySuccess) {
+                context.rollbackTransaction();
+                return false;
+            }
+
+            TransactionalMap<String, HazelcastJsonValue> txMap = context.getMap("sensorData");
+            for (SensorData entry : data) {
+                String key = entry.getId();
+                if (key == null || key.isEmpty()) {
+                    // The key used by create would repeat within a batch
+                    key = UUID.randomUUID().toString();
+                }
+                txMap.set(key, new HazelcastJsonValue(gson.toJson(entry)));
+            }
+
+            context.commitTransaction();
+            return true;
+        } catch (Exception e) {
+            context.rollbackTransaction();
+            Log.warn("❌ Fehler beim Batch-Speichern: {}", e.getMessage());
             return false;
         }
     }
@@ -74,7 +114,7 @@ public class RedundantDataStorage implements DataStorage {
             return true;
         } catch (Exception e) {
             context.rollbackTransaction();
-            System.err.println("❌ Fehler beim Update (Hazelcast): " + e.getMessage());
+            Log.warn("❌ Fehler beim Update (Hazelcast): {}", e.getMessage());
             return false;
         }
     }
@@ -96,7 +136,7 @@ public class RedundantDataStorage implements DataStorage {
             return true;
         } catch (Exception e) {
             context.rollbackTransaction();
-            System.err.println("❌ Fehler beim Delete (Hazelcast): " + e.getMessage());
+            Log.warn("❌ Fehler beim Delete (Hazelcast): {}", e.getMessage());
             return false;
         }
     }
@@ -106,6 +146,11 @@ public class RedundantDataStorage implements DataStorage {
         return primary.readAll();
     }
 
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        return primary.stats(sensorId);
+    }
+
     @Override
     public void clear() {
         primary.clear();
@@ -0,0 +1,40 @@
+package org.example.db;
+
+import org.example.SensorData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a {@link DataStorage#scan(ScanQuery)}
+ */
+public final class ScanPage {
+    private final List<SensorData> entries;
+    private final String nextCursor;
+
+    /**
+     * @param nextCursor cursor to request the following page, or null if there are no more entries
+     */
+    public ScanPage(List<SensorData> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<SensorData> getEntries() { return entries; }
+    public String getNextCursor() { return nextCursor; }
+
+    /**
+     * Pages through a list in insertion order; the cursor is the index of the next entry to look at
+     */
+    static ScanPage of(List<SensorData> all, ScanQuery query) {
+        List<SensorData> page = new ArrayList<>();
+        int position = (int) Math.min(query.numericCursor(), all.size());
+        while (position < all.size() && page.size() < query.getLimit()) {
+            SensorData data = all.get(position++);
+            if (query.matches(data)) {
+                page.add(data);
+            }
+        }
+        return new ScanPage(page, position < all.size() ? Integer.toString(position) : null);
+    }
+}
@@ -0,0 +1,63 @@
+package org.example.db;
+
+import org.example.SensorData;
+
+/**
+ * Selects a page of entries for {@link DataStorage#scan(ScanQuery)}: entries of one sensor and/or
+ * written since a point in time, in insertion order, starting after a cursor.
+ */
+public final class ScanQuery {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private final Integer sensorId;
+    private final Long since;
+    private final int limit;
+    private final String cursor;
+
+    /**
+     * @param sensorId only entries of this sensor, or null for all
+     * @param since only entries written at or after this time in milliseconds since the epoch, or null for all
+     * @param limit maximum number of entries, capped at {@link #MAX_LIMIT}; {@link #DEFAULT_LIMIT} if not positive
+     * @param cursor next cursor of a previous page to continue after it, or null to start at the beginning
+     */
+    public ScanQuery(Integer sensorId, Long since, int limit, String cursor) {
+        this.sensorId = sensorId;
+        this.since = since;
+        this.limit = limit <= 0 ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+        this.cursor = cursor == null || cursor.isEmpty() ? null : cursor;
+    }
+
+    public Integer getSensorId() { return sensorId; }
+    public Long getSince() { return since; }
+    public int getLimit() { return limit; }
+    public String getCursor() { return cursor; }
+
+    /**
+     * Whether the entry passes the sensor and time filters
+     */
+    public boolean matches(SensorData data) {
+        return matches(data.getSensorId(), data.getTimestamp());
+    }
+
+    public boolean matches(int sensorId, Long timestamp) {
+        if (this.sensorId != null && this.sensorId != sensorId) return false;
+        return since == null || (timestamp != null && timestamp >= since);
+    }
+
+    /**
+     * Parses a numeric cursor produced by the storage
+     * @return the cursor, or 0 if the scan starts at the beginning
+     * @throws IllegalArgumentException if the cursor is not a non-negative number
+     */
+    long numericCursor() {
+        if (cursor == null) return 0;
+        try {
+            long position = Long.parseLong(cursor);
+            if (position >= 0) return position;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Count, minimum, maximum and average temperature of the readings of one sensor, the result of
+ * {@link DataStorage#stats(Integer)}. Serialized by Gson as it is.
+ */
+public final class SensorStats {
+    private final int sensorId;
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double avg;
+
+    /**
+     * @param sum sum of the temperatures, the average is computed from it
+     */
+    public SensorStats(int sensorId, long count, double min, double max, double sum) {
+        this.sensorId = sensorId;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.avg = count == 0 ? 0 : sum / count;
+    }
+
+    public int getSensorId() { return sensorId; }
+    public long getCount() { return count; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+    public double getAvg() { return avg; }
+
+    /**
+     * The statistics in sensor id order
+     * @param bySensor count, minimum, maximum and sum of the temperatures by sensor id
+     */
+    static List<SensorStats> of(Map<Integer, double[]> bySensor) {
+        List<SensorStats> result = new ArrayList<>(bySensor.size());
+        for (Map.Entry<Integer, double[]> entry : new TreeMap<>(bySensor).entrySet()) {
+            double[] stats = entry.getValue();
+            result.add(new SensorStats(entry.getKey(), (long) stats[0], stats[1], stats[2], stats[3]));
+        }
+        return result;
+    }
+
+    /**
+     * Collects readings of any sensors in one pass, for storages that aggregate in this process
+     */
+    static final class Accumulator {
+        private final Integer sensorId;
+        private final Map<Integer, double[]> bySensor = new TreeMap<>(); // count, min, max, sum
+
+        /**
+         * @param sensorId the only sensor whose readings are counted, or null for all
+         */
+        Accumulator(Integer sensorId) {
+            this.sensorId = sensorId;
+        }
+
+        void add(int sensorId, double temperature) {
+            if (this.sensorId != null && this.sensorId != sensorId) return;
+            double[] stats = bySensor.get(sensorId);
+            if (stats == null) {
+                bySensor.put(sensorId, new double[]{1, temperature, temperature, temperature});
+                return;
+            }
+            stats[0]++;
+            stats[1] = Math.min(stats[1], temperature);
+            stats[2] = Math.max(stats[2], temperature);
+            stats[3] += temperature;
+        }
+
+        /**
+         * The statistics in sensor id order
+         */
+        List<SensorStats> result() {
+            return of(bySensor);
+        }
+    }
+}
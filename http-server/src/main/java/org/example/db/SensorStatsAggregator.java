@@ -0,0 +1,57 @@
+package org.example.db;
+
+import com.hazelcast.aggregation.Aggregator;
+import com.hazelcast.query.impl.Extractable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Count, minimum, maximum and sum of the temperatures per sensor, computed in one pass over the entries
+ * of the sensorData map on the members, so only one result per sensor is sent to the client.
+ *
+ * The members do not have the other classes of this application: this class is put on their classpath,
+ * or {@link HazelcastDataStorage} deploys it with the user code deployment of the client. It therefore
+ * only uses JDK and Hazelcast classes, and reads the attributes the way the built-in aggregators do,
+ * which works on JSON and Compact values without deserializing them.
+ */
+public final class SensorStatsAggregator implements Aggregator<Map.Entry<String, Object>, Map<Integer, double[]>> {
+    private static final long serialVersionUID = 1L;
+
+    private final HashMap<Integer, double[]> bySensor = new HashMap<>(); // count, min, max, sum
+
+    @Override
+    public void accumulate(Map.Entry<String, Object> entry) {
+        // The members pass queryable entries
+        Extractable attributes = (Extractable) entry;
+        Object sensorId = attributes.getAttributeValue("sensorId");
+        Object temperature = attributes.getAttributeValue("temperature");
+        if (sensorId == null || temperature == null) return;
+        double value = ((Number) temperature).doubleValue();
+        add(((Number) sensorId).intValue(), new double[]{1, value, value, value});
+    }
+
+    @Override
+    public void combine(Aggregator aggregator) {
+        for (Map.Entry<Integer, double[]> sensor : ((SensorStatsAggregator) aggregator).bySensor.entrySet()) {
+            add(sensor.getKey(), sensor.getValue());
+        }
+    }
+
+    private void add(int sensorId, double[] stats) {
+        double[] current = bySensor.putIfAbsent(sensorId, stats);
+        if (current == null) return;
+        current[0] += stats[0];
+        current[1] = Math.min(current[1], stats[1]);
+        current[2] = Math.max(current[2], stats[2]);
+        current[3] += stats[3];
+    }
+
+    /**
+     * @return count, minimum, maximum and sum of the temperatures by sensor id
+     */
+    @Override
+    public Map<Integer, double[]> aggregate() {
+        return bySensor;
+    }
+}
@@ -0,0 +1,346 @@
+package org.example.db;
+
+import org.example.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of 2PC records: prepares of a participant, decisions of the coordinator.
+ *
+ * Records are written by one flusher thread. Callers of {@link #append} wait until their record is on
+ * disk; all records that arrive while the flusher writes are written and fsynced together with the
+ * next write (group fsync), so one fsync serves many transactions. Records of {@link #appendLazily}
+ * are not waited for and go to disk with the next fsync.
+ *
+ * Every record is [length][crc32][type][transaction id][payload]. On open the log is read up to the
+ * first incomplete or damaged record, which is what a crash in the middle of a write leaves behind,
+ * and cut off there. When the file grows beyond its limit, the flusher replaces it by the records of
+ * the transactions that are still open, taken from the live record supplier.
+ */
+public final class TransactionLog implements Closeable {
+    public static final byte PREPARE = 1;
+    public static final byte COMMIT = 2;
+    public static final byte ABORT = 3;
+    public static final byte END = 4;
+
+    static final long DEFAULT_COMPACTION_BYTES = 64L * 1024 * 1024;
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * A record of the log
+     */
+    public static final class Entry {
+        private final byte type;
+        private final String transactionId;
+        private final byte[] payload;
+
+        public Entry(byte type, String transactionId, byte[] payload) {
+            this.type = type;
+            this.transactionId = transactionId;
+            this.payload = payload;
+        }
+
+        public byte getType() { return type; }
+        public String getTransactionId() { return transactionId; }
+        public byte[] getPayload() { return payload; }
+    }
+
+    private final Path file;
+    private final Supplier<Collection<Entry>> liveEntries;
+    private final long compactionBytes;
+    private final List<Entry> recovered;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final Thread flusher;
+    private FileChannel channel;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appended;
+    private long waitedFor;
+    private long durable;
+    private long flushes;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Opens the log, creating it if needed, and reads its records
+     * @param liveEntries the records of the transactions that are still open, to compact the log with
+     */
+    public TransactionLog(Path file, Supplier<Collection<Entry>> liveEntries) throws IOException {
+        this(file, liveEntries, DEFAULT_COMPACTION_BYTES);
+    }
+
+    TransactionLog(Path file, Supplier<Collection<Entry>> liveEntries, long compactionBytes) throws IOException {
+        this.file = file;
+        this.liveEntries = liveEntries;
+        this.compactionBytes = compactionBytes;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.recovered = Collections.unmodifiableList(read());
+        this.flusher = new Thread(this::flushLoop, "transaction-log-" + file.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * The records found when the log was opened, in the order they were written
+     */
+    public List<Entry> recoveredEntries() {
+        return recovered;
+    }
+
+    /**
+     * Appends a record and waits until it is on disk
+     */
+    public void append(byte type, String transactionId, byte[] payload) throws IOException {
+        long sequence = enqueue(type, transactionId, payload, true);
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (failure != null) throw new IOException("Transaction log write failed", failure);
+                if (closed) throw new IOException("Transaction log is closed");
+                flushed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the transaction log");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record that goes to disk with the next fsync. For records whose loss only means that
+     * recovery checks a transaction once more, like the outcome of a commit.
+     */
+    public void appendLazily(byte type, String transactionId, byte[] payload) throws IOException {
+        enqueue(type, transactionId, payload, false);
+    }
+
+    private long enqueue(byte type, String transactionId, byte[] payload, boolean waitFor) throws IOException {
+        byte[] record = encode(type, transactionId, payload);
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Transaction log is closed");
+            if (failure != null) throw new IOException("Transaction log write failed", failure);
+            buffer.write(record, 0, record.length);
+            appended++;
+            if (waitFor) {
+                waitedFor = appended;
+                pending.signal();
+            }
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of fsyncs so far
+     */
+    long flushes() {
+        lock.lock();
+        try {
+            return flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] records;
+            long sequence;
+            lock.lock();
+            try {
+                // After a failed write nothing is written anymore, appends fail from then on
+                while ((waitedFor <= durable || failure != null) && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (closed && (buffer.size() == 0 || failure != null)) return;
+                records = buffer.toByteArray();
+                buffer = new ByteArrayOutputStream();
+                sequence = appended;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(records);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                Log.error("Could not write the transaction log {}", file, e);
+                error = e;
+            }
+            if (error == null) {
+                compactIfFull();
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = sequence;
+                    flushes++;
+                }
+                flushed.signalAll();
+                if (closed && buffer.size() == 0) return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void compactIfFull() {
+        try {
+            if (channel.size() > compactionBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            // The records are on disk, the log only stays larger
+            Log.warn("Could not compact the transaction log {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the file by the records of the open transactions. Runs on the flusher thread, so no
+     * record is written meanwhile; records appended meanwhile follow in the new file.
+     */
+    private void compact() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".compact");
+        ByteArrayOutputStream live = new ByteArrayOutputStream();
+        int count = 0;
+        for (Entry entry : liveEntries.get()) {
+            byte[] record = encode(entry.getType(), entry.getTransactionId(), entry.getPayload());
+            live.write(record, 0, record.length);
+            count++;
+        }
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.wrap(live.toByteArray());
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename is only durable once the directory is on disk as well
+        forceDirectory(file.toAbsolutePath().getParent());
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        Log.info("Compacted transaction log {} to {} records", file, count);
+    }
+
+    private static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static byte[] encode(byte type, String transactionId, byte[] payload) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(type);
+            out.writeUTF(transactionId);
+            out.write(payload);
+            byte[] bytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return ByteBuffer.allocate(HEADER_BYTES + bytes.length)
+                    .putInt(bytes.length)
+                    .putInt((int) crc.getValue())
+                    .put(bytes)
+                    .array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writes to memory do not fail
+        }
+    }
+
+    /**
+     * Reads all complete records and cuts off what follows them
+     */
+    private List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 3 || position + HEADER_BYTES + length > size) break;
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            channel.read(body, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+            byte type = in.readByte();
+            String transactionId = in.readUTF();
+            byte[] payload = new byte[in.available()];
+            in.readFully(payload);
+            entries.add(new Entry(type, transactionId, payload));
+            position += HEADER_BYTES + length;
+        }
+        if (position < size) {
+            Log.warn("Transaction log {} ends with an incomplete record, ignoring its last {} bytes", file, size - position);
+            channel.truncate(position);
+        }
+        channel.position(position);
+        return entries;
+    }
+
+    /**
+     * Writes the records still buffered and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
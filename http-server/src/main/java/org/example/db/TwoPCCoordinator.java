@@ -1,52 +1,200 @@
 package org.example.db;
 
+import org.example.LatencyHistogram;
+import org.example.Log;
+import org.example.Metrics;
 import org.example.SensorData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
- * 2-Phase Commit Coordinator that manages transactions across multiple data storage participants
+ * 2-Phase Commit Coordinator that manages transactions across multiple data storage participants.
+ *
+ * Requests are partitioned into lanes by the key they touch: the entry id, or the sensor id for new
+ * entries. Each lane has its own queue and coordinator thread, so requests for one key run in the order
+ * they arrived while requests for other keys commit in parallel on other lanes.
+ *
+ * A lane groups its requests (group commit): it takes up to maxGroupSize queued requests, waiting at most maxGroupWaitMicros for more to arrive, and
+ * prepares them as one transaction with one call per participant. An operation is only committed if
+ * every participant prepared it; if a participant rejects some operations, the transaction is aborted
+ * and prepared again without them. So every caller gets the outcome of its own operation, with the
+ * same guarantees as a transaction of its own. Requests for the same id are never put in one group.
+ *
+ * Each phase is sent to all participants at once, so its latency is that of the slowest participant
+ * rather than the sum. A participant that does not answer within participantTimeoutMillis counts as
+ * failed; prepare gives up on the first failure. Participants that prepared a transaction that is
+ * given up are sent an abort as soon as their prepare returns. Latencies of every phase and of every
+ * participant are recorded in {@link Metrics} as "2pc.[phase]" and "2pc.[phase].[participant]".
+ *
+ * With a decision log, the decision to commit is written to disk before any participant is told to
+ * commit, and an end record once all of them did. Recovery asks every participant which prepared
+ * transactions it holds: those with a logged commit are committed, those that are neither decided nor
+ * running were abandoned, e.g. by a crash, and are aborted (presumed abort). It runs on startup and
+ * then periodically, so participants that were unreachable are resolved once they are back.
+ *
+ * A participant that aborts a prepared transaction on its own after its prepare timeout, because the
+ * commit did not reach it in time, leaves a mixed outcome if the commit was logged (heuristic abort). It
+ * reports such transactions, and recovery logs them as errors and counts them as "2pc.heuristic.aborts"
+ * instead of ending the commit. The window is open whenever a participant is unreachable for longer than
+ * its prepare timeout after it prepared; if it also restarts in that time, it forgets the expiry and the
+ * mixed outcome goes unnoticed.
+ *
+ * Presumed abort assumes that this is the only coordinator of its participants: a prepared transaction
+ * that is not in this coordinator's log or running here is taken as abandoned. A second coordinator
+ * sharing the participants would abort the transactions of the other one while they are in flight, so
+ * the server must run as a single instance when 2PC is used.
  */
 public class TwoPCCoordinator implements DataStorage {
+    static final String BATCH_CREATE = "BATCH_CREATE";
+    public static final int DEFAULT_MAX_GROUP_SIZE = 64;
+    public static final long DEFAULT_MAX_GROUP_WAIT_MICROS = 100;
+    public static final long DEFAULT_PARTICIPANT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_LANES = 4;
+    private static final long RECOVERY_INTERVAL_SECONDS = 30;
+    private static final byte[] NO_PAYLOAD = new byte[0];
     
     private final List<TwoPCDataStorage> participants;
-    private final BlockingQueue<TransactionRequest> requestQueue;
+    private final List<String> participantNames;
+    private final int maxGroupSize;
+    private final long maxGroupWaitNanos;
+    private final long participantTimeoutMillis;
+    private final ExecutorService fanOut = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<BlockingQueue<TransactionRequest>> lanes;
     private final ExecutorService executor;
-    private final Map<String, TransactionRequest> pendingTransactions;
+    private final Set<String> activeTransactions; // Between prepare and outcome, recovery leaves them alone
+    private final TransactionLog decisionLog; // null without a decision log
+    private final Set<String> decided = ConcurrentHashMap.newKeySet(); // Logged commits without end record
+    private final Set<String> unresolved = ConcurrentHashMap.newKeySet(); // Logged commits a participant failed
+    private final Set<String> heuristicAborts = ConcurrentHashMap.newKeySet(); // Logged commits a participant expired
+    private final LongAdder heuristicAbortCount = Metrics.counter("2pc.heuristic.aborts");
+    private final ScheduledExecutorService recovery;
     private volatile boolean running = true;
     
     public static class TransactionRequest {
         private final String transactionId;
         private final String operation;
         private final SensorData data;
+        private final List<SensorData> batch;
         private final CompletableFuture<Boolean> future;
         
         public TransactionRequest(String operation, SensorData data) {
+            this(operation, data, null);
+        }
+        
+        private TransactionRequest(String operation, SensorData data, List<SensorData> batch) {
             this.transactionId = UUID.randomUUID().toString();
             this.operation = operation;
             this.data = data;
+            this.batch = batch;
             this.future = new CompletableFuture<>();
         }
         
+        /**
+         * A transaction that creates all entries of a batch
+         */
+        public static TransactionRequest batchCreate(List<SensorData> batch) {
+            return new TransactionRequest(BATCH_CREATE, null, batch);
+        }
+        
         // Getters
         public String getTransactionId() { return transactionId; }
         public String getOperation() { return operation; }
         public SensorData getData() { return data; }
+        public List<SensorData> getBatch() { return batch; }
         public CompletableFuture<Boolean> getFuture() { return future; }
     }
     
     public TwoPCCoordinator(List<TwoPCDataStorage> participants) {
+        this(participants, DEFAULT_MAX_GROUP_SIZE, DEFAULT_MAX_GROUP_WAIT_MICROS);
+    }
+    
+    /**
+     * @param maxGroupSize requests committed together at most, 1 to run every request in its own transaction
+     * @param maxGroupWaitMicros time to wait for more requests once the queue is drained
+     */
+    public TwoPCCoordinator(List<TwoPCDataStorage> participants, int maxGroupSize, long maxGroupWaitMicros) {
+        this(participants, maxGroupSize, maxGroupWaitMicros, DEFAULT_PARTICIPANT_TIMEOUT_MS);
+    }
+    
+    /**
+     * @param participantTimeoutMillis time a participant has to answer a prepare, commit or abort
+     */
+    public TwoPCCoordinator(List<TwoPCDataStorage> participants, int maxGroupSize, long maxGroupWaitMicros,
+                            long participantTimeoutMillis) {
+        this(participants, maxGroupSize, maxGroupWaitMicros, participantTimeoutMillis, DEFAULT_LANES);
+    }
+    
+    /**
+     * @param lanes queues with a coordinator thread each that requests are partitioned into by key
+     */
+    public TwoPCCoordinator(List<TwoPCDataStorage> participants, int maxGroupSize, long maxGroupWaitMicros,
+                            long participantTimeoutMillis, int lanes) {
+        this(participants, maxGroupSize, maxGroupWaitMicros, participantTimeoutMillis, lanes, null);
+    }
+    
+    /**
+     * @param decisionLog file of the decision log, recovered before the first request is taken; null to
+     *                    keep decisions in memory only
+     * @throws UncheckedIOException if the decision log cannot be opened
+     */
+    public TwoPCCoordinator(List<TwoPCDataStorage> participants, int maxGroupSize, long maxGroupWaitMicros,
+                            long participantTimeoutMillis, int lanes, Path decisionLog) {
+        if (maxGroupSize < 1) {
+            throw new IllegalArgumentException("Group size must be at least 1");
+        }
+        if (lanes < 1) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
         this.participants = new ArrayList<>(participants);
-        this.requestQueue = new LinkedBlockingQueue<>();
-        this.pendingTransactions = new ConcurrentHashMap<>();
-        this.executor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "2PC-Coordinator");
+        this.participantNames = new ArrayList<>();
+        for (int i = 0; i < this.participants.size(); i++) {
+            String name = this.participants.get(i).getClass().getSimpleName();
+            participantNames.add(participantNames.contains(name) ? name + "-" + i : name);
+        }
+        this.maxGroupSize = maxGroupSize;
+        this.maxGroupWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxGroupWaitMicros));
+        this.participantTimeoutMillis = participantTimeoutMillis;
+        this.lanes = new ArrayList<>(lanes);
+        this.activeTransactions = ConcurrentHashMap.newKeySet();
+        if (decisionLog != null) {
+            try {
+                this.decisionLog = new TransactionLog(decisionLog, this::openDecisions);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the 2PC decision log " + decisionLog, e);
+            }
+            recoverFromLog();
+            this.recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "2PC-Recovery");
+                t.setDaemon(true);
+                return t;
+            });
+            recovery.scheduleWithFixedDelay(this::recoverPeriodically,
+                    RECOVERY_INTERVAL_SECONDS, RECOVERY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        } else {
+            this.decisionLog = null;
+            this.recovery = null;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(lanes, r -> {
+            Thread t = new Thread(r, "2PC-Coordinator-" + threadNumber.getAndIncrement());
             t.setDaemon(true);
             return t;
         });
         
-        // Start the transaction processor
-        executor.submit(this::processTransactions);
+        // Start one transaction processor per lane
+        for (int i = 0; i < lanes; i++) {
+            BlockingQueue<TransactionRequest> queue = new LinkedBlockingQueue<>();
+            this.lanes.add(queue);
+            executor.submit(() -> processTransactions(queue));
+        }
     }
     
     @Override
@@ -54,6 +202,15 @@ public class TwoPCCoordinator implements DataStorage {
         return executeTransaction("CREATE", data);
     }
     
+    /**
+     * Creates the whole batch in one transaction, with one prepare and one commit per participant
+     */
+    @Override
+    public boolean createAll(List<SensorData> data) {
+        if (data.isEmpty()) return true;
+        return executeTransaction(TransactionRequest.batchCreate(data));
+    }
+    
     @Override
     public boolean update(SensorData data) {
         return executeTransaction("UPDATE", data);
@@ -83,6 +240,34 @@ public class TwoPCCoordinator implements DataStorage {
         return "[]";
     }
     
+    @Override
+    public ScanPage scan(ScanQuery query) {
+        // Read operations don't need 2PC, use the first participant
+        if (!participants.isEmpty()) {
+            return participants.get(0).scan(query);
+        }
+        return new ScanPage(new ArrayList<>(), null);
+    }
+    
+    @Override
+    public List<SensorStats> stats(Integer sensorId) {
+        // Read operations don't need 2PC, use the first participant
+        if (!participants.isEmpty()) {
+            return participants.get(0).stats(sensorId);
+        }
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public void writeAll(OutputStream out) throws IOException {
+        // Read operations don't need 2PC, use the first participant
+        if (!participants.isEmpty()) {
+            participants.get(0).writeAll(out);
+        } else {
+            DataStorage.super.writeAll(out);
+        }
+    }
+    
     @Override
     public void clear() {
         for (TwoPCDataStorage participant : participants) {
@@ -91,86 +276,483 @@ public class TwoPCCoordinator implements DataStorage {
     }
     
     private boolean executeTransaction(String operation, SensorData data) {
-        TransactionRequest request = new TransactionRequest(operation, data);
-        
+        return executeTransaction(new TransactionRequest(operation, data));
+    }
+    
+    private boolean executeTransaction(TransactionRequest request) {
         try {
-            requestQueue.offer(request, 10, TimeUnit.SECONDS);
+            laneOf(request).offer(request, 10, TimeUnit.SECONDS);
             return request.getFuture().get(30, TimeUnit.SECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            System.err.println("Transaction failed: " + e.getMessage());
+            Log.warn("Transaction failed: {}", e.getMessage());
             return false;
         }
     }
     
-    private void processTransactions() {
+    /**
+     * Picks the lane by the id the request touches, or by the sensor id if it creates new entries
+     */
+    private BlockingQueue<TransactionRequest> laneOf(TransactionRequest request) {
+        SensorData data = request.getData() != null ? request.getData() : request.getBatch().get(0);
+        int hash = data.getId() != null ? data.getId().hashCode() : Integer.hashCode(data.getSensorId());
+        return lanes.get(Math.floorMod(hash, lanes.size()));
+    }
+    
+    private void processTransactions(BlockingQueue<TransactionRequest> requestQueue) {
+        TransactionRequest carriedOver = null;
         while (running) {
+            List<TransactionRequest> group = new ArrayList<>();
             try {
-                TransactionRequest request = requestQueue.take();
-                boolean success = execute2PC(request);
-                request.getFuture().complete(success);
+                // Polling lets the thread notice a shutdown while the queue is empty
+                TransactionRequest first = carriedOver != null ? carriedOver : requestQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                group.add(first);
+                carriedOver = collectGroup(requestQueue, group);
+                if (group.size() == 1) {
+                    TransactionRequest request = group.get(0);
+                    request.getFuture().complete(execute2PC(request));
+                } else {
+                    executeGroup(group);
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
             } catch (Exception e) {
-                System.err.println("Error processing transaction: " + e.getMessage());
+                Log.warn("Error processing transaction: {}", e.getMessage());
+                for (TransactionRequest request : group) {
+                    request.getFuture().complete(false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds queued requests to the group until it is full or no request arrived within the wait time
+     * @return a request that touches an id already in the group, to start the next group with, or null
+     */
+    private TransactionRequest collectGroup(BlockingQueue<TransactionRequest> requestQueue,
+                                            List<TransactionRequest> group) throws InterruptedException {
+        Set<String> ids = new HashSet<>();
+        addIds(group.get(0), ids);
+        long deadline = System.nanoTime() + maxGroupWaitNanos;
+        while (group.size() < maxGroupSize) {
+            TransactionRequest next = requestQueue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                next = requestQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+            }
+            if (!addIds(next, ids)) {
+                return next;
+            }
+            group.add(next);
+        }
+        return null;
+    }
+    
+    /**
+     * Adds the ids the request touches
+     * @return false if one of them is already in the set; then nothing is added
+     */
+    private static boolean addIds(TransactionRequest request, Set<String> ids) {
+        List<String> touched = new ArrayList<>();
+        if (request.getData() != null && request.getData().getId() != null) {
+            touched.add(request.getData().getId());
+        }
+        if (request.getBatch() != null) {
+            for (SensorData entry : request.getBatch()) {
+                if (entry.getId() != null) touched.add(entry.getId());
+            }
+        }
+        for (String id : touched) {
+            if (ids.contains(id)) return false;
+        }
+        ids.addAll(touched);
+        return true;
+    }
+    
+    /**
+     * Runs a group of requests as one transaction. Operations that a participant could not prepare
+     * fail; the others are prepared again without them until every participant accepts all of them.
+     */
+    private void executeGroup(List<TransactionRequest> group) {
+        List<TransactionRequest> remaining = group;
+        while (!remaining.isEmpty()) {
+            String txId = UUID.randomUUID().toString();
+            activeTransactions.add(txId);
+            try {
+                remaining = executeGroupOnce(txId, remaining);
+            } finally {
+                activeTransactions.remove(txId);
+            }
+        }
+    }
+    
+    /**
+     * Prepares the operations and commits them if every participant accepted all of them
+     * @return the accepted operations to try again without the rejected ones, empty when done
+     */
+    private List<TransactionRequest> executeGroupOnce(String txId, List<TransactionRequest> operations) {
+        Log.debug("2PC Phase 1 - Prepare group of {} operations: {}", operations.size(), txId);
+        long start = System.nanoTime();
+        List<CompletableFuture<boolean[]>> prepares = callAll("prepare", participant -> participant.prepareGroup(txId, operations));
+        List<boolean[]> results = awaitAll(prepares);
+        Metrics.histogram("2pc.prepare").record(System.nanoTime() - start);
+        
+        boolean[] accepted = new boolean[operations.size()];
+        Arrays.fill(accepted, true);
+        boolean allAccepted = true;
+        for (boolean[] prepared : results) {
+            for (int i = 0; i < accepted.length; i++) {
+                accepted[i] &= prepared != null && prepared[i];
+            }
+        }
+        for (boolean operationAccepted : accepted) {
+            allAccepted &= operationAccepted;
+        }
+        
+        if (allAccepted && !logCommitDecision(txId)) {
+            abortWhenPrepared(txId, prepares, Objects::nonNull);
+            for (TransactionRequest request : operations) {
+                request.getFuture().complete(false);
+            }
+            return List.of();
+        }
+        if (allAccepted) {
+            boolean[] committed = commitGroupAll(txId, operations.size());
+            for (int i = 0; i < committed.length; i++) {
+                operations.get(i).getFuture().complete(committed[i]);
             }
+            return List.of();
         }
+        
+        // Fail the rejected operations and try again with the others
+        abortWhenPrepared(txId, prepares, Objects::nonNull);
+        List<TransactionRequest> retry = new ArrayList<>();
+        for (int i = 0; i < accepted.length; i++) {
+            if (accepted[i]) {
+                retry.add(operations.get(i));
+            } else {
+                operations.get(i).getFuture().complete(false);
+            }
+        }
+        return retry;
     }
     
     private boolean execute2PC(TransactionRequest request) {
         String txId = request.getTransactionId();
-        pendingTransactions.put(txId, request);
+        activeTransactions.add(txId);
         
         try {
             // Phase 1: Prepare
-            System.out.println("2PC Phase 1 - Prepare for transaction: " + txId);
-            List<TwoPCDataStorage> preparedParticipants = new ArrayList<>();
+            Log.debug("2PC Phase 1 - Prepare for transaction: {}", txId);
+            long start = System.nanoTime();
+            List<CompletableFuture<Boolean>> prepares = callAll("prepare", participant ->
+                    BATCH_CREATE.equals(request.getOperation())
+                            ? participant.prepareAll(txId, request.getBatch())
+                            : participant.prepare(txId, request.getOperation(), request.getData()));
+            boolean prepared = allTrue(prepares);
+            Metrics.histogram("2pc.prepare").record(System.nanoTime() - start);
             
-            for (TwoPCDataStorage participant : participants) {
-                boolean prepared = participant.prepare(txId, request.getOperation(), request.getData());
-                if (prepared) {
-                    preparedParticipants.add(participant);
-                } else {
-                    System.err.println("Participant failed to prepare for transaction: " + txId);
-                    // Abort all prepared participants
-                    abortParticipants(txId, preparedParticipants);
-                    return false;
-                }
+            if (!prepared) {
+                Log.warn("Participant failed to prepare for transaction: {}", txId);
+                abortWhenPrepared(txId, prepares, Boolean.TRUE::equals);
+                return false;
+            }
+            if (!logCommitDecision(txId)) {
+                abortWhenPrepared(txId, prepares, Boolean.TRUE::equals);
+                return false;
             }
             
             // Phase 2: Commit
-            System.out.println("2PC Phase 2 - Commit transaction: " + txId);
-            boolean allCommitted = true;
+            return commitAll(txId);
             
-            for (TwoPCDataStorage participant : preparedParticipants) {
-                boolean committed = participant.commit(txId);
-                if (!committed) {
-                    System.err.println("Participant failed to commit transaction: " + txId);
-                    allCommitted = false;
-                }
+        } finally {
+            activeTransactions.remove(txId);
+        }
+    }
+    
+    /**
+     * Sends the commit to all participants and waits for all of them
+     * @return true if every participant committed
+     */
+    private boolean commitAll(String txId) {
+        Log.debug("2PC Phase 2 - Commit transaction: {}", txId);
+        long start = System.nanoTime();
+        List<Boolean> results = awaitAll(callAll("commit", participant -> participant.commit(txId)));
+        Metrics.histogram("2pc.commit").record(System.nanoTime() - start);
+        return endCommit(txId, results);
+    }
+    
+    /**
+     * Sends the commit of a group to all participants and waits for all of them
+     * @return for every operation whether every participant wrote it
+     */
+    private boolean[] commitGroupAll(String txId, int operations) {
+        Log.debug("2PC Phase 2 - Commit group of {} operations: {}", operations, txId);
+        long start = System.nanoTime();
+        List<boolean[]> results = awaitAll(callAll("commit", participant -> participant.commitGroup(txId, operations)));
+        Metrics.histogram("2pc.commit").record(System.nanoTime() - start);
+        
+        boolean[] committed = new boolean[operations];
+        Arrays.fill(committed, true);
+        List<Boolean> transactionCommitted = new ArrayList<>(results.size());
+        for (boolean[] written : results) {
+            transactionCommitted.add(written != null);
+            for (int i = 0; i < operations; i++) {
+                committed[i] &= written != null && written[i];
             }
-            
-            if (!allCommitted) {
-                // This is a critical situation - some participants committed, others didn't
-                System.err.println("CRITICAL: Inconsistent state for transaction: " + txId);
+        }
+        if (!endCommit(txId, transactionCommitted)) {
+            // The outcome of the operations is left to recovery
+            Arrays.fill(committed, false);
+        }
+        return committed;
+    }
+    
+    /**
+     * Ends the decision once every participant committed, or leaves the transaction to recovery
+     * @param results whether each participant committed the transaction
+     * @return true if every participant committed
+     */
+    private boolean endCommit(String txId, List<Boolean> results) {
+        boolean allCommitted = true;
+        for (int i = 0; i < results.size(); i++) {
+            if (!Boolean.TRUE.equals(results.get(i))) {
+                Log.warn("Participant {} failed to commit transaction: {}", participantNames.get(i), txId);
+                allCommitted = false;
             }
-            
-            return allCommitted;
-            
-        } finally {
-            pendingTransactions.remove(txId);
         }
+        
+        if (allCommitted) {
+            endDecision(txId);
+        } else if (decisionLog != null) {
+            // The commit is logged, recovery commits it on the participants that still hold it
+            unresolved.add(txId);
+            Log.error("Transaction {} is not committed everywhere yet, it is left to recovery", txId);
+        } else {
+            // This is a critical situation - some participants committed, others didn't
+            Log.error("CRITICAL: Inconsistent state for transaction: {}", txId);
+        }
+        return allCommitted;
     }
     
-    private void abortParticipants(String txId, List<TwoPCDataStorage> participants) {
-        System.out.println("Aborting transaction: " + txId);
-        for (TwoPCDataStorage participant : participants) {
+    /**
+     * Writes the decision to commit to disk, before any participant is told to commit
+     * @return false if it could not be written; then the transaction must be aborted
+     */
+    private boolean logCommitDecision(String txId) {
+        if (decisionLog == null) return true;
+        // Added first, so that a compaction of the log running meanwhile keeps the record
+        decided.add(txId);
+        try {
+            decisionLog.append(TransactionLog.COMMIT, txId, NO_PAYLOAD);
+            return true;
+        } catch (IOException e) {
+            decided.remove(txId);
+            Log.error("Could not log the commit of transaction {}: {}", txId, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Records that all participants committed. Not waited for: if it is lost, recovery finds no
+     * participant that holds the transaction and writes it again.
+     */
+    private void endDecision(String txId) {
+        if (decisionLog == null) return;
+        decided.remove(txId);
+        unresolved.remove(txId);
+        try {
+            decisionLog.appendLazily(TransactionLog.END, txId, NO_PAYLOAD);
+        } catch (IOException e) {
+            Log.warn("Could not log the end of transaction {}: {}", txId, e.getMessage());
+        }
+    }
+    
+    /**
+     * The records a compacted decision log keeps: the commits not known to be done everywhere
+     */
+    private Collection<TransactionLog.Entry> openDecisions() {
+        List<TransactionLog.Entry> entries = new ArrayList<>();
+        for (String txId : decided) {
+            entries.add(new TransactionLog.Entry(TransactionLog.COMMIT, txId, NO_PAYLOAD));
+        }
+        return entries;
+    }
+    
+    /**
+     * Reads the commits of the previous run that were not ended and resolves them with the participants
+     */
+    private void recoverFromLog() {
+        for (TransactionLog.Entry entry : decisionLog.recoveredEntries()) {
+            if (entry.getType() == TransactionLog.COMMIT) {
+                decided.add(entry.getTransactionId());
+            } else if (entry.getType() == TransactionLog.END) {
+                decided.remove(entry.getTransactionId());
+            }
+        }
+        unresolved.addAll(decided);
+        Log.info("Recovering 2PC transactions, {} logged commit(s) not known to be done", unresolved.size());
+        resolve();
+    }
+    
+    private void recoverPeriodically() {
+        try {
+            resolve();
+        } catch (RuntimeException e) {
+            Log.warn("2PC recovery failed: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Commits the unresolved transactions on every participant that still holds them, aborts abandoned
+     * ones and ends the unresolved transactions that no participant holds anymore
+     */
+    private void resolve() {
+        Set<String> stillInDoubt = new HashSet<>();
+        boolean allAnswered = true;
+        for (int i = 0; i < participants.size(); i++) {
+            TwoPCDataStorage participant = participants.get(i);
+            String name = participantNames.get(i);
+            List<String> inDoubt;
+            List<String> expired;
             try {
-                participant.abort(txId);
+                inDoubt = participant.inDoubtTransactions();
+                expired = participant.expiredTransactions();
             } catch (Exception e) {
-                System.err.println("Error aborting participant for transaction " + txId + ": " + e.getMessage());
+                Log.warn("Participant {} did not list its prepared transactions: {}", name, e.getMessage());
+                allAnswered = false;
+                continue;
+            }
+            for (String txId : inDoubt) {
+                try {
+                    if (unresolved.contains(txId)) {
+                        if (participant.commit(txId)) {
+                            Log.info("Recovery committed transaction {} on {}", txId, name);
+                        } else {
+                            stillInDoubt.add(txId);
+                        }
+                    } else if (!decided.contains(txId) && !activeTransactions.contains(txId)) {
+                        participant.abort(txId);
+                        Log.info("Recovery aborted transaction {} on {}", txId, name);
+                    }
+                } catch (Exception e) {
+                    Log.warn("Recovery of transaction {} failed on {}: {}", txId, name, e.getMessage());
+                    stillInDoubt.add(txId);
+                }
+            }
+            for (String txId : expired) {
+                if (unresolved.contains(txId) && heuristicAborts.add(txId)) {
+                    heuristicAbortCount.increment();
+                    Log.error("Participant {} aborted transaction {} after its prepare timeout although its commit "
+                            + "is logged, the outcome is mixed and has to be repaired by hand", name, txId);
+                }
+            }
+        }
+        // A participant that did not answer may still hold any of them
+        if (!allAnswered) return;
+        for (String txId : new ArrayList<>(unresolved)) {
+            // The commit record of a heuristic abort stays in the log, so that it is reported after a restart too
+            if (!stillInDoubt.contains(txId) && !heuristicAborts.contains(txId)) {
+                endDecision(txId);
+            }
+        }
+    }
+    
+    /**
+     * Starts the call on every participant at once, each on its own virtual thread
+     * @return the calls in participant order; a call that throws completes exceptionally
+     */
+    private <T> List<CompletableFuture<T>> callAll(String phase, Function<TwoPCDataStorage, T> call) {
+        List<CompletableFuture<T>> calls = new ArrayList<>(participants.size());
+        for (int i = 0; i < participants.size(); i++) {
+            TwoPCDataStorage participant = participants.get(i);
+            LatencyHistogram latency = Metrics.histogram("2pc." + phase + "." + participantNames.get(i));
+            calls.add(CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    return call.apply(participant);
+                } finally {
+                    latency.record(System.nanoTime() - start);
+                }
+            }, fanOut));
+        }
+        return calls;
+    }
+    
+    /**
+     * Waits for all calls, each at most the participant timeout
+     * @return the results in participant order, null for calls that failed or timed out
+     */
+    private <T> List<T> awaitAll(List<CompletableFuture<T>> calls) {
+        List<CompletableFuture<T>> timed = new ArrayList<>(calls.size());
+        for (CompletableFuture<T> call : calls) {
+            timed.add(call.copy().orTimeout(participantTimeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        List<T> results = new ArrayList<>(calls.size());
+        for (int i = 0; i < timed.size(); i++) {
+            try {
+                results.add(timed.get(i).join());
+            } catch (CompletionException | CancellationException e) {
+                Log.warn("Participant {} did not answer: {}", participantNames.get(i), e.getCause());
+                results.add(null);
             }
         }
+        return results;
+    }
+    
+    /**
+     * Waits until every call returned true, or until the first one returns false, fails or times out
+     */
+    private boolean allTrue(List<CompletableFuture<Boolean>> calls) {
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        List<CompletableFuture<Boolean>> timed = new ArrayList<>(calls.size());
+        for (CompletableFuture<Boolean> call : calls) {
+            CompletableFuture<Boolean> withTimeout = call.copy().orTimeout(participantTimeoutMillis, TimeUnit.MILLISECONDS);
+            withTimeout.whenComplete((result, error) -> {
+                if (error != null || !Boolean.TRUE.equals(result)) {
+                    outcome.complete(false);
+                }
+            });
+            timed.add(withTimeout);
+        }
+        CompletableFuture.allOf(timed.toArray(new CompletableFuture[0])).whenComplete((ignored, error) ->
+                outcome.complete(error == null && timed.stream().allMatch(call -> Boolean.TRUE.equals(call.join()))));
+        return outcome.join();
+    }
+    
+    /**
+     * Aborts the transaction on every participant whose prepare holds it and waits for the aborts of
+     * prepares that already returned. Prepares that are still running, e.g. after a timeout, are
+     * aborted when they finish.
+     */
+    private <T> void abortWhenPrepared(String txId, List<CompletableFuture<T>> prepares, Predicate<T> holdsTransaction) {
+        Log.debug("Aborting transaction: {}", txId);
+        List<CompletableFuture<Void>> aborts = new ArrayList<>();
+        for (int i = 0; i < prepares.size(); i++) {
+            TwoPCDataStorage participant = participants.get(i);
+            String name = participantNames.get(i);
+            LatencyHistogram latency = Metrics.histogram("2pc.abort." + name);
+            CompletableFuture<T> prepare = prepares.get(i);
+            boolean returned = prepare.isDone();
+            CompletableFuture<Void> abort = prepare.thenAcceptAsync(prepared -> {
+                if (!holdsTransaction.test(prepared)) return;
+                long start = System.nanoTime();
+                try {
+                    participant.abort(txId);
+                } catch (Exception e) {
+                    Log.warn("Error aborting participant {} for transaction {}: {}", name, txId, e.getMessage());
+                } finally {
+                    latency.record(System.nanoTime() - start);
+                }
+            }, fanOut);
+            if (returned) {
+                aborts.add(abort);
+            }
+        }
+        awaitAll(aborts);
     }
     
     public void shutdown() {
@@ -184,5 +766,19 @@ public class TwoPCCoordinator implements DataStorage {
             executor.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        fanOut.shutdown();
+        if (recovery != null) {
+            recovery.shutdownNow();
+        }
+        if (decisionLog != null) {
+            try {
+                decisionLog.close();
+            } catch (IOException e) {
+                Log.warn("Could not close the 2PC decision log: {}", e.getMessage());
+            }
+        }
+        for (TwoPCDataStorage participant : participants) {
+            participant.shutdown();
+        }
     }
 }
@@ -2,6 +2,9 @@ package org.example.db;
 
 import org.example.SensorData;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Interface for DataStorage implementations that support 2-Phase Commit Protocol
  */
@@ -15,6 +18,23 @@ public interface TwoPCDataStorage extends DataStorage {
      * @return true if prepared successfully, false otherwise
      */
     boolean prepare(String transactionId, String operation, SensorData data);
+
+    /**
+     * Phase 1: Prepare a transaction that creates all entries of a batch
+     * @param transactionId unique identifier for the transaction
+     * @param data the entries to create
+     * @return true if prepared successfully, false otherwise
+     */
+    boolean prepareAll(String transactionId, List<SensorData> data);
+
+    /**
+     * Phase 1: Prepare a group of independent operations as one transaction. Operations that cannot
+     * be prepared are left out; commit and abort of the transaction apply to the prepared ones.
+     * @param transactionId unique identifier for the transaction
+     * @param operations the operations, no two of them touch the same id
+     * @return for every operation whether it was prepared
+     */
+    boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations);
     
     /**
      * Phase 2: Commit the prepared transaction
@@ -22,6 +42,20 @@ public interface TwoPCDataStorage extends DataStorage {
      * @return true if committed successfully, false otherwise
      */
     boolean commit(String transactionId);
+
+    /**
+     * Phase 2: Commit a transaction prepared with {@link #prepareGroup} that holds all of its operations.
+     * Participants that can fail single operations of a committed group override it.
+     * @param transactionId unique identifier for the transaction
+     * @param operations number of operations of the group
+     * @return for every operation whether it was written, or null if the transaction was not committed
+     */
+    default boolean[] commitGroup(String transactionId, int operations) {
+        if (!commit(transactionId)) return null;
+        boolean[] committed = new boolean[operations];
+        Arrays.fill(committed, true);
+        return committed;
+    }
     
     /**
      * Abort the prepared transaction
@@ -29,4 +63,32 @@ public interface TwoPCDataStorage extends DataStorage {
      * @return true if aborted successfully, false otherwise
      */
     boolean abort(String transactionId);
+
+    /**
+     * Lists the transactions that are prepared but neither committed nor aborted, for the recovery of
+     * the coordinator. Participants that keep prepared transactions in memory only hold none after a
+     * restart of their own.
+     * @return the transaction ids
+     */
+    default List<String> inDoubtTransactions() {
+        return List.of();
+    }
+
+    /**
+     * Lists the transactions the participant aborted on its own because no outcome arrived within its
+     * prepare timeout. If the coordinator logged a commit for one of them, the outcome is mixed, and the
+     * coordinator keeps the commit and reports it instead of ending it. Participants remember only the
+     * latest ones and forget them on a restart. Called after {@link #inDoubtTransactions()}.
+     * @return the transaction ids
+     */
+    default List<String> expiredTransactions() {
+        return List.of();
+    }
+
+    /**
+     * Releases the resources of the participant, like its connections. Called by the shutdown of the
+     * coordinator.
+     */
+    default void shutdown() {
+    }
 }
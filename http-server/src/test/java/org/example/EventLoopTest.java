@@ -0,0 +1,93 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of {@link EventLoop} with workers that are controlled by the test.
+ */
+public class EventLoopTest {
+    private ServerSocketChannel serverChannel;
+    private EventLoop loop;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (loop != null) loop.stop();
+        if (serverChannel != null) serverChannel.close();
+    }
+
+    private int start(Executor workers) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        serverChannel.configureBlocking(false);
+        loop = new EventLoop("test-loop", request -> new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "text/plain")
+                .body(out -> out.write("streamed".getBytes(StandardCharsets.UTF_8)))
+                .build(), workers, 5000, 100);
+        loop.listen(serverChannel, loop::register);
+        loop.start();
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    private static String get(int port) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /stream HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Tests that a streamed body is written by the workers.
+     */
+    @Test
+    public void testStreamedBodyRunsOnWorkers() throws IOException {
+        AtomicInteger tasks = new AtomicInteger();
+        int port = start(task -> {
+            tasks.incrementAndGet();
+            Thread.ofVirtual().start(task);
+        });
+
+        String response = get(port);
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        assertTrue(response.contains("streamed"), response);
+        assertEquals(2, tasks.get(), "The handler and the body should both run on the workers");
+    }
+
+    /**
+     * Tests that a streamed response gets 503 when the workers are full by the time its body is to be
+     * written, as a handler does.
+     */
+    @Test
+    public void testStreamedBodyGets503WhenWorkersAreFull() throws IOException {
+        // Accepts the handler, then is full
+        AtomicInteger accepted = new AtomicInteger();
+        int port = start(task -> {
+            if (accepted.getAndIncrement() > 0) throw new RejectedExecutionException("full");
+            Thread.ofVirtual().start(task);
+        });
+
+        String response = get(port);
+        assertTrue(response.startsWith("HTTP/1.1 503"), response);
+        assertTrue(response.contains("Retry-After: 1"), response);
+        assertFalse(response.contains("streamed"), response);
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import org.example.db.InMemoryDataStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the {@link ExecutionMode}s with 32 clients against a storage that blocks
+ * for 5 ms on every write, like the gRPC and 2PC storages do. A single I/O thread is used so that
+ * running handlers on the event loop (the model without workers) serializes all requests, while virtual
+ * threads and the worker pool overlap the blocking calls.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=ExecutionModeBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class ExecutionModeBenchmark {
+
+    private static final int PORT = 8095;
+    private static final long STORAGE_LATENCY_MS = 5;
+
+    @Param({"EVENT_LOOP", "VIRTUAL_THREADS", "BOUNDED_POOL"})
+    public ExecutionMode mode;
+
+    private HttpServer server;
+
+    /**
+     * Storage that simulates the round trip of a remote participant on every create
+     */
+    private static class SlowDataStorage extends InMemoryDataStorage {
+        @Override
+        public boolean create(SensorData data) {
+            try {
+                Thread.sleep(STORAGE_LATENCY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.create(data);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new HttpServer(PORT, new SlowDataStorage(), 1, mode);
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public int post() throws IOException {
+        String body = "{\"sensorId\": " + ThreadLocalRandom.current().nextInt(1000) + ", \"temperature\": 21.0}";
+        String request = "POST / HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                body;
+
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String statusLine = in.readLine();
+            if (statusLine == null) {
+                throw new IOException("Server closed the connection without a response");
+            }
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link HttpRequestParser} with the previous BufferedReader based HttpRequest.parse
+ * for a typical POST of the IoT gateway and a typical dashboard GET.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=HttpRequestParserBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+
+    @Param({"POST", "GET"})
+    public String request;
+
+    private byte[] bytes;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        String body = "{\"sensorId\":17,\"temperature\":21.375}";
+        String raw = "POST".equals(request)
+                ? "POST / HTTP/1.1\r\n" +
+                  "Host: http-server:8080\r\n" +
+                  "User-Agent: Java-http-client/23\r\n" +
+                  "Content-Type: application/json\r\n" +
+                  "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                  "\r\n" +
+                  body
+                : "GET / HTTP/1.1\r\n" +
+                  "Host: localhost:8080\r\n" +
+                  "Connection: keep-alive\r\n" +
+                  "Accept: */*\r\n" +
+                  "Origin: http://localhost\r\n" +
+                  "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 Chrome/126.0 Safari/537.36\r\n" +
+                  "Accept-Encoding: gzip, deflate, br\r\n" +
+                  "Accept-Language: de-DE,de;q=0.9,en;q=0.8\r\n" +
+                  "\r\n";
+        bytes = raw.getBytes(StandardCharsets.UTF_8);
+        parser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public void byteParser(Blackhole blackhole) {
+        parser.buffer().put(bytes);
+        HttpRequest parsed = parser.parse();
+        blackhole.consume(parsed.isKeepAlive());
+        blackhole.consume(parsed.getBody());
+    }
+
+    @Benchmark
+    public void bufferedReaderParser(Blackhole blackhole) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+        HttpRequest parsed = legacyParse(in);
+        blackhole.consume(parsed.isKeepAlive());
+        blackhole.consume(parsed.getBody());
+    }
+
+    /**
+     * The parser HttpRequest used before the byte-level parser, kept as the baseline
+     */
+    private static HttpRequest legacyParse(BufferedReader in) throws IOException {
+        String requestLine = in.readLine();
+        if (requestLine == null || requestLine.isEmpty()) return null;
+
+        String[] requestParts = requestLine.split(" ", 3);
+        if (requestParts.length < 3) return null;
+
+        String method = requestParts[0];
+        String path = requestParts[1];
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = in.readLine()).isEmpty()) {
+            String[] headerParts = line.split(":", 2);
+            if (headerParts.length == 2) {
+                headers.put(headerParts[0].trim().toLowerCase(), headerParts[1].trim());
+            }
+        }
+        String body = null;
+
+        if (method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT")) {
+            int contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+            char[] bodyChars = new char[contentLength];
+            in.read(bodyChars);
+            body = new String(bodyChars);
+        }
+
+        return new HttpRequest(method, path, headers, body);
+    }
+}
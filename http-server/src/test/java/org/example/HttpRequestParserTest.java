@@ -0,0 +1,105 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the incremental byte-level request parser.
+ */
+public class HttpRequestParserTest {
+
+    private static HttpRequest feed(HttpRequestParser parser, String data) {
+        parser.buffer().put(data.getBytes(StandardCharsets.UTF_8));
+        return parser.parse();
+    }
+
+    /**
+     * Tests that a request split at arbitrary byte positions is parsed once all bytes arrived.
+     */
+    @Test
+    public void testResumesPartialReads() {
+        HttpRequestParser parser = new HttpRequestParser();
+        String body = "{\"sensorId\": 1, \"temperature\": 23.5}";
+        String raw = "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+
+        HttpRequest request = null;
+        for (int i = 0; i < raw.length(); i++) {
+            assertNull(request, "Request must not complete before its last byte");
+            request = feed(parser, raw.substring(i, i + 1));
+        }
+
+        assertNotNull(request);
+        assertEquals("POST", request.getMethod());
+        assertEquals("/", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals(body, request.getBody());
+    }
+
+    /**
+     * Tests that Content-Length is treated as a byte count for multi-byte UTF-8 bodies.
+     */
+    @Test
+    public void testCountsBodyInBytes() {
+        HttpRequestParser parser = new HttpRequestParser();
+        String body = "{\"location\": \"Küche ☀\"}";
+        int byteLength = body.getBytes(StandardCharsets.UTF_8).length;
+        assertNotEquals(body.length(), byteLength);
+
+        HttpRequest request = feed(parser, "PUT /abc HTTP/1.1\r\nContent-Length: " + byteLength + "\r\n\r\n" + body);
+
+        assertNotNull(request);
+        assertEquals(body, request.getBody());
+    }
+
+    /**
+     * Tests that pipelined requests in one read are returned one after another.
+     */
+    @Test
+    public void testParsesPipelinedRequests() {
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest first = feed(parser, "GET /one HTTP/1.1\r\n\r\nDELETE /two HTTP/1.1\r\nConnection: close\r\n\r\nGET /th");
+
+        assertEquals("/one", first.getPath());
+        HttpRequest second = parser.parse();
+        assertEquals("DELETE", second.getMethod());
+        assertEquals("/two", second.getPath());
+        assertFalse(second.isKeepAlive());
+        assertNull(parser.parse(), "Third request is still incomplete");
+
+        HttpRequest third = feed(parser, "ree HTTP/1.0\r\n\r\n");
+        assertEquals("/three", third.getPath());
+        assertEquals("HTTP/1.0", third.getVersion());
+        assertNull(third.getBody());
+    }
+
+    /**
+     * Tests case-insensitive, whitespace-trimmed header access.
+     */
+    @Test
+    public void testHeaderAccess() {
+        HttpRequest request = feed(new HttpRequestParser(),
+                "GET / HTTP/1.1\r\nContent-Type:   application/json  \r\nX-Custom:\tvalue\r\nno colon line\r\n\r\n");
+
+        assertEquals("application/json", request.getHeader("content-type"));
+        assertEquals("application/json", request.getHeader("CONTENT-TYPE"));
+        assertEquals("value", request.getHeader("x-custom"));
+        assertNull(request.getHeader("accept"));
+        assertEquals(2, request.getHeaders().size());
+        assertEquals("value", request.getHeaders().get("x-custom"));
+    }
+
+    /**
+     * Tests that malformed request lines and Content-Length values are rejected.
+     */
+    @Test
+    public void testRejectsMalformedRequests() {
+        assertThrows(IllegalArgumentException.class, () -> feed(new HttpRequestParser(), "GARBAGE\r\n\r\n"));
+        assertThrows(IllegalArgumentException.class,
+                () -> feed(new HttpRequestParser(), "POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n"));
+        assertThrows(IllegalArgumentException.class,
+                () -> feed(new HttpRequestParser(64), "POST / HTTP/1.1\r\nContent-Length: 100\r\n\r\n"));
+    }
+}
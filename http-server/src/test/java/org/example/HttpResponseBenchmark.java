@@ -0,0 +1,66 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte-oriented {@link HttpResponse} serialization with the previous
+ * StringBuilder based toString() for a typical POST acknowledgement.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=HttpResponseBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpResponseBenchmark {
+
+    private static final String BODY = "Data received and stored.";
+
+    @Benchmark
+    public byte[] byteWriter() {
+        HttpResponse response = new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "text/plain")
+                .body(BODY)
+                .build();
+        response.setKeepAlive(true, 5, 999);
+        return response.toBytes(true);
+    }
+
+    @Benchmark
+    public byte[] stringBuilder() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Connection", "keep-alive");
+        headers.put("Keep-Alive", "timeout=5, max=999");
+        return legacyToString("HTTP/1.1 " + 200 + " " + "OK", headers, BODY).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The serialization HttpResponse used before, kept as the baseline
+     */
+    private static String legacyToString(String statusLine, Map<String, String> headers, String body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(statusLine).append("\r\n");
+        headers.putIfAbsent("Date", new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US).format(new Date()));
+        headers.putIfAbsent("Server", "JavaHttpServer/1.0");
+        headers.putIfAbsent("Connection", "close");
+        headers.put("Content-Length", String.valueOf(body.getBytes().length));
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        sb.append(body);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the byte-oriented response serialization.
+ */
+public class HttpResponseTest {
+
+    /**
+     * Tests the serialized form including the default headers and a byte-counted Content-Length.
+     */
+    @Test
+    public void testSerializesHeadersAndBody() {
+        HttpResponse response = new HttpResponse.Builder()
+                .status(200, "OK")
+                .header("Content-Type", "text/plain")
+                .body("Grüße")
+                .build();
+
+        String serialized = response.toString();
+
+        assertTrue(serialized.startsWith("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n"));
+        assertTrue(serialized.matches("(?s).*\r\nDate: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n.*"));
+        assertTrue(serialized.contains("\r\nServer: JavaHttpServer/1.0\r\n"));
+        assertTrue(serialized.contains("\r\nConnection: close\r\n"));
+        assertTrue(serialized.endsWith("\r\nContent-Length: 7\r\n\r\nGrüße"));
+    }
+
+    /**
+     * Tests that the keep-alive decision replaces the Connection header and HEAD responses omit the body.
+     */
+    @Test
+    public void testKeepAliveWithoutBody() {
+        HttpResponse response = new HttpResponse.Builder()
+                .status(404, "Not Found")
+                .header("Connection", "close")
+                .body("Data not found.")
+                .build();
+        response.setKeepAlive(true, 5, 999);
+
+        String serialized = response.toString(false);
+
+        assertTrue(serialized.startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertFalse(serialized.contains("Connection: close"));
+        assertTrue(serialized.contains("\r\nConnection: keep-alive\r\nKeep-Alive: timeout=5, max=999\r\n"));
+        assertTrue(serialized.endsWith("\r\nContent-Length: 15\r\n\r\n"));
+    }
+
+    /**
+     * Tests that size() matches the bytes written, also for uncommon status lines.
+     */
+    @Test
+    public void testSizeMatchesWrittenBytes() {
+        HttpResponse response = new HttpResponse.Builder()
+                .status(418, "I'm a teapot")
+                .header("Date", "Thu, 01 Jan 1970 00:00:00 GMT")
+                .body("{}")
+                .build();
+        response.setKeepAlive(true, 60, 1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(response.size(true) + 16);
+        response.writeTo(buffer, true);
+
+        assertEquals(response.size(true), buffer.position());
+        assertEquals(response.size(false) + 2, response.size(true));
+        String serialized = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        assertTrue(serialized.startsWith("HTTP/1.1 418 I'm a teapot\r\nDate: Thu, 01 Jan 1970 00:00:00 GMT\r\nServer:"));
+    }
+}
@@ -1,9 +1,11 @@
 package org.example;
 
+import com.google.gson.Gson;
 import org.example.db.InMemoryDataStorage;
 import org.junit.jupiter.api.*;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.Random;
@@ -79,6 +81,22 @@ public class HttpServerIntegrationTest {
         assertEquals("[]", response.trim(), "Response should be an empty JSON array for no data");
     }
 
+    /**
+     * Tests that GET /metrics answers with the latency histograms as plain text, not as an entry id.
+     */
+    @Test
+    public void testGetMetrics() throws IOException {
+        Metrics.histogram("test.metrics").record(2_000_000);
+
+        URL url = new URL(BASE_URL + PORT + "/metrics");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain"));
+        assertTrue(readResponse(connection).contains("test.metrics count=1 "));
+    }
+
     /**
      * Tests POST request with valid JSON data.
      * Verifies that the server accepts the data and returns a 200 status code.
@@ -403,6 +421,174 @@ public class HttpServerIntegrationTest {
         testInvalidPath("GET", "/invalid/path/structure", 400);
     }
 
+    /**
+     * Tests a request whose bytes arrive in several TCP segments.
+     * Verifies that the non-blocking server buffers partial reads until the request is complete.
+     */
+    @Test
+    public void testFragmentedRequest() throws Exception {
+        String body = "{\"sensorId\": 7, \"temperature\": 19.5}";
+        String request = "POST / HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                "\r\n" +
+                body;
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+
+        try (Socket socket = new Socket("localhost", PORT)) {
+            OutputStream out = socket.getOutputStream();
+            int half = bytes.length / 2;
+            out.write(bytes, 0, half);
+            out.flush();
+            Thread.sleep(100);
+            out.write(bytes, half, bytes.length - half);
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("HTTP/1.1 200 OK", in.readLine());
+        }
+
+        assertTrue(getAllData().contains("\"sensorId\":7"), "Fragmented POST should have been stored");
+    }
+
+    /**
+     * Tests several pipelined requests sent on one persistent connection.
+     * Verifies that every request is answered in order and the connection is only
+     * closed after the request that asked for it.
+     */
+    @Test
+    public void testKeepAliveWithPipelinedRequests() throws Exception {
+        String keepAliveRequest = "GET /non-existent-id HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        String closingRequest = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write((keepAliveRequest + keepAliveRequest + closingRequest).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String responses = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            // Bodies are not newline-terminated, so status lines are searched instead of split by line
+            String[] statusLines = java.util.regex.Pattern.compile("HTTP/1\\.1 \\d{3} [^\\r]*")
+                    .matcher(responses).results().map(m -> m.group()).toArray(String[]::new);
+            assertArrayEquals(new String[]{"HTTP/1.1 404 Not Found", "HTTP/1.1 404 Not Found", "HTTP/1.1 200 OK"},
+                    statusLines, "Pipelined requests should be answered in order");
+            assertTrue(responses.contains("Connection: keep-alive"), "Persistent responses should announce keep-alive");
+            assertTrue(responses.endsWith("[]"), "The last response should be followed by the connection close");
+        }
+    }
+
+    /**
+     * Tests GET / with a result larger than one chunk.
+     * Verifies that the array is streamed with chunked transfer encoding and arrives complete.
+     */
+    @Test
+    public void testGetLargeDataIsStreamed() throws Exception {
+        int entries = 2000;
+        for (int i = 0; i < entries; i++) {
+            server.getDataStorage().create(SensorData.builder().sensorId(i).temperature(20.5).build());
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(BASE_URL + PORT).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"), "Large results should be chunked");
+        assertNull(connection.getHeaderField("Content-Length"));
+
+        SensorData[] data = new Gson().fromJson(readResponse(connection), SensorData[].class);
+        assertEquals(entries, data.length, "Every entry should arrive");
+        assertEquals(0, data[0].getSensorId());
+        assertEquals(entries - 1, data[entries - 1].getSensorId());
+    }
+
+    /**
+     * Tests GET / with query parameters.
+     * Verifies that pages follow each other through X-Next-Cursor, that sensorId and since filter
+     * the entries and that invalid parameters are rejected.
+     */
+    @Test
+    public void testGetPagedAndFiltered() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            server.getDataStorage().create(SensorData.builder().sensorId(i % 5).temperature(i).build());
+        }
+
+        Gson gson = new Gson();
+        int pages = 0;
+        int total = 0;
+        String cursor = null;
+        do {
+            URL url = new URL(BASE_URL + PORT + "/?sensorId=2&limit=2" + (cursor != null ? "&cursor=" + cursor : ""));
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            SensorData[] page = gson.fromJson(readResponse(connection), SensorData[].class);
+            for (SensorData data : page) {
+                assertEquals(2, data.getSensorId(), "Only entries of sensor 2 should be returned");
+                assertNotNull(data.getTimestamp());
+            }
+            total += page.length;
+            pages++;
+            cursor = connection.getHeaderField("X-Next-Cursor");
+        } while (cursor != null && pages < 10);
+        assertEquals(5, total, "Every entry of sensor 2 should be returned once");
+        assertEquals(3, pages);
+
+        HttpURLConnection future = (HttpURLConnection) new URL(
+                BASE_URL + PORT + "/?since=" + (System.currentTimeMillis() + 60_000)).openConnection();
+        assertEquals(200, future.getResponseCode());
+        assertEquals("[]", readResponse(future).trim());
+        assertNull(future.getHeaderField("X-Next-Cursor"));
+
+        testInvalidPath("GET", "/?limit=abc", 400);
+        testInvalidPath("GET", "/?cursor=-1", 400);
+    }
+
+    /**
+     * Tests POST /batch with a JSON array, with NDJSON and with invalid bodies.
+     * Verifies that every reading of a valid batch is stored and invalid batches store nothing.
+     */
+    @Test
+    public void testPostBatch() throws IOException {
+        HttpURLConnection array = postBatch("[{\"sensorId\": 1, \"temperature\": 20.5}, {\"sensorId\": 2, \"temperature\": 21.5}]");
+        assertEquals(200, array.getResponseCode());
+        assertTrue(readResponse(array).contains("Received 2 readings"));
+
+        HttpURLConnection ndjson = postBatch("{\"sensorId\": 3, \"temperature\": 22.5}\n\n{\"sensorId\": 4, \"temperature\": 23.5}\n");
+        assertEquals(200, ndjson.getResponseCode());
+
+        SensorData[] stored = new Gson().fromJson(getAllData(), SensorData[].class);
+        assertEquals(4, stored.length, "Every reading of both batches should be stored");
+        assertEquals(1, stored[0].getSensorId());
+        assertEquals(4, stored[3].getSensorId());
+
+        HttpURLConnection invalid = postBatch("{\"sensorId\": 5, \"temperature\": 24.5}\n{\"sensorId\": 6, \"temperature\": }");
+        assertEquals(400, invalid.getResponseCode());
+        assertTrue(readResponse(invalid).contains("line 2"), "The error should name the broken line");
+        assertEquals(400, postBatch("[]").getResponseCode());
+        assertEquals(4, new Gson().fromJson(getAllData(), SensorData[].class).length, "Invalid batches store nothing");
+    }
+
+    /**
+     * Tests GET /stats and GET /stats/{sensorId}.
+     * Verifies the count, min, max and avg per sensor, and that unknown or invalid sensors are rejected.
+     */
+    @Test
+    public void testGetStats() throws IOException {
+        postBatch("[{\"sensorId\": 2, \"temperature\": 18.0}, {\"sensorId\": 1, \"temperature\": 20.0},"
+                + " {\"sensorId\": 1, \"temperature\": 23.0}, {\"sensorId\": 1, \"temperature\": -1.0}]").getResponseCode();
+
+        HttpURLConnection all = (HttpURLConnection) new URL(BASE_URL + PORT + "/stats").openConnection();
+        assertEquals(200, all.getResponseCode());
+        assertEquals("[{\"sensorId\":1,\"count\":3,\"min\":-1.0,\"max\":23.0,\"avg\":14.0},"
+                + "{\"sensorId\":2,\"count\":1,\"min\":18.0,\"max\":18.0,\"avg\":18.0}]", readResponse(all).trim());
+
+        HttpURLConnection one = (HttpURLConnection) new URL(BASE_URL + PORT + "/stats/2").openConnection();
+        assertEquals(200, one.getResponseCode());
+        assertEquals("{\"sensorId\":2,\"count\":1,\"min\":18.0,\"max\":18.0,\"avg\":18.0}", readResponse(one).trim());
+
+        testInvalidPath("GET", "/stats/3", 404);
+        testInvalidPath("GET", "/stats/abc", 400);
+    }
+
     /**
      * Helper method to test invalid path patterns.
      */
@@ -470,6 +656,25 @@ public class HttpServerIntegrationTest {
         connection.disconnect();
     }
     
+    /**
+     * Helper method to post a batch to /batch.
+     *
+     * @param body JSON array or NDJSON
+     * @return the connection to read the response from
+     */
+    private HttpURLConnection postBatch(String body) throws IOException {
+        URL url = new URL(BASE_URL + PORT + "/batch");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setDoOutput(true);
+
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+    
     /**
      * Helper method to get all data from the server.
      * 
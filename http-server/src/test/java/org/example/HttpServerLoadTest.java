@@ -0,0 +1,101 @@
+package org.example;
+
+import com.google.gson.JsonParser;
+import org.example.db.InMemoryDataStorage;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load test checking that every {@link ExecutionMode} answers all requests of concurrent clients.
+ * The throughput of the modes is compared by {@link ExecutionModeBenchmark}.
+ */
+public class HttpServerLoadTest {
+
+    private static final int BASE_PORT = 8091;
+    private static final int CLIENTS = 32;
+    private static final int REQUESTS_PER_CLIENT = 20;
+
+    @Test
+    public void testEveryExecutionModeServesConcurrentClients() throws Exception {
+        int port = BASE_PORT;
+
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            InMemoryDataStorage storage = new InMemoryDataStorage();
+            HttpServer server = new HttpServer(port, storage, 1, mode);
+            server.start();
+            try {
+                assertEquals(CLIENTS * REQUESTS_PER_CLIENT, run(port), "Successful requests in " + mode);
+                assertEquals(CLIENTS * REQUESTS_PER_CLIENT,
+                        JsonParser.parseString(storage.readAll()).getAsJsonArray().size(), "Stored readings in " + mode);
+            } finally {
+                server.stop();
+            }
+            port++;
+        }
+    }
+
+    /**
+     * Runs the clients against the server; a failure of any client fails the test
+     * @return requests answered with 200
+     */
+    private long run(int port) throws Exception {
+        AtomicLong completed = new AtomicLong();
+        Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+        Thread[] clients = new Thread[CLIENTS];
+
+        for (int i = 0; i < CLIENTS; i++) {
+            final int sensorId = i;
+            clients[i] = new Thread(() -> {
+                for (int r = 0; r < REQUESTS_PER_CLIENT; r++) {
+                    try {
+                        if (post(port, sensorId) == 200) {
+                            completed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                        return;
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        Exception failure = failures.poll();
+        if (failure != null) {
+            failures.forEach(failure::addSuppressed);
+            throw failure;
+        }
+        return completed.get();
+    }
+
+    private int post(int port, int sensorId) throws IOException {
+        String body = "{\"sensorId\": " + sensorId + ", \"temperature\": 21.0}";
+        String request = "POST / HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                body;
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String statusLine = in.readLine();
+            if (statusLine == null) {
+                throw new IOException("Server closed the connection without a response");
+            }
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+}
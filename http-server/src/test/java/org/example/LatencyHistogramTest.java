@@ -0,0 +1,48 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the buckets and percentiles of the {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Tests that every value falls into a bucket whose upper bound is within 12.5% of it.
+     */
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 1000, 123_456_789L, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertTrue(upperBound >= value, "Upper bound below " + value);
+            assertTrue(upperBound - value <= value / 8, "Bucket of " + value + " too wide");
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBound(bucket - 1) < value, "Previous bucket holds " + value);
+            }
+        }
+    }
+
+    /**
+     * Tests count, mean, max and percentiles of recorded latencies.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileNanos(99));
+
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis * 1_000_000L);
+        }
+
+        assertEquals(100, histogram.count());
+        assertEquals(100_000_000L, histogram.maxNanos());
+        assertEquals(50_500_000.0, histogram.meanNanos(), 1.0);
+        assertEquals(50_000_000L, histogram.percentileNanos(50), 50_000_000L / 8);
+        assertEquals(99_000_000L, histogram.percentileNanos(99), 99_000_000L / 8);
+        assertEquals(100_000_000L, histogram.percentileNanos(100));
+    }
+}
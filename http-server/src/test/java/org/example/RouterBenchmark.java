@@ -0,0 +1,64 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the routing cost per request of {@link Router} against the previous
+ * switch with path.matches("^/[^/]+$") in HttpServer.processRequest.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=RouterBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    private static final HttpResponse OK = new HttpResponse.Builder().status(200, "OK").build();
+
+    @Param({"GET /", "GET /{id}", "DELETE /{id}"})
+    public String route;
+
+    private HttpRequest request;
+    private Router router;
+
+    @Setup
+    public void setUp() {
+        String method = route.substring(0, route.indexOf(' '));
+        String path = route.endsWith("{id}") ? "/3f1c9a52-8d7e-4b0a-9c51-2f6e4d7b8a10" : "/";
+        request = new HttpRequest(method, path, Collections.emptyMap(), null);
+        router = new Router()
+                .route("POST", "/", (request, params) -> OK)
+                .route("GET", "/", (request, params) -> OK)
+                .route("GET", "/{id}", (request, params) -> OK)
+                .route("PUT", "/{id}", (request, params) -> OK)
+                .route("DELETE", "/{id}", (request, params) -> OK);
+    }
+
+    @Benchmark
+    public HttpResponse router() {
+        return router.handle(request);
+    }
+
+    @Benchmark
+    public HttpResponse regexSwitch() {
+        String path = request.getPath();
+        switch (request.getMethod().toUpperCase()) {
+            case "POST":
+                return "/".equals(path) ? OK : null;
+            case "GET":
+                if ("/".equals(path)) return OK;
+                return path.matches("^/[^/]+$") ? OK : null;
+            case "PUT":
+            case "DELETE":
+                return path.matches("^/[^/]+$") ? OK : null;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for path template matching and dispatch of the {@link Router}.
+ */
+public class RouterTest {
+
+    private static HttpResponse respond(String text) {
+        return new HttpResponse.Builder().status(200, "OK").body(text).build();
+    }
+
+    private static String route(Router router, String method, String path) {
+        String serialized = router.handle(new HttpRequest(method, path, Collections.emptyMap(), null)).toString();
+        return serialized.substring(serialized.indexOf("\r\n\r\n") + 4);
+    }
+
+    private final Router router = new Router()
+            .route("GET", "/", (request, params) -> respond("all"))
+            .route("GET", "/{id}", (request, params) -> respond("one " + params[0]))
+            .route("GET", "/sensors/{sensorId}/values/{id}", (request, params) -> respond(params[0] + ":" + params[1]))
+            .fallback("GET", (request, params) -> respond("fallback"))
+            .methodNotAllowed((request, params) -> respond("not allowed"));
+
+    /**
+     * Tests literal, single parameter and nested templates.
+     */
+    @Test
+    public void testMatchesTemplates() {
+        assertEquals("all", route(router, "GET", "/"));
+        assertEquals("one abc-123", route(router, "GET", "/abc-123"));
+        assertEquals("7:42", route(router, "GET", "/sensors/7/values/42"));
+        assertEquals("one abc", route(router, "get", "/abc"));
+    }
+
+    /**
+     * Tests that empty segments, trailing slashes and wrong literals fall through.
+     */
+    @Test
+    public void testRejectsNonMatchingPaths() {
+        assertEquals("fallback", route(router, "GET", "//"));
+        assertEquals("fallback", route(router, "GET", "/abc/"));
+        assertEquals("fallback", route(router, "GET", "/a/b"));
+        assertEquals("fallback", route(router, "GET", "/sensor/7/values/42"));
+        assertEquals("fallback", route(router, "GET", "/sensors/7/values/"));
+        assertEquals("fallback", route(router, "GET", ""));
+        assertEquals("not allowed", route(router, "PATCH", "/abc"));
+    }
+
+    /**
+     * Tests that templates are validated when a route is added.
+     */
+    @Test
+    public void testRejectsInvalidTemplates() {
+        assertThrows(IllegalArgumentException.class, () -> new Router().route("GET", "abc", (request, params) -> null));
+        assertThrows(IllegalArgumentException.class, () -> new Router().route("GET", "/a//b", (request, params) -> null));
+    }
+}
@@ -0,0 +1,117 @@
+package org.example;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares schema version 1 of database.proto (temperature and id as text) with version 2 (hundredths
+ * or double, id as 16 bytes) for a page of StreamAll: encoding the requests of the readings on the
+ * http-server, and decoding a page of stored entries into SensorData. The serialized sizes per reading
+ * are the counters of {@link #sizes}, which is run once.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=SensorDataEncodingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorDataEncodingBenchmark {
+
+    private static final int PAGE_SIZE = 500;
+
+    @Param({"text", "compact"})
+    public String schema;
+
+    private SensorData[] readings;
+    private byte[] page;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long requestBytesPerReading;
+        public long pageBytesPerReading;
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        readings = new SensorData[PAGE_SIZE];
+        SensorDataPage.Builder builder = SensorDataPage.newBuilder();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            // Mostly readings with one decimal, some with full double precision
+            double temperature = i % 4 == 0 ? random.nextDouble() * 40 : (150 + random.nextInt(200)) / 10.0;
+            readings[i] = SensorData.builder()
+                    .id(UUID.randomUUID().toString())
+                    .sensorId(random.nextInt(1000))
+                    .temperature(temperature)
+                    .build();
+            builder.addEntries(stored(readings[i], System.currentTimeMillis()));
+        }
+        page = builder.build().toByteArray();
+    }
+
+    private SensorDataStored stored(SensorData reading, long timestamp) {
+        SensorDataStored.Builder entry = SensorDataStored.newBuilder()
+                .setSensorId(reading.getSensorId())
+                .setTimestamp(timestamp);
+        if ("text".equals(schema)) {
+            return entry.setId(reading.getId()).setTemperature(String.valueOf(reading.getTemperature())).build();
+        }
+        SensorDataRequest compact = reading.toGrpcRequest();
+        if (compact.hasTemperatureCenti()) {
+            entry.setTemperatureCenti(compact.getTemperatureCenti());
+        } else {
+            entry.setTemperatureValue(compact.getTemperatureValue());
+        }
+        UUID id = UUID.fromString(reading.getId());
+        return entry.setUuid(ByteString.copyFrom(ByteBuffer.allocate(16)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .array())).build();
+    }
+
+    @Benchmark
+    public long encode() {
+        long bytes = 0;
+        for (SensorData reading : readings) {
+            SensorDataRequest request = "text".equals(schema)
+                    ? SensorDataRequest.newBuilder()
+                            .setSensorId(reading.getSensorId())
+                            .setTemperature(String.valueOf(reading.getTemperature()))
+                            .build()
+                    : reading.toGrpcRequest();
+            bytes += request.toByteArray().length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public double decode() throws InvalidProtocolBufferException {
+        double sum = 0;
+        for (SensorDataStored entry : SensorDataPage.parseFrom(page).getEntriesList()) {
+            SensorData data = SensorData.fromGrpcStored(entry);
+            sum += data.getTemperature() + data.getId().length();
+        }
+        return sum;
+    }
+
+    /**
+     * Only reports the sizes; counters of repeated iterations would be summed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void sizes(Sizes sizes) {
+        sizes.requestBytesPerReading = encode() / PAGE_SIZE;
+        sizes.pageBytesPerReading = page.length / PAGE_SIZE;
+    }
+}
@@ -0,0 +1,137 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import org.example.SensorData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the primitive columnar storage.
+ */
+public class ColumnarDataStorageTest {
+    private final Gson gson = new Gson();
+    private ColumnarDataStorage storage;
+
+    @BeforeEach
+    public void setUp() {
+        storage = new ColumnarDataStorage();
+    }
+
+    private SensorData[] all() {
+        return gson.fromJson(storage.readAll(), SensorData[].class);
+    }
+
+    private static SensorData sensor(int sensorId, double temperature) {
+        return SensorData.builder().sensorId(sensorId).temperature(temperature).build();
+    }
+
+    /**
+     * Tests that the JSON matches what Gson produces for the same reading.
+     */
+    @Test
+    public void testJsonMatchesGson() {
+        storage.create(sensor(42, 21.5));
+        SensorData stored = all()[0];
+
+        assertEquals(gson.toJson(stored), storage.read(stored.getId()));
+        assertEquals("[" + gson.toJson(stored) + "]", storage.readAll());
+        assertEquals("[]", new ColumnarDataStorage().readAll());
+    }
+
+    /**
+     * Tests insertion order, updates in place, deletes and ids that are not UUIDs.
+     */
+    @Test
+    public void testCrudKeepsInsertionOrder() {
+        for (int i = 0; i < 4; i++) {
+            storage.create(sensor(i, i + 0.25));
+        }
+        SensorData[] created = all();
+
+        assertTrue(storage.update(SensorData.builder().id(created[2].getId()).sensorId(9).temperature(-3.0).build()));
+        assertTrue(storage.delete(created[0].getId()));
+        assertFalse(storage.delete(created[0].getId()));
+        assertNull(storage.read(created[0].getId()));
+        assertNull(storage.read("not-a-uuid"));
+        assertFalse(storage.update(sensor(1, 1)));
+        assertFalse(storage.update(SensorData.builder().id("abc").sensorId(1).temperature(1).build()));
+
+        SensorData[] remaining = all();
+        assertEquals(3, remaining.length);
+        assertEquals(3, storage.size());
+        assertEquals(1, remaining[0].getSensorId());
+        assertEquals(9, remaining[1].getSensorId());
+        assertEquals(-3.0, remaining[1].getTemperature());
+        assertEquals(3, remaining[2].getSensorId());
+
+        storage.clear();
+        assertEquals(0, storage.size());
+        assertEquals("[]", storage.readAll());
+    }
+
+    /**
+     * Tests growth over several segments and index rehashes, including tombstones.
+     */
+    @Test
+    public void testGrowsAcrossSegments() {
+        int count = 50_000;
+        for (int i = 0; i < count; i++) {
+            storage.create(sensor(i, i));
+        }
+        SensorData[] created = all();
+        assertEquals(count, created.length);
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, created[i].getSensorId());
+            ids.add(created[i].getId());
+            if (i % 3 == 0) {
+                assertTrue(storage.delete(created[i].getId()));
+            }
+        }
+        assertEquals(count, ids.size());
+
+        for (int i = 0; i < 20_000; i++) {
+            storage.create(sensor(-1, 0));
+        }
+        for (int i = 0; i < count; i++) {
+            String json = storage.read(created[i].getId());
+            if (i % 3 == 0) {
+                assertNull(json);
+            } else {
+                assertEquals(i, gson.fromJson(json, SensorData.class).getSensorId());
+            }
+        }
+        assertEquals(count - (count + 2) / 3 + 20_000, storage.size());
+    }
+
+    /**
+     * Tests that the statistics per sensor leave out deleted readings.
+     */
+    @Test
+    public void testStatsSkipDeletedReadings() {
+        storage.create(sensor(7, 10.0));
+        storage.create(sensor(7, 30.0));
+        storage.create(sensor(3, 5.0));
+        storage.create(sensor(7, 100.0));
+        assertTrue(storage.delete(all()[3].getId()));
+
+        List<SensorStats> stats = storage.stats(null);
+        assertEquals(2, stats.size());
+        assertEquals(3, stats.get(0).getSensorId());
+        assertEquals(7, stats.get(1).getSensorId());
+        assertEquals(2, stats.get(1).getCount());
+        assertEquals(10.0, stats.get(1).getMin());
+        assertEquals(30.0, stats.get(1).getMax());
+        assertEquals(20.0, stats.get(1).getAvg());
+
+        assertEquals(1, storage.stats(3).size());
+        assertTrue(storage.stats(4).isEmpty());
+    }
+}
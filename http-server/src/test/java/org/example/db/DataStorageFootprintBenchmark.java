@@ -0,0 +1,63 @@
+package org.example.db;
+
+import org.example.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap used per stored reading by the in-memory stores.
+ * The bytesPerReading counter is the result; the measured time is only the time to fill the store.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=DataStorageFootprintBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-XX:+UseSerialGC"})
+@State(Scope.Benchmark)
+public class DataStorageFootprintBenchmark {
+
+    @Param({"1000000"})
+    public int readings;
+
+    @Param({"list", "indexed", "columnar"})
+    public String storage;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerReading;
+    }
+
+    @Benchmark
+    public DataStorage fill(Footprint footprint) {
+        long before = usedHeap();
+        DataStorage dataStorage;
+        switch (storage) {
+            case "indexed":
+                dataStorage = new IndexedInMemoryDataStorage();
+                break;
+            case "columnar":
+                dataStorage = new ColumnarDataStorage();
+                break;
+            default:
+                dataStorage = new InMemoryDataStorage();
+                break;
+        }
+        for (int i = 0; i < readings; i++) {
+            dataStorage.create(SensorData.builder().sensorId(i % 100).temperature(20.0 + i % 10).build());
+        }
+        footprint.bytesPerReading = (usedHeap() - before) / readings;
+        return dataStorage;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
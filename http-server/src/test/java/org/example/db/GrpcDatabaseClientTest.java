@@ -0,0 +1,286 @@
+package org.example.db;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.example.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the deadlines, retries and channel pool of the {@link GrpcDatabaseClient} against a local
+ * database stub, and the {@link GrpcDataStorage} calls built on them.
+ */
+public class GrpcDatabaseClientTest {
+
+    private static final String SLOW = "slow";
+
+    private final Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private final Set<String> schemaVersions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger reads = new AtomicInteger();
+    private final ConcurrentHashMap<String, SensorDataStored> entries = new ConcurrentHashMap<>();
+    private final Set<String> deletes = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger deletesInFlight = new AtomicInteger();
+    private final AtomicInteger maxDeletesInFlight = new AtomicInteger();
+    private Server server;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ServerInterceptor remoteAddresses = new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                connections.add(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+                schemaVersions.add(String.valueOf(headers.get(GrpcDatabaseClient.SCHEMA_VERSION_HEADER)));
+                return next.startCall(call, headers);
+            }
+        };
+        server = NettyServerBuilder.forPort(0)
+                .addService(ServerInterceptors.intercept(new StubDatabase(), remoteAddresses))
+                .build()
+                .start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.shutdownNow();
+    }
+
+    /**
+     * Tests that a call the database does not answer in time fails at its deadline.
+     */
+    @Test
+    public void testSlowCallFailsAtDeadline() {
+        try (GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 1, 200)) {
+            long start = System.nanoTime();
+            StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                    () -> client.update(SLOW, SensorDataRequest.newBuilder().setTemperature("20.0").build()));
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(Status.Code.DEADLINE_EXCEEDED, e.getStatus().getCode());
+            assertTrue(millis < 1500, "The call should have ended at its deadline, took " + millis + " ms");
+        }
+    }
+
+    /**
+     * Tests that a read is retried while the database is unavailable.
+     */
+    @Test
+    public void testReadIsRetriedWhenUnavailable() {
+        try (GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 1, 5000)) {
+            assertEquals("read-1", client.read("read-1").getId());
+            assertEquals(2, reads.get(), "The first attempt fails, the retry succeeds");
+        }
+    }
+
+    /**
+     * Tests that concurrent calls use all connections of the pool and complete asynchronously.
+     */
+    @Test
+    public void testCallsAreSpreadOverChannels() {
+        try (GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 3, 5000)) {
+            List<CompletableFuture<Response>> calls = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                calls.add(client.createAsync(SensorDataRequest.newBuilder().setSensorId(i).setTemperature("20.0").build()));
+            }
+            for (CompletableFuture<Response> call : calls) {
+                assertTrue(call.join().getSuccess());
+            }
+            assertEquals(3, connections.size());
+        }
+    }
+
+    /**
+     * Tests that the client announces schema version 2 and that its entries round-trip through the compact fields.
+     */
+    @Test
+    public void testCompactSchemaRoundTrip() {
+        try (GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 1, 5000)) {
+            String id = UUID.randomUUID().toString();
+            for (double temperature : new double[]{21.5, -3.25, 0.1 + 0.2, 1e9}) {
+                SensorData written = SensorData.builder().id(id).sensorId(7).temperature(temperature).build();
+                assertTrue(client.update(id, written.toGrpcRequest()).getSuccess());
+
+                SensorData read = SensorData.fromGrpcStored(client.read(id));
+                assertEquals(id, read.getId());
+                assertEquals(7, read.getSensorId());
+                assertEquals(temperature, read.getTemperature());
+            }
+            assertEquals(Set.of(GrpcDatabaseClient.SCHEMA_VERSION), schemaVersions);
+        }
+    }
+
+    /**
+     * Tests that clear deletes entries the database sends with the compact id only, announcing schema
+     * version 2 on the scan and on every delete, and that it keeps a bounded number of deletes running.
+     */
+    @Test
+    public void testClearDeletesCompactEntries() {
+        List<String> ids = new ArrayList<>();
+        try (GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 1, 5000)) {
+            for (int i = 0; i < 3 * GrpcDataStorage.MAX_DELETES_IN_FLIGHT; i++) {
+                String id = UUID.randomUUID().toString();
+                ids.add(id);
+                assertTrue(client.update(id, SensorData.builder().id(id).sensorId(i).temperature(20).build()
+                        .toGrpcRequest()).getSuccess());
+            }
+        }
+        assertTrue(entries.values().stream().allMatch(entry -> entry.getId().isEmpty()));
+
+        GrpcDataStorage storage = new GrpcDataStorage("localhost", server.getPort(), 2, 5000);
+        try {
+            storage.clear();
+        } finally {
+            storage.shutdown();
+        }
+        assertTrue(entries.isEmpty(), "Left over: " + entries.keySet());
+        assertEquals(ids.size(), deletes.size());
+        assertTrue(deletes.containsAll(ids));
+        assertEquals(Set.of(GrpcDatabaseClient.SCHEMA_VERSION), schemaVersions);
+        assertTrue(maxDeletesInFlight.get() <= GrpcDataStorage.MAX_DELETES_IN_FLIGHT,
+                maxDeletesInFlight.get() + " deletes ran at once");
+    }
+
+    /**
+     * Tests that a group commit reports the operations the database wrote, and all of them for a database
+     * that does not report them.
+     */
+    @Test
+    public void testCommitGroupReadsWrittenOperations() {
+        GrpcDataStorage storage = new GrpcDataStorage("localhost", server.getPort(), 1, 5000);
+        try {
+            assertArrayEquals(new boolean[] {true, false}, storage.commitGroup("tx-partial", 2));
+            assertArrayEquals(new boolean[] {true, true}, storage.commitGroup("tx-unreported", 2));
+            assertNull(storage.commitGroup("tx-unknown", 2));
+        } finally {
+            storage.shutdown();
+        }
+    }
+
+    /**
+     * Tests that calls fail once the client is closed.
+     */
+    @Test
+    public void testClosedClientRejectsCalls() {
+        GrpcDatabaseClient client = new GrpcDatabaseClient("localhost", server.getPort(), 1, 5000);
+        assertTrue(client.create(SensorDataRequest.newBuilder().setTemperature("20.0").build()).getSuccess());
+        client.close();
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                () -> client.create(SensorDataRequest.newBuilder().setTemperature("20.0").build()));
+        assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+    }
+
+    /**
+     * Database that creates everything and answers updates of {@link #SLOW} only after two seconds. Reads
+     * fail every other time, so every read succeeds on its first retry; updated entries are sent back with
+     * the compact fields, which is also how the scan sends them. Deletes take 100 milliseconds, so that the
+     * ones sent at once overlap. Commits answer by transaction id.
+     */
+    private final class StubDatabase extends DatabaseServiceGrpc.DatabaseServiceImplBase {
+        @Override
+        public void create(SensorDataRequest request, StreamObserver<Response> responseObserver) {
+            responseObserver.onNext(Response.newBuilder().setSuccess(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void read(Key request, StreamObserver<SensorDataStored> responseObserver) {
+            if (reads.incrementAndGet() % 2 == 1) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Starting").asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(entries.getOrDefault(request.getId(), SensorDataStored.newBuilder().setId(request.getId()).build()));
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void update(UpdateRequest request, StreamObserver<Response> responseObserver) {
+            if (SLOW.equals(request.getId())) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                UUID id = UUID.fromString(request.getId());
+                SensorDataRequest data = request.getUpdatedData();
+                SensorDataStored.Builder entry = SensorDataStored.newBuilder()
+                        .setUuid(ByteString.copyFrom(ByteBuffer.allocate(16)
+                                .putLong(id.getMostSignificantBits())
+                                .putLong(id.getLeastSignificantBits())
+                                .array()))
+                        .setSensorId(data.getSensorId());
+                if (data.hasTemperatureCenti()) {
+                    entry.setTemperatureCenti(data.getTemperatureCenti());
+                } else {
+                    entry.setTemperatureValue(data.getTemperatureValue());
+                }
+                entries.put(request.getId(), entry.build());
+            }
+            responseObserver.onNext(Response.newBuilder().setSuccess(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void delete(DeleteRequest request, StreamObserver<Response> responseObserver) {
+            deletes.add(request.getId());
+            maxDeletesInFlight.accumulateAndGet(deletesInFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deletesInFlight.decrementAndGet();
+            boolean removed = entries.remove(request.getId()) != null;
+            responseObserver.onNext(Response.newBuilder().setId(request.getId()).setSuccess(removed).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void commit(TransactionId request, StreamObserver<Response> responseObserver) {
+            Response.Builder response = Response.newBuilder().setId(request.getTransactionId());
+            switch (request.getTransactionId()) {
+                case "tx-partial":
+                    response.setSuccess(true).addOperationCommitted(true).addOperationCommitted(false);
+                    break;
+                case "tx-unreported":
+                    response.setSuccess(true);
+                    break;
+                default:
+                    response.setSuccess(false);
+                    break;
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void streamAll(ScanRequest request, StreamObserver<SensorDataPage> responseObserver) {
+            responseObserver.onNext(SensorDataPage.newBuilder().addAllEntries(entries.values()).build());
+            responseObserver.onCompleted();
+        }
+    }
+}
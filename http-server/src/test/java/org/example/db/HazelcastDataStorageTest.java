@@ -0,0 +1,306 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.nearcache.NearCacheStats;
+import org.example.SensorData;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of {@link HazelcastDataStorage} against a member in the same JVM. Every storage gets a client of
+ * its own, so that the writes of one reach the near cache of another only through the cluster.
+ */
+public class HazelcastDataStorageTest {
+    private static final String CLUSTER = "storage-test";
+
+    private static HazelcastInstance member;
+    private final Gson gson = new Gson();
+    private final List<HazelcastInstance> clients = new ArrayList<>();
+
+    @BeforeAll
+    public static void startMember() {
+        member = Hazelcast.newHazelcastInstance(memberConfig(CLUSTER));
+    }
+
+    private static Config memberConfig(String cluster) {
+        Config config = new Config();
+        config.setClusterName(cluster);
+        config.setProperty("hazelcast.logging.type", "none");
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        // Sends invalidations at once instead of in batches every 10 seconds
+        config.setProperty("hazelcast.map.invalidation.batch.enabled", "false");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        return config;
+    }
+
+    @AfterAll
+    public static void stopMember() {
+        member.shutdown();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        member.getMap("sensorData").clear();
+        for (HazelcastInstance client : clients) {
+            client.shutdown();
+        }
+    }
+
+    private HazelcastDataStorage storage(HazelcastValueFormat format, boolean nearCached) {
+        return storage(member, format, nearCached);
+    }
+
+    private HazelcastDataStorage storage(HazelcastInstance member, HazelcastValueFormat format, boolean nearCached) {
+        ClientConfig config = new ClientConfig();
+        config.setClusterName(member.getConfig().getClusterName());
+        config.setProperty("hazelcast.logging.type", "none");
+        config.getNetworkConfig().addAddress("127.0.0.1:" + member.getCluster().getLocalMember().getAddress().getPort());
+        format.configure(config);
+        if (nearCached) {
+            config.addNearCacheConfig(HazelcastDataStorage.nearCacheConfig(100, 60, EvictionPolicy.LRU));
+        }
+        HazelcastInstance client = HazelcastClient.newHazelcastClient(config);
+        clients.add(client);
+        return new HazelcastDataStorage(client, nearCached, null, HazelcastDataStorage.DEFAULT_PREPARE_TIMEOUT_MS,
+                format);
+    }
+
+    private static SensorData reading(String id, int sensorId, double temperature) {
+        return SensorData.builder().id(id).sensorId(sensorId).temperature(temperature).build();
+    }
+
+    private SensorData read(HazelcastDataStorage storage, String id) {
+        String json = storage.read(id);
+        return json == null ? null : gson.fromJson(json, SensorData.class);
+    }
+
+    private static NearCacheStats nearCacheStats(HazelcastDataStorage storage) {
+        return storage.getHazelcastInstance().getMap("sensorData").getLocalMapStats().getNearCacheStats();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests that a cached entry is served from the near cache and that its own update replaces it at once.
+     */
+    @Test
+    public void testNearCacheServesRepeatedReads() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.JSON, true);
+        storage.create(reading("a", 1, 20));
+
+        assertEquals(20, read(storage, "a").getTemperature());
+        assertEquals(20, read(storage, "a").getTemperature());
+        assertEquals(1, nearCacheStats(storage).getHits(), "The second read should hit the near cache");
+
+        assertTrue(storage.update(reading("a", 1, 21)));
+        assertEquals(21, read(storage, "a").getTemperature(), "An update should invalidate the own near cache");
+    }
+
+    /**
+     * Tests that updates and deletes of another client invalidate the cached entry.
+     */
+    @Test
+    public void testNearCacheIsInvalidatedByOtherClients() throws Exception {
+        HazelcastDataStorage cached = storage(HazelcastValueFormat.JSON, true);
+        HazelcastDataStorage writer = storage(HazelcastValueFormat.JSON, false);
+        writer.create(reading("a", 1, 20));
+        assertEquals(20, read(cached, "a").getTemperature());
+        assertEquals(20, read(cached, "a").getTemperature());
+        assertEquals(1, nearCacheStats(cached).getOwnedEntryCount());
+
+        assertTrue(writer.update(reading("a", 1, 21)));
+        awaitTrue(() -> read(cached, "a").getTemperature() == 21, "The update should invalidate the near cache");
+
+        assertTrue(writer.delete("a"));
+        awaitTrue(() -> cached.read("a") == null, "The delete should invalidate the near cache");
+        assertEquals("[]", cached.readAll());
+    }
+
+    /**
+     * Tests that a reading keeps its fields through Compact serialization and through the JSON the
+     * prepare log keeps values as.
+     */
+    @Test
+    public void testCompactRoundTrip() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.COMPACT, false);
+        SensorData original = SensorData.builder().id("a").sensorId(7).temperature(21.5).timestamp(1000L).build();
+        storage.create(original);
+
+        assertInstanceOf(SensorData.class, storage.getHazelcastInstance().getMap("sensorData").get("a"));
+        assertSameReading(original, read(storage, "a"));
+        Object value = HazelcastValueFormat.COMPACT.toValue(original);
+        SensorData logged = (SensorData) HazelcastValueFormat.COMPACT.fromJson(HazelcastValueFormat.toJson(value));
+        assertSameReading(original, logged);
+    }
+
+    /**
+     * Tests that storages of either format read the entries written in the other one, so that the format
+     * can be changed without clearing the map.
+     */
+    @Test
+    public void testReadsEntriesOfBothFormats() {
+        HazelcastDataStorage json = storage(HazelcastValueFormat.JSON, false);
+        HazelcastDataStorage compact = storage(HazelcastValueFormat.COMPACT, true);
+        SensorData fromJson = reading("j", 1, 20);
+        SensorData fromCompact = reading("c", 1, 22);
+        json.create(fromJson);
+        compact.create(fromCompact);
+
+        for (HazelcastDataStorage storage : List.of(json, compact)) {
+            assertSameReading(fromJson, read(storage, "j"));
+            assertSameReading(fromCompact, read(storage, "c"));
+            assertEquals(2, gson.fromJson(storage.readAll(), SensorData[].class).length);
+            List<SensorStats> stats = storage.stats(null);
+            assertEquals(1, stats.size());
+            assertEquals(2, stats.get(0).getCount());
+            assertEquals(21, stats.get(0).getAvg(), 1e-9);
+        }
+    }
+
+    /**
+     * Tests that an update of a missing entry, one conditional replace, does not create it.
+     */
+    @Test
+    public void testUpdateOfMissingEntryCreatesNothing() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.JSON, false);
+        assertFalse(storage.update(reading("missing", 1, 20)));
+        assertNull(storage.read("missing"));
+        assertEquals(0, member.getMap("sensorData").size());
+    }
+
+    /**
+     * Tests that a group commit writes its creates, updates and batches with one setAll and runs its
+     * deletes alongside.
+     */
+    @Test
+    public void testGroupCommitWritesAndDeletes() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.JSON, false);
+        storage.createAll(List.of(reading("updated", 1, 20), reading("deleted", 1, 20)));
+
+        boolean[] prepared = storage.prepareGroup("tx-group", List.of(
+                new TwoPCCoordinator.TransactionRequest("UPDATE", reading("updated", 1, 21)),
+                new TwoPCCoordinator.TransactionRequest("DELETE", reading("deleted", 1, 0)),
+                new TwoPCCoordinator.TransactionRequest("CREATE", reading("created", 2, 22)),
+                TwoPCCoordinator.TransactionRequest.batchCreate(
+                        List.of(reading("batch-1", 3, 23), reading("batch-2", 3, 24)))));
+        assertArrayEquals(new boolean[] {true, true, true, true}, prepared);
+        assertTrue(storage.commit("tx-group"));
+
+        assertEquals(21, read(storage, "updated").getTemperature());
+        assertNull(storage.read("deleted"));
+        assertEquals(22, read(storage, "created").getTemperature());
+        assertEquals(23, read(storage, "batch-1").getTemperature());
+        assertEquals(24, read(storage, "batch-2").getTemperature());
+        assertEquals(4, member.getMap("sensorData").size());
+        assertTrue(storage.inDoubtTransactions().isEmpty());
+    }
+
+    /**
+     * Tests that a batch with an id that exists is rejected by its pipelined reads, on its own and within
+     * a group, and that nothing of it is written.
+     */
+    @Test
+    public void testBatchWithExistingIdIsRejected() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.JSON, false);
+        storage.create(reading("existing", 1, 20));
+        List<SensorData> batch = List.of(reading("new", 1, 21), reading("existing", 1, 22));
+
+        assertFalse(storage.prepareAll("tx-batch", batch));
+        assertTrue(storage.inDoubtTransactions().isEmpty(), "A rejected batch should not stay prepared");
+
+        boolean[] prepared = storage.prepareGroup("tx-group", List.of(
+                TwoPCCoordinator.TransactionRequest.batchCreate(batch),
+                new TwoPCCoordinator.TransactionRequest("CREATE", reading("other", 2, 23))));
+        assertArrayEquals(new boolean[] {false, true}, prepared);
+        assertTrue(storage.commit("tx-group"));
+
+        assertNull(storage.read("new"));
+        assertEquals(20, read(storage, "existing").getTemperature());
+        assertEquals(23, read(storage, "other").getTemperature());
+    }
+
+    /**
+     * Tests that the statistics of all sensors and of one sensor are aggregated on the member.
+     */
+    @Test
+    public void testStatsPerSensor() {
+        HazelcastDataStorage storage = storage(HazelcastValueFormat.COMPACT, false);
+        storage.createAll(List.of(reading("a", 1, 20), reading("b", 1, 24), reading("c", 2, 18)));
+
+        List<SensorStats> all = storage.stats(null);
+        assertEquals(2, all.size());
+        assertEquals(1, all.get(0).getSensorId());
+        assertEquals(2, all.get(0).getCount());
+        assertEquals(20, all.get(0).getMin());
+        assertEquals(24, all.get(0).getMax());
+        assertEquals(22, all.get(0).getAvg(), 1e-9);
+        assertEquals(2, all.get(1).getSensorId());
+        assertEquals(1, all.get(1).getCount());
+
+        List<SensorStats> one = storage.stats(2);
+        assertEquals(1, one.size());
+        assertEquals(18, one.get(0).getAvg(), 1e-9);
+        assertTrue(storage.stats(3).isEmpty());
+    }
+
+    /**
+     * Tests that the statistics are aggregated by the client when the members cannot load the aggregator,
+     * as members without it on their classpath and without user code deployment do.
+     */
+    @Test
+    public void testStatsWithoutAggregatorOnMembers() {
+        Config config = memberConfig("storage-test-plain");
+        config.setClassLoader(new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.equals(SensorStatsAggregator.class.getName())) throw new ClassNotFoundException(name);
+                return super.loadClass(name, resolve);
+            }
+        });
+        HazelcastInstance plain = Hazelcast.newHazelcastInstance(config);
+        try {
+            HazelcastDataStorage storage = storage(plain, HazelcastValueFormat.JSON, false);
+            storage.createAll(List.of(reading("a", 1, 20), reading("b", 1, 24), reading("c", 2, 18)));
+
+            List<SensorStats> all = storage.stats(null);
+            assertEquals(2, all.size());
+            assertEquals(2, all.get(0).getCount());
+            assertEquals(22, all.get(0).getAvg(), 1e-9);
+            assertEquals(18, all.get(1).getMax());
+            List<SensorStats> one = storage.stats(1);
+            assertEquals(1, one.size());
+            assertEquals(24, one.get(0).getMax());
+        } finally {
+            plain.shutdown();
+        }
+    }
+
+    private static void assertSameReading(SensorData expected, SensorData actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSensorId(), actual.getSensorId());
+        assertEquals(expected.getTemperature(), actual.getTemperature());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    }
+}
@@ -0,0 +1,109 @@
+package org.example.db;
+
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.LocalMapStats;
+import com.hazelcast.spi.impl.SerializationServiceSupport;
+import org.example.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the value formats of {@link HazelcastDataStorage}: put and get latency of a client against a
+ * member in the same JVM, without near cache, so every call crosses the loopback connection. The
+ * serialized bytes per value and the memory the member uses per entry are the counters of
+ * {@link #sizes}, which is run once.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=HazelcastValueFormatBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dhazelcast.logging.type=none", "-Dhazelcast.phone.home.enabled=false"})
+@State(Scope.Benchmark)
+public class HazelcastValueFormatBenchmark {
+
+    private static final int ENTRIES = 10_000;
+
+    @Param({"JSON", "COMPACT"})
+    public HazelcastValueFormat format;
+
+    private HazelcastInstance member;
+    private HazelcastInstance client;
+    private IMap<String, Object> map;
+    private String[] keys;
+    private SensorData[] readings;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long valueBytes;
+        public long memberBytesPerEntry;
+    }
+
+    @Setup
+    public void setUp() {
+        Config config = new Config();
+        config.setClusterName("benchmark");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        member = Hazelcast.newHazelcastInstance(config);
+
+        ClientConfig clientConfig = new ClientConfig();
+        clientConfig.setClusterName("benchmark");
+        clientConfig.getNetworkConfig().addAddress("127.0.0.1:" + member.getCluster().getLocalMember().getAddress().getPort());
+        format.configure(clientConfig);
+        client = HazelcastClient.newHazelcastClient(clientConfig);
+        map = client.getMap("sensorData");
+
+        keys = new String[ENTRIES];
+        readings = new SensorData[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = UUID.randomUUID().toString();
+            readings[i] = SensorData.builder()
+                    .id(keys[i])
+                    .sensorId(i % 1000)
+                    .temperature((150 + i % 200) / 10.0)
+                    .build();
+            map.put(keys[i], format.toValue(readings[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        member.shutdown();
+    }
+
+    @Benchmark
+    public Object put() {
+        int i = ThreadLocalRandom.current().nextInt(ENTRIES);
+        return map.put(keys[i], format.toValue(readings[i]));
+    }
+
+    @Benchmark
+    public String get() {
+        return HazelcastValueFormat.toJson(map.get(keys[ThreadLocalRandom.current().nextInt(ENTRIES)]));
+    }
+
+    /**
+     * Only reports the sizes; counters of repeated iterations would be summed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void sizes(Sizes sizes) {
+        sizes.valueBytes = ((SerializationServiceSupport) client).getSerializationService()
+                .toData(format.toValue(readings[0])).totalSize();
+        LocalMapStats stats = member.getMap("sensorData").getLocalMapStats();
+        sizes.memberBytesPerEntry = stats.getOwnedEntryMemoryCost() / stats.getOwnedEntryCount();
+    }
+}
@@ -0,0 +1,160 @@
+package org.example.db;
+
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.client.impl.clientside.HazelcastClientProxy;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.example.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the write paths of {@link HazelcastDataStorage} against a member in the same JVM, without near
+ * cache: a plain create and update, a 2PC update (prepare and commit) and a 2PC group of 8 updates and
+ * 8 creates. The requests the client sends per written entry are the counter of {@link #requests}, which
+ * is run once; a write that waits for several requests one after another takes that many round trips.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=HazelcastWriteBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dhazelcast.logging.type=none", "-Dhazelcast.phone.home.enabled=false"})
+@State(Scope.Benchmark)
+public class HazelcastWriteBenchmark {
+
+    private static final int ENTRIES = 10_000;
+    private static final int GROUP_SIZE = 16;
+    private static final int COUNTED_WRITES = 1000;
+
+    @Param({"create", "update", "2pc-update", "2pc-group"})
+    public String operation;
+
+    private HazelcastInstance member;
+    private HazelcastInstance client;
+    private HazelcastDataStorage storage;
+    private String[] ids;
+    private final AtomicLong transactions = new AtomicLong();
+    private long writes;
+    private final LongAdder requests = new LongAdder();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Requests {
+        public double requestsPerWrite;
+    }
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Config config = new Config();
+        config.setClusterName("benchmark");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        member = Hazelcast.newHazelcastInstance(config);
+
+        ClientConfig clientConfig = new ClientConfig();
+        clientConfig.setClusterName("benchmark");
+        clientConfig.getNetworkConfig().addAddress("127.0.0.1:" + member.getCluster().getLocalMember().getAddress().getPort());
+        HazelcastValueFormat.JSON.configure(clientConfig);
+        client = HazelcastClient.newHazelcastClient(clientConfig);
+        storage = new HazelcastDataStorage(client, false, null, HazelcastDataStorage.DEFAULT_PREPARE_TIMEOUT_MS,
+                HazelcastValueFormat.JSON);
+
+        ids = new String[ENTRIES];
+        List<SensorData> readings = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            readings.add(reading(ids[i]));
+        }
+        storage.createAll(readings);
+        countRequests();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        member.shutdown();
+    }
+
+    private static SensorData reading(String id) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return SensorData.builder().id(id).sensorId(random.nextInt(1000)).temperature(random.nextInt(400) / 10.0).build();
+    }
+
+    private String existingId() {
+        return ids[ThreadLocalRandom.current().nextInt(ENTRIES)];
+    }
+
+    /**
+     * Counts the requests the client sends: each one is registered under its correlation id until the
+     * response arrives. The invocation metrics of the client are no use here, they also count the
+     * callbacks on futures.
+     */
+    private void countRequests() throws ReflectiveOperationException {
+        Object invocationService = ((HazelcastClientProxy) client).client.getInvocationService();
+        Field invocations = invocationService.getClass().getDeclaredField("invocations");
+        invocations.setAccessible(true);
+        invocations.set(invocationService, new ConcurrentHashMap<Long, Object>() {
+            @Override
+            public Object put(Long correlationId, Object invocation) {
+                requests.increment();
+                return super.put(correlationId, invocation);
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean write() {
+        String txId = "tx-" + transactions.incrementAndGet();
+        switch (operation) {
+            case "create":
+                writes++;
+                return storage.create(reading(UUID.randomUUID().toString()));
+            case "update":
+                writes++;
+                return storage.update(reading(existingId()));
+            case "2pc-update":
+                writes++;
+                return storage.prepare(txId, "UPDATE", reading(existingId())) && storage.commit(txId);
+            default:
+                List<TwoPCCoordinator.TransactionRequest> group = new ArrayList<>(GROUP_SIZE);
+                for (int i = 0; i < GROUP_SIZE; i++) {
+                    group.add(i % 2 == 0
+                            ? new TwoPCCoordinator.TransactionRequest("UPDATE", reading(existingId()))
+                            : new TwoPCCoordinator.TransactionRequest("CREATE", reading(UUID.randomUUID().toString())));
+                }
+                writes += GROUP_SIZE;
+                storage.prepareGroup(txId, group);
+                return storage.commit(txId);
+        }
+    }
+
+    /**
+     * Only counts the requests of {@value #COUNTED_WRITES} writes; counters of repeated iterations would be
+     * summed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void requests(Requests counters) {
+        long requestsBefore = requests.sum();
+        long writesBefore = writes;
+        for (int i = 0; i < COUNTED_WRITES; i++) {
+            write();
+        }
+        counters.requestsPerWrite = (double) (requests.sum() - requestsBefore) / (writes - writesBefore);
+    }
+}
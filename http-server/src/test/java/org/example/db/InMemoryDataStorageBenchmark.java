@@ -0,0 +1,65 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import org.example.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IndexedInMemoryDataStorage} with the list based {@link InMemoryDataStorage}
+ * for reads and updates by id at different sizes.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=InMemoryDataStorageBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class InMemoryDataStorageBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"list", "indexed"})
+    public String storage;
+
+    private DataStorage dataStorage;
+    private String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataStorage = "indexed".equals(storage) ? new IndexedInMemoryDataStorage() : new InMemoryDataStorage();
+        for (int i = 0; i < entries; i++) {
+            dataStorage.create(SensorData.builder().sensorId(i % 100).temperature(20.0 + i % 10).build());
+        }
+        SensorData[] stored = new Gson().fromJson(dataStorage.readAll(), SensorData[].class);
+        ids = new String[stored.length];
+        for (int i = 0; i < stored.length; i++) {
+            ids[i] = stored[i].getId();
+        }
+    }
+
+    private String randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    @Benchmark
+    public String read() {
+        return dataStorage.read(randomId());
+    }
+
+    @Benchmark
+    public boolean update() {
+        return dataStorage.update(SensorData.builder().id(randomId()).sensorId(1).temperature(21.5).build());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String readConcurrently() {
+        return dataStorage.read(randomId());
+    }
+}
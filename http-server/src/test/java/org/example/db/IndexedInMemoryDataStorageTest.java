@@ -0,0 +1,151 @@
+package org.example.db;
+
+import com.google.gson.Gson;
+import org.example.SensorData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the hash-indexed in-memory storage.
+ */
+public class IndexedInMemoryDataStorageTest {
+    private final Gson gson = new Gson();
+    private IndexedInMemoryDataStorage storage;
+
+    @BeforeEach
+    public void setUp() {
+        storage = new IndexedInMemoryDataStorage();
+    }
+
+    private SensorData[] all() {
+        return gson.fromJson(storage.readAll(), SensorData[].class);
+    }
+
+    private static SensorData sensor(int sensorId, double temperature) {
+        return SensorData.builder().sensorId(sensorId).temperature(temperature).build();
+    }
+
+    /**
+     * Tests that readAll keeps the insertion order across updates and deletes.
+     */
+    @Test
+    public void testKeepsInsertionOrder() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(storage.create(sensor(i, 20.0 + i)));
+        }
+        SensorData[] created = all();
+        assertEquals(5, created.length);
+
+        SensorData changed = SensorData.builder().id(created[1].getId()).sensorId(1).temperature(99.0).build();
+        assertTrue(storage.update(changed));
+        assertTrue(storage.delete(created[3].getId()));
+
+        SensorData[] remaining = all();
+        assertEquals(4, remaining.length);
+        assertEquals(0, remaining[0].getSensorId());
+        assertEquals(99.0, remaining[1].getTemperature());
+        assertEquals(2, remaining[2].getSensorId());
+        assertEquals(4, remaining[3].getSensorId());
+    }
+
+    /**
+     * Tests lookups, updates and deletes of unknown ids.
+     */
+    @Test
+    public void testReadUpdateDeleteById() {
+        storage.create(sensor(7, 21.5));
+        String id = all()[0].getId();
+
+        assertEquals(7, gson.fromJson(storage.read(id), SensorData.class).getSensorId());
+        assertNull(storage.read("unknown"));
+        assertFalse(storage.update(SensorData.builder().id("unknown").sensorId(1).temperature(1).build()));
+        assertFalse(storage.update(sensor(1, 1)));
+        assertFalse(storage.delete("unknown"));
+        assertTrue(storage.delete(id));
+        assertFalse(storage.delete(id));
+        assertNull(storage.read(id));
+
+        storage.create(sensor(8, 22.0));
+        storage.clear();
+        assertEquals("[]", storage.readAll());
+    }
+
+    /**
+     * Tests that scan pages through one sensor and follows entries that move to another sensor.
+     */
+    @Test
+    public void testScanBySensor() {
+        for (int i = 0; i < 10; i++) {
+            storage.create(sensor(i % 2, i));
+        }
+        ScanPage first = storage.scan(new ScanQuery(1, null, 3, null));
+        assertEquals(3, first.getEntries().size());
+        assertNotNull(first.getNextCursor());
+        ScanPage second = storage.scan(new ScanQuery(1, null, 3, first.getNextCursor()));
+        assertEquals(2, second.getEntries().size());
+        assertNull(second.getNextCursor());
+        assertEquals(9.0, second.getEntries().get(1).getTemperature());
+
+        SensorData moved = first.getEntries().get(0);
+        assertTrue(storage.update(SensorData.builder().id(moved.getId()).sensorId(0).temperature(1.0).build()));
+        assertEquals(4, storage.scan(new ScanQuery(1, null, 10, null)).getEntries().size());
+        assertEquals(6, storage.scan(new ScanQuery(0, null, 10, null)).getEntries().size());
+        assertEquals(0, storage.scan(new ScanQuery(null, System.currentTimeMillis() + 60_000, 10, null)).getEntries().size());
+    }
+
+    /**
+     * Tests that concurrent creates and deletes leave both indexes consistent.
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        storage.create(sensor(thread, i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            SensorData[] created = all();
+            assertEquals(4000, created.length);
+
+            futures.clear();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread; i < created.length; i += 8) {
+                        if (i % 2 == 0) {
+                            assertTrue(storage.delete(created[i].getId()));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        SensorData[] remaining = all();
+        assertEquals(2000, remaining.length);
+        for (SensorData data : remaining) {
+            assertNotNull(storage.read(data.getId()));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the records, group fsync and compaction of the {@link TransactionLog}.
+ */
+public class TransactionLogTest {
+
+    @TempDir
+    Path folder;
+
+    /**
+     * Tests that records are read back in order after a reopen, including lazily appended ones.
+     */
+    @Test
+    public void testRecordsSurviveReopen() throws IOException {
+        Path file = folder.resolve("tx.log");
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            assertTrue(log.recoveredEntries().isEmpty());
+            log.append(TransactionLog.PREPARE, "tx-1", "payload".getBytes(StandardCharsets.UTF_8));
+            log.appendLazily(TransactionLog.COMMIT, "tx-1", new byte[0]);
+        }
+
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            List<TransactionLog.Entry> entries = log.recoveredEntries();
+            assertEquals(2, entries.size());
+            assertEquals(TransactionLog.PREPARE, entries.get(0).getType());
+            assertEquals("tx-1", entries.get(0).getTransactionId());
+            assertEquals("payload", new String(entries.get(0).getPayload(), StandardCharsets.UTF_8));
+            assertEquals(TransactionLog.COMMIT, entries.get(1).getType());
+        }
+    }
+
+    /**
+     * Tests that a record cut off by a crash is dropped and the log stays usable behind the last complete one.
+     */
+    @Test
+    public void testIncompleteRecordIsCutOff() throws IOException {
+        Path file = folder.resolve("tx.log");
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            log.append(TransactionLog.COMMIT, "tx-1", new byte[0]);
+        }
+        long complete = Files.size(file);
+        Files.write(file, new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            assertEquals(1, log.recoveredEntries().size());
+            assertEquals(complete, Files.size(file));
+            log.append(TransactionLog.COMMIT, "tx-2", new byte[0]);
+        }
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            assertEquals(2, log.recoveredEntries().size());
+            assertEquals("tx-2", log.recoveredEntries().get(1).getTransactionId());
+        }
+    }
+
+    /**
+     * Tests that concurrent appends share fsyncs.
+     */
+    @Test
+    public void testConcurrentAppendsShareFsyncs() throws Exception {
+        int appends = 800;
+        ExecutorService writers = Executors.newFixedThreadPool(16);
+        try (TransactionLog log = new TransactionLog(folder.resolve("tx.log"), List::of)) {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < appends; i++) {
+                String txId = "tx-" + i;
+                results.add(writers.submit(() -> {
+                    log.append(TransactionLog.COMMIT, txId, new byte[0]);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            assertTrue(log.flushes() < appends, "Expected shared fsyncs, got " + log.flushes() + " for " + appends + " appends");
+        } finally {
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a full log is replaced by the live records, and that appends go on behind them.
+     */
+    @Test
+    public void testCompactionKeepsLiveRecords() throws IOException {
+        Path file = folder.resolve("tx.log");
+        List<TransactionLog.Entry> live = List.of(new TransactionLog.Entry(TransactionLog.COMMIT, "tx-live", new byte[0]));
+        try (TransactionLog log = new TransactionLog(file, () -> live, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                log.append(TransactionLog.COMMIT, "tx-" + i, new byte[0]);
+                log.appendLazily(TransactionLog.END, "tx-" + i, new byte[0]);
+            }
+            log.append(TransactionLog.COMMIT, "tx-last", new byte[0]);
+        }
+
+        try (TransactionLog log = new TransactionLog(file, List::of)) {
+            List<TransactionLog.Entry> entries = log.recoveredEntries();
+            assertTrue(entries.size() < 100, "Log should have been compacted, has " + entries.size() + " records");
+            assertEquals("tx-live", entries.get(0).getTransactionId());
+            assertEquals("tx-last", entries.get(entries.size() - 1).getTransactionId());
+        }
+    }
+}
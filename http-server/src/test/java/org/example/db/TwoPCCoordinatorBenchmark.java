@@ -0,0 +1,114 @@
+package org.example.db;
+
+import org.example.SensorData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of the 2PC coordinator with 1 to 16 lanes, in memory and with a decision log.
+ *
+ * The participants block for 5 ms on every prepare, like a remote participant does, and groups hold one
+ * request, so a lane commits one transaction per round trip. 64 clients write readings of random sensors,
+ * which are spread over the lanes and commit in parallel. With a decision log, the commits of all lanes
+ * share fsyncs.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=TwoPCCoordinatorBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class TwoPCCoordinatorBenchmark {
+
+    private static final long PREPARE_LATENCY_MS = 5;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int lanes;
+
+    @Param({"false", "true"})
+    public boolean decisionLog;
+
+    private Path folder;
+    private TwoPCCoordinator coordinator;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("2pc-benchmark");
+        coordinator = new TwoPCCoordinator(List.of(new SlowParticipant(), new SlowParticipant()),
+                1, 0, TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, lanes,
+                decisionLog ? folder.resolve("decisions.log") : null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        coordinator.shutdown();
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean create() {
+        return coordinator.create(SensorData.builder()
+                .sensorId(ThreadLocalRandom.current().nextInt(1000))
+                .temperature(20)
+                .build());
+    }
+
+    /**
+     * Participant that accepts everything and simulates a round trip on every prepare
+     */
+    private static final class SlowParticipant implements TwoPCDataStorage {
+        private static boolean roundTrip() {
+            try {
+                Thread.sleep(PREPARE_LATENCY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean prepare(String transactionId, String operation, SensorData data) { return roundTrip(); }
+        @Override
+        public boolean prepareAll(String transactionId, List<SensorData> data) { return roundTrip(); }
+        @Override
+        public boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+            roundTrip();
+            boolean[] accepted = new boolean[operations.size()];
+            Arrays.fill(accepted, true);
+            return accepted;
+        }
+        @Override
+        public boolean commit(String transactionId) { return true; }
+        @Override
+        public boolean abort(String transactionId) { return true; }
+
+        @Override
+        public boolean create(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public String read(String id) { return null; }
+        @Override
+        public boolean update(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public boolean delete(String id) { throw new UnsupportedOperationException(); }
+        @Override
+        public String readAll() { return "[]"; }
+        @Override
+        public void clear() { }
+    }
+}
@@ -0,0 +1,199 @@
+package org.example.db;
+
+import org.example.SensorData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests how the 2PC coordinator partitions requests into lanes. The participant holds every prepare
+ * until the test opens its gate, so what runs at the same time is decided by the lanes rather than by
+ * timing. The throughput per number of lanes is measured by {@link TwoPCCoordinatorBenchmark}.
+ */
+public class TwoPCCoordinatorLaneTest {
+    private TwoPCCoordinator coordinator;
+
+    @AfterEach
+    public void tearDown() {
+        if (coordinator != null) {
+            coordinator.shutdown();
+        }
+    }
+
+    /**
+     * Tests that requests for keys of different lanes are prepared at the same time.
+     */
+    @Test
+    public void testOtherKeysRunOnOtherLanes() throws Exception {
+        GatedParticipant participant = new GatedParticipant();
+        coordinator = new TwoPCCoordinator(List.of(participant), 1, 0,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 2);
+
+        // New entries are partitioned by sensor id, sensors 0 and 1 go to different lanes of two
+        FutureTask<Boolean> first = call(() -> coordinator.create(reading(null, 0, 20)));
+        FutureTask<Boolean> second = call(() -> coordinator.create(reading(null, 1, 20)));
+        awaitTrue(() -> participant.inPrepare() == 2, "Both lanes should prepare at once");
+
+        participant.open();
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertEquals(2, participant.committed().size());
+    }
+
+    /**
+     * Tests that requests for one key wait for each other and commit in the order they arrived.
+     */
+    @Test
+    public void testOneKeyKeepsItsOrder() throws Exception {
+        GatedParticipant participant = new GatedParticipant();
+        coordinator = new TwoPCCoordinator(List.of(participant), 1, 0,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 16);
+
+        List<FutureTask<Boolean>> updates = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            SensorData update = reading("a", 1, i);
+            FutureTask<Boolean> task = new FutureTask<>(() -> coordinator.update(update));
+            Thread caller = start(task);
+            updates.add(task);
+            // Only start the next caller once this one has queued its request and waits for the outcome
+            String message = "Update " + i + " should be queued";
+            awaitTrue(() -> caller.getState() == Thread.State.TIMED_WAITING, message);
+            if (i == 1) {
+                awaitTrue(() -> participant.inPrepare() == 1, "The first update should be prepared");
+            }
+        }
+        assertEquals(1, participant.inPrepare(), "Updates of one id should not overlap");
+
+        participant.open();
+        for (FutureTask<Boolean> update : updates) {
+            assertTrue(update.get());
+        }
+        List<Double> temperatures = new ArrayList<>();
+        for (SensorData data : participant.committed()) {
+            temperatures.add(data.getTemperature());
+        }
+        assertEquals(List.of(1.0, 2.0, 3.0, 4.0, 5.0), temperatures);
+    }
+
+    private static SensorData reading(String id, int sensorId, double temperature) {
+        return SensorData.builder().id(id).sensorId(sensorId).temperature(temperature).build();
+    }
+
+    /**
+     * Runs the request on a thread of its own, its outcome is read on the test thread
+     */
+    private static FutureTask<Boolean> call(Callable<Boolean> request) {
+        FutureTask<Boolean> task = new FutureTask<>(request);
+        start(task);
+        return task;
+    }
+
+    private static Thread start(FutureTask<Boolean> task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Participant that accepts everything, holds prepares until its gate is opened and records the
+     * committed operations in commit order
+     */
+    private static final class GatedParticipant implements TwoPCDataStorage {
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final Map<String, SensorData> prepared = new HashMap<>();
+        private final List<SensorData> committed = new ArrayList<>();
+        private int inPrepare;
+
+        void open() {
+            gate.countDown();
+        }
+
+        synchronized int inPrepare() {
+            return inPrepare;
+        }
+
+        synchronized List<SensorData> committed() {
+            return new ArrayList<>(committed);
+        }
+
+        private synchronized void enter(String transactionId, SensorData data) {
+            inPrepare++;
+            prepared.put(transactionId, data);
+        }
+
+        private synchronized void leave() {
+            inPrepare--;
+        }
+
+        @Override
+        public boolean prepare(String transactionId, String operation, SensorData data) {
+            enter(transactionId, data);
+            try {
+                // Outside the lock, so that the test can read the state while prepares wait
+                return gate.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                leave();
+            }
+        }
+
+        @Override
+        public boolean prepareAll(String transactionId, List<SensorData> data) { return false; }
+
+        @Override
+        public boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+            boolean[] accepted = new boolean[operations.size()];
+            Arrays.fill(accepted, prepare(transactionId, "GROUP", operations.get(0).getData()));
+            return accepted;
+        }
+
+        @Override
+        public synchronized boolean commit(String transactionId) {
+            SensorData data = prepared.remove(transactionId);
+            if (data == null) return false;
+            committed.add(data);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean abort(String transactionId) {
+            return prepared.remove(transactionId) != null;
+        }
+
+        @Override
+        public boolean create(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public String read(String id) { return null; }
+        @Override
+        public boolean update(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public boolean delete(String id) { throw new UnsupportedOperationException(); }
+        @Override
+        public String readAll() { return "[]"; }
+        @Override
+        public void clear() { }
+    }
+}
@@ -0,0 +1,409 @@
+package org.example.db;
+
+import org.example.Metrics;
+import org.example.SensorData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for group commit and the parallel fan-out of the 2PC coordinator.
+ */
+public class TwoPCCoordinatorTest {
+    private TwoPCCoordinator coordinator;
+
+    @TempDir
+    Path folder;
+
+    @AfterEach
+    public void tearDown() {
+        if (coordinator != null) {
+            coordinator.shutdown();
+        }
+    }
+
+    /**
+     * Tests that queued requests are prepared in groups and every caller gets its own outcome.
+     */
+    @Test
+    public void testGroupsQueuedRequests() throws Exception {
+        FakeParticipant first = new FakeParticipant(-1, 20);
+        FakeParticipant second = new FakeParticipant(-1, 20);
+        coordinator = new TwoPCCoordinator(List.of(first, second), 16, 1000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(25);
+        List<Future<Boolean>> creates = new ArrayList<>();
+        List<Future<Boolean>> updates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int sensorId = i;
+            creates.add(callers.submit(() -> coordinator.create(SensorData.builder().sensorId(sensorId).temperature(20).build())));
+        }
+        for (int i = 0; i < 5; i++) {
+            updates.add(callers.submit(() -> coordinator.update(SensorData.builder().id("unknown").sensorId(1).temperature(20).build())));
+        }
+        for (Future<Boolean> create : creates) {
+            assertTrue(create.get());
+        }
+        for (Future<Boolean> update : updates) {
+            assertFalse(update.get(), "Updates of unknown ids should fail on their own");
+        }
+        callers.shutdown();
+
+        assertEquals(20, first.entries.size());
+        assertEquals(20, second.entries.size());
+        assertTrue(first.prepareCalls.get() < 25, "Queued requests should share prepare calls");
+    }
+
+    /**
+     * Tests that an operation rejected by one participant is committed by none, without failing the others.
+     */
+    @Test
+    public void testOperationRejectedByOneParticipant() throws Exception {
+        FakeParticipant first = new FakeParticipant(-1, 20);
+        FakeParticipant second = new FakeParticipant(13, 20);
+        coordinator = new TwoPCCoordinator(List.of(first, second), 16, 1000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int sensorId = 11; sensorId <= 14; sensorId++) {
+            int id = sensorId;
+            results.add(callers.submit(() -> coordinator.create(SensorData.builder().sensorId(id).temperature(20).build())));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i != 2, results.get(i).get(), "Only the reading of sensor 13 should fail");
+        }
+        callers.shutdown();
+
+        assertEquals(3, first.entries.size());
+        assertEquals(3, second.entries.size());
+        assertTrue(first.entries.values().stream().noneMatch(data -> data.getSensorId() == 13));
+        // A prepare still running when the transaction failed is aborted once it returns
+        Thread.sleep(100);
+        assertTrue(first.preparedCount() == 0 && second.preparedCount() == 0, "No transaction should be left open");
+    }
+
+    /**
+     * Tests that an operation one participant could not write at commit fails on its own, while the other
+     * operations of the group succeed and the transaction is ended instead of being left to recovery.
+     */
+    @Test
+    public void testOperationFailedAtCommit() throws Exception {
+        Path log = folder.resolve("decisions.log");
+        FakeParticipant first = new FakeParticipant(-1, 20);
+        FakeParticipant second = new FakeParticipant(-1, 20);
+        second.unwrittenSensorId = 13;
+        coordinator = new TwoPCCoordinator(List.of(first, second), 16, 1000,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 1, log);
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int sensorId = 11; sensorId <= 14; sensorId++) {
+            int id = sensorId;
+            results.add(callers.submit(() -> coordinator.create(SensorData.builder().sensorId(id).temperature(20).build())));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i != 2, results.get(i).get(), "Only the reading of sensor 13 should fail");
+        }
+        callers.shutdown();
+
+        assertEquals(4, first.entries.size());
+        assertEquals(3, second.entries.size());
+        assertTrue(first.preparedCount() == 0 && second.preparedCount() == 0, "No transaction should be left open");
+        coordinator.shutdown();
+        coordinator = null;
+
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            List<TransactionLog.Entry> entries = decisions.recoveredEntries();
+            assertEquals(TransactionLog.END, entries.get(entries.size() - 1).getType());
+        }
+    }
+
+    /**
+     * Tests that prepare and commit are sent to all participants at once rather than one after another.
+     */
+    @Test
+    public void testPhasesRunInParallel() {
+        FakeParticipant first = new FakeParticipant(-1, 200);
+        FakeParticipant second = new FakeParticipant(-1, 200);
+        coordinator = new TwoPCCoordinator(List.of(first, second), 1, 0);
+
+        long start = System.nanoTime();
+        assertTrue(coordinator.create(SensorData.builder().sensorId(1).temperature(20).build()));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis < 350, "Two 200 ms prepares took " + elapsedMillis + " ms");
+        assertEquals(1, first.entries.size());
+        assertEquals(1, second.entries.size());
+    }
+
+    /**
+     * Tests that a participant that does not answer in time fails the transaction, and that it is
+     * aborted once its late prepare returns.
+     */
+    @Test
+    public void testSlowParticipantTimesOut() throws Exception {
+        FakeParticipant fast = new FakeParticipant(-1, 0);
+        FakeParticipant slow = new FakeParticipant(-1, 500);
+        coordinator = new TwoPCCoordinator(List.of(fast, slow), 1, 0, 100);
+
+        long start = System.nanoTime();
+        assertFalse(coordinator.create(SensorData.builder().sensorId(1).temperature(20).build()));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 400, "Prepare should give up after the timeout, took " + elapsedMillis + " ms");
+
+        Thread.sleep(700);
+        assertTrue(fast.entries.isEmpty() && slow.entries.isEmpty());
+        assertTrue(fast.preparedCount() == 0 && slow.preparedCount() == 0, "The late prepare should be aborted");
+    }
+
+    /**
+     * Tests that recovery commits a transaction whose commit was logged before a crash on the participants
+     * that still hold it, aborts the transactions that were never decided and ends the logged commit.
+     */
+    @Test
+    public void testRecoversInDoubtTransactions() throws Exception {
+        Path log = folder.resolve("decisions.log");
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            decisions.append(TransactionLog.COMMIT, "tx-decided", new byte[0]);
+        }
+        FakeParticipant first = new FakeParticipant(-1, 0);
+        FakeParticipant second = new FakeParticipant(-1, 0);
+        SensorData reading = SensorData.builder().sensorId(1).temperature(20).build();
+        // The crash came after the second participant committed, and during the prepare of another transaction
+        assertTrue(first.prepare("tx-decided", "CREATE", reading));
+        assertTrue(first.prepare("tx-abandoned", "CREATE", reading));
+        assertTrue(second.prepare("tx-abandoned", "CREATE", reading));
+
+        coordinator = new TwoPCCoordinator(List.of(first, second), 16, 1000,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 1, log);
+
+        assertEquals(1, first.entries.size(), "The logged commit should be completed");
+        assertTrue(second.entries.isEmpty());
+        assertTrue(first.inDoubtTransactions().isEmpty() && second.inDoubtTransactions().isEmpty());
+        coordinator.shutdown();
+        coordinator = null;
+
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            List<TransactionLog.Entry> entries = decisions.recoveredEntries();
+            assertEquals(TransactionLog.END, entries.get(entries.size() - 1).getType());
+            assertEquals("tx-decided", entries.get(entries.size() - 1).getTransactionId());
+        }
+    }
+
+    /**
+     * Tests that a transaction a participant failed to commit stays with the participant and is committed
+     * by the recovery, instead of being ended.
+     */
+    @Test
+    public void testRecoveryRetriesFailedCommit() throws Exception {
+        Path log = folder.resolve("decisions.log");
+        FakeParticipant first = new FakeParticipant(-1, 0);
+        FakeParticipant second = new FakeParticipant(-1, 0);
+        second.failingCommits.set(1);
+        coordinator = new TwoPCCoordinator(List.of(first, second), 1, 0,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 1, log);
+
+        assertFalse(coordinator.create(SensorData.builder().sensorId(1).temperature(20).build()));
+        assertEquals(1, first.entries.size());
+        assertTrue(second.entries.isEmpty());
+        assertEquals(1, second.preparedCount(), "The failed commit should stay prepared");
+        coordinator.shutdown();
+
+        // A restart resolves at once instead of after the recovery interval
+        coordinator = new TwoPCCoordinator(List.of(first, second), 1, 0,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 1, log);
+        assertEquals(1, second.entries.size(), "The recovery should commit it again");
+        assertEquals(0, second.preparedCount());
+        coordinator.shutdown();
+        coordinator = null;
+
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            List<TransactionLog.Entry> entries = decisions.recoveredEntries();
+            assertEquals(TransactionLog.END, entries.get(entries.size() - 1).getType());
+        }
+    }
+
+    /**
+     * Tests that recovery does not end a logged commit that a participant aborted after its prepare timeout,
+     * and still commits it on the participants that hold it.
+     */
+    @Test
+    public void testKeepsCommitExpiredByParticipant() throws Exception {
+        Path log = folder.resolve("decisions.log");
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            decisions.append(TransactionLog.COMMIT, "tx-expired", new byte[0]);
+        }
+        FakeParticipant first = new FakeParticipant(-1, 0);
+        FakeParticipant second = new FakeParticipant(-1, 0);
+        assertTrue(first.prepare("tx-expired", "CREATE", SensorData.builder().sensorId(1).temperature(20).build()));
+        second.expired.add("tx-expired");
+        long heuristicAborts = Metrics.counter("2pc.heuristic.aborts").sum();
+
+        coordinator = new TwoPCCoordinator(List.of(first, second), 16, 1000,
+                TwoPCCoordinator.DEFAULT_PARTICIPANT_TIMEOUT_MS, 1, log);
+
+        assertEquals(1, first.entries.size(), "The logged commit should be completed where it is prepared");
+        assertEquals(heuristicAborts + 1, Metrics.counter("2pc.heuristic.aborts").sum());
+        coordinator.shutdown();
+        coordinator = null;
+
+        try (TransactionLog decisions = new TransactionLog(log, List::of)) {
+            for (TransactionLog.Entry entry : decisions.recoveredEntries()) {
+                assertNotEquals(TransactionLog.END, entry.getType(), "The mixed outcome should not be ended");
+            }
+        }
+    }
+
+    /**
+     * Participant that stores entries in a map. Prepares take a fixed time, so that requests queue up,
+     * and creates for one sensor id are rejected; those for another one are prepared but not written.
+     */
+    private static final class FakeParticipant implements TwoPCDataStorage {
+        final Map<String, SensorData> entries = new HashMap<>();
+        final Map<String, List<TwoPCCoordinator.TransactionRequest>> prepared = new HashMap<>();
+        final AtomicInteger prepareCalls = new AtomicInteger();
+        final AtomicInteger failingCommits = new AtomicInteger(); // Commits that throw before writing
+        final List<String> expired = new ArrayList<>();
+        volatile int unwrittenSensorId = -1;
+        private final int rejectedSensorId;
+        private final long prepareMillis;
+
+        FakeParticipant(int rejectedSensorId, long prepareMillis) {
+            this.rejectedSensorId = rejectedSensorId;
+            this.prepareMillis = prepareMillis;
+        }
+
+        synchronized int preparedCount() {
+            return prepared.size();
+        }
+
+        private boolean accepts(TwoPCCoordinator.TransactionRequest operation) {
+            SensorData data = operation.getData();
+            switch (operation.getOperation()) {
+                case "CREATE":
+                    return data.getSensorId() != rejectedSensorId;
+                case "UPDATE":
+                case "DELETE":
+                    return entries.containsKey(data.getId());
+                default:
+                    return false;
+            }
+        }
+
+        private void slowDown() {
+            try {
+                Thread.sleep(prepareMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean[] prepareGroup(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+            prepareCalls.incrementAndGet();
+            // Outside the lock: sleeping in synchronized code pins the virtual thread to its carrier
+            slowDown();
+            return accept(transactionId, operations);
+        }
+
+        private synchronized boolean[] accept(String transactionId, List<TwoPCCoordinator.TransactionRequest> operations) {
+            boolean[] accepted = new boolean[operations.size()];
+            List<TwoPCCoordinator.TransactionRequest> kept = new ArrayList<>();
+            for (int i = 0; i < accepted.length; i++) {
+                accepted[i] = accepts(operations.get(i));
+                if (accepted[i]) kept.add(operations.get(i));
+            }
+            if (!kept.isEmpty()) prepared.put(transactionId, kept);
+            return accepted;
+        }
+
+        @Override
+        public boolean prepare(String transactionId, String operation, SensorData data) {
+            TwoPCCoordinator.TransactionRequest request = new TwoPCCoordinator.TransactionRequest(operation, data);
+            return prepareGroup(transactionId, List.of(request))[0];
+        }
+
+        @Override
+        public boolean prepareAll(String transactionId, List<SensorData> data) {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean commit(String transactionId) {
+            return write(transactionId) != null;
+        }
+
+        @Override
+        public synchronized boolean[] commitGroup(String transactionId, int operations) {
+            return write(transactionId);
+        }
+
+        private boolean[] write(String transactionId) {
+            if (failingCommits.get() > 0) {
+                failingCommits.decrementAndGet();
+                throw new IllegalStateException("Write failed");
+            }
+            List<TwoPCCoordinator.TransactionRequest> operations = prepared.remove(transactionId);
+            if (operations == null) return null;
+            boolean[] written = new boolean[operations.size()];
+            for (int i = 0; i < written.length; i++) {
+                SensorData data = operations.get(i).getData();
+                if (data.getSensorId() == unwrittenSensorId) continue;
+                written[i] = true;
+                switch (operations.get(i).getOperation()) {
+                    case "CREATE":
+                        entries.put(UUID.randomUUID().toString(), data);
+                        break;
+                    case "UPDATE":
+                        entries.put(data.getId(), data);
+                        break;
+                    default:
+                        entries.remove(data.getId());
+                        break;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public synchronized boolean abort(String transactionId) {
+            return prepared.remove(transactionId) != null;
+        }
+
+        @Override
+        public synchronized List<String> inDoubtTransactions() {
+            return new ArrayList<>(prepared.keySet());
+        }
+
+        @Override
+        public synchronized List<String> expiredTransactions() {
+            return new ArrayList<>(expired);
+        }
+
+        @Override
+        public boolean create(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public String read(String id) { return null; }
+        @Override
+        public boolean update(SensorData data) { throw new UnsupportedOperationException(); }
+        @Override
+        public boolean delete(String id) { throw new UnsupportedOperationException(); }
+        @Override
+        public String readAll() { return "[]"; }
+        @Override
+        public synchronized void clear() { entries.clear(); }
+    }
+}
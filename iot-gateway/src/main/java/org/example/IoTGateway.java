@@ -3,9 +3,12 @@ package org.example;
 import com.hivemq.client.mqtt.MqttClient;
 import com.hivemq.client.mqtt.mqtt3.Mqtt3AsyncClient;
 import com.google.gson.Gson;
-import java.io.*;
-import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.UUID;
 
 public class IoTGateway {
@@ -15,13 +18,19 @@ public class IoTGateway {
 
     private static final String HTTP_SERVER = System.getenv().getOrDefault("HTTP_SERVER_HOST", "localhost");
     private static final int HTTP_PORT = 8080;
+    private static final URI HTTP_URI = URI.create("http://" + HTTP_SERVER + ":" + HTTP_PORT + "/");
+    // Reuses persistent HTTP/1.1 connections instead of opening a socket per reading
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
     
     private static final int MAX_RETRIES = 50;
     private static final int RETRY_DELAY = 5000; // 5 seconds
     private static int retryCount = 0;
 
     public static void main(String[] args) {
-        System.out.println("Starte IoT-Gateway...");
+        Log.info("Starte IoT-Gateway...");
         
         while (true) {
             try {
@@ -30,10 +39,10 @@ public class IoTGateway {
                 // Warte auf Unterbrechung
                 Thread.currentThread().join();
             } catch (InterruptedException e) {
-                System.err.println("Gateway unterbrochen.");
+                Log.warn("Gateway unterbrochen.");
                 break;
             } catch (Exception e) {
-                System.err.println("Unerwarteter Fehler: " + e.getMessage());
+                Log.warn("Unerwarteter Fehler: {}", e.getMessage());
                 break;
             }
         }
@@ -41,7 +50,7 @@ public class IoTGateway {
 
     private static void connectWithRetry() {
         if (retryCount >= MAX_RETRIES) {
-            System.err.println("Maximale Anzahl an Verbindungsversuchen erreicht.");
+            Log.warn("Maximale Anzahl an Verbindungsversuchen erreicht.");
             return;
         }
 
@@ -58,10 +67,10 @@ public class IoTGateway {
                     .send()
                     .whenComplete((connAck, throwable) -> {
                         if (throwable != null) {
-                            System.err.println("MQTT Verbindungsfehler: " + throwable.getMessage());
+                            Log.warn("MQTT Verbindungsfehler: {}", throwable.getMessage());
                             retryCount++;
                             if (retryCount < MAX_RETRIES) {
-                                System.out.printf("Verbindungsversuch %d fehlgeschlagen. Warte %d Sekunden...%n", 
+                                Log.info("Verbindungsversuch {} fehlgeschlagen. Warte {} Sekunden...",
                                     retryCount, RETRY_DELAY/1000);
                                 try {
                                     Thread.sleep(RETRY_DELAY);
@@ -70,14 +79,14 @@ public class IoTGateway {
                                     Thread.currentThread().interrupt();
                                 }
                             } else {
-                                System.err.println("Maximale Anzahl an Verbindungsversuchen erreicht.");
+                                Log.warn("Maximale Anzahl an Verbindungsversuchen erreicht.");
                             }
                             return;
                         }
 
                         // Erfolgreiche Verbindung - Counter zurücksetzen
                         retryCount = 0;
-                        System.out.println("Erfolgreich mit HiveMQ verbunden");
+                        Log.info("Erfolgreich mit HiveMQ verbunden");
 
                         // Auf alle Temperatursensoren subscriben
                         mqttClient.subscribeWith()
@@ -85,7 +94,7 @@ public class IoTGateway {
                                 .callback(publish -> {
                                     String topic = publish.getTopic().toString();
                                     String payload = new String(publish.getPayloadAsBytes(), StandardCharsets.UTF_8);
-                                    System.out.println("Empfangen von " + topic + ": " + payload);
+                                    Log.debug("Empfangen von {}: {}", topic, payload);
 
                                     try {
                                         // SensorData aus JSON parsen
@@ -93,45 +102,32 @@ public class IoTGateway {
                                         
                                         // HTTP Request vorbereiten
                                         String json = gson.toJson(data);
-                                        String httpRequest = 
-                                            "POST / HTTP/1.1\r\n" +
-                                            "Host: " + HTTP_SERVER + "\r\n" +
-                                            "Content-Type: application/json\r\n" +
-                                            "Content-Length: " + json.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
-                                            "Connection: close\r\n" +
-                                            "\r\n" +
-                                            json;
+                                        HttpRequest httpRequest = HttpRequest.newBuilder(HTTP_URI)
+                                                .header("Content-Type", "application/json")
+                                                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8))
+                                                .build();
 
                                         // HTTP Request senden
-                                        try (Socket socket = new Socket(HTTP_SERVER, HTTP_PORT);
-                                             OutputStream output = socket.getOutputStream();
-                                             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                                        HttpResponse<String> response = httpClient.send(httpRequest,
+                                                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
 
-                                            output.write(httpRequest.getBytes(StandardCharsets.UTF_8));
-                                            output.flush();
-
-                                            // Antwort lesen
-                                            String line;
-                                            System.out.println("\nHTTP Response:");
-                                            while ((line = reader.readLine()) != null) {
-                                                System.out.println(line);
-                                            }
-                                        }
+                                        // Antwort ausgeben
+                                        Log.debug("HTTP Response: {} {}", response.statusCode(), response.body());
                                     } catch (Exception e) {
-                                        System.err.println("Fehler beim Verarbeiten der Nachricht: " + e.getMessage());
+                                        Log.warn("Fehler beim Verarbeiten der Nachricht: {}", e.getMessage());
                                     }
                                 })
                                 .send()
                                 .whenComplete((subAck, subscribeError) -> {
                                     if (subscribeError != null) {
-                                        System.err.println("Fehler beim Subscriben: " + subscribeError.getMessage());
+                                        Log.warn("Fehler beim Subscriben: {}", subscribeError.getMessage());
                                         return;
                                     }
-                                    System.out.println("Erfolgreich auf Temperatursensoren subscribed");
+                                    Log.info("Erfolgreich auf Temperatursensoren subscribed");
                                 });
                     });
         } catch (Exception e) {
-            System.err.println("Fehler beim Verbindungsaufbau: " + e.getMessage());
+            Log.warn("Fehler beim Verbindungsaufbau: {}", e.getMessage());
             retryCount++;
             if (retryCount < MAX_RETRIES) {
                 try {
@@ -0,0 +1,139 @@
+package org.example;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Conversions between the text fields of schema version 1 and the compact fields of version 2.
+ *
+ * Entries are stored with the compact temperature whenever the text is the canonical form of a double,
+ * as Double.toString writes it; then the text of version 1 can be restored exactly. Other text is
+ * stored as it is. Ids stay text in the stores, which index them, and are only sent as UUID bytes.
+ */
+final class CompactEncoding {
+    private static final int UUID_LENGTH = 36;
+
+    private CompactEncoding() {
+    }
+
+    /**
+     * Whether the request carries a temperature in either version
+     */
+    static boolean hasTemperature(SensorDataRequest request) {
+        return request.getCompactTemperatureCase() != SensorDataRequest.CompactTemperatureCase.COMPACTTEMPERATURE_NOT_SET
+                || !request.getTemperature().trim().isEmpty();
+    }
+
+    /**
+     * Sets the temperature of the request on the entry, compact where possible
+     */
+    static SensorDataStored.Builder setTemperature(SensorDataStored.Builder entry, SensorDataRequest request) {
+        switch (request.getCompactTemperatureCase()) {
+            case TEMPERATURE_CENTI:
+                return entry.clearTemperature().setTemperatureCenti(request.getTemperatureCenti());
+            case TEMPERATURE_VALUE:
+                return entry.clearTemperature().setTemperatureValue(request.getTemperatureValue());
+            default:
+                return setTemperatureText(entry, request.getTemperature());
+        }
+    }
+
+    private static SensorDataStored.Builder setTemperatureText(SensorDataStored.Builder entry, String text) {
+        double value;
+        try {
+            value = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return entry.clearCompactTemperature().setTemperature(text);
+        }
+        if (!Double.toString(value).equals(text)) {
+            return entry.clearCompactTemperature().setTemperature(text);
+        }
+        return setTemperatureValue(entry.clearTemperature(), value);
+    }
+
+    /**
+     * Hundredths of a degree if that is exact, the double otherwise
+     */
+    private static SensorDataStored.Builder setTemperatureValue(SensorDataStored.Builder entry, double value) {
+        long centi = Math.round(value * 100);
+        if (centi >= Integer.MIN_VALUE && centi <= Integer.MAX_VALUE && Double.compare(centi / 100.0, value) == 0) {
+            return entry.setTemperatureCenti((int) centi);
+        }
+        return entry.setTemperatureValue(value);
+    }
+
+    /**
+     * The temperature as version 1 sends it
+     */
+    static String temperatureText(SensorDataStored entry) {
+        switch (entry.getCompactTemperatureCase()) {
+            case TEMPERATURE_CENTI:
+                return Double.toString(entry.getTemperatureCenti() / 100.0);
+            case TEMPERATURE_VALUE:
+                return Double.toString(entry.getTemperatureValue());
+            default:
+                return entry.getTemperature();
+        }
+    }
+
+    /**
+     * The temperature as a number, NaN if it is text that is no number
+     */
+    static double temperatureValue(SensorDataStored entry) {
+        switch (entry.getCompactTemperatureCase()) {
+            case TEMPERATURE_CENTI:
+                return entry.getTemperatureCenti() / 100.0;
+            case TEMPERATURE_VALUE:
+                return entry.getTemperatureValue();
+            default:
+                try {
+                    return Double.parseDouble(entry.getTemperature());
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+        }
+    }
+
+    /**
+     * Converts a stored entry to the fields of the schema version of the client
+     */
+    static SensorDataStored forVersion(SensorDataStored entry, int version) {
+        if (version < SchemaVersion.COMPACT) {
+            if (entry.getCompactTemperatureCase() == SensorDataStored.CompactTemperatureCase.COMPACTTEMPERATURE_NOT_SET) {
+                return entry;
+            }
+            return entry.toBuilder().clearCompactTemperature().setTemperature(temperatureText(entry)).build();
+        }
+
+        SensorDataStored.Builder compact = null;
+        if (!entry.getTemperature().isEmpty()) {
+            // Entries of stores that keep text, like the memory-mapped one
+            compact = setTemperatureText(entry.toBuilder(), entry.getTemperature());
+        }
+        ByteString uuid = uuidBytes(entry.getId());
+        if (uuid != null) {
+            compact = (compact != null ? compact : entry.toBuilder()).clearId().setUuid(uuid);
+        }
+        return compact != null ? compact.build() : entry;
+    }
+
+    /**
+     * The id as 16 bytes, or null if it is not a UUID in the form UUID.toString writes it
+     */
+    static ByteString uuidBytes(String id) {
+        if (id.length() != UUID_LENGTH) return null;
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!uuid.toString().equals(id)) return null;
+        return ByteString.copyFrom(ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array());
+    }
+}
@@ -1,33 +1,127 @@
 package org.example;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImplBase {
+    static final int DEFAULT_PAGE_SIZE = 500;
+    static final int MAX_PAGE_SIZE = 10_000;
+    static final long DEFAULT_PREPARE_TIMEOUT_MS = 60_000;
+    static final long LOCK_WAIT_MS = 100;
+    static final int EXPIRED_IDS_KEPT = 10_000;
 
-    private final ConcurrentHashMap<String, SensorDataStored> db = new ConcurrentHashMap<>();
-    private final List<String> insertionOrder = new CopyOnWriteArrayList<>();
+    private final SensorStore db;
     private final ConcurrentHashMap<String, TransactionData> preparedTransactions = new ConcurrentHashMap<>();
+    private final TransactionLog prepareLog; // null without a prepare log
+    private final KeyLockTable locks = new KeyLockTable();
+    private final long prepareTimeoutNanos;
+    private final ScheduledExecutorService reaper;
+    private final LongAdder lockRequests = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder lockTimeouts = new LongAdder();
+    private final AtomicLong unaryWrites = new AtomicLong();
+    private final LongAdder expiredTransactions = new LongAdder();
+    // The latest expired transactions, reported so that the coordinator does not end a commit it logged for them
+    private final Set<String> expiredIds = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > EXPIRED_IDS_KEPT;
+                }
+            }));
     
     private static class TransactionData {
         final String operation;
         final SensorDataStored data;
         final SensorDataStored originalValue; // For rollback
+        final List<SensorDataStored> batch; // Entries of a BATCH_CREATE
+        final List<TransactionData> group; // Operations of a GROUP
+        final long preparedAt = System.nanoTime(); // Restart time for transactions replayed from the log
+        final AtomicBoolean finished = new AtomicBoolean(); // Claimed by the commit, abort or expiry that ends it
         
-        TransactionData(String operation, SensorDataStored data, SensorDataStored originalValue) {
+        TransactionData(String operation, SensorDataStored data, SensorDataStored originalValue,
+                        List<SensorDataStored> batch, List<TransactionData> group) {
             this.operation = operation;
             this.data = data;
             this.originalValue = originalValue;
+            this.batch = batch;
+            this.group = group;
+        }
+    }
+
+    public DatabaseServiceImpl() {
+        this(new HeapSensorStore());
+    }
+
+    public DatabaseServiceImpl(SensorStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param prepareLog file that keeps prepared transactions across restarts, null to keep them in memory only
+     * @throws UncheckedIOException if the prepare log cannot be opened
+     */
+    public DatabaseServiceImpl(SensorStore store, Path prepareLog) {
+        this(store, prepareLog, DEFAULT_PREPARE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param prepareLog file that keeps prepared transactions across restarts, null to keep them in memory only
+     * @param prepareTimeoutMillis time after which a prepared transaction that was neither committed nor
+     *                             aborted is aborted and its entries are unlocked
+     * @throws UncheckedIOException if the prepare log cannot be opened
+     */
+    public DatabaseServiceImpl(SensorStore store, Path prepareLog, long prepareTimeoutMillis) {
+        this.db = store;
+        this.prepareTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(prepareTimeoutMillis);
+        if (prepareLog == null) {
+            this.prepareLog = null;
+        } else {
+            try {
+                this.prepareLog = new TransactionLog(prepareLog, this::openPrepares);
+                replay(this.prepareLog.recoveredEntries());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the prepare log " + prepareLog, e);
+            }
         }
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prepare-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, Math.min(prepareTimeoutMillis / 2, 1000));
+        reaper.scheduleWithFixedDelay(this::expirePrepared, interval, interval, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void create(SensorDataRequest request, StreamObserver<Response> responseObserver) {
-        System.out.println("Received create request: " + request);
-        if (request.getTemperature() == null || request.getTemperature().trim().isEmpty()) {
+        Log.debug("Received create request: {}", request);
+        if (!CompactEncoding.hasTemperature(request)) {
             Response response = Response.newBuilder()
                     .setId("")
                     .setSuccess(false)
@@ -39,32 +133,99 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
         }
 
         String id = UUID.randomUUID().toString();
-        SensorDataStored dataToStore = SensorDataStored.newBuilder()
+        SensorDataStored dataToStore = CompactEncoding.setTemperature(SensorDataStored.newBuilder(), request)
                 .setId(id)
                 .setSensorId(request.getSensorId())
-                .setTemperature(request.getTemperature())
+                .setTimestamp(System.currentTimeMillis())
                 .build();
 
-        boolean inserted = db.putIfAbsent(id, dataToStore) == null;
-        if (inserted) {
-            insertionOrder.add(id);
+        boolean inserted;
+        String message;
+        try {
+            inserted = db.insert(dataToStore);
+            message = inserted ? "Entry created with ID: " + id : "Entry creation failed.";
+        } catch (IllegalArgumentException e) {
+            inserted = false;
+            message = "Entry creation failed: " + e.getMessage();
         }
 
         Response response = Response.newBuilder()
                 .setId(id)
                 .setSuccess(inserted)
-                .setMessage(inserted ? "Entry created with ID: " + id : "Entry creation failed.")
+                .setMessage(message)
                 .build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void batchCreate(BatchCreateRequest request, StreamObserver<BatchResponse> responseObserver) {
+        Log.debug("Received batchCreate request with {} entries", request.getEntriesCount());
+        BatchResponse.Builder response = BatchResponse.newBuilder();
+        List<SensorDataStored> entries = newEntries(request, System.currentTimeMillis());
+        if (entries == null) {
+            response.setSuccess(false).setMessage("Temperature must not be empty.");
+        } else {
+            try {
+                insertAll(entries);
+                for (SensorDataStored entry : entries) {
+                    response.addIds(entry.getId());
+                }
+                response.setSuccess(true).setMessage("Created " + entries.size() + " entries.");
+            } catch (IllegalArgumentException e) {
+                response.setSuccess(false).setMessage("Batch creation failed: " + e.getMessage());
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Builds the entries of a batch with new ids
+     * @return the entries, or null if one of them has no temperature
+     */
+    private static List<SensorDataStored> newEntries(BatchCreateRequest request, long timestamp) {
+        List<SensorDataStored> entries = new ArrayList<>(request.getEntriesCount());
+        for (SensorDataRequest entry : request.getEntriesList()) {
+            if (!CompactEncoding.hasTemperature(entry)) {
+                return null;
+            }
+            entries.add(CompactEncoding.setTemperature(SensorDataStored.newBuilder(), entry)
+                    .setId(UUID.randomUUID().toString())
+                    .setSensorId(entry.getSensorId())
+                    .setTimestamp(timestamp)
+                    .build());
+        }
+        return entries;
+    }
+
+    /**
+     * Inserts all entries. If the store rejects one, the entries inserted before it are removed again.
+     * @throws IllegalArgumentException if an entry was rejected
+     */
+    private void insertAll(List<SensorDataStored> entries) {
+        int inserted = 0;
+        try {
+            for (SensorDataStored entry : entries) {
+                if (!db.insert(entry)) {
+                    throw new IllegalArgumentException("Duplicate id " + entry.getId());
+                }
+                inserted++;
+            }
+        } catch (IllegalArgumentException e) {
+            for (int i = 0; i < inserted; i++) {
+                db.remove(entries.get(i).getId());
+            }
+            throw e;
+        }
+    }
+
     @Override
     public void read(Key request, StreamObserver<SensorDataStored> responseObserver) {
-        System.out.println("Received read request for ID: " + request.getId());
+        Log.debug("Received read request for ID: {}", request.getId());
         SensorDataStored data = db.get(request.getId());
         if (data != null) {
-            responseObserver.onNext(data);
+            responseObserver.onNext(CompactEncoding.forVersion(data, SchemaVersion.current()));
         } else {
             responseObserver.onNext(SensorDataStored.newBuilder().build());
         }
@@ -73,18 +234,33 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
 
     @Override
     public void update(UpdateRequest request, StreamObserver<Response> responseObserver) {
-        System.out.println("Received update request for ID: " + request.getId());
+        Log.debug("Received update request for ID: {}", request.getId());
         String id = request.getId();
         SensorDataRequest updatedDataRequest = request.getUpdatedData();
 
-        if (db.containsKey(id)) {
-            SensorDataStored updatedDataStored = SensorDataStored.newBuilder()
+        SensorDataStored updatedDataStored = CompactEncoding.setTemperature(SensorDataStored.newBuilder(), updatedDataRequest)
+                .setId(id)
+                .setSensorId(updatedDataRequest.getSensorId())
+                .setTimestamp(System.currentTimeMillis())
+                .build();
+        String owner = unaryOwner();
+        if (!lockUnary(id, owner, responseObserver)) return;
+        boolean replaced;
+        try {
+            replaced = db.replace(updatedDataStored);
+        } catch (IllegalArgumentException e) {
+            responseObserver.onNext(Response.newBuilder()
                     .setId(id)
-                    .setSensorId(updatedDataRequest.getSensorId())
-                    .setTemperature(updatedDataRequest.getTemperature())
-                    .build();
-            db.put(id, updatedDataStored);
+                    .setSuccess(false)
+                    .setMessage("Entry update failed: " + e.getMessage())
+                    .build());
+            responseObserver.onCompleted();
+            return;
+        } finally {
+            locks.unlock(id, owner);
+        }
 
+        if (replaced) {
             Response response = Response.newBuilder()
                     .setId(id)
                     .setSuccess(true)
@@ -104,14 +280,18 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
 
     @Override
     public void delete(DeleteRequest request, StreamObserver<Response> responseObserver) {
-        System.out.println("Received delete request for ID: " + request.getId());
+        Log.debug("Received delete request for ID: {}", request.getId());
         String id = request.getId();
-        SensorDataStored removedData = db.remove(id);
+        String owner = unaryOwner();
+        if (!lockUnary(id, owner, responseObserver)) return;
+        SensorDataStored removedData;
+        try {
+            removedData = db.remove(id);
+        } finally {
+            locks.unlock(id, owner);
+        }
 
         boolean removed = removedData != null;
-        if (removed) {
-            insertionOrder.remove(id);
-        }
 
         String message = removed ? "Entry deleted with ID: " + id : "Entry with ID: " + id + " not found.";
 
@@ -125,24 +305,179 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
         responseObserver.onCompleted();
     }
 
+    /**
+     * Owner of the lock a write outside of a transaction takes, distinct from the transaction ids
+     */
+    private String unaryOwner() {
+        return "unary-" + unaryWrites.incrementAndGet();
+    }
+
+    /**
+     * Locks the entry an update or delete outside of a transaction changes, so that it waits for a prepared
+     * transaction on the entry instead of being overwritten by its commit or invalidating its checks
+     * @return false if the entry stayed locked, the failure is sent then
+     */
+    private boolean lockUnary(String id, String owner, StreamObserver<Response> responseObserver) {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = locks.lock(id, owner, LOCK_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        lockRequests.increment();
+        lockWaitNanos.add(System.nanoTime() - start);
+        if (acquired) return true;
+
+        lockTimeouts.increment();
+        responseObserver.onNext(Response.newBuilder()
+                .setId(id)
+                .setSuccess(false)
+                .setMessage("Entry with ID: " + id + " is locked by a transaction.")
+                .build());
+        responseObserver.onCompleted();
+        return false;
+    }
+
     @Override
     public void readAll(Empty request, StreamObserver<SensorDataStoredList> responseObserver) {
-        System.out.println("Received readAll request");
+        Log.debug("Received readAll request");
         SensorDataStoredList.Builder listBuilder = SensorDataStoredList.newBuilder();
-        for (String id : insertionOrder) {
-            SensorDataStored entry = db.get(id);
-            if (entry != null) {
-                listBuilder.addEntries(entry);
+        int version = SchemaVersion.current();
+        db.forEach(entry -> listBuilder.addEntries(CompactEncoding.forVersion(entry, version)));
+        responseObserver.onNext(listBuilder.build());
+        responseObserver.onCompleted();
+    }
+    
+    /**
+     * Aggregates the temperatures per sensor in one pass over the store, so only the statistics are sent.
+     * Entries with a temperature that is no number are not counted.
+     */
+    @Override
+    public void stats(StatsRequest request, StreamObserver<TemperatureStatsList> responseObserver) {
+        Log.debug("Received stats request: {}", request);
+        Map<Integer, TemperatureStats.Builder> bySensor = new TreeMap<>();
+        db.forEach(entry -> {
+            if (request.hasSensorId() && entry.getSensorId() != request.getSensorId()) return;
+            double temperature = CompactEncoding.temperatureValue(entry);
+            if (Double.isNaN(temperature)) return;
+            TemperatureStats.Builder stats = bySensor.get(entry.getSensorId());
+            if (stats == null) {
+                bySensor.put(entry.getSensorId(), TemperatureStats.newBuilder()
+                        .setSensorId(entry.getSensorId())
+                        .setCount(1)
+                        .setMin(temperature)
+                        .setMax(temperature)
+                        .setSum(temperature));
+                return;
             }
+            stats.setCount(stats.getCount() + 1)
+                    .setMin(Math.min(stats.getMin(), temperature))
+                    .setMax(Math.max(stats.getMax(), temperature))
+                    .setSum(stats.getSum() + temperature);
+        });
+        TemperatureStatsList.Builder list = TemperatureStatsList.newBuilder();
+        for (TemperatureStats.Builder stats : bySensor.values()) {
+            list.addSensors(stats);
         }
-        responseObserver.onNext(listBuilder.build());
+        responseObserver.onNext(list.build());
         responseObserver.onCompleted();
     }
     
+    @Override
+    public void streamAll(ScanRequest request, StreamObserver<SensorDataPage> responseObserver) {
+        Log.debug("Received streamAll request: {}", request);
+        long after;
+        try {
+            after = request.getCursor().isEmpty() ? 0 : Long.parseLong(request.getCursor());
+        } catch (NumberFormatException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Invalid cursor: " + request.getCursor())
+                    .asRuntimeException());
+            return;
+        }
+        new PageStreamer(db, request, after, SchemaVersion.current(), (ServerCallStreamObserver<SensorDataPage>) responseObserver).start();
+    }
+
+    /**
+     * Sends the pages of a StreamAll call with flow control: the store is only scanned while the
+     * client keeps up, and the scan resumes after the last entry once the call is ready again.
+     * So neither the full result nor an unbounded backlog of pages is held in memory.
+     */
+    private static final class PageStreamer implements Runnable {
+        private final SensorStore store;
+        private final ServerCallStreamObserver<SensorDataPage> observer;
+        private final int pageSize;
+        private final boolean filtered;
+        private final int sensorId;
+        private final long since;
+        private final int version;
+        private long remaining;
+        private long position;
+        private volatile boolean done = false;
+        private SensorDataPage.Builder page = SensorDataPage.newBuilder();
+
+        PageStreamer(SensorStore store, ScanRequest request, long after, int version, ServerCallStreamObserver<SensorDataPage> observer) {
+            this.store = store;
+            this.version = version;
+            this.observer = observer;
+            this.pageSize = request.getPageSize() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(request.getPageSize(), MAX_PAGE_SIZE);
+            this.filtered = request.hasSensorId();
+            this.sensorId = request.getSensorId();
+            this.since = request.getSince();
+            this.remaining = request.getLimit() <= 0 ? Long.MAX_VALUE : request.getLimit();
+            this.position = after;
+        }
+
+        void start() {
+            observer.setOnCancelHandler(() -> done = true);
+            // gRPC calls the handler once the call is ready and again whenever it becomes ready after isReady() returned false
+            observer.setOnReadyHandler(this);
+        }
+
+        @Override
+        public void run() {
+            if (done || !observer.isReady()) return;
+            try {
+                boolean reachedEnd = store.scan(position, this::add);
+                if (reachedEnd || remaining == 0) {
+                    done = true;
+                    if (page.getEntriesCount() > 0) {
+                        sendPage();
+                    }
+                    observer.onCompleted();
+                }
+            } catch (RuntimeException e) {
+                done = true;
+                Log.warn("Error streaming entries: {}", e.getMessage());
+                observer.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            }
+        }
+
+        private boolean add(long entryPosition, SensorDataStored entry) {
+            position = entryPosition;
+            if ((filtered && entry.getSensorId() != sensorId) || entry.getTimestamp() < since) {
+                return !done;
+            }
+            page.addEntries(CompactEncoding.forVersion(entry, version));
+            remaining--;
+            if (page.getEntriesCount() == pageSize || remaining == 0) {
+                sendPage();
+            }
+            return remaining > 0 && !done && observer.isReady();
+        }
+
+        private void sendPage() {
+            observer.onNext(page.setNextCursor(Long.toString(position)).build());
+            page = SensorDataPage.newBuilder();
+        }
+    }
+
     // 2PC Protocol Implementation
     @Override
     public void prepare(TransactionRequest request, StreamObserver<PrepareResponse> responseObserver) {
-        System.out.println("Received prepare request for transaction: " + request.getTransactionId());
+        Log.debug("Received prepare request for transaction: {}", request.getTransactionId());
         String txId = request.getTransactionId();
         String operation = request.getOperation();
         
@@ -151,155 +486,529 @@ public class DatabaseServiceImpl extends DatabaseServiceGrpc.DatabaseServiceImpl
                 .setPrepared(true)  // Default to success, set to false on error
                 .setMessage("Ready to prepare");
         
+        // Entries are locked before they are checked, so that no other transaction changes them until the commit
+        long lockDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_MS);
+        List<String> locked = new ArrayList<>();
+        Set<String> held = Collections.emptySet();
         try {
-            SensorDataStored originalValue = null;
-            SensorDataStored dataToStore = null;
-            String key = null;
-            
-            switch (operation) {
-                case "CREATE":
-                    if (request.hasCreateData()) {
-                        SensorDataRequest createData = request.getCreateData();
-                        if (createData.getTemperature() == null || createData.getTemperature().trim().isEmpty()) {
-                            responseBuilder.setPrepared(false).setMessage("Temperature must not be empty");
-                            break;
-                        }
-                        // Use a predefined key for testing or generate new one
-                        key = "sensor-create-" + System.currentTimeMillis();
-                        dataToStore = SensorDataStored.newBuilder()
-                                .setId(key)
-                                .setSensorId(createData.getSensorId())
-                                .setTemperature(createData.getTemperature())
-                                .build();
-                        if (db.containsKey(key)) {
-                            responseBuilder.setPrepared(false).setMessage("Key already exists");
-                            break;
-                        }
-                    }
-                    break;
-                    
-                case "UPDATE":
-                    if (request.hasUpdateData()) {
-                        key = request.getUpdateData().getId();
-                        SensorDataRequest updateData = request.getUpdateData().getUpdatedData();
-                        if (!db.containsKey(key)) {
-                            responseBuilder.setPrepared(false).setMessage("Entry not found");
-                            break;
-                        }
-                        originalValue = db.get(key);
-                        dataToStore = SensorDataStored.newBuilder()
-                                .setId(key)
-                                .setSensorId(updateData.getSensorId())
-                                .setTemperature(updateData.getTemperature())
-                                .build();
-                    }
-                    break;
-                    
-                case "DELETE":
-                    if (request.hasDeleteData()) {
-                        key = request.getDeleteData().getId();
-                        if (!db.containsKey(key)) {
-                            responseBuilder.setPrepared(false).setMessage("Entry not found");
-                            break;
-                        }
-                        originalValue = db.get(key);
-                    }
-                    break;
-                    
-                default:
-                    responseBuilder.setPrepared(false).setMessage("Unknown operation");
-                    break;
-            }
+            TransactionData txData = "GROUP".equals(operation)
+                    ? prepareGroup(txId, request.getGroupData(), responseBuilder, lockDeadline, locked)
+                    : prepareLocked(txId, request, responseBuilder, lockDeadline, locked);
             
-            if (!responseBuilder.getPrepared()) {
+            if (txData == null) {
                 // Failed, don't store transaction data
-                System.out.println("Prepare failed for transaction: " + txId + " - " + responseBuilder.getMessage());
+                Log.debug("Prepare failed for transaction: {} - {}", txId, responseBuilder.getMessage());
+            } else if (!hold(txId, txData)) {
+                responseBuilder.setPrepared(false).setMessage("Could not log the prepared transaction");
             } else {
-                // Store transaction data for commit/abort
-                preparedTransactions.put(txId, new TransactionData(operation, dataToStore, originalValue));
-                responseBuilder.setMessage("Prepared successfully");
-                System.out.println("Prepared transaction: " + txId + " for operation: " + operation);
+                held = lockedKeys(txData);
+                if (txData.group == null) {
+                    responseBuilder.setMessage("Prepared successfully");
+                }
+                Log.debug("Prepared transaction: {} for operation: {}", txId, operation);
             }
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responseBuilder.setPrepared(false).setMessage("Interrupted while waiting for a lock");
         } catch (Exception e) {
             responseBuilder.setPrepared(false).setMessage("Error preparing transaction: " + e.getMessage());
-            System.err.println("Error preparing transaction: " + e.getMessage());
+            Log.warn("Error preparing transaction: {}", e.getMessage());
+        } finally {
+            // Locks of rejected operations are released now, the others with the outcome
+            for (String key : locked) {
+                if (!held.contains(key)) {
+                    locks.unlock(key, txId);
+                }
+            }
         }
         
         responseObserver.onNext(responseBuilder.build());
         responseObserver.onCompleted();
     }
+
+    /**
+     * Prepares the operations of a group independently. Operations that cannot be prepared are left
+     * out of the transaction, the response tells the coordinator which ones.
+     */
+    private TransactionData prepareGroup(String txId, TransactionGroup group, PrepareResponse.Builder responseBuilder,
+                                         long lockDeadline, List<String> locked) throws InterruptedException {
+        List<TransactionData> operations = new ArrayList<>(group.getOperationsCount());
+        for (TransactionRequest operation : group.getOperationsList()) {
+            TransactionData prepared = null;
+            if (!"GROUP".equals(operation.getOperation())) {
+                prepared = prepareLocked(txId, operation, PrepareResponse.newBuilder().setPrepared(true), lockDeadline, locked);
+            }
+            responseBuilder.addOperationPrepared(prepared != null);
+            if (prepared != null) {
+                operations.add(prepared);
+            }
+        }
+        responseBuilder.setMessage("Prepared " + operations.size() + " of " + group.getOperationsCount() + " operations");
+        return new TransactionData("GROUP", null, null, null, operations);
+    }
+
+    /**
+     * Locks the entry an update or delete changes, then checks the operation
+     * @param locked collects the keys locked for the transaction
+     * @return the data needed to commit it, or null if it cannot be prepared; the reason is set in the response
+     */
+    private TransactionData prepareLocked(String txId, TransactionRequest request, PrepareResponse.Builder responseBuilder,
+                                          long lockDeadline, List<String> locked) throws InterruptedException {
+        String key = lockKey(request);
+        if (key != null) {
+            long start = System.nanoTime();
+            boolean acquired = locks.lock(key, txId, lockDeadline - start, TimeUnit.NANOSECONDS);
+            lockRequests.increment();
+            lockWaitNanos.add(System.nanoTime() - start);
+            if (!acquired) {
+                lockTimeouts.increment();
+                responseBuilder.setPrepared(false).setMessage("Entry is locked by another transaction");
+                return null;
+            }
+            locked.add(key);
+        }
+        return prepareOperation(request, responseBuilder);
+    }
+
+    /**
+     * The existing entry an operation changes, null for operations that write new entries
+     */
+    private static String lockKey(TransactionRequest request) {
+        switch (request.getOperation()) {
+            case "UPDATE":
+                return request.hasUpdateData() ? request.getUpdateData().getId() : null;
+            case "DELETE":
+                return request.hasDeleteData() ? request.getDeleteData().getId() : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The entries a prepared transaction keeps locked until its outcome
+     */
+    private static Set<String> lockedKeys(TransactionData txData) {
+        Set<String> keys = new HashSet<>();
+        addLockedKeys(txData, keys);
+        return keys;
+    }
+
+    private static void addLockedKeys(TransactionData txData, Set<String> keys) {
+        switch (txData.operation) {
+            case "UPDATE":
+                if (txData.data != null) keys.add(txData.data.getId());
+                break;
+            case "DELETE":
+                if (txData.originalValue != null) keys.add(txData.originalValue.getId());
+                break;
+            case "GROUP":
+                for (TransactionData operation : txData.group) {
+                    addLockedKeys(operation, keys);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Checks a single operation against the store
+     * @return the data needed to commit it, or null if it cannot be prepared; the reason is set in the response
+     */
+    private TransactionData prepareOperation(TransactionRequest request, PrepareResponse.Builder responseBuilder) {
+        String operation = request.getOperation();
+        SensorDataStored originalValue = null;
+        SensorDataStored dataToStore = null;
+        List<SensorDataStored> batch = null;
+        String key = null;
+        
+        switch (operation) {
+            case "CREATE":
+                if (request.hasCreateData()) {
+                    SensorDataRequest createData = request.getCreateData();
+                    if (!CompactEncoding.hasTemperature(createData)) {
+                        responseBuilder.setPrepared(false).setMessage("Temperature must not be empty");
+                        break;
+                    }
+                    // A time based key would repeat when a group creates several entries at once
+                    key = UUID.randomUUID().toString();
+                    dataToStore = CompactEncoding.setTemperature(SensorDataStored.newBuilder(), createData)
+                            .setId(key)
+                            .setSensorId(createData.getSensorId())
+                            .build();
+                    if (db.contains(key)) {
+                        responseBuilder.setPrepared(false).setMessage("Key already exists");
+                        break;
+                    }
+                }
+                break;
+                
+            case "UPDATE":
+                if (request.hasUpdateData()) {
+                    key = request.getUpdateData().getId();
+                    SensorDataRequest updateData = request.getUpdateData().getUpdatedData();
+                    if (!db.contains(key)) {
+                        responseBuilder.setPrepared(false).setMessage("Entry not found");
+                        break;
+                    }
+                    originalValue = db.get(key);
+                    dataToStore = CompactEncoding.setTemperature(SensorDataStored.newBuilder(), updateData)
+                            .setId(key)
+                            .setSensorId(updateData.getSensorId())
+                            .build();
+                }
+                break;
+                
+            case "DELETE":
+                if (request.hasDeleteData()) {
+                    key = request.getDeleteData().getId();
+                    if (!db.contains(key)) {
+                        responseBuilder.setPrepared(false).setMessage("Entry not found");
+                        break;
+                    }
+                    originalValue = db.get(key);
+                }
+                break;
+
+            case "BATCH_CREATE":
+                // The ids are fixed now, the entries are written on commit
+                batch = newEntries(request.getBatchCreateData(), 0);
+                if (batch == null) {
+                    responseBuilder.setPrepared(false).setMessage("Temperature must not be empty");
+                }
+                break;
+                
+            default:
+                responseBuilder.setPrepared(false).setMessage("Unknown operation");
+                break;
+        }
+        
+        if (!responseBuilder.getPrepared()) {
+            return null;
+        }
+        return new TransactionData(operation, dataToStore, originalValue, batch, null);
+    }
     
     @Override
     public void commit(TransactionId request, StreamObserver<Response> responseObserver) {
-        System.out.println("Received commit request for transaction: " + request.getTransactionId());
+        Log.debug("Received commit request for transaction: {}", request.getTransactionId());
         String txId = request.getTransactionId();
-        TransactionData txData = preparedTransactions.remove(txId);
+        TransactionData txData = preparedTransactions.get(txId);
         
         Response.Builder responseBuilder = Response.newBuilder().setId(txId);
         
-        if (txData == null) {
+        if (txData == null && expiredIds.contains(txId)) {
+            responseBuilder.setSuccess(false).setMessage("Transaction expired before its commit");
+            Log.error("Commit of transaction {} arrived after it expired, it was aborted here", txId);
+        } else if (txData == null || !txData.finished.compareAndSet(false, true)) {
             responseBuilder.setSuccess(false).setMessage("No prepared transaction found");
         } else {
             try {
-                switch (txData.operation) {
-                    case "CREATE":
-                        if (txData.data != null) {
-                            db.put(txData.data.getId(), txData.data);
-                            insertionOrder.add(txData.data.getId());
-                            responseBuilder.setSuccess(true).setMessage("Created successfully");
-                        }
-                        break;
-                        
-                    case "UPDATE":
-                        if (txData.data != null) {
-                            db.put(txData.data.getId(), txData.data);
-                            responseBuilder.setSuccess(true).setMessage("Updated successfully");
-                        }
-                        break;
-                        
-                    case "DELETE":
-                        if (txData.originalValue != null) {
-                            db.remove(txData.originalValue.getId());
-                            insertionOrder.remove(txData.originalValue.getId());
-                            responseBuilder.setSuccess(true).setMessage("Deleted successfully");
-                        }
-                        break;
-                        
-                    default:
-                        responseBuilder.setSuccess(false).setMessage("Unknown operation");
-                        break;
+                String message = "GROUP".equals(txData.operation) ? applyGroup(txData, responseBuilder) : apply(txData);
+                if (message != null) {
+                    responseBuilder.setSuccess(true).setMessage(message);
+                } else {
+                    responseBuilder.setSuccess(false).setMessage("Nothing to commit for operation " + txData.operation);
                 }
-                
-                System.out.println("Committed transaction: " + txId);
+                // Released only after the writes, a crash before leaves it prepared for the recovery
+                preparedTransactions.remove(txId);
+                release(txId, txData, TransactionLog.COMMIT);
+                Log.debug("Committed transaction: {}", txId);
                 
             } catch (Exception e) {
-                responseBuilder.setSuccess(false).setMessage("Error committing transaction: " + e.getMessage());
-                System.err.println("Error committing transaction: " + e.getMessage());
+                // Stays prepared and locked, the coordinator sends the commit again on its recovery
+                txData.finished.set(false);
+                responseBuilder.clearOperationCommitted()
+                        .setSuccess(false).setMessage("Error committing transaction: " + e.getMessage());
+                Log.warn("Error committing transaction {}: {}", txId, e.getMessage());
             }
         }
         
         responseObserver.onNext(responseBuilder.build());
         responseObserver.onCompleted();
     }
+
+    /**
+     * Writes a prepared operation to the store
+     * @return the result message, or null if there was nothing to apply
+     */
+    private String apply(TransactionData txData) {
+        switch (txData.operation) {
+            case "CREATE":
+                if (txData.data == null) return null;
+                db.upsert(txData.data.toBuilder().setTimestamp(System.currentTimeMillis()).build());
+                return "Created successfully";
+                
+            case "UPDATE":
+                if (txData.data == null) return null;
+                db.upsert(txData.data.toBuilder().setTimestamp(System.currentTimeMillis()).build());
+                return "Updated successfully";
+                
+            case "DELETE":
+                if (txData.originalValue == null) return null;
+                db.remove(txData.originalValue.getId());
+                return "Deleted successfully";
+
+            case "BATCH_CREATE":
+                long now = System.currentTimeMillis();
+                List<SensorDataStored> entries = new ArrayList<>(txData.batch.size());
+                for (SensorDataStored entry : txData.batch) {
+                    // A commit repeated after a restart finds the entries it wrote before
+                    if (!db.contains(entry.getId())) {
+                        entries.add(entry.toBuilder().setTimestamp(now).build());
+                    }
+                }
+                insertAll(entries);
+                return "Created " + entries.size() + " entries";
+                
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writes the prepared operations of a group. They are independent, one with nothing to apply does not
+     * stop the others and the response tells the coordinator which ones were written. A failed write is
+     * rethrown afterwards so that the group stays prepared; applying it again is idempotent.
+     * @return the result message
+     */
+    private String applyGroup(TransactionData txData, Response.Builder responseBuilder) {
+        int applied = 0;
+        RuntimeException error = null;
+        for (TransactionData operation : txData.group) {
+            boolean written = false;
+            try {
+                written = apply(operation) != null;
+            } catch (RuntimeException e) {
+                if (error == null) error = e;
+                Log.warn("Error committing grouped {}: {}", operation.operation, e.getMessage());
+            }
+            responseBuilder.addOperationCommitted(written);
+            if (written) applied++;
+        }
+        if (error != null) throw error;
+        return "Committed " + applied + " of " + txData.group.size() + " operations";
+    }
     
     @Override
     public void abort(TransactionId request, StreamObserver<Response> responseObserver) {
-        System.out.println("Received abort request for transaction: " + request.getTransactionId());
+        Log.debug("Received abort request for transaction: {}", request.getTransactionId());
         String txId = request.getTransactionId();
-        TransactionData txData = preparedTransactions.remove(txId);
+        TransactionData txData = preparedTransactions.get(txId);
         
         Response.Builder responseBuilder = Response.newBuilder()
                 .setId(txId)
                 .setSuccess(true)
                 .setMessage("Transaction aborted");
         
-        if (txData == null) {
+        if (txData == null || !txData.finished.compareAndSet(false, true)) {
             responseBuilder.setMessage("No prepared transaction found (already aborted)");
+        } else {
+            preparedTransactions.remove(txId);
+            release(txId, txData, TransactionLog.ABORT);
         }
         
-        System.out.println("Aborted transaction: " + txId);
+        Log.debug("Aborted transaction: {}", txId);
         responseObserver.onNext(responseBuilder.build());
         responseObserver.onCompleted();
     }
+
+    @Override
+    public void inDoubt(Empty request, StreamObserver<TransactionIds> responseObserver) {
+        // Read in this order, an expiry adds the id before it removes the transaction, so it is in one of them
+        TransactionIds.Builder ids = TransactionIds.newBuilder().addAllTransactionIds(preparedTransactions.keySet());
+        responseObserver.onNext(ids.addAllExpiredTransactionIds(new ArrayList<>(expiredIds)).build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Keeps the prepared transaction until commit or abort. With a prepare log it is on disk before
+     * the prepare is acknowledged; concurrent prepares share one fsync.
+     * @return false if it could not be logged, then it is not prepared
+     */
+    private boolean hold(String txId, TransactionData txData) {
+        // Added first, so that a compaction of the log running meanwhile keeps the record
+        preparedTransactions.put(txId, txData);
+        if (prepareLog == null) return true;
+        try {
+            prepareLog.append(TransactionLog.PREPARE, txId, serialize(txData));
+            return true;
+        } catch (IOException e) {
+            preparedTransactions.remove(txId);
+            Log.warn("Could not log the prepare of transaction {}: {}", txId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Unlocks the entries of an ended transaction and logs its outcome
+     */
+    private void release(String txId, TransactionData txData, byte outcome) {
+        locks.unlockAll(lockedKeys(txData), txId);
+        if (prepareLog == null) return;
+        try {
+            prepareLog.appendLazily(outcome, txId, new byte[0]);
+        } catch (IOException e) {
+            Log.warn("Could not log the outcome of transaction {}: {}", txId, e.getMessage());
+        }
+    }
+
+    /**
+     * Aborts the prepared transactions whose coordinator did not send an outcome in time, so that their
+     * entries do not stay locked. Runs on the reaper thread. If the coordinator had logged a commit, the
+     * outcome is now mixed: the ids are reported by {@link #inDoubt} so that the coordinator keeps the
+     * commit and reports it instead of ending it, but only until this process restarts.
+     */
+    private void expirePrepared() {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            TransactionData txData = prepared.getValue();
+            if (now - txData.preparedAt < prepareTimeoutNanos || !txData.finished.compareAndSet(false, true)) {
+                continue;
+            }
+            expiredIds.add(prepared.getKey());
+            preparedTransactions.remove(prepared.getKey());
+            release(prepared.getKey(), txData, TransactionLog.ABORT);
+            expiredTransactions.increment();
+            expired++;
+        }
+        if (expired > 0) {
+            long requests = lockRequests.sum();
+            long meanWaitMicros = requests == 0 ? 0 : lockWaitNanos.sum() / requests / 1000;
+            Log.warn("Aborted {} prepared transaction(s) without outcome after the prepare timeout, {} in total",
+                    expired, expiredTransactions.sum());
+            Log.info("{} entry lock(s) taken, mean wait {} us", requests, meanWaitMicros);
+        }
+    }
+
+    long expiredTransactions() {
+        return expiredTransactions.sum();
+    }
+
+    long lockTimeouts() {
+        return lockTimeouts.sum();
+    }
+
+    long lockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * Restores the transactions that were prepared but had no outcome when the log was last written,
+     * with their entries locked again
+     */
+    private void replay(List<TransactionLog.Entry> entries) throws IOException {
+        for (TransactionLog.Entry entry : entries) {
+            if (entry.getType() == TransactionLog.PREPARE) {
+                preparedTransactions.put(entry.getTransactionId(), deserialize(entry.getPayload()));
+            } else {
+                preparedTransactions.remove(entry.getTransactionId());
+            }
+        }
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            for (String key : lockedKeys(prepared.getValue())) {
+                try {
+                    locks.lock(key, prepared.getKey(), 0, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Cannot happen, free locks are taken without waiting
+                }
+            }
+        }
+        if (!preparedTransactions.isEmpty()) {
+            Log.info("Holding {} prepared transaction(s) from before the restart", preparedTransactions.size());
+        }
+    }
+
+    private Collection<TransactionLog.Entry> openPrepares() {
+        List<TransactionLog.Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, TransactionData> prepared : preparedTransactions.entrySet()) {
+            entries.add(new TransactionLog.Entry(TransactionLog.PREPARE, prepared.getKey(), serialize(prepared.getValue())));
+        }
+        return entries;
+    }
+
+    private static byte[] serialize(TransactionData txData) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(new DataOutputStream(bytes), txData);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Writes to memory do not fail
+        }
+    }
+
+    private static void write(DataOutputStream out, TransactionData txData) throws IOException {
+        out.writeUTF(txData.operation);
+        writeEntry(out, txData.data);
+        writeEntry(out, txData.originalValue);
+        out.writeInt(txData.batch == null ? -1 : txData.batch.size());
+        if (txData.batch != null) {
+            for (SensorDataStored entry : txData.batch) {
+                writeEntry(out, entry);
+            }
+        }
+        out.writeInt(txData.group == null ? -1 : txData.group.size());
+        if (txData.group != null) {
+            for (TransactionData operation : txData.group) {
+                write(out, operation);
+            }
+        }
+    }
+
+    private static TransactionData deserialize(byte[] payload) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private static TransactionData read(DataInputStream in) throws IOException {
+        String operation = in.readUTF();
+        SensorDataStored data = readEntry(in);
+        SensorDataStored originalValue = readEntry(in);
+        List<SensorDataStored> batch = null;
+        int batchSize = in.readInt();
+        if (batchSize >= 0) {
+            batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(readEntry(in));
+            }
+        }
+        List<TransactionData> group = null;
+        int groupSize = in.readInt();
+        if (groupSize >= 0) {
+            group = new ArrayList<>(groupSize);
+            for (int i = 0; i < groupSize; i++) {
+                group.add(read(in));
+            }
+        }
+        return new TransactionData(operation, data, originalValue, batch, group);
+    }
+
+    private static void writeEntry(DataOutputStream out, SensorDataStored entry) throws IOException {
+        if (entry == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = entry.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static SensorDataStored readEntry(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return SensorDataStored.parseFrom(bytes);
+    }
+
+    /**
+     * Stops expiring prepared transactions, writes the outcomes still buffered and closes the prepare log
+     */
+    public void close() throws IOException {
+        reaper.shutdownNow();
+        if (prepareLog != null) {
+            prepareLog.close();
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package org.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps all entries on the heap. Data is lost on restart.
+ *
+ * Entries are indexed by id; a second map ordered by an insertion sequence number keeps the order of
+ * {@link #forEach(Consumer)}, so appending and removing an entry are O(log n) instead of copying an
+ * order list. Both maps are changed inside the compute call of the id index, which serializes writers
+ * of the same id. Iteration is weakly consistent: it sees every entry that was present for the whole
+ * iteration exactly once, in insertion order, and does not block writers.
+ */
+public class HeapSensorStore implements SensorStore {
+    private final ConcurrentHashMap<String, Entry> db = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, SensorDataStored> insertionOrder = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private static final class Entry {
+        final long sequence;
+        final SensorDataStored data;
+
+        Entry(long sequence, SensorDataStored data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    @Override
+    public boolean insert(SensorDataStored entry) {
+        boolean[] inserted = new boolean[1];
+        db.computeIfAbsent(entry.getId(), id -> {
+            inserted[0] = true;
+            return append(entry);
+        });
+        return inserted[0];
+    }
+
+    @Override
+    public void upsert(SensorDataStored entry) {
+        db.compute(entry.getId(), (id, existing) -> existing == null ? append(entry) : replace(existing, entry));
+    }
+
+    @Override
+    public boolean replace(SensorDataStored entry) {
+        return db.computeIfPresent(entry.getId(), (id, existing) -> replace(existing, entry)) != null;
+    }
+
+    @Override
+    public SensorDataStored get(String id) {
+        Entry entry = db.get(id);
+        return entry != null ? entry.data : null;
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return db.containsKey(id);
+    }
+
+    @Override
+    public SensorDataStored remove(String id) {
+        SensorDataStored[] removed = new SensorDataStored[1];
+        db.computeIfPresent(id, (key, existing) -> {
+            insertionOrder.remove(existing.sequence);
+            removed[0] = existing.data;
+            return null;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public void forEach(Consumer<SensorDataStored> action) {
+        insertionOrder.values().forEach(action);
+    }
+
+    @Override
+    public boolean scan(long after, ScanAction action) {
+        for (Map.Entry<Long, SensorDataStored> entry : insertionOrder.tailMap(after, false).entrySet()) {
+            if (!action.accept(entry.getKey(), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return db.size();
+    }
+
+    private Entry append(SensorDataStored entry) {
+        long position = sequence.incrementAndGet();
+        insertionOrder.put(position, entry);
+        return new Entry(position, entry);
+    }
+
+    private Entry replace(Entry existing, SensorDataStored entry) {
+        insertionOrder.put(existing.sequence, entry);
+        return new Entry(existing.sequence, entry);
+    }
+}
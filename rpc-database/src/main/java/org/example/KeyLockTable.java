@@ -0,0 +1,87 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive locks on entry ids, held by prepared transactions until their commit or abort.
+ *
+ * A lock is owned by a transaction id, not by a thread: the commit that releases it arrives on another
+ * thread than the prepare that took it. Taking a free lock is one putIfAbsent on a concurrent map.
+ * Transactions that find the key locked wait on one of {@value #STRIPES} conditions picked by the
+ * hash of the key, so a release only wakes the waiters of its stripe.
+ */
+public final class KeyLockTable {
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Condition[] released = new Condition[STRIPES];
+
+    public KeyLockTable() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+            released[i] = stripes[i].newCondition();
+        }
+    }
+
+    /**
+     * Takes the lock on the key for the transaction, waiting while another transaction holds it
+     * @return true if the transaction holds the lock, also if it held it already; false if another
+     *         transaction held it for the whole timeout
+     */
+    public boolean lock(String key, String owner, long timeout, TimeUnit unit) throws InterruptedException {
+        String current = owners.putIfAbsent(key, owner);
+        if (current == null || current.equals(owner)) return true;
+
+        int stripe = stripeOf(key);
+        long remaining = unit.toNanos(timeout);
+        stripes[stripe].lock();
+        try {
+            while (true) {
+                current = owners.putIfAbsent(key, owner);
+                if (current == null || current.equals(owner)) return true;
+                if (remaining <= 0) return false;
+                remaining = released[stripe].awaitNanos(remaining);
+            }
+        } finally {
+            stripes[stripe].unlock();
+        }
+    }
+
+    /**
+     * Releases the lock if the transaction holds it
+     */
+    public void unlock(String key, String owner) {
+        if (owners.remove(key, owner)) {
+            int stripe = stripeOf(key);
+            stripes[stripe].lock();
+            try {
+                released[stripe].signalAll();
+            } finally {
+                stripes[stripe].unlock();
+            }
+        }
+    }
+
+    public void unlockAll(Collection<String> keys, String owner) {
+        for (String key : keys) {
+            unlock(key, owner);
+        }
+    }
+
+    /**
+     * Number of keys locked right now
+     */
+    public int size() {
+        return owners.size();
+    }
+
+    private static int stripeOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,259 @@
+package org.example;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger with levels.
+ *
+ * Log calls only put an entry into a bounded lock-free ring buffer; a background thread formats the
+ * entries and writes them to stdout (WARN and ERROR to stderr). Messages use "{}" placeholders that are
+ * filled in by the writer, so disabled or hot-path log calls do not build strings. Arguments other than
+ * strings and boxed primitives are turned into strings at the call though, as the caller may change
+ * them before the writer gets to them. If the buffer is full, entries are dropped and counted instead of
+ * blocking the caller.
+ * The level is set with the LOG_LEVEL environment variable (debug, info, warn, error, off), default info.
+ * Per-request messages are logged at DEBUG, so they are off by default. Callers that need expensive
+ * arguments (e.g. remote calls) check {@link #isDebugEnabled()} first.
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Level LEVEL = levelFromEnvironment();
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long head = 0; // only accessed by the writer thread, or under the class lock on shutdown
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null, null, null, null);
+    }
+
+    public static void debug(String message, Object arg) {
+        log(Level.DEBUG, message, arg, null, null, null);
+    }
+
+    public static void debug(String message, Object arg1, Object arg2) {
+        log(Level.DEBUG, message, arg1, arg2, null, null);
+    }
+
+    public static void debug(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, message, arg1, arg2, arg3, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null, null, null);
+    }
+
+    public static void info(String message, Object arg) {
+        log(Level.INFO, message, arg, null, null, null);
+    }
+
+    public static void info(String message, Object arg1, Object arg2) {
+        log(Level.INFO, message, arg1, arg2, null, null);
+    }
+
+    public static void info(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, message, arg1, arg2, arg3, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null, null, null);
+    }
+
+    public static void warn(String message, Object arg) {
+        log(Level.WARN, message, arg, null, null, null);
+    }
+
+    public static void warn(String message, Object arg1, Object arg2) {
+        log(Level.WARN, message, arg1, arg2, null, null);
+    }
+
+    public static void warn(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.WARN, message, arg1, arg2, arg3, null);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null, null, null, null);
+    }
+
+    public static void error(String message, Object arg) {
+        log(Level.ERROR, message, arg, null, null, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, null, null, null, error);
+    }
+
+    public static void error(String message, Object arg, Throwable error) {
+        log(Level.ERROR, message, arg, null, null, error);
+    }
+
+    public static void error(String message, Object arg1, Object arg2) {
+        log(Level.ERROR, message, arg1, arg2, null, null);
+    }
+
+    public static void error(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.ERROR, message, arg1, arg2, arg3, null);
+    }
+
+    /**
+     * Number of entries dropped because the buffer was full
+     */
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static void log(Level level, String message, Object arg1, Object arg2, Object arg3, Throwable error) {
+        if (!isEnabled(level)) return;
+        Entry entry = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(),
+                message, snapshot(arg1), snapshot(arg2), snapshot(arg3), error);
+
+        // Bounded multi-producer queue: every slot carries the sequence number it expects next
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, entry);
+                    sequences.lazySet(index, position + 1);
+                    return;
+                }
+            } else if (difference < 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+                || arg instanceof Double || arg instanceof Float || arg instanceof Boolean
+                || arg instanceof Character || arg instanceof Short || arg instanceof Byte) {
+            return arg;
+        }
+        return String.valueOf(arg);
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes all published entries
+     * @return false if there was nothing to write
+     */
+    private static synchronized boolean drain() {
+        boolean wroteOut = false;
+        boolean wroteErr = false;
+        while (true) {
+            int index = (int) (head & MASK);
+            if (sequences.get(index) != head + 1) break;
+            Entry entry = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.lazySet(index, head + CAPACITY);
+            head++;
+
+            boolean toErr = entry.level.compareTo(Level.WARN) >= 0;
+            entry.writeTo(toErr ? System.err : System.out);
+            wroteOut |= !toErr;
+            wroteErr |= toErr;
+        }
+        if (wroteOut) System.out.flush();
+        if (wroteErr) System.err.flush();
+        return wroteOut || wroteErr;
+    }
+
+    private static Level levelFromEnvironment() {
+        String configured = System.getenv("LOG_LEVEL");
+        if (configured != null) {
+            try {
+                return Level.valueOf(configured.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid LOG_LEVEL value: " + configured);
+            }
+        }
+        return Level.INFO;
+    }
+
+    private static final class Entry {
+        private final Level level;
+        private final long timestamp;
+        private final String thread;
+        private final String message;
+        private final Object arg1;
+        private final Object arg2;
+        private final Object arg3;
+        private final Throwable error;
+
+        Entry(Level level, long timestamp, String thread, String message, Object arg1, Object arg2, Object arg3,
+                Throwable error) {
+            this.level = level;
+            this.timestamp = timestamp;
+            this.thread = thread;
+            this.message = message;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+            this.error = error;
+        }
+
+        void writeTo(PrintStream out) {
+            StringBuilder line = new StringBuilder(64 + message.length());
+            line.append(Instant.ofEpochMilli(timestamp)).append(' ')
+                    .append(level).append(' ')
+                    .append('[').append(thread).append("] ");
+            int start = 0;
+            int argument = 0;
+            int placeholder;
+            while (argument < 3 && (placeholder = message.indexOf("{}", start)) >= 0) {
+                line.append(message, start, placeholder).append(argument == 0 ? arg1 : argument == 1 ? arg2 : arg3);
+                start = placeholder + 2;
+                argument++;
+            }
+            line.append(message, start, message.length());
+            out.println(line);
+            if (error != null) {
+                error.printStackTrace(out);
+            }
+        }
+    }
+}
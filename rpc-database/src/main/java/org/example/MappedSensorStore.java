@@ -0,0 +1,833 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent storage engine that keeps entries outside the Java heap.
+ *
+ * Entries are appended as fixed-size records to memory-mapped segment files ("segment-N.log") in the
+ * data directory. Appending a new version of an entry, or deleting it, only flips the status byte of the
+ * previous record to dead, which is a single atomic write. An off-heap open addressing hash table maps
+ * ids to record locations; keys are compared against the id stored in the record. A second off-heap
+ * table lists the record locations sorted by insertion sequence, so that scans start at their position
+ * and read only the records they pass on. The heap only holds the per-segment bookkeeping.
+ *
+ * On startup all segments are scanned in order to rebuild the index. Records with a broken checksum
+ * (torn writes) are discarded, and if a crash left two live versions of an entry, the newer one wins.
+ * A background task rewrites sealed segments that are mostly dead records into compacted files,
+ * keeping the record order; empty segments are deleted.
+ *
+ * Records store the id in up to {@value #MAX_ID_BYTES} and the temperature in up to
+ * {@value #MAX_TEMPERATURE_BYTES} UTF-8 bytes. Larger entries are rejected with an IllegalArgumentException.
+ * Data written to the mapped files survives a crash of the process; {@link #close()} forces it to disk.
+ */
+public class MappedSensorStore implements SensorStore {
+    static final int RECORD_SIZE = 128;
+    static final int MAX_ID_BYTES = 64;
+    static final int MAX_TEMPERATURE_BYTES = 28;
+    static final int DEFAULT_SEGMENT_RECORDS = 16 * 1024;
+    static final long DEFAULT_COMPACTION_INTERVAL_MS = 30_000;
+    // Entries forEach decodes under the lock before it passes them on
+    private static final int FOR_EACH_PAGE = 256;
+
+    // Record layout
+    private static final int STATUS = 0;
+    private static final int ID_LENGTH = 1;
+    private static final int TEMPERATURE_LENGTH = 2;
+    private static final int SENSOR_ID = 4;
+    private static final int WRITE_SEQUENCE = 8;
+    private static final int INSERT_SEQUENCE = 16;
+    private static final int CHECKSUM = 24;
+    private static final int ID = 28;
+    private static final int TIMESTAMP = ID + MAX_ID_BYTES;
+    private static final int TEMPERATURE = TIMESTAMP + 8;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte DEAD = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final OffHeapIndex index = new OffHeapIndex(1024);
+    private final InsertionOrder order = new InsertionOrder(1024);
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+    private long writeSequence = 0;
+    private long insertSequence = 0;
+
+    /**
+     * A segment file mapped into memory. Sealed segments are never appended to again.
+     */
+    private static final class Segment {
+        final int number;
+        final Path path;
+        MappedByteBuffer buffer;
+        int capacity;
+        int records;
+        int live;
+
+        Segment(int number, Path path, MappedByteBuffer buffer, int capacity) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    public MappedSensorStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_COMPACTION_INTERVAL_MS);
+    }
+
+    /**
+     * @param segmentRecords number of records per segment file
+     * @param compactionIntervalMillis interval of the background compaction, or 0 to disable it
+     */
+    public MappedSensorStore(Path directory, int segmentRecords, long compactionIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        Files.createDirectories(directory);
+        recover();
+
+        if (compactionIntervalMillis > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "segment-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalMillis,
+                    compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    @Override
+    public boolean insert(SensorDataStored entry) {
+        byte[] id = encodeId(entry.getId());
+        byte[] temperature = encodeTemperature(CompactEncoding.temperatureText(entry));
+        lock.writeLock().lock();
+        try {
+            long hash = hash(id);
+            if (index.find(id, hash) >= 0) {
+                return false;
+            }
+            long location = append(id, temperature, entry.getSensorId(), entry.getTimestamp(), ++insertSequence);
+            index.put(id, hash, location);
+            order.append(insertSequence, location);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void upsert(SensorDataStored entry) {
+        lock.writeLock().lock();
+        try {
+            if (!replace(entry)) {
+                insert(entry);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(SensorDataStored entry) {
+        byte[] id = encodeId(entry.getId());
+        byte[] temperature = encodeTemperature(CompactEncoding.temperatureText(entry));
+        lock.writeLock().lock();
+        try {
+            long hash = hash(id);
+            long previous = index.find(id, hash);
+            if (previous < 0) {
+                return false;
+            }
+            long sequence = recordOf(previous).getLong(base(previous) + INSERT_SEQUENCE);
+            long location = append(id, temperature, entry.getSensorId(), entry.getTimestamp(), sequence);
+            kill(previous);
+            index.put(id, hash, location);
+            order.move(sequence, location);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public SensorDataStored get(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            long location = index.find(key, hash(key));
+            return location < 0 ? null : decode(recordOf(location), base(location));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            return index.find(key, hash(key)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SensorDataStored remove(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            long location = index.remove(key, hash(key));
+            if (location < 0) {
+                return null;
+            }
+            SensorDataStored removed = decode(recordOf(location), base(location));
+            order.remove(recordOf(location).getLong(base(location) + INSERT_SEQUENCE));
+            kill(location);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Entries are decoded under the read lock a page at a time and passed to the action without it. Like
+     * a scan that resumes after each page, it sees every entry that was present for the whole iteration
+     * exactly once.
+     */
+    @Override
+    public void forEach(Consumer<SensorDataStored> action) {
+        List<SensorDataStored> page = new ArrayList<>(FOR_EACH_PAGE);
+        long[] position = {0};
+        boolean reachedEnd;
+        do {
+            page.clear();
+            reachedEnd = scan(position[0], (sequence, entry) -> {
+                page.add(entry);
+                position[0] = sequence;
+                return page.size() < FOR_EACH_PAGE;
+            });
+            page.forEach(action);
+        } while (!reachedEnd);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Positions are insertion sequence numbers. The scan seeks to the position in the insertion order
+     * table and decodes entries only until the action stops it. The action runs under the read lock and
+     * must not block.
+     */
+    @Override
+    public boolean scan(long after, ScanAction action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = order.firstAfter(after); slot < order.slots(); slot++) {
+                long location = order.location(slot);
+                if (location == InsertionOrder.REMOVED) continue;
+                if (!action.accept(order.sequence(slot), decode(recordOf(location), base(location)))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites sealed segments with less than half of their records alive and deletes empty ones
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (segment == active || segment.live * 2 >= segment.records) continue;
+                if (segment.live == 0) {
+                    segments.remove(segment.number);
+                    Files.delete(segment.path);
+                } else {
+                    rewrite(segment);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of segment files, for tests and monitoring
+     */
+    int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Segment compaction failed: {}", e.getMessage());
+        }
+    }
+
+    // Records
+
+    private long append(byte[] id, byte[] temperature, int sensorId, long timestamp, long sequence) {
+        if (active == null || active.records == active.capacity) {
+            active = createSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+        }
+        int record = active.records;
+        int base = record * RECORD_SIZE;
+
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer encoded = ByteBuffer.wrap(bytes);
+        encoded.put(ID_LENGTH, (byte) id.length);
+        encoded.put(TEMPERATURE_LENGTH, (byte) temperature.length);
+        encoded.putInt(SENSOR_ID, sensorId);
+        encoded.putLong(WRITE_SEQUENCE, ++writeSequence);
+        encoded.putLong(INSERT_SEQUENCE, sequence);
+        System.arraycopy(id, 0, bytes, ID, id.length);
+        encoded.putLong(TIMESTAMP, timestamp);
+        System.arraycopy(temperature, 0, bytes, TEMPERATURE, temperature.length);
+        encoded.putInt(CHECKSUM, checksum(bytes));
+
+        // The status byte is written last, so a record only becomes visible once it is complete
+        ByteBuffer target = active.buffer.duplicate();
+        target.position(base + 1);
+        target.put(bytes, 1, RECORD_SIZE - 1);
+        active.buffer.put(base + STATUS, LIVE);
+
+        active.records++;
+        active.live++;
+        return location(active.number, record);
+    }
+
+    private void kill(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        segment.buffer.put(base(location) + STATUS, DEAD);
+        segment.live--;
+    }
+
+    private ByteBuffer recordOf(long location) {
+        return segments.get(segmentOf(location)).buffer;
+    }
+
+    private static SensorDataStored decode(ByteBuffer buffer, int base) {
+        return SensorDataStored.newBuilder()
+                .setId(string(buffer, base + ID, buffer.get(base + ID_LENGTH)))
+                .setSensorId(buffer.getInt(base + SENSOR_ID))
+                .setTemperature(string(buffer, base + TEMPERATURE, buffer.get(base + TEMPERATURE_LENGTH)))
+                .setTimestamp(buffer.getLong(base + TIMESTAMP))
+                .build();
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean idEquals(ByteBuffer buffer, int base, byte[] id) {
+        if (buffer.get(base + ID_LENGTH) != id.length) return false;
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(base + ID + i) != id[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * CRC32 of the record without the status byte and the checksum itself
+     */
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 1, CHECKSUM - 1);
+        crc.update(record, ID, RECORD_SIZE - ID);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeId(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Id must have 1 to " + MAX_ID_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    private static byte[] encodeTemperature(String temperature) {
+        byte[] bytes = temperature.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TEMPERATURE_BYTES) {
+            throw new IllegalArgumentException("Temperature must not exceed " + MAX_TEMPERATURE_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    private static long location(int segment, int record) {
+        return ((long) segment << 32) | record;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int base(long location) {
+        return (int) location * RECORD_SIZE;
+    }
+
+    private static long hash(byte[] id) {
+        // FNV-1a, never 0 or 1 which mark empty and deleted index slots
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : id) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 || hash == 1 ? 2 : hash;
+    }
+
+    // Segment files
+
+    private Segment createSegment(int number) {
+        Path path = directory.resolve(segmentName(number));
+        try {
+            Segment segment = new Segment(number, path, map(path, (long) segmentRecords * RECORD_SIZE), segmentRecords);
+            segments.put(number, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create segment " + path, e);
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Copies the live records of the segment into a compacted file that replaces it
+     */
+    private void rewrite(Segment segment) throws IOException {
+        Path compacted = directory.resolve(segmentName(segment.number) + COMPACT_SUFFIX);
+        MappedByteBuffer target = map(compacted, (long) segment.live * RECORD_SIZE);
+        int written = 0;
+        long[] moves = new long[segment.live * 2];
+        for (int record = 0; record < segment.records; record++) {
+            int base = record * RECORD_SIZE;
+            if (segment.buffer.get(base + STATUS) != LIVE) continue;
+            for (int i = 0; i < RECORD_SIZE; i++) {
+                target.put(written * RECORD_SIZE + i, segment.buffer.get(base + i));
+            }
+            moves[written * 2] = location(segment.number, record);
+            moves[written * 2 + 1] = location(segment.number, written);
+            written++;
+        }
+        target.force();
+        Files.move(compacted, segment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        MappedByteBuffer previous = segment.buffer;
+        for (int i = 0; i < written; i++) {
+            int base = (int) moves[i * 2] * RECORD_SIZE;
+            byte[] id = new byte[previous.get(base + ID_LENGTH)];
+            for (int b = 0; b < id.length; b++) {
+                id[b] = previous.get(base + ID + b);
+            }
+            index.relocate(hash(id), moves[i * 2], moves[i * 2 + 1]);
+            order.move(previous.getLong(base + INSERT_SEQUENCE), moves[i * 2 + 1]);
+        }
+        segment.buffer = target;
+        segment.capacity = written;
+        segment.records = written;
+        segment.live = written;
+    }
+
+    private void recover() throws IOException {
+        Map<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(COMPACT_SUFFIX)) {
+                    // Left over from a compaction that did not finish, the original segment is still complete
+                    Files.delete(path);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), path);
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        int discarded = 0;
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            long size = Files.size(file.getValue());
+            int capacity = (int) (size / RECORD_SIZE);
+            Segment segment = new Segment(file.getKey(), file.getValue(), map(file.getValue(), size), capacity);
+            segments.put(segment.number, segment);
+            discarded += scan(segment);
+            // Only a full-sized last segment with free records keeps taking appends
+            active = capacity == segmentRecords && segment.records < capacity ? segment : null;
+        }
+        index.forEachLocation(location -> order.append(recordOf(location).getLong(base(location) + INSERT_SEQUENCE), location));
+        // Replaced entries were appended out of insertion order
+        order.sort();
+        if (!files.isEmpty()) {
+            Log.info("Recovered {} entries from {} segment(s)", index.size(), files.size());
+            Log.debug("Recovery took {} ms, discarded {} torn record(s)",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), discarded);
+        }
+    }
+
+    /**
+     * Adds the live records of the segment to the index
+     * @return the number of records discarded because of a wrong checksum
+     */
+    private int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        byte[] record = new byte[RECORD_SIZE];
+        int discarded = 0;
+        for (int index = 0; index < segment.capacity; index++) {
+            int base = index * RECORD_SIZE;
+            byte status = buffer.get(base + STATUS);
+            if (status == EMPTY) break;
+            segment.records++;
+            if (status != LIVE) continue;
+
+            for (int i = 0; i < RECORD_SIZE; i++) {
+                record[i] = buffer.get(base + i);
+            }
+            ByteBuffer view = ByteBuffer.wrap(record);
+            if (view.getInt(CHECKSUM) != checksum(record)) {
+                buffer.put(base + STATUS, DEAD);
+                discarded++;
+                continue;
+            }
+
+            long sequence = view.getLong(WRITE_SEQUENCE);
+            writeSequence = Math.max(writeSequence, sequence);
+            insertSequence = Math.max(insertSequence, view.getLong(INSERT_SEQUENCE));
+            byte[] id = new byte[record[ID_LENGTH]];
+            System.arraycopy(record, ID, id, 0, id.length);
+            long hash = hash(id);
+            long location = location(segment.number, index);
+            segment.live++;
+
+            long existing = this.index.find(id, hash);
+            if (existing >= 0) {
+                // A crash between appending a new version and killing the old one left both alive
+                ByteBuffer other = recordOf(existing);
+                if (other.getLong(base(existing) + WRITE_SEQUENCE) > sequence) {
+                    kill(location);
+                    continue;
+                }
+                kill(existing);
+            }
+            this.index.put(id, hash, location);
+        }
+        return discarded;
+    }
+
+    /**
+     * Open addressing hash table in a direct buffer. Every slot holds the hash of the id and the
+     * location of its record; ids are compared against the record.
+     */
+    private final class OffHeapIndex {
+        private static final int SLOT_SIZE = 16;
+        private static final long FREE = 0;
+        private static final long DELETED = 1;
+
+        private ByteBuffer table;
+        private int capacity;
+        private int size = 0;
+        private int used = 0; // live slots and deleted markers
+
+        OffHeapIndex(int capacity) {
+            this.capacity = capacity;
+            this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long find(byte[] id, long hash) {
+            int slot = slotOf(id, hash);
+            return slot < 0 ? -1 : table.getLong(slot * SLOT_SIZE + 8);
+        }
+
+        void put(byte[] id, long hash, long location) {
+            int existing = slotOf(id, hash);
+            if (existing >= 0) {
+                table.putLong(existing * SLOT_SIZE + 8, location);
+                return;
+            }
+            if ((used + 1) * 4 > capacity * 3) {
+                resize(size * 2 >= capacity ? capacity * 2 : capacity);
+            }
+            insert(hash, location);
+            size++;
+        }
+
+        long remove(byte[] id, long hash) {
+            int slot = slotOf(id, hash);
+            if (slot < 0) return -1;
+            long location = table.getLong(slot * SLOT_SIZE + 8);
+            table.putLong(slot * SLOT_SIZE, DELETED);
+            size--;
+            return location;
+        }
+
+        void forEachLocation(LongConsumer action) {
+            for (int slot = 0; slot < capacity; slot++) {
+                long hash = table.getLong(slot * SLOT_SIZE);
+                if (hash != FREE && hash != DELETED) {
+                    action.accept(table.getLong(slot * SLOT_SIZE + 8));
+                }
+            }
+        }
+
+        void relocate(long hash, long from, long to) {
+            int mask = capacity - 1;
+            for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+                long slotHash = table.getLong(slot * SLOT_SIZE);
+                if (slotHash == FREE) return;
+                if (slotHash == hash && table.getLong(slot * SLOT_SIZE + 8) == from) {
+                    table.putLong(slot * SLOT_SIZE + 8, to);
+                    return;
+                }
+            }
+        }
+
+        private int slotOf(byte[] id, long hash) {
+            int mask = capacity - 1;
+            for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+                long slotHash = table.getLong(slot * SLOT_SIZE);
+                if (slotHash == FREE) return -1;
+                if (slotHash == hash) {
+                    long location = table.getLong(slot * SLOT_SIZE + 8);
+                    if (idEquals(recordOf(location), base(location), id)) {
+                        return slot;
+                    }
+                }
+            }
+        }
+
+        private void insert(long hash, long location) {
+            int mask = capacity - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            long slotHash;
+            while ((slotHash = table.getLong(slot * SLOT_SIZE)) != FREE && slotHash != DELETED) {
+                slot = (slot + 1) & mask;
+            }
+            if (slotHash == FREE) {
+                used++;
+            }
+            table.putLong(slot * SLOT_SIZE, hash);
+            table.putLong(slot * SLOT_SIZE + 8, location);
+        }
+
+        private void resize(int newCapacity) {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            table = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            capacity = newCapacity;
+            used = 0;
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                long hash = old.getLong(slot * SLOT_SIZE);
+                if (hash != FREE && hash != DELETED) {
+                    insert(hash, old.getLong(slot * SLOT_SIZE + 8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Record locations sorted by insertion sequence in a direct buffer. New entries have the highest
+     * sequence and are appended; a removed entry leaves a gap until gaps are the majority, then the table
+     * is compacted. Replacing or moving a record finds its slot by binary search.
+     */
+    private static final class InsertionOrder {
+        private static final int SLOT_SIZE = 16;
+        static final long REMOVED = -1;
+
+        private ByteBuffer table;
+        private int capacity;
+        private int slots = 0; // used slots, including gaps
+        private int gaps = 0;
+
+        InsertionOrder(int capacity) {
+            this.capacity = capacity;
+            this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        int slots() {
+            return slots;
+        }
+
+        long sequence(int slot) {
+            return table.getLong(slot * SLOT_SIZE);
+        }
+
+        long location(int slot) {
+            return table.getLong(slot * SLOT_SIZE + 8);
+        }
+
+        void append(long sequence, long location) {
+            if (slots == capacity) {
+                ByteBuffer old = table;
+                capacity *= 2;
+                table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+                old.clear();
+                table.put(old);
+            }
+            set(slots++, sequence, location);
+        }
+
+        void move(long sequence, long location) {
+            int slot = firstAfter(sequence - 1);
+            if (slot < slots && sequence(slot) == sequence) {
+                table.putLong(slot * SLOT_SIZE + 8, location);
+            }
+        }
+
+        void remove(long sequence) {
+            int slot = firstAfter(sequence - 1);
+            if (slot == slots || sequence(slot) != sequence || location(slot) == REMOVED) return;
+            table.putLong(slot * SLOT_SIZE + 8, REMOVED);
+            if (++gaps * 2 > slots) {
+                compact();
+            }
+        }
+
+        /**
+         * @return the first slot with a sequence above the position, or {@link #slots()} if there is none
+         */
+        int firstAfter(long position) {
+            int low = 0;
+            int high = slots;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sequence(middle) <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Heapsort by sequence, for the table filled from the id index on recovery
+         */
+        void sort() {
+            for (int root = slots / 2 - 1; root >= 0; root--) {
+                siftDown(root, slots);
+            }
+            for (int end = slots - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void siftDown(int root, int end) {
+            while (true) {
+                int child = root * 2 + 1;
+                if (child >= end) return;
+                if (child + 1 < end && sequence(child + 1) > sequence(child)) child++;
+                if (sequence(root) >= sequence(child)) return;
+                swap(root, child);
+                root = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long sequence = sequence(a);
+            long location = location(a);
+            set(a, sequence(b), location(b));
+            set(b, sequence, location);
+        }
+
+        private void set(int slot, long sequence, long location) {
+            table.putLong(slot * SLOT_SIZE, sequence);
+            table.putLong(slot * SLOT_SIZE + 8, location);
+        }
+
+        private void compact() {
+            int kept = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (location(slot) != REMOVED) {
+                    set(kept++, sequence(slot), location(slot));
+                }
+            }
+            slots = kept;
+            gaps = 0;
+        }
+    }
+}
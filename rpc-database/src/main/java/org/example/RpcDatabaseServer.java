@@ -1,14 +1,28 @@
 package org.example;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 public class RpcDatabaseServer {
+    /**
+     * Clients ping idle connections every 30 seconds; pings more often than this are answered with GOAWAY
+     */
+    static final long PERMIT_KEEP_ALIVE_SECONDS = 20;
+
     private Server server;
+    private SensorStore store;
+    private DatabaseServiceImpl service;
 
     public void start(int port) throws IOException {
-        server = ServerBuilder.forPort(port)
-                .addService(new DatabaseServiceImpl())
+        store = SensorStore.fromEnvironment();
+        service = new DatabaseServiceImpl(store, prepareLogFromEnvironment(), prepareTimeoutFromEnvironment());
+        server = NettyServerBuilder.forPort(port)
+                .permitKeepAliveTime(PERMIT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)
+                .addService(ServerInterceptors.intercept(service, SchemaVersion.interceptor()))
                 .build()
                 .start();
     }
@@ -17,6 +31,47 @@ public class RpcDatabaseServer {
         if (server != null) {
             server.shutdown();
         }
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                Log.error("Could not close the prepare log", e);
+            }
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                Log.error("Could not close the store", e);
+            }
+        }
+    }
+
+    /**
+     * Prepared transactions are kept next to the data, they only outlive a restart if the data does
+     */
+    private static Path prepareLogFromEnvironment() {
+        String dataDirectory = System.getenv("DATABASE_DATA_DIR");
+        if (dataDirectory == null || dataDirectory.trim().isEmpty()) {
+            return null;
+        }
+        return Paths.get(dataDirectory.trim(), "prepared-transactions.log");
+    }
+
+    /**
+     * Prepared transactions without outcome are aborted after this time, default one minute
+     */
+    private static long prepareTimeoutFromEnvironment() {
+        String timeout = System.getenv("PREPARE_TIMEOUT_MS");
+        if (timeout == null || timeout.trim().isEmpty()) {
+            return DatabaseServiceImpl.DEFAULT_PREPARE_TIMEOUT_MS;
+        }
+        try {
+            return Math.max(1, Long.parseLong(timeout.trim()));
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring invalid PREPARE_TIMEOUT_MS: {}", timeout);
+            return DatabaseServiceImpl.DEFAULT_PREPARE_TIMEOUT_MS;
+        }
     }
 
     public void blockUntilShutdown() throws InterruptedException {
@@ -28,7 +83,8 @@ public class RpcDatabaseServer {
     public static void main(String[] args) throws Exception {
         RpcDatabaseServer s = new RpcDatabaseServer();
         s.start(50051);
-        System.out.println("Server started.");
+        Runtime.getRuntime().addShutdownHook(new Thread(s::stop, "database-shutdown"));
+        Log.info("Server started.");
         s.blockUntilShutdown();
     }
 }
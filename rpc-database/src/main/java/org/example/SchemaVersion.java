@@ -0,0 +1,53 @@
+package org.example;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * The schema version a client announces with the "schema-version" request header. Clients without the
+ * header are of version 1.
+ */
+final class SchemaVersion {
+    static final int TEXT = 1;
+    static final int COMPACT = 2;
+
+    static final Metadata.Key<String> HEADER = Metadata.Key.of("schema-version", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<Integer> VERSION = Context.keyWithDefault("schema-version", TEXT);
+
+    private SchemaVersion() {
+    }
+
+    /**
+     * The version of the client of the current call
+     */
+    static int current() {
+        return VERSION.get();
+    }
+
+    /**
+     * Makes the version of the client available to the service through {@link #current()}
+     */
+    static ServerInterceptor interceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                return Contexts.interceptCall(Context.current().withValue(VERSION, parse(headers.get(HEADER))),
+                        call, headers, next);
+            }
+        };
+    }
+
+    private static int parse(String header) {
+        if (header == null) return TEXT;
+        try {
+            return Integer.parseInt(header.trim());
+        } catch (NumberFormatException e) {
+            return TEXT;
+        }
+    }
+}
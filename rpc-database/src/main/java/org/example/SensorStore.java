@@ -0,0 +1,89 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
+
+/**
+ * Storage engine behind the {@link DatabaseServiceImpl}.
+ * Entries are kept in insertion order; replacing an entry keeps its position.
+ */
+public interface SensorStore extends Closeable {
+
+    /**
+     * Adds the entry unless an entry with its id exists
+     * @return false if the id already exists
+     * @throws IllegalArgumentException if the store cannot hold the entry
+     */
+    boolean insert(SensorDataStored entry);
+
+    /**
+     * Replaces the entry with the same id, or adds it if there is none
+     * @throws IllegalArgumentException if the store cannot hold the entry
+     */
+    void upsert(SensorDataStored entry);
+
+    /**
+     * Replaces an existing entry with the same id
+     * @return false if there is no entry with the id
+     * @throws IllegalArgumentException if the store cannot hold the entry
+     */
+    boolean replace(SensorDataStored entry);
+
+    /**
+     * @return the entry with the id, or null
+     */
+    SensorDataStored get(String id);
+
+    boolean contains(String id);
+
+    /**
+     * @return the removed entry, or null if there was none
+     */
+    SensorDataStored remove(String id);
+
+    /**
+     * Passes all entries to the action in insertion order
+     */
+    void forEach(Consumer<SensorDataStored> action);
+
+    /**
+     * Receives the entries of a {@link #scan(long, ScanAction)}
+     */
+    @FunctionalInterface
+    interface ScanAction {
+        /**
+         * @param position position of the entry in insertion order, a later scan can resume after it
+         * @return false to stop the scan
+         */
+        boolean accept(long position, SensorDataStored entry);
+    }
+
+    /**
+     * Passes the entries inserted after the position to the action in insertion order, until it returns false
+     * @param after position of the last entry seen by a previous scan, or 0 to start at the beginning
+     * @return true if the scan reached the last entry, false if the action stopped it
+     */
+    boolean scan(long after, ScanAction action);
+
+    int size();
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Creates the store configured by the environment: a persistent {@link MappedSensorStore} in
+     * DATABASE_DATA_DIR if the variable is set, otherwise a {@link HeapSensorStore}
+     */
+    static SensorStore fromEnvironment() throws IOException {
+        String dataDirectory = System.getenv("DATABASE_DATA_DIR");
+        if (dataDirectory == null || dataDirectory.trim().isEmpty()) {
+            Log.info("Using in-memory storage (set DATABASE_DATA_DIR to persist data)");
+            return new HeapSensorStore();
+        }
+        Log.info("Using memory-mapped storage in {}", dataDirectory);
+        return new MappedSensorStore(Paths.get(dataDirectory.trim()));
+    }
+}
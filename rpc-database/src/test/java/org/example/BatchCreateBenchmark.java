@@ -0,0 +1,110 @@
+package org.example;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures readings per second written over a loopback gRPC connection at different batch sizes:
+ * one Create call per reading, one BatchCreate call per batch, and one Prepare and Commit per batch
+ * as the 2PC coordinator of the http-server does. The "readings" counter is the rate to compare.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=BatchCreateBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class BatchCreateBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    private Server server;
+    private ManagedChannel channel;
+    private DatabaseServiceGrpc.DatabaseServiceBlockingStub stub;
+    private SensorDataRequest[] readings;
+    private BatchCreateRequest batch;
+    private long transactions = 0;
+
+    /**
+     * Readings written, reported per second next to the call rate
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long readings;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            readings = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUpData() {
+        readings = new SensorDataRequest[batchSize];
+        BatchCreateRequest.Builder builder = BatchCreateRequest.newBuilder();
+        for (int i = 0; i < batchSize; i++) {
+            readings[i] = SensorDataRequest.newBuilder()
+                    .setSensorId(i % 100)
+                    .setTemperature(Integer.toString(20 + i % 10))
+                    .build();
+            builder.addEntries(readings[i]);
+        }
+        batch = builder.build();
+    }
+
+    /**
+     * A fresh server and store per iteration, so the store does not grow across the whole run
+     */
+    @Setup(Level.Iteration)
+    public void startServer() throws IOException {
+        server = ServerBuilder.forPort(0).addService(new DatabaseServiceImpl()).build().start();
+        channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        stub = DatabaseServiceGrpc.newBlockingStub(channel);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public boolean create(Counters counters) {
+        boolean success = true;
+        for (SensorDataRequest reading : readings) {
+            success &= stub.create(reading).getSuccess();
+        }
+        counters.readings += batchSize;
+        return success;
+    }
+
+    @Benchmark
+    public boolean batchCreate(Counters counters) {
+        boolean success = stub.batchCreate(batch).getSuccess();
+        counters.readings += batchSize;
+        return success;
+    }
+
+    @Benchmark
+    public boolean batchTransaction(Counters counters) {
+        String transactionId = "tx-" + transactions++;
+        boolean prepared = stub.prepare(TransactionRequest.newBuilder()
+                .setTransactionId(transactionId)
+                .setOperation("BATCH_CREATE")
+                .setBatchCreateData(batch)
+                .build()).getPrepared();
+        boolean committed = stub.commit(TransactionId.newBuilder().setTransactionId(transactionId).build()).getSuccess();
+        counters.readings += batchSize;
+        return prepared && committed;
+    }
+}
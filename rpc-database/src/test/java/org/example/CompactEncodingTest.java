@@ -0,0 +1,57 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the conversions between schema version 1 and 2
+ */
+public class CompactEncodingTest {
+
+    @Test
+    public void testTemperaturesRoundTrip() {
+        String[] texts = {"25.5", "-12.25", "0.0", "-0.0", "0.1", "1.0E-5", "123456.789", "1.7976931348623157E308", "NaN"};
+        for (String text : texts) {
+            SensorDataStored stored = stored(text);
+            assertEquals(text, CompactEncoding.temperatureText(stored));
+            assertEquals(text, CompactEncoding.forVersion(stored, SchemaVersion.TEXT).getTemperature());
+            assertEquals(text, CompactEncoding.temperatureText(CompactEncoding.forVersion(stored, SchemaVersion.COMPACT)));
+        }
+    }
+
+    @Test
+    public void testTwoDecimalsAreSentAsHundredths() {
+        assertEquals(SensorDataStored.CompactTemperatureCase.TEMPERATURE_CENTI, stored("25.5").getCompactTemperatureCase());
+        assertEquals(-1225, stored("-12.25").getTemperatureCenti());
+        assertEquals(SensorDataStored.CompactTemperatureCase.TEMPERATURE_VALUE, stored("123456.789").getCompactTemperatureCase());
+        assertEquals("Negative zero has no hundredths", SensorDataStored.CompactTemperatureCase.TEMPERATURE_VALUE,
+                stored("-0.0").getCompactTemperatureCase());
+    }
+
+    @Test
+    public void testOtherTextStaysText() {
+        for (String text : new String[]{"20", "25.50", "warm"}) {
+            SensorDataStored stored = stored(text);
+            assertEquals(SensorDataStored.CompactTemperatureCase.COMPACTTEMPERATURE_NOT_SET, stored.getCompactTemperatureCase());
+            assertEquals(text, CompactEncoding.forVersion(stored, SchemaVersion.COMPACT).getTemperature());
+        }
+    }
+
+    @Test
+    public void testOnlyCanonicalUuidsAreSentAsBytes() {
+        String id = UUID.randomUUID().toString();
+        assertEquals(16, CompactEncoding.uuidBytes(id).size());
+        assertNull(CompactEncoding.uuidBytes(id.toUpperCase()));
+        assertNull(CompactEncoding.uuidBytes("sensor-1-1700000000000"));
+        assertEquals("sensor-1", CompactEncoding.forVersion(stored("20.0").toBuilder().setId("sensor-1").build(),
+                SchemaVersion.COMPACT).getId());
+    }
+
+    private static SensorDataStored stored(String temperature) {
+        return CompactEncoding.setTemperature(SensorDataStored.newBuilder().setId(UUID.randomUUID().toString()),
+                SensorDataRequest.newBuilder().setTemperature(temperature).build()).build();
+    }
+}
@@ -1,14 +1,28 @@
 package org.example;
 
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.Server;
+import io.grpc.ServerInterceptors;
 import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.testing.GrpcCleanupRule;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -20,22 +34,28 @@ public class DatabaseServiceIntegrationTest {
     @Rule
     public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     private DatabaseServiceGrpc.DatabaseServiceBlockingStub blockingStub;
     private DatabaseServiceImpl service;
 
     @Before
     public void setUp() throws Exception {
-        // Generate a unique in-process server name
-        String serverName = InProcessServerBuilder.generateName();
-
         // Create service implementation
         service = new DatabaseServiceImpl();
+        blockingStub = startServer(service);
+    }
+
+    private DatabaseServiceGrpc.DatabaseServiceBlockingStub startServer(DatabaseServiceImpl service) throws IOException {
+        // Generate a unique in-process server name
+        String serverName = InProcessServerBuilder.generateName();
 
         // Create in-process server
         Server server = InProcessServerBuilder
                 .forName(serverName)
                 .directExecutor()
-                .addService(service)
+                .addService(ServerInterceptors.intercept(service, SchemaVersion.interceptor()))
                 .build()
                 .start();
 
@@ -52,7 +72,7 @@ public class DatabaseServiceIntegrationTest {
         grpcCleanup.register(channel);
 
         // Create blocking stub
-        blockingStub = DatabaseServiceGrpc.newBlockingStub(channel);
+        return DatabaseServiceGrpc.newBlockingStub(channel);
     }
 
     @Test
@@ -308,4 +328,253 @@ public class DatabaseServiceIntegrationTest {
         SensorDataStored readResponse3 = blockingStub.read(readKey);
         assertTrue("Data should not exist after deletion", readResponse3.getId().isEmpty());
     }
+
+    @Test
+    public void testStreamAllInPages() {
+        for (int i = 0; i < 7; i++) {
+            blockingStub.create(SensorDataRequest.newBuilder().setSensorId(i % 2).setTemperature("2" + i + ".0").build());
+        }
+
+        // Pages of three entries
+        List<SensorDataPage> pages = new ArrayList<>();
+        blockingStub.streamAll(ScanRequest.newBuilder().setPageSize(3).build()).forEachRemaining(pages::add);
+        assertEquals("Seven entries should arrive in three pages", 3, pages.size());
+        assertEquals(3, pages.get(0).getEntriesCount());
+        assertEquals(1, pages.get(2).getEntriesCount());
+        assertEquals("Entries should stream in insertion order", "20.0", pages.get(0).getEntries(0).getTemperature());
+
+        // Resume after the first page, limited to two entries
+        Iterator<SensorDataPage> resumed = blockingStub.streamAll(ScanRequest.newBuilder()
+                .setCursor(pages.get(0).getNextCursor())
+                .setLimit(2)
+                .build());
+        SensorDataPage page = resumed.next();
+        assertFalse("The limit should end the stream", resumed.hasNext());
+        assertEquals(2, page.getEntriesCount());
+        assertEquals("23.0", page.getEntries(0).getTemperature());
+
+        // Only sensor 1
+        List<String> temperatures = new ArrayList<>();
+        blockingStub.streamAll(ScanRequest.newBuilder().setSensorId(1).build())
+                .forEachRemaining(p -> p.getEntriesList().forEach(e -> temperatures.add(e.getTemperature())));
+        assertEquals(Arrays.asList("21.0", "23.0", "25.0"), temperatures);
+
+        // Entries carry the time of their last write, which since filters on
+        long written = pages.get(0).getEntries(0).getTimestamp();
+        assertTrue("Entries should be timestamped", written > 0);
+        List<SensorDataStored> recent = new ArrayList<>();
+        blockingStub.streamAll(ScanRequest.newBuilder().setSince(System.currentTimeMillis() + 60_000).build())
+                .forEachRemaining(p -> recent.addAll(p.getEntriesList()));
+        assertTrue("No entry is written in the future", recent.isEmpty());
+    }
+
+    @Test
+    public void testStreamAllWithInvalidCursor() {
+        try {
+            blockingStub.streamAll(ScanRequest.newBuilder().setCursor("not-a-cursor").build()).hasNext();
+            fail("Expected INVALID_ARGUMENT");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void testBatchCreate() {
+        BatchCreateRequest batch = BatchCreateRequest.newBuilder()
+                .addEntries(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0"))
+                .addEntries(SensorDataRequest.newBuilder().setSensorId(2).setTemperature("21.0"))
+                .addEntries(SensorDataRequest.newBuilder().setSensorId(3).setTemperature("22.0"))
+                .build();
+        BatchResponse response = blockingStub.batchCreate(batch);
+        assertTrue(response.getSuccess());
+        assertEquals(3, response.getIdsCount());
+        assertEquals("21.0", blockingStub.read(Key.newBuilder().setId(response.getIds(1)).build()).getTemperature());
+
+        // One invalid entry rejects the whole batch
+        BatchResponse rejected = blockingStub.batchCreate(batch.toBuilder()
+                .addEntries(SensorDataRequest.newBuilder().setSensorId(4).setTemperature(" "))
+                .build());
+        assertFalse(rejected.getSuccess());
+        assertEquals(3, blockingStub.readAll(Empty.newBuilder().build()).getEntriesCount());
+    }
+
+    @Test
+    public void testBatchCreateTransaction() {
+        TransactionRequest prepare = TransactionRequest.newBuilder()
+                .setTransactionId("tx-batch")
+                .setOperation("BATCH_CREATE")
+                .setBatchCreateData(BatchCreateRequest.newBuilder()
+                        .addEntries(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0"))
+                        .addEntries(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.5")))
+                .build();
+        assertTrue(blockingStub.prepare(prepare).getPrepared());
+        assertEquals("Nothing is written before the commit", 0,
+                blockingStub.readAll(Empty.newBuilder().build()).getEntriesCount());
+
+        assertTrue(blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-batch").build()).getSuccess());
+        SensorDataStoredList all = blockingStub.readAll(Empty.newBuilder().build());
+        assertEquals(2, all.getEntriesCount());
+        assertEquals("20.5", all.getEntries(1).getTemperature());
+        assertTrue(all.getEntries(0).getTimestamp() > 0);
+    }
+
+    @Test
+    public void testGroupTransactionPreparesOperationsIndependently() {
+        String existing = blockingStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0").build()).getId();
+        TransactionGroup group = TransactionGroup.newBuilder()
+                .addOperations(TransactionRequest.newBuilder().setOperation("CREATE")
+                        .setCreateData(SensorDataRequest.newBuilder().setSensorId(2).setTemperature("21.0")))
+                .addOperations(TransactionRequest.newBuilder().setOperation("DELETE")
+                        .setDeleteData(DeleteRequest.newBuilder().setId("unknown")))
+                .addOperations(TransactionRequest.newBuilder().setOperation("UPDATE")
+                        .setUpdateData(UpdateRequest.newBuilder().setId(existing)
+                                .setUpdatedData(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("22.0"))))
+                .build();
+        PrepareResponse prepared = blockingStub.prepare(TransactionRequest.newBuilder()
+                .setTransactionId("tx-group")
+                .setOperation("GROUP")
+                .setGroupData(group)
+                .build());
+        assertTrue(prepared.getPrepared());
+        assertEquals(Arrays.asList(true, false, true), prepared.getOperationPreparedList());
+
+        Response committed = blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-group").build());
+        assertTrue(committed.getSuccess());
+        assertEquals("Each prepared operation should be reported as written",
+                Arrays.asList(true, true), committed.getOperationCommittedList());
+        SensorDataStoredList all = blockingStub.readAll(Empty.newBuilder().build());
+        assertEquals("The prepared create should be committed", 2, all.getEntriesCount());
+        assertEquals("22.0", blockingStub.read(Key.newBuilder().setId(existing).build()).getTemperature());
+    }
+
+    @Test
+    public void testPreparedTransactionSurvivesRestart() throws IOException {
+        Path log = folder.getRoot().toPath().resolve("prepared-transactions.log");
+        SensorStore store = new HeapSensorStore();
+        DatabaseServiceImpl before = new DatabaseServiceImpl(store, log);
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub stub = startServer(before);
+        for (String txId : Arrays.asList("tx-open", "tx-aborted")) {
+            assertTrue(stub.prepare(TransactionRequest.newBuilder()
+                    .setTransactionId(txId)
+                    .setOperation("CREATE")
+                    .setCreateData(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0"))
+                    .build()).getPrepared());
+        }
+        assertTrue(stub.abort(TransactionId.newBuilder().setTransactionId("tx-aborted").build()).getSuccess());
+        before.close();
+
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub restarted = startServer(new DatabaseServiceImpl(store, log));
+        assertEquals(Collections.singletonList("tx-open"),
+                restarted.inDoubt(Empty.newBuilder().build()).getTransactionIdsList());
+        assertTrue(restarted.commit(TransactionId.newBuilder().setTransactionId("tx-open").build()).getSuccess());
+        assertEquals(1, restarted.readAll(Empty.newBuilder().build()).getEntriesCount());
+        assertEquals(0, restarted.inDoubt(Empty.newBuilder().build()).getTransactionIdsCount());
+    }
+
+    @Test
+    public void testFailedCommitStaysPrepared() throws IOException {
+        SensorStore failingOnce = new HeapSensorStore() {
+            private boolean failed;
+
+            @Override
+            public void upsert(SensorDataStored entry) {
+                if (!failed) {
+                    failed = true;
+                    throw new IllegalStateException("Disk full");
+                }
+                super.upsert(entry);
+            }
+        };
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub stub = startServer(new DatabaseServiceImpl(failingOnce));
+        assertTrue(stub.prepare(TransactionRequest.newBuilder()
+                .setTransactionId("tx-retried")
+                .setOperation("CREATE")
+                .setCreateData(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0"))
+                .build()).getPrepared());
+        TransactionId txId = TransactionId.newBuilder().setTransactionId("tx-retried").build();
+
+        assertFalse(stub.commit(txId).getSuccess());
+        assertEquals("A failed commit should stay prepared for the recovery", Collections.singletonList("tx-retried"),
+                stub.inDoubt(Empty.newBuilder().build()).getTransactionIdsList());
+        assertTrue(stub.commit(txId).getSuccess());
+        assertEquals(1, stub.readAll(Empty.newBuilder().build()).getEntriesCount());
+        assertEquals(0, stub.inDoubt(Empty.newBuilder().build()).getTransactionIdsCount());
+    }
+
+    @Test
+    public void testUnfinishedPrepareExpires() throws Exception {
+        DatabaseServiceImpl expiring = new DatabaseServiceImpl(new HeapSensorStore(), null, 100);
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub stub = startServer(expiring);
+        String id = stub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0").build()).getId();
+        TransactionRequest.Builder update = TransactionRequest.newBuilder()
+                .setOperation("UPDATE")
+                .setUpdateData(UpdateRequest.newBuilder().setId(id)
+                        .setUpdatedData(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("21.0")));
+        assertTrue(stub.prepare(update.setTransactionId("tx-abandoned").build()).getPrepared());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stub.inDoubt(Empty.newBuilder().build()).getTransactionIdsCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("The abandoned transaction should have expired", 0,
+                stub.inDoubt(Empty.newBuilder().build()).getTransactionIdsCount());
+        assertEquals(1, expiring.expiredTransactions());
+        assertEquals("The expiry should be reported to the coordinator", Collections.singletonList("tx-abandoned"),
+                stub.inDoubt(Empty.newBuilder().build()).getExpiredTransactionIdsList());
+        assertFalse("An expired transaction cannot be committed anymore",
+                stub.commit(TransactionId.newBuilder().setTransactionId("tx-abandoned").build()).getSuccess());
+        assertTrue("The expiry unlocks the entry", stub.prepare(update.setTransactionId("tx-next").build()).getPrepared());
+        expiring.close();
+    }
+
+    @Test
+    public void testSchemaVersionsReadEachOthersEntries() {
+        Metadata headers = new Metadata();
+        headers.put(SchemaVersion.HEADER, "2");
+        DatabaseServiceGrpc.DatabaseServiceBlockingStub compactStub =
+                blockingStub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+
+        String compactId = compactStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperatureCenti(2550).build()).getId();
+        String textId = blockingStub.create(SensorDataRequest.newBuilder().setSensorId(2).setTemperature("20").build()).getId();
+
+        SensorDataStored oldView = blockingStub.read(Key.newBuilder().setId(compactId).build());
+        assertEquals(compactId, oldView.getId());
+        assertEquals("25.5", oldView.getTemperature());
+        assertTrue(oldView.getUuid().isEmpty());
+
+        SensorDataStored compactView = compactStub.read(Key.newBuilder().setId(compactId).build());
+        assertEquals("", compactView.getId());
+        assertEquals(16, compactView.getUuid().size());
+        assertEquals(2550, compactView.getTemperatureCenti());
+        assertEquals("", compactView.getTemperature());
+
+        // "20" is not how Double.toString writes 20, it stays text so that old clients read it back unchanged
+        assertEquals("20", blockingStub.read(Key.newBuilder().setId(textId).build()).getTemperature());
+        assertEquals("20", compactStub.read(Key.newBuilder().setId(textId).build()).getTemperature());
+        assertEquals(2, compactStub.readAll(Empty.newBuilder().build()).getEntriesCount());
+    }
+
+    @Test
+    public void testStatsAggregatePerSensor() {
+        blockingStub.create(SensorDataRequest.newBuilder().setSensorId(2).setTemperature("18").build());
+        blockingStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0").build());
+        blockingStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperatureCenti(2250).build());
+        blockingStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperatureValue(-1.125).build());
+
+        TemperatureStatsList all = blockingStub.stats(StatsRequest.getDefaultInstance());
+        assertEquals(2, all.getSensorsCount());
+        TemperatureStats first = all.getSensors(0);
+        assertEquals(1, first.getSensorId());
+        assertEquals(3, first.getCount());
+        assertEquals(-1.125, first.getMin(), 0);
+        assertEquals(22.5, first.getMax(), 0);
+        assertEquals(41.375, first.getSum(), 0);
+        assertEquals(2, all.getSensors(1).getSensorId());
+        assertEquals(18.0, all.getSensors(1).getSum(), 0);
+
+        TemperatureStatsList one = blockingStub.stats(StatsRequest.newBuilder().setSensorId(2).build());
+        assertEquals(1, one.getSensorsCount());
+        assertEquals(1, one.getSensors(0).getCount());
+        assertEquals(0, blockingStub.stats(StatsRequest.newBuilder().setSensorId(3).build()).getSensorsCount());
+    }
 }
@@ -0,0 +1,51 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ingesting entries into {@link HeapSensorStore} while every fourth insert also deletes an
+ * older entry, followed by one full iteration as done by ReadAll.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=HeapSensorStoreBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class HeapSensorStoreBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    private SensorDataStored[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new SensorDataStored[entries];
+        for (int i = 0; i < entries; i++) {
+            data[i] = SensorDataStored.newBuilder()
+                    .setId("sensor-" + i)
+                    .setSensorId(i % 100)
+                    .setTemperature(Integer.toString(20 + i % 10))
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public int insertWithInterleavedDeletes() {
+        HeapSensorStore store = new HeapSensorStore();
+        for (int i = 0; i < entries; i++) {
+            store.insert(data[i]);
+            if ((i & 3) == 3) {
+                store.remove(data[i / 2].getId());
+            }
+        }
+        int[] count = new int[1];
+        store.forEach(entry -> count[0]++);
+        return count[0];
+    }
+}
@@ -0,0 +1,188 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the memory-mapped storage engine
+ */
+public class MappedSensorStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private MappedSensorStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath();
+        store = open();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private MappedSensorStore open() throws IOException {
+        // Small segments so that tests span several files
+        return new MappedSensorStore(directory, 4, 0);
+    }
+
+    private static SensorDataStored entry(String id, int sensorId, String temperature) {
+        return SensorDataStored.newBuilder().setId(id).setSensorId(sensorId).setTemperature(temperature).build();
+    }
+
+    private List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        store.forEach(entry -> ids.add(entry.getId()));
+        return ids;
+    }
+
+    @Test
+    public void testCrudKeepsInsertionOrder() {
+        assertTrue(store.insert(entry("a", 1, "20.0")));
+        assertTrue(store.insert(entry("b", 2, "21.0")));
+        assertTrue(store.insert(entry("c", 3, "22.0")));
+        assertFalse("Duplicate id should be rejected", store.insert(entry("a", 9, "0")));
+
+        assertTrue(store.replace(entry("a", 1, "30.5")));
+        assertFalse(store.replace(entry("x", 1, "30.5")));
+        assertEquals("30.5", store.get("a").getTemperature());
+        assertEquals(2, store.get("b").getSensorId());
+        assertNull(store.get("x"));
+
+        assertEquals("b", store.remove("b").getId());
+        assertNull(store.remove("b"));
+        assertFalse(store.contains("b"));
+
+        store.upsert(entry("d", 4, "23.0"));
+        assertEquals(3, store.size());
+        assertEquals(List.of("a", "c", "d"), ids());
+    }
+
+    @Test
+    public void testOversizedEntryIsRejected() {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < MappedSensorStore.MAX_ID_BYTES + 1; i++) {
+            id.append('x');
+        }
+        try {
+            store.insert(entry(id.toString(), 1, "20.0"));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testEntriesSurviveReopen() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            store.insert(entry("id-" + i, i, "2" + i + ".0"));
+        }
+        store.replace(entry("id-3", 3, "99.9").toBuilder().setTimestamp(1234L).build());
+        store.remove("id-5");
+        store.close();
+
+        store = open();
+        assertEquals(9, store.size());
+        assertEquals("99.9", store.get("id-3").getTemperature());
+        assertEquals(1234L, store.get("id-3").getTimestamp());
+        assertNull(store.get("id-5"));
+        assertEquals(List.of("id-0", "id-1", "id-2", "id-3", "id-4", "id-6", "id-7", "id-8", "id-9"), ids());
+
+        assertTrue("Appends continue after recovery", store.insert(entry("id-10", 10, "30.0")));
+        assertEquals("id-10", ids().get(9));
+    }
+
+    @Test
+    public void testCompactionRemovesDeadRecords() throws IOException {
+        for (int i = 0; i < 12; i++) {
+            store.insert(entry("id-" + i, i, "20.0"));
+        }
+        for (int i = 0; i < 4; i++) {
+            store.remove("id-" + i);
+        }
+        store.remove("id-5");
+        store.remove("id-6");
+        store.remove("id-7");
+        int segments = store.segmentCount();
+
+        store.compact();
+        assertEquals("The empty segment should be deleted", segments - 1, store.segmentCount());
+        assertEquals(List.of("id-4", "id-8", "id-9", "id-10", "id-11"), ids());
+        assertEquals(4, store.get("id-4").getSensorId());
+        store.close();
+
+        store = open();
+        assertEquals(List.of("id-4", "id-8", "id-9", "id-10", "id-11"), ids());
+        assertTrue(store.replace(entry("id-4", 4, "25.0")));
+        assertEquals("25.0", store.get("id-4").getTemperature());
+    }
+
+    /**
+     * Reads the store in pages the way the StreamAll streamer does, each page resuming after the last position
+     */
+    private List<String> pagedIds(int pageSize) {
+        List<String> ids = new ArrayList<>();
+        long[] position = {0};
+        boolean reachedEnd;
+        do {
+            int[] taken = {0};
+            reachedEnd = store.scan(position[0], (sequence, entry) -> {
+                assertTrue("Positions should increase", sequence > position[0]);
+                ids.add(entry.getId());
+                position[0] = sequence;
+                return ++taken[0] < pageSize;
+            });
+        } while (!reachedEnd);
+        return ids;
+    }
+
+    @Test
+    public void testPagedScanKeepsInsertionOrder() throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            store.insert(entry("id-" + i, i, "20.0"));
+            expected.add("id-" + i);
+        }
+        // Replaced entries are appended to the last segment but keep their position
+        for (int i = 0; i < 3000; i += 7) {
+            assertTrue(store.replace(entry("id-" + i, i, "25.0")));
+        }
+        for (int i = 0; i < 3000; i += 2) {
+            store.remove("id-" + i);
+            expected.remove("id-" + i);
+        }
+        assertEquals(expected, pagedIds(100));
+        assertEquals(expected, ids());
+
+        long[] first = new long[1];
+        store.scan(0, (sequence, entry) -> {
+            first[0] = sequence;
+            return false;
+        });
+        List<String> resumed = new ArrayList<>();
+        store.scan(first[0], (sequence, entry) -> resumed.add(entry.getId()));
+        assertEquals(expected.subList(1, expected.size()), resumed);
+
+        store.compact();
+        assertEquals(expected, pagedIds(100));
+        store.close();
+
+        store = open();
+        assertEquals(expected, pagedIds(37));
+    }
+}
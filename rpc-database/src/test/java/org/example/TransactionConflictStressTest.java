@@ -0,0 +1,168 @@
+package org.example;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests for the entry locks of prepared transactions: conflicting transactions on the same
+ * entries must never be prepared at the same time.
+ */
+public class TransactionConflictStressTest {
+
+    private static final int CLIENTS = 16;
+    private static final int TRANSACTIONS_PER_CLIENT = 50;
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private DatabaseServiceGrpc.DatabaseServiceBlockingStub blockingStub;
+    private DatabaseServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new DatabaseServiceImpl();
+        String serverName = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder
+                .forName(serverName)
+                .directExecutor()
+                .addService(service)
+                .build()
+                .start();
+        grpcCleanup.register(server);
+        ManagedChannel channel = InProcessChannelBuilder
+                .forName(serverName)
+                .directExecutor()
+                .build();
+        grpcCleanup.register(channel);
+        blockingStub = DatabaseServiceGrpc.newBlockingStub(channel);
+    }
+
+    @Test
+    public void testConflictingPrepareIsRejectedUntilOutcome() {
+        String id = createEntry();
+        assertTrue(blockingStub.prepare(update("tx-1", id, "21.0")).getPrepared());
+
+        PrepareResponse conflicting = blockingStub.prepare(update("tx-2", id, "22.0"));
+        assertFalse("The entry is locked by tx-1", conflicting.getPrepared());
+        assertEquals("Entry is locked by another transaction", conflicting.getMessage());
+        assertEquals(1, service.lockTimeouts());
+
+        assertTrue(blockingStub.abort(TransactionId.newBuilder().setTransactionId("tx-1").build()).getSuccess());
+        assertTrue("The abort unlocks the entry", blockingStub.prepare(update("tx-2", id, "22.0")).getPrepared());
+        assertTrue(blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-2").build()).getSuccess());
+        assertEquals("22.0", blockingStub.read(Key.newBuilder().setId(id).build()).getTemperature());
+    }
+
+    @Test
+    public void testGroupRejectsOnlyLockedOperations() {
+        String locked = createEntry();
+        String free = createEntry();
+        assertTrue(blockingStub.prepare(update("tx-1", locked, "21.0")).getPrepared());
+
+        PrepareResponse prepared = blockingStub.prepare(TransactionRequest.newBuilder()
+                .setTransactionId("tx-group")
+                .setOperation("GROUP")
+                .setGroupData(TransactionGroup.newBuilder()
+                        .addOperations(update("", locked, "22.0"))
+                        .addOperations(update("", free, "22.0")))
+                .build());
+        assertTrue(prepared.getPrepared());
+        assertEquals(Arrays.asList(false, true), prepared.getOperationPreparedList());
+
+        assertTrue(blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-group").build()).getSuccess());
+        assertTrue(blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-1").build()).getSuccess());
+        assertEquals("21.0", blockingStub.read(Key.newBuilder().setId(locked).build()).getTemperature());
+        assertEquals("22.0", blockingStub.read(Key.newBuilder().setId(free).build()).getTemperature());
+    }
+
+    @Test
+    public void testUnaryWritesWaitForPreparedTransaction() {
+        String id = createEntry();
+        assertTrue(blockingStub.prepare(update("tx-1", id, "21.0")).getPrepared());
+
+        Response updated = blockingStub.update(update("", id, "23.0").getUpdateData());
+        assertFalse("The entry is locked by tx-1", updated.getSuccess());
+        assertEquals("Entry with ID: " + id + " is locked by a transaction.", updated.getMessage());
+        assertFalse(blockingStub.delete(DeleteRequest.newBuilder().setId(id).build()).getSuccess());
+        assertEquals(2, service.lockTimeouts());
+
+        assertTrue(blockingStub.commit(TransactionId.newBuilder().setTransactionId("tx-1").build()).getSuccess());
+        assertEquals("The commit of tx-1 is not overwritten",
+                "21.0", blockingStub.read(Key.newBuilder().setId(id).build()).getTemperature());
+        assertTrue(blockingStub.update(update("", id, "23.0").getUpdateData()).getSuccess());
+        assertEquals("23.0", blockingStub.read(Key.newBuilder().setId(id).build()).getTemperature());
+        assertTrue(blockingStub.delete(DeleteRequest.newBuilder().setId(id).build()).getSuccess());
+    }
+
+    @Test
+    public void testConcurrentUpdatesOfOneEntryAreSerialized() throws Exception {
+        String id = createEntry();
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger committed = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int c = 0; c < CLIENTS; c++) {
+                int client = c;
+                results.add(clients.submit(() -> {
+                    for (int i = 0; i < TRANSACTIONS_PER_CLIENT; i++) {
+                        String txId = "tx-" + client + "-" + i;
+                        // A prepare that timed out waiting for the lock is retried, like the coordinator does
+                        while (!blockingStub.prepare(update(txId, id, client + "." + i)).getPrepared()) {
+                            Thread.yield();
+                        }
+                        if (holders.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        Thread.yield();
+                        holders.decrementAndGet();
+                        if (blockingStub.commit(TransactionId.newBuilder().setTransactionId(txId).build()).getSuccess()) {
+                            committed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            clients.shutdown();
+        }
+
+        assertEquals("Two transactions held the entry at once", 0, overlaps.get());
+        assertEquals(CLIENTS * TRANSACTIONS_PER_CLIENT, committed.get());
+        assertEquals(0, blockingStub.inDoubt(Empty.newBuilder().build()).getTransactionIdsCount());
+        assertTrue("Conflicting prepares should have waited for the lock", service.lockWaitNanos() > 0);
+    }
+
+    private String createEntry() {
+        return blockingStub.create(SensorDataRequest.newBuilder().setSensorId(1).setTemperature("20.0").build()).getId();
+    }
+
+    private static TransactionRequest update(String txId, String id, String temperature) {
+        return TransactionRequest.newBuilder()
+                .setTransactionId(txId)
+                .setOperation("UPDATE")
+                .setUpdateData(UpdateRequest.newBuilder().setId(id)
+                        .setUpdatedData(SensorDataRequest.newBuilder().setSensorId(1).setTemperature(temperature)))
+                .build();
+    }
+}